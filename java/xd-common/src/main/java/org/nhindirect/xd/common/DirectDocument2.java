@@ -31,13 +31,14 @@ package org.nhindirect.xd.common;
 import static org.nhindirect.xd.common.DirectDocumentUtils.addSlot;
 import static org.nhindirect.xd.common.DirectDocumentUtils.makeInternationalStringType;
 import static org.nhindirect.xd.common.DirectDocumentUtils.makeSlot;
-import static org.nhindirect.xd.common.DirectDocumentUtils.slotNotEmpty;
+import static org.nhindirect.xd.common.DirectDocumentUtils.slotValues;
+import static org.nhindirect.xd.common.DirectDocumentUtils.valuesNotEmpty;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -45,6 +46,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
+import javax.activation.DataSource;
 import javax.activation.MimetypesFileTypeMap;
 import javax.xml.namespace.QName;
 
@@ -53,12 +55,14 @@ import oasis.names.tc.ebxml_regrep.xsd.rim._3.ExternalIdentifierType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.ExtrinsicObjectType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.SlotType1;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nhindirect.xd.common.content.ContentDigest;
+import org.nhindirect.xd.common.content.DocumentContent;
+import org.nhindirect.xd.common.content.HeapContent;
 import org.nhindirect.xd.common.exception.MetadataException;
 import org.nhindirect.xd.common.type.ClassificationTypeEnum;
 import org.nhindirect.xd.common.type.ExternalIdentifierTypeEnum;
@@ -79,8 +83,9 @@ import org.nhindirect.xd.transform.util.XmlUtils;
  */
 public class DirectDocument2
 {
-    private byte[] data;
+    private DocumentContent content;
     private Metadata metadata;
+    private List<KeyListener> keyListeners;
 
     private static final Log LOGGER = LogFactory.getFactory().getInstance(DirectDocument2.class);
 
@@ -89,7 +94,7 @@ public class DirectDocument2
      */
     public DirectDocument2()
     {
-        this.metadata = new Metadata();
+        setMetadata(new Metadata());
     }
 
     /**
@@ -98,8 +103,19 @@ public class DirectDocument2
      */
     public DirectDocument2(File file) throws IOException
     {
-        this.data = FileUtils.readFileToByteArray(file);
-        this.metadata = new Metadata(file);
+        // Read and hash the file in one pass
+        ContentDigest digest = new ContentDigest();
+        InputStream inputStream = digest.digest(new FileInputStream(file));
+        try
+        {
+            this.content = new HeapContent(IOUtils.toByteArray(inputStream));
+        }
+        finally
+        {
+            inputStream.close();
+        }
+
+        setMetadata(new Metadata(file, digest.getSha1()));
     }
 
     /**
@@ -120,17 +136,42 @@ public class DirectDocument2
      */
     public void setMetadata(Metadata metadata)
     {
+        Metadata old = this.metadata;
+
+        if (old != null && old.owner == this)
+            old.owner = null;
+        if (metadata != null)
+            metadata.owner = this;
+
         this.metadata = metadata;
+
+        for (Key key : Key.values())
+            fireKeyChanged(key, key.get(old), key.get(metadata));
     }
 
     /**
-     * Get the value of data.
+     * Get the value of data. Content which is not held on the heap is read
+     * into a new array; use {@link #getContent()} to read it as a stream or
+     * channel instead.
      * 
      * @return the data The value of data.
      */
     public byte[] getData()
     {
-        return data;
+        if (content == null)
+            return null;
+
+        if (content instanceof HeapContent)
+            return ((HeapContent) content).getData();
+
+        try
+        {
+            return content.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Unable to read document content from " + content.getName(), e);
+        }
     }
 
     /**
@@ -141,12 +182,144 @@ public class DirectDocument2
      */
     public void setData(byte[] data)
     {
-        this.data = data;
+        this.content = new HeapContent(data);
         
         this.metadata.setHash(getSha1Hash(data));
         this.metadata.setSize(new Long(data.length));
     }
 
+    /**
+     * Return the content of the document, or null if the document has no
+     * content.
+     * 
+     * @return the content of the document.
+     */
+    public DocumentContent getContent()
+    {
+        return content;
+    }
+
+    /**
+     * Set the content of the document, replacing any data. The content is not
+     * read, so its hash must be supplied; the size is taken from the content
+     * when it is known.
+     * 
+     * @param content
+     *            The content.
+     * @param hash
+     *            The SHA-1 hash of the content.
+     */
+    public void setContent(DocumentContent content, String hash)
+    {
+        this.content = content;
+
+        this.metadata.setHash(hash);
+        if (content != null && content.getSize() >= 0)
+            this.metadata.setSize(Long.valueOf(content.getSize()));
+    }
+
+    /**
+     * Return the content of the document as a DataSource, or null if the
+     * document has no content.
+     * 
+     * @return the content of the document.
+     */
+    public DataSource getDataSource()
+    {
+        if (content == null)
+            return null;
+
+        return content.toDataSource(metadata.getMimeType());
+    }
+
+    /**
+     * Set content which is held outside the heap, such as a file, replacing
+     * any data. The content is not read, so its hash and size must be
+     * supplied.
+     * 
+     * @param dataSource
+     *            The content.
+     * @param hash
+     *            The SHA-1 hash of the content.
+     * @param size
+     *            The size of the content in bytes.
+     */
+    public void setDataSource(DataSource dataSource, String hash, long size)
+    {
+        this.content = DocumentContent.fromDataSource(dataSource, size);
+
+        this.metadata.setHash(hash);
+        this.metadata.setSize(new Long(size));
+    }
+
+    /**
+     * Set content which is read on demand, such as an MTOM attachment,
+     * replacing any data. The content is not read, so the hash and size of
+     * the metadata are left as they are until the content is consumed.
+     *
+     * @param dataSource
+     *            The content.
+     */
+    public void setDataSource(DataSource dataSource)
+    {
+        this.content = DocumentContent.fromDataSource(dataSource, -1);
+    }
+
+    /**
+     * Metadata values by which documents are looked up.
+     */
+    enum Key
+    {
+        ID, UNIQUE_ID, HASH;
+
+        String get(Metadata metadata)
+        {
+            if (metadata == null)
+                return null;
+
+            switch (this)
+            {
+            case ID:
+                return metadata.getId();
+            case UNIQUE_ID:
+                return metadata.getUniqueId();
+            default:
+                return metadata.getHash();
+            }
+        }
+    }
+
+    /**
+     * Callback for changes to the lookup keys of a document.
+     */
+    interface KeyListener
+    {
+        void keyChanged(DirectDocument2 document, Key key, String oldValue, String newValue);
+    }
+
+    void addKeyListener(KeyListener listener)
+    {
+        if (keyListeners == null)
+            keyListeners = new ArrayList<KeyListener>(1);
+
+        keyListeners.add(listener);
+    }
+
+    void removeKeyListener(KeyListener listener)
+    {
+        if (keyListeners != null)
+            keyListeners.remove(listener);
+    }
+
+    private void fireKeyChanged(Key key, String oldValue, String newValue)
+    {
+        if (keyListeners == null || StringUtils.equals(oldValue, newValue))
+            return;
+
+        for (KeyListener listener : keyListeners)
+            listener.keyChanged(this, key, oldValue, newValue);
+    }
+
     /**
      * Abstract representation of document metadata.
      * 
@@ -198,6 +371,8 @@ public class DirectDocument2
 
         private String uri;
 
+        private DirectDocument2 owner;
+
         /**
          * Default constructor.
          */
@@ -215,6 +390,11 @@ public class DirectDocument2
          *            A File object from which to extract metadata.
          */
         public Metadata(File file) throws IOException
+        {
+            this(file, ContentDigest.sha1(file));
+        }
+
+        private Metadata(File file, String hash)
         {
             super();
             
@@ -242,7 +422,7 @@ public class DirectDocument2
             
             // File size and hash
             this.size = file.length();
-            this.hash = getSha1Hash(FileUtils.readFileToString(file));
+            this.hash = hash;
         }
 
         /**
@@ -406,6 +586,30 @@ public class DirectDocument2
         }
 
         public void setValues(ExtrinsicObjectType eot) throws MetadataException
+        {
+            String oldId = id;
+            String oldUniqueId = uniqueId;
+            String oldHash = hash;
+
+            try
+            {
+                readValues(eot);
+            }
+            finally
+            {
+                keyChanged(Key.ID, oldId, id);
+                keyChanged(Key.UNIQUE_ID, oldUniqueId, uniqueId);
+                keyChanged(Key.HASH, oldHash, hash);
+            }
+        }
+
+        private void keyChanged(Key key, String oldValue, String newValue)
+        {
+            if (owner != null && owner.metadata == this)
+                owner.fireKeyChanged(key, oldValue, newValue);
+        }
+
+        private void readValues(ExtrinsicObjectType eot) throws MetadataException
         {
             mimeType = eot.getMimeType();
             id = eot.getId();
@@ -414,311 +618,300 @@ public class DirectDocument2
                 description = eot.getDescription().getLocalizedString().get(0).getValue();
 
             for (SlotType1 slot : eot.getSlot())
+                readSlot(slot.getName(), slotValues(slot));
+
+            for (ClassificationType ct : eot.getClassification())
+            {
+                for (SlotType1 slot : ct.getSlot())
+                    readClassificationSlot(ct.getClassificationScheme(), slot.getName(), slotValues(slot));
+
+                String localizedName = null;
+                if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty())
+                    localizedName = ct.getName().getLocalizedString().get(0).getValue();
+
+                readClassification(ct.getClassificationScheme(), ct.getNodeRepresentation(), localizedName);
+            }
+
+            for (ExternalIdentifierType eit : eot.getExternalIdentifier())
+                readExternalIdentifier(eit.getIdentificationScheme(), eit.getValue());
+        }
+
+        /**
+         * Read the values of an ExtrinsicObject slot.
+         * 
+         * @param name
+         *            The slot name.
+         * @param values
+         *            The slot values.
+         * @throws MetadataException
+         */
+        void readSlot(String name, List<String> values) throws MetadataException
+        {
+            if (SlotType1Enum.CREATION_TIME.matches(name))
             {
-                if (SlotType1Enum.CREATION_TIME.matches(slot.getName()))
+                if (valuesNotEmpty(values))
                 {
-                    if (slotNotEmpty(slot))
+                    try
                     {
-                        try
-                        {
-                            creationTime = DateUtils.parseDate(slot.getValueList().getValue().get(0),
-                                    new String[]
-                                    { "yyyyMMddHHmmss", "yyyyMMddHHmm", "yyyyMMdd" });
-                        }
-                        catch (ParseException e)
-                        {
-                            LOGGER.error("Unable to parse creationTime", e);
-                            throw new MetadataException("Unable to parse creationTime", e);
-                        }
+                        creationTime = DateUtils.parseDate(values.get(0),
+                                new String[]
+                                { "yyyyMMddHHmmss", "yyyyMMddHHmm", "yyyyMMdd" });
                     }
-                }
-                else if (SlotType1Enum.LANGUAGE_CODE.matches(slot.getName()))
-                {
-                    if (slotNotEmpty(slot))
-                        languageCode = slot.getValueList().getValue().get(0);
-                }
-                else if (SlotType1Enum.SERVICE_START_TIME.matches(slot.getName()))
-                {
-                    if (slotNotEmpty(slot))
+                    catch (ParseException e)
                     {
-                        try
-                        {
-                            serviceStartTime = DateUtils.parseDate(slot.getValueList().getValue().get(0),
-                                    new String[]
-                                    { "yyyyMMddHHmmss", "yyyyMMddHHmm", "yyyyMMdd" });
-                        }
-                        catch (ParseException e)
-                        {
-                            LOGGER.error("Unable to parse serviceStartTime", e);
-                            throw new MetadataException("Unable to parse serviceStartTime", e);
-                        }
+                        LOGGER.error("Unable to parse creationTime", e);
+                        throw new MetadataException("Unable to parse creationTime", e);
                     }
                 }
-                else if (SlotType1Enum.SERVICE_STOP_TIME.matches(slot.getName()))
+            }
+            else if (SlotType1Enum.LANGUAGE_CODE.matches(name))
+            {
+                if (valuesNotEmpty(values))
+                    languageCode = values.get(0);
+            }
+            else if (SlotType1Enum.SERVICE_START_TIME.matches(name))
+            {
+                if (valuesNotEmpty(values))
                 {
-                    if (slotNotEmpty(slot))
+                    try
                     {
-                        try
-                        {
-                            serviceStopTime = DateUtils.parseDate(slot.getValueList().getValue().get(0),
-                                    new String[]
-                                    { "yyyyMMddHHmmss", "yyyyMMddHHmm", "yyyyMMdd" });
-                        }
-                        catch (ParseException e)
-                        {
-                            LOGGER.error("Unable to parse serviceStopTime", e);
-                            throw new MetadataException("Unable to parse serviceStopTime", e);
-                        }
+                        serviceStartTime = DateUtils.parseDate(values.get(0),
+                                new String[]
+                                { "yyyyMMddHHmmss", "yyyyMMddHHmm", "yyyyMMdd" });
                     }
-                }
-                else if (SlotType1Enum.SOURCE_PATIENT_ID.matches(slot.getName()))
-                {
-                    if (slotNotEmpty(slot))
+                    catch (ParseException e)
                     {
-                        String[] tokens = StringUtils.splitPreserveAllTokens(slot.getValueList().getValue().get(0), "^");
-
-                        if (tokens != null && tokens.length >= 1)
-                            sourcePatient.setLocalId(tokens[0]);
-                        else
-                            sourcePatient.setLocalId(slot.getValueList().getValue().get(0));
-
-                        if (tokens != null && tokens.length >= 4)
-                        {
-                            tokens = StringUtils.splitPreserveAllTokens(slot.getValueList().getValue().get(0), "&");
-
-                            if (tokens.length >= 2)
-                                sourcePatient.setLocalOrg(tokens[1]);
-                        }
+                        LOGGER.error("Unable to parse serviceStartTime", e);
+                        throw new MetadataException("Unable to parse serviceStartTime", e);
                     }
                 }
-                else if (SlotType1Enum.SOURCE_PATIENT_INFO.matches(slot.getName()))
-                
+            }
+            else if (SlotType1Enum.SERVICE_STOP_TIME.matches(name))
+            {
+                if (valuesNotEmpty(values))
                 {
-                    if (slotNotEmpty(slot))
+                    try
                     {
-                        for (String value : slot.getValueList().getValue())
-                        {
-                            if (StringUtils.startsWith(value, "PID-3|"))
-                            {
-                                // Already have this from sourcePatientId
-                            }
-                            else if (StringUtils.startsWith(value, "PID-5|"))
-                            {
-                                String[] split = StringUtils.splitPreserveAllTokens(value, "|");
-                                String[] tokens = StringUtils.splitPreserveAllTokens(split[1], "^");
-
-                                if (tokens != null && tokens.length >= 1)
-                                    sourcePatient.setLastName(tokens[0]);
-
-                                if (tokens != null && tokens.length >= 2)
-                                    sourcePatient.setFirstName(tokens[1]);
-
-                                if (tokens != null && tokens.length >= 3)
-                                    sourcePatient.setMiddleName(tokens[2]);
-                            }
-                            else if (StringUtils.startsWith(value, "PID-7|"))
-                            {
-                                String[] split = StringUtils.splitPreserveAllTokens(value, "|");
-
-                                if (split.length >= 2)
-                                    sourcePatient.setBirthDateTime(split[1]);
-                            }
-                            else if (StringUtils.startsWith(value, "PID-8|"))
-                            {
-                                String[] split = StringUtils.splitPreserveAllTokens(value, "|");
-
-                                if (split.length >= 2)
-                                    sourcePatient.setGenderCode(split[1]);
-                            }
-                            else if (StringUtils.startsWith(value, "PID-11|"))
-                            {
-                                String[] split = StringUtils.splitPreserveAllTokens(value, "|");
-                                String[] tokens = StringUtils.splitPreserveAllTokens(split[1], "^");
-
-                                if (tokens != null && tokens.length >= 1)
-                                    sourcePatient.setStreetAddress1(tokens[0]);
-
-                                if (tokens != null && tokens.length >= 3)
-                                    sourcePatient.setCity(tokens[2]);
-
-                                if (tokens != null && tokens.length >= 4)
-                                    sourcePatient.setState(tokens[3]);
-
-                                if (tokens != null && tokens.length >= 5)
-                                    sourcePatient.setZipCode(tokens[4]);
-
-                                if (tokens != null && tokens.length >= 6)
-                                    sourcePatient.setCountry(tokens[5]);
-                            }
-                        }
+                        serviceStopTime = DateUtils.parseDate(values.get(0),
+                                new String[]
+                                { "yyyyMMddHHmmss", "yyyyMMddHHmm", "yyyyMMdd" });
+                    }
+                    catch (ParseException e)
+                    {
+                        LOGGER.error("Unable to parse serviceStopTime", e);
+                        throw new MetadataException("Unable to parse serviceStopTime", e);
                     }
                 }
-                else if (SlotType1Enum.HASH.matches(slot.getName()))
-                {
-                    if (slotNotEmpty(slot))
-                        hash = slot.getValueList().getValue().get(0);
-                }
-                else if (SlotType1Enum.URI.matches(slot.getName()))
-                {
-                    if (slotNotEmpty(slot))
-                        uri = slot.getValueList().getValue().get(0);
-                }
-                else if (SlotType1Enum.SIZE.matches(slot.getName()))
+            }
+            else if (SlotType1Enum.SOURCE_PATIENT_ID.matches(name))
+            {
+                if (valuesNotEmpty(values))
                 {
-                    if (slotNotEmpty(slot))
-                        size = Long.valueOf(slot.getValueList().getValue().get(0));
+                    String[] tokens = StringUtils.splitPreserveAllTokens(values.get(0), "^");
+
+                    if (tokens != null && tokens.length >= 1)
+                        sourcePatient.setLocalId(tokens[0]);
+                    else
+                        sourcePatient.setLocalId(values.get(0));
+
+                    if (tokens != null && tokens.length >= 4)
+                    {
+                        tokens = StringUtils.splitPreserveAllTokens(values.get(0), "&");
+
+                        if (tokens.length >= 2)
+                            sourcePatient.setLocalOrg(tokens[1]);
+                    }
                 }
             }
-
-            for (ClassificationType ct : eot.getClassification())
+            else if (SlotType1Enum.SOURCE_PATIENT_INFO.matches(name))
             {
-                if (ClassificationTypeEnum.DOC_AUTHOR.matchesScheme(ct.getClassificationScheme()))
+                if (valuesNotEmpty(values))
                 {
-                    for (SlotType1 slot : ct.getSlot())
+                    for (String value : values)
                     {
-                        if (SlotType1Enum.AUTHOR_PERSON.matches(slot.getName()))
+                        if (StringUtils.startsWith(value, "PID-3|"))
                         {
-                            if (slotNotEmpty(slot))
-                                authorPerson = slot.getValueList().getValue().get(0);
+                            // Already have this from sourcePatientId
                         }
-                        else if (SlotType1Enum.AUTHOR_INSTITUTION.matches(slot.getName()))
+                        else if (StringUtils.startsWith(value, "PID-5|"))
                         {
-                            if (slotNotEmpty(slot))
-                                for (String value : slot.getValueList().getValue())
-                                    authorInstitution.add(value);
+                            String[] split = StringUtils.splitPreserveAllTokens(value, "|");
+                            String[] tokens = StringUtils.splitPreserveAllTokens(split[1], "^");
+
+                            if (tokens != null && tokens.length >= 1)
+                                sourcePatient.setLastName(tokens[0]);
+
+                            if (tokens != null && tokens.length >= 2)
+                                sourcePatient.setFirstName(tokens[1]);
+
+                            if (tokens != null && tokens.length >= 3)
+                                sourcePatient.setMiddleName(tokens[2]);
                         }
-                        else if (SlotType1Enum.AUTHOR_ROLE.matches(slot.getName()))
+                        else if (StringUtils.startsWith(value, "PID-7|"))
                         {
-                            if (slotNotEmpty(slot))
-                                authorRole = slot.getValueList().getValue().get(0);
+                            String[] split = StringUtils.splitPreserveAllTokens(value, "|");
+
+                            if (split.length >= 2)
+                                sourcePatient.setBirthDateTime(split[1]);
                         }
-                        else if (SlotType1Enum.AUTHOR_SPECIALTY.matches(slot.getName()))
+                        else if (StringUtils.startsWith(value, "PID-8|"))
                         {
-                            if (slotNotEmpty(slot))
-                                authorSpecialty = slot.getValueList().getValue().get(0);
+                            String[] split = StringUtils.splitPreserveAllTokens(value, "|");
+
+                            if (split.length >= 2)
+                                sourcePatient.setGenderCode(split[1]);
                         }
-                    }
-                }
-                else if (ClassificationTypeEnum.DOC_CLASS_CODE.matchesScheme(ct.getClassificationScheme()))
-                {
-                    for (SlotType1 slot : ct.getSlot())
-                    {
-                        if (SlotType1Enum.CODING_SCHEME.matches(slot.getName()))
+                        else if (StringUtils.startsWith(value, "PID-11|"))
                         {
-                            if (slotNotEmpty(slot))
-                            {
-                                @SuppressWarnings("unused") String codingScheme = slot.getValueList().getValue().get(0);
-                            }
-                        }
-                    }
+                            String[] split = StringUtils.splitPreserveAllTokens(value, "|");
+                            String[] tokens = StringUtils.splitPreserveAllTokens(split[1], "^");
 
-                    classCode = ct.getNodeRepresentation();
+                            if (tokens != null && tokens.length >= 1)
+                                sourcePatient.setStreetAddress1(tokens[0]);
 
-                    if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty())
-                        classCode_localized = ct.getName().getLocalizedString().get(0).getValue();
-                }
-                else if (ClassificationTypeEnum.DOC_CONFIDENTIALITY_CODE.matchesScheme(ct.getClassificationScheme()))
-                {
-                    for (SlotType1 slot : ct.getSlot())
-                    {
-                        if (SlotType1Enum.CODING_SCHEME.matches(slot.getName()))
-                        {
-                            if (slotNotEmpty(slot))
-                            {
-                                @SuppressWarnings("unused") String codingScheme = slot.getValueList().getValue().get(0);
-                            }
-                        }
-                    }
+                            if (tokens != null && tokens.length >= 3)
+                                sourcePatient.setCity(tokens[2]);
 
-                    confidentialityCode = ct.getNodeRepresentation();
+                            if (tokens != null && tokens.length >= 4)
+                                sourcePatient.setState(tokens[3]);
 
-                    if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty())
-                        confidentialityCode_localized = ct.getName().getLocalizedString().get(0).getValue();
-                }
-                else if (ClassificationTypeEnum.DOC_FORMAT_CODE.matchesScheme(ct.getClassificationScheme()))
-                {
-                    for (SlotType1 slot : ct.getSlot())
-                    {
-                        if (SlotType1Enum.CODING_SCHEME.matches(slot.getName()))
-                        {
-                            if (slotNotEmpty(slot))
-                            {
-                                @SuppressWarnings("unused") String codingScheme = slot.getValueList().getValue().get(0);
-                            }
+                            if (tokens != null && tokens.length >= 5)
+                                sourcePatient.setZipCode(tokens[4]);
+
+                            if (tokens != null && tokens.length >= 6)
+                                sourcePatient.setCountry(tokens[5]);
                         }
                     }
+                }
+            }
+            else if (SlotType1Enum.HASH.matches(name))
+            {
+                if (valuesNotEmpty(values))
+                    hash = values.get(0);
+            }
+            else if (SlotType1Enum.URI.matches(name))
+            {
+                if (valuesNotEmpty(values))
+                    uri = values.get(0);
+            }
+            else if (SlotType1Enum.SIZE.matches(name))
+            {
+                if (valuesNotEmpty(values))
+                    size = Long.valueOf(values.get(0));
+            }
+        }
 
-                    formatCode = ct.getNodeRepresentation();
+        /**
+         * Read the values of a slot in an ExtrinsicObject classification.
+         * 
+         * @param scheme
+         *            The classification scheme.
+         * @param name
+         *            The slot name.
+         * @param values
+         *            The slot values.
+         */
+        void readClassificationSlot(String scheme, String name, List<String> values)
+        {
+            if (!ClassificationTypeEnum.DOC_AUTHOR.matchesScheme(scheme))
+                return;
 
-                    if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty())
-                        formatCode_localized = ct.getName().getLocalizedString().get(0).getValue();
-                }
-                else if (ClassificationTypeEnum.DOC_HEALTHCARE_FACILITY_TYPE_CODE.matchesScheme(ct.getClassificationScheme()))
-                {
-                    for (SlotType1 slot : ct.getSlot())
-                    {
-                        if (SlotType1Enum.CODING_SCHEME.matches(slot.getName()))
-                        {
-                            if (slotNotEmpty(slot))
-                            {
-                                @SuppressWarnings("unused") String codingScheme = slot.getValueList().getValue().get(0);
-                            }
-                        }
-                    }
+            if (SlotType1Enum.AUTHOR_PERSON.matches(name))
+            {
+                if (valuesNotEmpty(values))
+                    authorPerson = values.get(0);
+            }
+            else if (SlotType1Enum.AUTHOR_INSTITUTION.matches(name))
+            {
+                if (valuesNotEmpty(values))
+                    for (String value : values)
+                        authorInstitution.add(value);
+            }
+            else if (SlotType1Enum.AUTHOR_ROLE.matches(name))
+            {
+                if (valuesNotEmpty(values))
+                    authorRole = values.get(0);
+            }
+            else if (SlotType1Enum.AUTHOR_SPECIALTY.matches(name))
+            {
+                if (valuesNotEmpty(values))
+                    authorSpecialty = values.get(0);
+            }
+        }
 
-                    healthcareFacilityTypeCode = ct.getNodeRepresentation();
+        /**
+         * Read an ExtrinsicObject classification.
+         * 
+         * @param scheme
+         *            The classification scheme.
+         * @param nodeRepresentation
+         *            The classification node representation.
+         * @param localizedName
+         *            The first localized classification name, if any.
+         */
+        void readClassification(String scheme, String nodeRepresentation, String localizedName)
+        {
+            if (ClassificationTypeEnum.DOC_CLASS_CODE.matchesScheme(scheme))
+            {
+                classCode = nodeRepresentation;
 
-                    if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty())
-                        healthcareFacilityTypeCode_localized = ct.getName().getLocalizedString().get(0).getValue();
-                }
-                else if (ClassificationTypeEnum.DOC_PRACTICE_SETTING_CODE.matchesScheme(ct.getClassificationScheme()))
-                {
-                    for (SlotType1 slot : ct.getSlot())
-                    {
-                        if (SlotType1Enum.CODING_SCHEME.matches(slot.getName()))
-                        {
-                            if (slotNotEmpty(slot))
-                            {
-                                @SuppressWarnings("unused") String codingScheme = slot.getValueList().getValue().get(0);
-                            }
-                        }
-                    }
+                if (localizedName != null)
+                    classCode_localized = localizedName;
+            }
+            else if (ClassificationTypeEnum.DOC_CONFIDENTIALITY_CODE.matchesScheme(scheme))
+            {
+                confidentialityCode = nodeRepresentation;
 
-                    practiceSettingCode = ct.getNodeRepresentation();
+                if (localizedName != null)
+                    confidentialityCode_localized = localizedName;
+            }
+            else if (ClassificationTypeEnum.DOC_FORMAT_CODE.matchesScheme(scheme))
+            {
+                formatCode = nodeRepresentation;
 
-                    if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty())
-                        practiceSettingCode_localized = ct.getName().getLocalizedString().get(0).getValue();
-                }
-                else if (ClassificationTypeEnum.DOC_LOINC.matchesScheme(ct.getClassificationScheme()))
-                {
-                    for (SlotType1 slot : ct.getSlot())
-                    {
-                        if (SlotType1Enum.CODING_SCHEME.matches(slot.getName()))
-                        {
-                            if (slotNotEmpty(slot))
-                            {
-                                @SuppressWarnings("unused") String codingScheme = slot.getValueList().getValue().get(0);
-                            }
-                        }
-                    }
+                if (localizedName != null)
+                    formatCode_localized = localizedName;
+            }
+            else if (ClassificationTypeEnum.DOC_HEALTHCARE_FACILITY_TYPE_CODE.matchesScheme(scheme))
+            {
+                healthcareFacilityTypeCode = nodeRepresentation;
 
-                    loinc = ct.getNodeRepresentation();
+                if (localizedName != null)
+                    healthcareFacilityTypeCode_localized = localizedName;
+            }
+            else if (ClassificationTypeEnum.DOC_PRACTICE_SETTING_CODE.matchesScheme(scheme))
+            {
+                practiceSettingCode = nodeRepresentation;
 
-                    if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty())
-                        loinc_localized = ct.getName().getLocalizedString().get(0).getValue();
-                }
+                if (localizedName != null)
+                    practiceSettingCode_localized = localizedName;
             }
+            else if (ClassificationTypeEnum.DOC_LOINC.matchesScheme(scheme))
+            {
+                loinc = nodeRepresentation;
 
-            for (ExternalIdentifierType eit : eot.getExternalIdentifier())
+                if (localizedName != null)
+                    loinc_localized = localizedName;
+            }
+        }
+
+        /**
+         * Read an ExtrinsicObject external identifier.
+         * 
+         * @param scheme
+         *            The identification scheme.
+         * @param value
+         *            The identifier value.
+         */
+        void readExternalIdentifier(String scheme, String value)
+        {
+            if (ExternalIdentifierTypeEnum.DOC_PATIENT_ID.matchesScheme(scheme))
             {
-                if (ExternalIdentifierTypeEnum.DOC_PATIENT_ID.matchesScheme(eit.getIdentificationScheme()))
-                {
-                    patientId = eit.getValue();
-                }
-                else if (ExternalIdentifierTypeEnum.DOC_UNIQUE_ID.matchesScheme(eit.getIdentificationScheme()))
-                {
-                    uniqueId = eit.getValue();
-                }
+                patientId = value;
+            }
+            else if (ExternalIdentifierTypeEnum.DOC_UNIQUE_ID.matchesScheme(scheme))
+            {
+                uniqueId = value;
             }
         }
         
@@ -765,7 +958,10 @@ public class DirectDocument2
          */
         public void setId(String id)
         {
+            String old = this.id;
             this.id = id;
+
+            keyChanged(Key.ID, old, id);
         }
 
         /**
@@ -1275,7 +1471,10 @@ public class DirectDocument2
          */
         public void setUniqueId(String uniqueId)
         {
+            String old = this.uniqueId;
             this.uniqueId = uniqueId;
+
+            keyChanged(Key.UNIQUE_ID, old, uniqueId);
         }
 
         /**
@@ -1312,7 +1511,10 @@ public class DirectDocument2
             if (StringUtils.isNotEmpty(this.hash) && !StringUtils.equalsIgnoreCase(this.hash, hash))
                 LOGGER.warn("Replacing existing value with new value");
             
+            String old = this.hash;
             this.hash = hash;
+
+            keyChanged(Key.HASH, old, hash);
         }
 
         /**
@@ -1360,40 +1562,22 @@ public class DirectDocument2
      * 
      * @param bytes
      *            Bytes from which to calculate the SHA-1 hash.
-     * @return the SHA-1 hash or null if unable to calculate.
+     * @return the SHA-1 hash.
      */
     public static String getSha1Hash(byte[] bytes)
     {
-        return getSha1Hash(new String(bytes));
+        return ContentDigest.sha1(bytes);
     }
 
     /**
-     * Calculate the SHA-1 hash for the provided string.
+     * Calculate the SHA-1 hash for the UTF-8 encoding of the provided string.
      * 
      * @param string
      *            The string from which to calculate the SHA-1 hash.
-     * @return the SHA-1 hash or null if unable to calculate.
+     * @return the SHA-1 hash.
      */
     public static String getSha1Hash(String string)
     {
-        MessageDigest messageDigest = null;
-
-        try
-        {
-            messageDigest = MessageDigest.getInstance("SHA-1");
-        }
-        catch (NoSuchAlgorithmException e)
-        {
-            LOGGER.error("Unable to calculate hash, returning null.", e);
-            return null;
-        }
-        
-        messageDigest.update(string.getBytes(), 0, string.length());
-        byte[] sha1hash = messageDigest.digest();
-        char[]hex = Hex.encodeHex(sha1hash);
-        String newret = new String(hex);
-        //BigInteger bigInt = new BigInteger(sha1hash);
-        //return bigInt.toString(16);
-        return newret;
+        return ContentDigest.sha1(string.getBytes(XmlUtils.DEFAULT_CHARSET));
     }
 }
@@ -15,12 +15,12 @@ public class DirectDocumentUtils
 {
     public static SlotType1 makeSlot(SlotType1Enum slotTypeEnum, SimplePerson person)
     {
-        SlotType1 slot = new SlotType1();
-        ValueListType values = new ValueListType();
-        List<String> vals = values.getValue();
+        return makeSlot(slotTypeEnum, makePatientInfo(person));
+    }
 
-        slot.setName(slotTypeEnum.getName());
-        slot.setValueList(values);
+    public static List<String> makePatientInfo(SimplePerson person)
+    {
+        List<String> vals = new ArrayList<String>();
 
         // <rim:Value>PID-3|pid1^^^domain</rim:Value>
         StringBuffer pid3 = new StringBuffer("PID-3|");
@@ -68,7 +68,7 @@ public class DirectDocumentUtils
         
         vals.add(pid11.toString());
 
-        return slot;
+        return vals;
     }
     
     public static SlotType1 makeSlot(SlotType1Enum slotTypeEnum, String value)
@@ -119,8 +119,23 @@ public class DirectDocumentUtils
 
     public static boolean slotNotEmpty(SlotType1 slot)
     {
-        if (slot != null && slot.getValueList() != null && slot.getValueList().getValue() != null
-                && !slot.getValueList().getValue().isEmpty() && slot.getValueList().getValue().get(0) != null)
+        if (slot != null && valuesNotEmpty(slotValues(slot)))
+            return true;
+
+        return false;
+    }
+
+    public static List<String> slotValues(SlotType1 slot)
+    {
+        if (slot == null || slot.getValueList() == null)
+            return null;
+
+        return slot.getValueList().getValue();
+    }
+
+    public static boolean valuesNotEmpty(List<String> values)
+    {
+        if (values != null && !values.isEmpty() && values.get(0) != null)
             return true;
 
         return false;
@@ -31,21 +31,31 @@ import static org.nhindirect.xd.common.DirectDocumentUtils.addSlot;
 import static org.nhindirect.xd.common.DirectDocumentUtils.makeInternationalStringType;
 import static org.nhindirect.xd.common.DirectDocumentUtils.makeSlot;
 import static org.nhindirect.xd.common.DirectDocumentUtils.slotNotEmpty;
+import static org.nhindirect.xd.common.DirectDocumentUtils.slotValues;
+import static org.nhindirect.xd.common.DirectDocumentUtils.valuesNotEmpty;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType.Document;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
-import javax.mail.util.ByteArrayDataSource;
 import javax.xml.bind.JAXBElement;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
 
 import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.AssociationType1;
@@ -57,7 +67,6 @@ import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryObjectListType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryPackageType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.SlotType1;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -77,12 +86,12 @@ import org.nhindirect.xd.transform.util.XmlUtils;
  */
 public class DirectDocuments {
 
-    private List<DirectDocument2> documents;
+    private DocumentList documents;
     private SubmissionSet submissionSet;
     private static final Log LOGGER = LogFactory.getFactory().getInstance(DirectDocuments.class);
 
     public DirectDocuments() {
-        this.documents = new ArrayList<DirectDocument2>();
+        this.documents = new DocumentList(null);
         this.submissionSet = new SubmissionSet();
     }
 
@@ -106,6 +115,23 @@ public class DirectDocuments {
     }
 
     /**
+     * Set the submission set read from metadata. Unlike
+     * {@link #setSubmissionSet(SubmissionSet)}, replacing the default
+     * submission set is expected and not logged.
+     * 
+     * @param submissionSet
+     *            the submissionSet to set
+     */
+    void setParsedSubmissionSet(SubmissionSet submissionSet) {
+        this.submissionSet = submissionSet;
+    }
+
+    /**
+     * Return the documents. The returned list is indexed for the lookup
+     * methods of this class, so changes must be made through it. A list passed
+     * to {@link #setDocuments(List)} is copied, and later changes to it are not
+     * seen.
+     * 
      * @return the documents
      */
     public List<DirectDocument2> getDocuments() {
@@ -113,11 +139,14 @@ public class DirectDocuments {
     }
 
     /**
+     * Replace the documents with a copy of the given list.
+     * 
      * @param documents
      *            the documents to set
      */
     public void setDocuments(List<DirectDocument2> documents) {
-        this.documents = documents;
+        this.documents.release();
+        this.documents = new DocumentList(documents);
     }
 
     /**
@@ -171,11 +200,58 @@ public class DirectDocuments {
     }
 
     public void setValues(String submitObjectsRequestXml) throws Exception {
-        SubmitObjectsRequest sor = (SubmitObjectsRequest) XmlUtils.unmarshal(new String(submitObjectsRequestXml), oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class);
+        SubmitObjectsRequest sor = (SubmitObjectsRequest) XmlUtils.unmarshal(submitObjectsRequestXml, oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class);
 
         setValues(sor);
     }
 
+    /**
+     * Set the values from SubmitObjectsRequest XML bytes. The charset is taken
+     * from the XML declaration.
+     * 
+     * @param submitObjectsRequestXml
+     *            the SubmitObjectsRequest XML bytes
+     * @throws Exception
+     */
+    public void setValues(byte[] submitObjectsRequestXml) throws Exception {
+        SubmitObjectsRequest sor = (SubmitObjectsRequest) XmlUtils.unmarshal(submitObjectsRequestXml, oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class);
+
+        setValues(sor);
+    }
+
+    /**
+     * Set the values from SubmitObjectsRequest XML bytes using the given
+     * parser. The charset is taken from the XML declaration.
+     * 
+     * @param submitObjectsRequestXml
+     *            the SubmitObjectsRequest XML bytes
+     * @param parser
+     *            the parser to use
+     * @throws Exception
+     */
+    public void setValues(byte[] submitObjectsRequestXml, Parser parser) throws Exception {
+        setValues(new ByteArrayInputStream(submitObjectsRequestXml), parser);
+    }
+
+    /**
+     * Set the values from a SubmitObjectsRequest XML stream using the given
+     * parser. With {@link Parser#STAX} the SubmitObjectsRequest may also be
+     * nested in another document, such as a SOAP envelope.
+     * 
+     * @param submitObjectsRequestXml
+     *            the SubmitObjectsRequest XML stream
+     * @param parser
+     *            the parser to use
+     * @throws Exception
+     */
+    public void setValues(InputStream submitObjectsRequestXml, Parser parser) throws Exception {
+        if (parser == Parser.STAX) {
+            new SubmitObjectsRequestReader(this).read(submitObjectsRequestXml);
+        } else {
+            setValues((SubmitObjectsRequest) XmlUtils.unmarshal(submitObjectsRequestXml, oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class));
+        }
+    }
+
     public void setValues(SubmitObjectsRequest submitObjectsRequest) throws MetadataException {
         RegistryObjectListType rol = submitObjectsRequest.getRegistryObjectList();
 
@@ -220,33 +296,15 @@ public class DirectDocuments {
     }
 
     public DirectDocument2 getDocumentById(String targetObject) {
-        for (DirectDocument2 document : documents) {
-            if (StringUtils.equalsIgnoreCase(document.getMetadata().getId(), targetObject)) {
-                return document;
-            }
-        }
-
-        return null;
+        return documents.find(DirectDocument2.Key.ID, targetObject);
     }
 
     public DirectDocument2 getDocumentByUniqueId(String uniqueId) {
-        for (DirectDocument2 document : documents) {
-            if (StringUtils.equalsIgnoreCase(document.getMetadata().getUniqueId(), uniqueId)) {
-                return document;
-            }
-        }
-
-        return null;
+        return documents.find(DirectDocument2.Key.UNIQUE_ID, uniqueId);
     }
 
     public DirectDocument2 getDocumentByHash(String hash) {
-        for (DirectDocument2 document : documents) {
-            if (StringUtils.equalsIgnoreCase(document.getMetadata().getHash(), hash)) {
-                return document;
-            }
-        }
-
-        return null;
+        return documents.find(DirectDocument2.Key.HASH, hash);
     }
 
     public DirectDocument2 getDocument(String identifier) {
@@ -275,14 +333,34 @@ public class DirectDocuments {
         return XmlUtils.marshal(qname, getSubmitObjectsRequest(), ihe.iti.xds_b._2007.ObjectFactory.class);
     }
 
+    /**
+     * Write the metadata as a SubmitObjectsRequest XML document to the provided
+     * stream. The stream is not closed. The XML is streamed without building
+     * the JAXB object graph and is the same XML as the UTF-8 encoded
+     * {@link #getSubmitObjectsRequestAsString()}, apart from the namespace
+     * prefixes declared on the root element.
+     * 
+     * @param outputStream
+     *            The OutputStream to write to.
+     * @throws IOException
+     */
+    public void writeSubmitObjectsRequest(OutputStream outputStream) throws IOException {
+        try {
+            SubmitObjectsRequestWriter.write(this, outputStream);
+        } catch (XMLStreamException e) {
+            LOGGER.error("Unable to write SubmitObjectsRequest", e);
+            throw new IOException("Unable to write SubmitObjectsRequest", e);
+        }
+    }
+
     public ProvideAndRegisterDocumentSetRequestType toProvideAndRegisterDocumentSetRequestType() throws IOException {
         ProvideAndRegisterDocumentSetRequestType request = new ProvideAndRegisterDocumentSetRequestType();
 
         request.setSubmitObjectsRequest(this.getSubmitObjectsRequest());
 
         for (DirectDocument2 document : documents) {
-            if (document.getData() != null) {
-                DataSource source = new ByteArrayDataSource(document.getData(), document.getMetadata().getMimeType());
+            DataSource source = document.getDataSource();
+            if (source != null) {
                 DataHandler dhnew = new DataHandler(source);
 
                 Document pdoc = new Document();
@@ -304,6 +382,200 @@ public class DirectDocuments {
         return xdmPackage;
     }
 
+    /**
+     * Parsers available for reading SubmitObjectsRequest XML.
+     */
+    public enum Parser {
+        /**
+         * Unmarshal the JAXB object graph, then read the values from it.
+         */
+        JAXB,
+        /**
+         * Read the values in a single StAX pass without building the JAXB
+         * object graph.
+         */
+        STAX
+    }
+
+    /**
+     * Document list which keeps case-insensitive indexes of the document id,
+     * uniqueId and hash. Structural changes are tracked through the list
+     * methods and key changes through the documents themselves.
+     */
+    private static class DocumentList extends AbstractList<DirectDocument2> implements DirectDocument2.KeyListener {
+
+        private final List<DirectDocument2> backing;
+        private final Map<DirectDocument2.Key, Map<String, List<DirectDocument2>>> indexes = new EnumMap<DirectDocument2.Key, Map<String, List<DirectDocument2>>>(DirectDocument2.Key.class);
+
+        DocumentList(List<DirectDocument2> documents) {
+            // Copied, so that changes cannot bypass the indexes
+            this.backing = documents != null ? new ArrayList<DirectDocument2>(documents) : new ArrayList<DirectDocument2>();
+
+            for (DirectDocument2.Key key : DirectDocument2.Key.values()) {
+                indexes.put(key, new HashMap<String, List<DirectDocument2>>());
+            }
+            for (DirectDocument2 document : this.backing) {
+                index(document);
+            }
+        }
+
+        @Override
+        public DirectDocument2 get(int index) {
+            return backing.get(index);
+        }
+
+        @Override
+        public int size() {
+            return backing.size();
+        }
+
+        @Override
+        public void add(int index, DirectDocument2 document) {
+            backing.add(index, document);
+            modCount++;
+            index(document);
+        }
+
+        @Override
+        public DirectDocument2 set(int index, DirectDocument2 document) {
+            DirectDocument2 old = backing.set(index, document);
+            unindex(old);
+            index(document);
+
+            return old;
+        }
+
+        @Override
+        public DirectDocument2 remove(int index) {
+            DirectDocument2 old = backing.remove(index);
+            modCount++;
+            unindex(old);
+
+            return old;
+        }
+
+        /**
+         * Find the first document, in list order, with the given key value.
+         */
+        DirectDocument2 find(DirectDocument2.Key key, String value) {
+            List<DirectDocument2> bucket = indexes.get(key).get(normalize(value));
+
+            if (bucket == null || bucket.isEmpty()) {
+                return null;
+            }
+            if (bucket.size() == 1) {
+                return bucket.get(0);
+            }
+
+            // Duplicate key values, resolve by position
+            DirectDocument2 first = null;
+            int firstIndex = Integer.MAX_VALUE;
+            for (DirectDocument2 document : bucket) {
+                int i = indexOf(document);
+                if (i < firstIndex) {
+                    first = document;
+                    firstIndex = i;
+                }
+            }
+
+            return first;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            // Identity, DirectDocument2 does not override equals
+            for (int i = 0; i < backing.size(); i++) {
+                if (backing.get(i) == o) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see org.nhindirect.xd.common.DirectDocument2.KeyListener#keyChanged(org.nhindirect.xd.common.DirectDocument2, org.nhindirect.xd.common.DirectDocument2.Key, java.lang.String, java.lang.String)
+         */
+        @Override
+        public void keyChanged(DirectDocument2 document, DirectDocument2.Key key, String oldValue, String newValue) {
+            removeFromBucket(key, oldValue, document);
+            addToBucket(key, newValue, document);
+        }
+
+        /**
+         * Detach from the documents once this list is no longer in use.
+         */
+        void release() {
+            for (DirectDocument2 document : backing) {
+                if (document != null) {
+                    document.removeKeyListener(this);
+                }
+            }
+        }
+
+        private void index(DirectDocument2 document) {
+            if (document == null) {
+                return;
+            }
+
+            document.addKeyListener(this);
+            for (DirectDocument2.Key key : DirectDocument2.Key.values()) {
+                addToBucket(key, key.get(document.getMetadata()), document);
+            }
+        }
+
+        private void unindex(DirectDocument2 document) {
+            if (document == null) {
+                return;
+            }
+
+            document.removeKeyListener(this);
+            for (DirectDocument2.Key key : DirectDocument2.Key.values()) {
+                removeFromBucket(key, key.get(document.getMetadata()), document);
+            }
+        }
+
+        private void addToBucket(DirectDocument2.Key key, String value, DirectDocument2 document) {
+            Map<String, List<DirectDocument2>> index = indexes.get(key);
+            String normalized = normalize(value);
+
+            List<DirectDocument2> bucket = index.get(normalized);
+            if (bucket == null) {
+                bucket = new ArrayList<DirectDocument2>(1);
+                index.put(normalized, bucket);
+            }
+
+            bucket.add(document);
+        }
+
+        private void removeFromBucket(DirectDocument2.Key key, String value, DirectDocument2 document) {
+            Map<String, List<DirectDocument2>> index = indexes.get(key);
+            String normalized = normalize(value);
+
+            List<DirectDocument2> bucket = index.get(normalized);
+            if (bucket == null) {
+                return;
+            }
+
+            for (int i = 0; i < bucket.size(); i++) {
+                if (bucket.get(i) == document) {
+                    bucket.remove(i);
+                    break;
+                }
+            }
+
+            if (bucket.isEmpty()) {
+                index.remove(normalized);
+            }
+        }
+
+        private static String normalize(String value) {
+            return value == null ? null : value.toLowerCase(Locale.ENGLISH);
+        }
+    }
+
     /**
      * Representation of a Submission Set element.
      * 
@@ -431,88 +703,142 @@ public class DirectDocuments {
 
         protected void setValues(RegistryPackageType rpt) throws MetadataException {
             id = rpt.getId();
-            name = rpt.getName().getLocalizedString().get(0).getValue();
+            if (rpt.getName() != null) {
+                name = rpt.getName().getLocalizedString().get(0).getValue();
+            }
             if (rpt.getDescription() != null) {
                 description = rpt.getDescription().getLocalizedString().get(0).getValue();
             }
 
             for (SlotType1 slot : rpt.getSlot()) {
-                if (SlotType1Enum.SUBMISSION_TIME.matches(slot.getName())) {
-                    if (slotNotEmpty(slot)) {
-                        try {
-                            submissionTime = DateUtils.parseDate(slot.getValueList().getValue().get(
-                                    0), new String[]{"yyyyMMddHHmmss", "yyyyMMddHHmm", "yyyyMMdd"});
-                        } catch (ParseException e) {
-                            LOGGER.error("Unable to parse submissionTime", e);
-                            throw new MetadataException("Unable to parse submissionTime", e);
-                        }
-                    }
-                } else if (SlotType1Enum.INTENDED_RECIPIENT.matches(slot.getName())) {
-                    if (slotNotEmpty(slot)) {
-                        for (String value : slot.getValueList().getValue()) {
-                            intendedRecipient.add(value);
-                        }
-                    }
-                }
+                readSlot(slot.getName(), slotValues(slot));
             }
 
             for (ClassificationType ct : rpt.getClassification()) {
-                if (ClassificationTypeEnum.SS_AUTHOR.matchesScheme(ct.getClassificationScheme())) {
-                    for (SlotType1 slot : ct.getSlot()) {
-                        if (SlotType1Enum.AUTHOR_PERSON.matches(slot.getName())) {
-                            if (slotNotEmpty(slot)) {
-                                authorPerson = slot.getValueList().getValue().get(0);
-                            }
-                        } else if (SlotType1Enum.AUTHOR_INSTITUTION.matches(slot.getName())) {
-                            if (slotNotEmpty(slot)) {
-                                for (String value : slot.getValueList().getValue()) {
-                                    authorInstitution.add(value);
-                                }
-                            }
-                        } else if (SlotType1Enum.AUTHOR_ROLE.matches(slot.getName())) {
-                            if (slotNotEmpty(slot)) {
-                                authorRole = slot.getValueList().getValue().get(0);
-                            }
-                        } else if (SlotType1Enum.AUTHOR_SPECIALTY.matches(slot.getName())) {
-                            if (slotNotEmpty(slot)) {
-                                authorSpecialty = slot.getValueList().getValue().get(0);
-                            }
-                        } else if (SlotType1Enum.AUTHOR_TELECOMMUNICATION.matches(slot.getName())) {
-                            if (slotNotEmpty(slot)) {
-                                authorTelecommunication = slot.getValueList().getValue().get(0);
-                            }
-                        }
+                for (SlotType1 slot : ct.getSlot()) {
+                    readClassificationSlot(ct.getClassificationScheme(), slot.getName(), slotValues(slot));
+                }
+
+                String localizedName = null;
+                if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty()) {
+                    localizedName = ct.getName().getLocalizedString().get(0).getValue();
+                }
+
+                readClassification(ct.getClassificationScheme(), ct.getNodeRepresentation(), localizedName);
+            }
+
+            for (ExternalIdentifierType eit : rpt.getExternalIdentifier()) {
+                readExternalIdentifier(eit.getIdentificationScheme(), eit.getValue());
+            }
+        }
+
+        /**
+         * Read the values of a RegistryPackage slot.
+         * 
+         * @param name
+         *            The slot name.
+         * @param values
+         *            The slot values.
+         * @throws MetadataException
+         */
+        void readSlot(String name, List<String> values) throws MetadataException {
+            if (SlotType1Enum.SUBMISSION_TIME.matches(name)) {
+                if (valuesNotEmpty(values)) {
+                    try {
+                        submissionTime = DateUtils.parseDate(values.get(0),
+                                new String[]{"yyyyMMddHHmmss", "yyyyMMddHHmm", "yyyyMMdd"});
+                    } catch (ParseException e) {
+                        LOGGER.error("Unable to parse submissionTime", e);
+                        throw new MetadataException("Unable to parse submissionTime", e);
                     }
                 }
-                if (ClassificationTypeEnum.SS_CONTENT_TYPE_CODE.matchesScheme(ct.getClassificationScheme())) {
-                    for (SlotType1 slot : ct.getSlot()) {
-                        if (SlotType1Enum.CODING_SCHEME.matches(slot.getName())) {
-                            if (slotNotEmpty(slot)) {
-                                @SuppressWarnings("unused")
-                                String codingScheme = slot.getValueList().getValue().get(0);
-                            }
-                        }
+            } else if (SlotType1Enum.INTENDED_RECIPIENT.matches(name)) {
+                if (valuesNotEmpty(values)) {
+                    for (String value : values) {
+                        intendedRecipient.add(value);
                     }
+                }
+            }
+        }
 
-                    contentTypeCode = ct.getNodeRepresentation();
+        /**
+         * Read the values of a slot in a RegistryPackage classification.
+         * 
+         * @param scheme
+         *            The classification scheme.
+         * @param name
+         *            The slot name.
+         * @param values
+         *            The slot values.
+         */
+        void readClassificationSlot(String scheme, String name, List<String> values) {
+            if (!ClassificationTypeEnum.SS_AUTHOR.matchesScheme(scheme)) {
+                return;
+            }
 
-                    if (ct.getName() != null && ct.getName().getLocalizedString() != null && !ct.getName().getLocalizedString().isEmpty()) {
-                        contentTypeCode_localized = ct.getName().getLocalizedString().get(0).getValue();
+            if (SlotType1Enum.AUTHOR_PERSON.matches(name)) {
+                if (valuesNotEmpty(values)) {
+                    authorPerson = values.get(0);
+                }
+            } else if (SlotType1Enum.AUTHOR_INSTITUTION.matches(name)) {
+                if (valuesNotEmpty(values)) {
+                    for (String value : values) {
+                        authorInstitution.add(value);
                     }
                 }
+            } else if (SlotType1Enum.AUTHOR_ROLE.matches(name)) {
+                if (valuesNotEmpty(values)) {
+                    authorRole = values.get(0);
+                }
+            } else if (SlotType1Enum.AUTHOR_SPECIALTY.matches(name)) {
+                if (valuesNotEmpty(values)) {
+                    authorSpecialty = values.get(0);
+                }
+            } else if (SlotType1Enum.AUTHOR_TELECOMMUNICATION.matches(name)) {
+                if (valuesNotEmpty(values)) {
+                    authorTelecommunication = values.get(0);
+                }
             }
+        }
 
-            for (ExternalIdentifierType eit : rpt.getExternalIdentifier()) {
-                if (ExternalIdentifierTypeEnum.SS_UNIQUE_ID.matchesScheme(eit.getIdentificationScheme())) {
-                    uniqueId = eit.getValue();
-                } else if (ExternalIdentifierTypeEnum.SS_SOURCE_ID.matchesScheme(eit.getIdentificationScheme())) {
-                    sourceId = eit.getValue();
-                } else if (ExternalIdentifierTypeEnum.SS_PATIENT_ID.matchesScheme(eit.getIdentificationScheme())) {
-                    patientId = eit.getValue();
+        /**
+         * Read a RegistryPackage classification.
+         * 
+         * @param scheme
+         *            The classification scheme.
+         * @param nodeRepresentation
+         *            The classification node representation.
+         * @param localizedName
+         *            The first localized classification name, if any.
+         */
+        void readClassification(String scheme, String nodeRepresentation, String localizedName) {
+            if (ClassificationTypeEnum.SS_CONTENT_TYPE_CODE.matchesScheme(scheme)) {
+                contentTypeCode = nodeRepresentation;
+
+                if (localizedName != null) {
+                    contentTypeCode_localized = localizedName;
                 }
             }
         }
 
+        /**
+         * Read a RegistryPackage external identifier.
+         * 
+         * @param scheme
+         *            The identification scheme.
+         * @param value
+         *            The identifier value.
+         */
+        void readExternalIdentifier(String scheme, String value) {
+            if (ExternalIdentifierTypeEnum.SS_UNIQUE_ID.matchesScheme(scheme)) {
+                uniqueId = value;
+            } else if (ExternalIdentifierTypeEnum.SS_SOURCE_ID.matchesScheme(scheme)) {
+                sourceId = value;
+            } else if (ExternalIdentifierTypeEnum.SS_PATIENT_ID.matchesScheme(scheme)) {
+                patientId = value;
+            }
+        }
+
         /*
          * (non-Javadoc)
          * 
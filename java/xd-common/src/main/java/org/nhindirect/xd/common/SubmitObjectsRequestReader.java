@@ -0,0 +1,320 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.nhindirect.xd.common.DirectDocuments.SubmissionSet;
+import org.nhindirect.xd.common.exception.MetadataException;
+import org.nhindirect.xd.common.type.SlotType1Enum;
+
+/**
+ * Single pass StAX reader for SubmitObjectsRequest XML. Values are read
+ * straight into DirectDocument2.Metadata and SubmissionSet objects without
+ * building the JAXB object graph. The SubmitObjectsRequest may be a document
+ * of its own (e.g. XDM METADATA.xml) or nested in another document (e.g. a
+ * SOAP message).
+ * 
+ * @see DirectDocuments#setValues(java.io.InputStream, DirectDocuments.Parser)
+ */
+class SubmitObjectsRequestReader {
+
+    private static final String RIM_NAMESPACE = "urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private final DirectDocuments documents;
+
+    private final List<Slot> associationSlots = new ArrayList<Slot>();
+
+    SubmitObjectsRequestReader(DirectDocuments documents) {
+        this.documents = documents;
+    }
+
+    /**
+     * Read the SubmitObjectsRequest XML from the stream into the documents.
+     * The stream is not closed.
+     * 
+     * @param inputStream
+     *            The XML stream.
+     * @throws XMLStreamException
+     * @throws MetadataException
+     */
+    void read(InputStream inputStream) throws XMLStreamException, MetadataException {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(inputStream);
+
+        try {
+            read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void read(XMLStreamReader reader) throws XMLStreamException, MetadataException {
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT || !RIM_NAMESPACE.equals(reader.getNamespaceURI())) {
+                continue;
+            }
+
+            String name = reader.getLocalName();
+            if ("ExtrinsicObject".equals(name)) {
+                documents.getDocuments().add(readExtrinsicObject(reader));
+            } else if ("RegistryPackage".equals(name)) {
+                documents.setParsedSubmissionSet(readRegistryPackage(reader));
+            } else if ("Association".equals(name)) {
+                readAssociation(reader);
+            }
+        }
+
+        // Associations may precede their target documents
+        for (Slot slot : associationSlots) {
+            DirectDocument2 document = documents.getDocumentById(slot.target);
+            if (document != null) {
+                document.getMetadata().setSubmissionSetStatus(slot.name);
+            }
+        }
+    }
+
+    private DirectDocument2 readExtrinsicObject(XMLStreamReader reader) throws XMLStreamException, MetadataException {
+        DirectDocument2 document = new DirectDocument2();
+        DirectDocument2.Metadata metadata = document.getMetadata();
+
+        metadata.setMimeType(reader.getAttributeValue(null, "mimeType"));
+        metadata.setId(reader.getAttributeValue(null, "id"));
+
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+
+            if ("Slot".equals(name)) {
+                Slot slot = readSlot(reader);
+                metadata.readSlot(slot.name, slot.values);
+            } else if ("Description".equals(name)) {
+                String description = readLocalizedString(reader);
+                if (description != null) {
+                    metadata.setDescription(description);
+                }
+            } else if ("Classification".equals(name)) {
+                String scheme = reader.getAttributeValue(null, "classificationScheme");
+                String nodeRepresentation = reader.getAttributeValue(null, "nodeRepresentation");
+                String localizedName = null;
+
+                while (nextChild(reader)) {
+                    if ("Slot".equals(reader.getLocalName())) {
+                        Slot slot = readSlot(reader);
+                        metadata.readClassificationSlot(scheme, slot.name, slot.values);
+                    } else if ("Name".equals(reader.getLocalName())) {
+                        localizedName = readLocalizedString(reader);
+                    } else {
+                        skip(reader);
+                    }
+                }
+
+                metadata.readClassification(scheme, nodeRepresentation, localizedName);
+            } else if ("ExternalIdentifier".equals(name)) {
+                metadata.readExternalIdentifier(reader.getAttributeValue(null, "identificationScheme"),
+                        reader.getAttributeValue(null, "value"));
+                skip(reader);
+            } else {
+                skip(reader);
+            }
+        }
+
+        return document;
+    }
+
+    private SubmissionSet readRegistryPackage(XMLStreamReader reader) throws XMLStreamException, MetadataException {
+        SubmissionSet submissionSet = new SubmissionSet();
+
+        submissionSet.setId(reader.getAttributeValue(null, "id"));
+
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+
+            if ("Slot".equals(name)) {
+                Slot slot = readSlot(reader);
+                submissionSet.readSlot(slot.name, slot.values);
+            } else if ("Name".equals(name)) {
+                submissionSet.setName(readLocalizedString(reader));
+            } else if ("Description".equals(name)) {
+                submissionSet.setDescription(readLocalizedString(reader));
+            } else if ("Classification".equals(name)) {
+                String scheme = reader.getAttributeValue(null, "classificationScheme");
+                String nodeRepresentation = reader.getAttributeValue(null, "nodeRepresentation");
+                String localizedName = null;
+
+                while (nextChild(reader)) {
+                    if ("Slot".equals(reader.getLocalName())) {
+                        Slot slot = readSlot(reader);
+                        submissionSet.readClassificationSlot(scheme, slot.name, slot.values);
+                    } else if ("Name".equals(reader.getLocalName())) {
+                        localizedName = readLocalizedString(reader);
+                    } else {
+                        skip(reader);
+                    }
+                }
+
+                submissionSet.readClassification(scheme, nodeRepresentation, localizedName);
+            } else if ("ExternalIdentifier".equals(name)) {
+                submissionSet.readExternalIdentifier(reader.getAttributeValue(null, "identificationScheme"),
+                        reader.getAttributeValue(null, "value"));
+                skip(reader);
+            } else {
+                skip(reader);
+            }
+        }
+
+        return submissionSet;
+    }
+
+    private void readAssociation(XMLStreamReader reader) throws XMLStreamException {
+        String target = reader.getAttributeValue(null, "targetObject");
+
+        while (nextChild(reader)) {
+            if ("Slot".equals(reader.getLocalName())) {
+                Slot slot = readSlot(reader);
+
+                if (SlotType1Enum.SUBMISSION_SET_STATUS.matches(slot.name) && DirectDocumentUtils.valuesNotEmpty(slot.values)) {
+                    slot.target = target;
+                    associationSlots.add(slot);
+                }
+            } else {
+                skip(reader);
+            }
+        }
+    }
+
+    /**
+     * Read a Slot element, leaving the reader on its end tag.
+     */
+    private Slot readSlot(XMLStreamReader reader) throws XMLStreamException {
+        Slot slot = new Slot(reader.getAttributeValue(null, "name"));
+
+        while (nextChild(reader)) {
+            if ("ValueList".equals(reader.getLocalName())) {
+                slot.values = new ArrayList<String>();
+
+                while (nextChild(reader)) {
+                    if ("Value".equals(reader.getLocalName())) {
+                        slot.values.add(reader.getElementText());
+                    } else {
+                        skip(reader);
+                    }
+                }
+            } else {
+                skip(reader);
+            }
+        }
+
+        return slot;
+    }
+
+    /**
+     * Read the first LocalizedString value of an InternationalString element,
+     * leaving the reader on its end tag.
+     */
+    private String readLocalizedString(XMLStreamReader reader) throws XMLStreamException {
+        String value = null;
+        boolean found = false;
+
+        while (nextChild(reader)) {
+            if (!found && "LocalizedString".equals(reader.getLocalName())) {
+                value = reader.getAttributeValue(null, "value");
+                found = true;
+            }
+
+            skip(reader);
+        }
+
+        return value;
+    }
+
+    /**
+     * Advance to the next child element of the current element. Returns false,
+     * leaving the reader on the end tag of the current element, if there are
+     * no more children.
+     */
+    private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Skip the current element and its children, leaving the reader on its end
+     * tag.
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Name and values of a Slot element.
+     */
+    private static class Slot {
+
+        private final String name;
+        private List<String> values;
+        private String target;
+
+        private Slot(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common;
+
+import static org.nhindirect.xd.common.DirectDocumentUtils.makePatientInfo;
+import static org.nhindirect.xd.common.DirectDocumentUtils.valuesNotEmpty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.nhindirect.xd.common.DirectDocuments.SubmissionSet;
+import org.nhindirect.xd.common.type.AssociationType1Enum;
+import org.nhindirect.xd.common.type.ClassificationTypeEnum;
+import org.nhindirect.xd.common.type.ExternalIdentifierTypeEnum;
+import org.nhindirect.xd.common.type.ExtrinsicObjectTypeEnum;
+import org.nhindirect.xd.common.type.SlotType1Enum;
+import org.nhindirect.xd.transform.pojo.SimplePerson;
+
+/**
+ * StAX writer for SubmitObjectsRequest XML. Values are written straight from
+ * DirectDocument2.Metadata and SubmissionSet objects without building the JAXB
+ * object graph. The output is the same XML as the UTF-8 output of marshalling
+ * {@link DirectDocuments#getSubmitObjectsRequest()} with the
+ * ihe.iti.xds_b._2007 JAXB context, with elements, attributes and namespace
+ * declarations written in the order JAXB writes them. Only the namespace
+ * prefixes declared on the root element may differ: JAXB numbers them in the
+ * order it discovered the namespaces, which is not stable between context
+ * instances, while this writer always uses the same prefixes.
+ * 
+ * @see DirectDocuments#writeSubmitObjectsRequest(OutputStream)
+ */
+class SubmitObjectsRequestWriter {
+
+    private static final String RIM_NAMESPACE = "urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0";
+    private static final String LCM_NAMESPACE = "urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0";
+    private static final String RS_NAMESPACE = "urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0";
+    private static final String QUERY_NAMESPACE = "urn:oasis:names:tc:ebxml-regrep:xsd:query:3.0";
+    private static final String XDS_B_NAMESPACE = "urn:ihe:iti:xds-b:2007";
+
+    private static final String ENCODING = "UTF-8";
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"" + ENCODING + "\" standalone=\"yes\"?>";
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final XMLStreamWriter writer;
+
+    private SubmitObjectsRequestWriter(XMLStreamWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Write the documents as SubmitObjectsRequest XML to the stream. The
+     * stream is not closed.
+     * 
+     * @param documents
+     *            The documents.
+     * @param outputStream
+     *            The stream to write to.
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    static void write(DirectDocuments documents, OutputStream outputStream) throws XMLStreamException, IOException {
+        // StAX cannot write the standalone declaration JAXB writes
+        outputStream.write(XML_DECLARATION.getBytes(ENCODING));
+
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(outputStream, ENCODING);
+
+        try {
+            new SubmitObjectsRequestWriter(writer).writeSubmitObjectsRequest(documents);
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeSubmitObjectsRequest(DirectDocuments documents) throws XMLStreamException {
+        SubmissionSet submissionSet = documents.getSubmissionSet();
+
+        writer.writeStartElement("ns5", "SubmitObjectsRequest", LCM_NAMESPACE);
+        writer.writeDefaultNamespace(RIM_NAMESPACE);
+        writer.writeNamespace("ns5", LCM_NAMESPACE);
+        writer.writeNamespace("ns2", RS_NAMESPACE);
+        writer.writeNamespace("ns4", QUERY_NAMESPACE);
+        writer.writeNamespace("ns3", XDS_B_NAMESPACE);
+
+        writer.writeStartElement("RegistryObjectList");
+
+        for (DirectDocument2 document : documents.getDocuments()) {
+            writeExtrinsicObject(document.getMetadata());
+        }
+
+        writeRegistryPackage(submissionSet);
+
+        // SubmissionSet classification
+        writeClassification(ClassificationTypeEnum.SS, submissionSet.getId(), null, false, null, new ArrayList<Slot>());
+
+        for (DirectDocument2 document : documents.getDocuments()) {
+            writeAssociation(submissionSet.getId(), document.getMetadata().getId(), document.getMetadata().getSubmissionSetStatus());
+        }
+
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void writeExtrinsicObject(DirectDocument2.Metadata metadata) throws XMLStreamException {
+        String id = metadata.getId();
+        SimplePerson sourcePatient = metadata.getSourcePatient();
+
+        writer.writeStartElement("ExtrinsicObject");
+        writeAttribute("mimeType", metadata.getMimeType());
+        writeAttribute("objectType", ExtrinsicObjectTypeEnum.DOC.getObjectType());
+        writeAttribute("id", id);
+
+        writeSlot(new Slot(SlotType1Enum.CREATION_TIME, format("yyyyMMdd", metadata.getCreationTime())));
+        writeSlot(new Slot(SlotType1Enum.LANGUAGE_CODE, metadata.getLanguageCode()));
+        writeSlot(new Slot(SlotType1Enum.SERVICE_START_TIME, format("yyyyMMddHHmm", metadata.getServiceStartTime())));
+        writeSlot(new Slot(SlotType1Enum.SERVICE_STOP_TIME, format("yyyyMMddHHmm", metadata.getServiceStopTime())));
+        writeSlot(new Slot(SlotType1Enum.SOURCE_PATIENT_ID, sourcePatient.getLocalId() + "^^^&" + sourcePatient.getLocalOrg() + "&ISO"));
+        writeSlot(new Slot(SlotType1Enum.SOURCE_PATIENT_INFO, makePatientInfo(sourcePatient)));
+        writeSlot(new Slot(SlotType1Enum.HASH, metadata.getHash()));
+        writeSlot(new Slot(SlotType1Enum.SIZE, metadata.getSize() == null ? null : String.valueOf(metadata.getSize())));
+        writeSlot(new Slot(SlotType1Enum.URI, metadata.getURI()));
+
+        writeInternationalString("Name", metadata.getClassCode_localized());
+        writeInternationalString("Description", metadata.getDescription());
+
+        // author
+        List<Slot> authorSlots = new ArrayList<Slot>();
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_PERSON, metadata.getAuthorPerson()));
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_INSTITUTION, metadata.getAuthorInstitution()));
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_ROLE, metadata.getAuthorRole()));
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_SPECIALTY, metadata.getAuthorSpecialty()));
+        writeClassification(ClassificationTypeEnum.DOC_AUTHOR, id, "", false, null, authorSlots);
+
+        writeCodeClassification(ClassificationTypeEnum.DOC_CLASS_CODE, id, metadata.getClassCode(), metadata.getClassCode_localized());
+        writeCodeClassification(ClassificationTypeEnum.DOC_CONFIDENTIALITY_CODE, id, metadata.getConfidentialityCode(),
+                metadata.getConfidentialityCode_localized());
+        writeCodeClassification(ClassificationTypeEnum.DOC_FORMAT_CODE, id, metadata.getFormatCode(), metadata.getFormatCode_localized());
+        writeCodeClassification(ClassificationTypeEnum.DOC_HEALTHCARE_FACILITY_TYPE_CODE, id, metadata.getHealthcareFacilityTypeCode(),
+                metadata.getHealthcareFacilityTypeCode_localized());
+        writeCodeClassification(ClassificationTypeEnum.DOC_PRACTICE_SETTING_CODE, id, metadata.getPracticeSettingCode(),
+                metadata.getPracticeSettingCode_localized());
+        writeCodeClassification(ClassificationTypeEnum.DOC_LOINC, id, metadata.getLoinc(), metadata.getLoinc_localized());
+
+        writeExternalIdentifier(ExternalIdentifierTypeEnum.DOC_PATIENT_ID, id, metadata.getPatientId());
+        writeExternalIdentifier(ExternalIdentifierTypeEnum.DOC_UNIQUE_ID, id, metadata.getUniqueId());
+
+        writer.writeEndElement();
+    }
+
+    private void writeRegistryPackage(SubmissionSet submissionSet) throws XMLStreamException {
+        String id = submissionSet.getId();
+
+        writer.writeStartElement("RegistryPackage");
+        writeAttribute("id", id);
+
+        writeSlot(new Slot(SlotType1Enum.SUBMISSION_TIME, format("yyyyMMddHHmmss", submissionSet.getSubmissionTime())));
+        writeSlot(new Slot(SlotType1Enum.INTENDED_RECIPIENT, submissionSet.getIntendedRecipient()));
+
+        writeInternationalString("Name", submissionSet.getName());
+        writeInternationalString("Description", submissionSet.getDescription());
+
+        // author
+        List<Slot> authorSlots = new ArrayList<Slot>();
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_PERSON, submissionSet.getAuthorPerson()));
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_INSTITUTION, submissionSet.getAuthorInstitution()));
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_ROLE, submissionSet.getAuthorRole()));
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_SPECIALTY, submissionSet.getAuthorSpecialty()));
+        authorSlots.add(new Slot(SlotType1Enum.AUTHOR_TELECOMMUNICATION, submissionSet.getAuthorTelecommunication()));
+        writeClassification(ClassificationTypeEnum.SS_AUTHOR, id, "", false, null, authorSlots);
+
+        // contentTypeCode, written even when empty
+        List<Slot> codeSlots = new ArrayList<Slot>();
+        codeSlots.add(new Slot(SlotType1Enum.CODING_SCHEME, ClassificationTypeEnum.SS_CONTENT_TYPE_CODE.getCodingScheme()));
+        writeClassification(ClassificationTypeEnum.SS_CONTENT_TYPE_CODE, id, submissionSet.getContentTypeCode(), true,
+                submissionSet.getContentTypeCode_localized(), codeSlots);
+
+        writeExternalIdentifier(ExternalIdentifierTypeEnum.SS_UNIQUE_ID, id, submissionSet.getUniqueId());
+        writeExternalIdentifier(ExternalIdentifierTypeEnum.SS_SOURCE_ID, id, submissionSet.getSourceId());
+        writeExternalIdentifier(ExternalIdentifierTypeEnum.SS_PATIENT_ID, id, submissionSet.getPatientId());
+
+        writer.writeEndElement();
+    }
+
+    private void writeAssociation(String sourceObject, String targetObject, String submissionSetStatus) throws XMLStreamException {
+        Slot slot = new Slot(SlotType1Enum.SUBMISSION_SET_STATUS, submissionSetStatus);
+
+        writeStartElement("Association", !slot.isEmpty());
+        writeAttribute("associationType", AssociationType1Enum.HAS_MEMBER.getAssociationType());
+        writeAttribute("sourceObject", sourceObject);
+        writeAttribute("targetObject", targetObject);
+        writeAttribute("id", AssociationType1Enum.HAS_MEMBER.getAssociationId());
+
+        if (!slot.isEmpty()) {
+            writeSlot(slot);
+            writer.writeEndElement();
+        }
+    }
+
+    /**
+     * Write a code classification, which is only written when the code is set.
+     */
+    private void writeCodeClassification(ClassificationTypeEnum type, String classifiedObject, String code, String localizedName)
+            throws XMLStreamException {
+        if (code == null) {
+            return;
+        }
+
+        List<Slot> slots = new ArrayList<Slot>();
+        slots.add(new Slot(SlotType1Enum.CODING_SCHEME, type.getCodingScheme()));
+
+        writeClassification(type, classifiedObject, code, true, localizedName, slots);
+    }
+
+    private void writeClassification(ClassificationTypeEnum type, String classifiedObject, String nodeRepresentation, boolean named,
+            String localizedName, List<Slot> slots) throws XMLStreamException {
+        boolean hasSlots = false;
+        for (Slot slot : slots) {
+            hasSlots |= !slot.isEmpty();
+        }
+
+        boolean hasChildren = hasSlots || named;
+
+        writeStartElement("Classification", hasChildren);
+        writeAttribute("classificationScheme", type.getClassificationScheme());
+        writeAttribute("classifiedObject", classifiedObject);
+        writeAttribute("nodeRepresentation", nodeRepresentation);
+        writeAttribute("id", type.getClassificationId());
+
+        if (hasChildren) {
+            for (Slot slot : slots) {
+                writeSlot(slot);
+            }
+
+            if (named) {
+                writeInternationalString("Name", localizedName);
+            }
+
+            writer.writeEndElement();
+        }
+    }
+
+    private void writeExternalIdentifier(ExternalIdentifierTypeEnum type, String registryObject, String value) throws XMLStreamException {
+        writer.writeStartElement("ExternalIdentifier");
+        writeAttribute("registryObject", registryObject);
+        writeAttribute("identificationScheme", type.getIdentificationScheme());
+        writeAttribute("value", value);
+        writeAttribute("id", type.getIdentificationId());
+
+        writeInternationalString("Name", type.getLocalizedString());
+
+        writer.writeEndElement();
+    }
+
+    private void writeSlot(Slot slot) throws XMLStreamException {
+        if (slot.isEmpty()) {
+            return;
+        }
+
+        writer.writeStartElement("Slot");
+        writeAttribute("name", slot.type.getName());
+        writer.writeStartElement("ValueList");
+
+        for (String value : slot.values) {
+            if (value != null) {
+                writer.writeStartElement("Value");
+                writer.writeCharacters(value);
+                writer.writeEndElement();
+            }
+        }
+
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void writeInternationalString(String name, String value) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeEmptyElement("LocalizedString");
+        writeAttribute("value", value);
+        writer.writeEndElement();
+    }
+
+    private void writeStartElement(String name, boolean hasChildren) throws XMLStreamException {
+        if (hasChildren) {
+            writer.writeStartElement(name);
+        } else {
+            writer.writeEmptyElement(name);
+        }
+    }
+
+    private void writeAttribute(String name, String value) throws XMLStreamException {
+        if (value != null) {
+            writer.writeAttribute(name, value);
+        }
+    }
+
+    private static String format(String pattern, Date date) {
+        return date != null ? new SimpleDateFormat(pattern).format(date) : null;
+    }
+
+    /**
+     * Slot type and values. Empty slots are not written.
+     */
+    private static class Slot {
+
+        private final SlotType1Enum type;
+        private final List<String> values;
+
+        private Slot(SlotType1Enum type, String value) {
+            this(type, Arrays.asList(value));
+        }
+
+        private Slot(SlotType1Enum type, List<String> values) {
+            this.type = type;
+            this.values = values;
+        }
+
+        private boolean isEmpty() {
+            return !valuesNotEmpty(values);
+        }
+    }
+}
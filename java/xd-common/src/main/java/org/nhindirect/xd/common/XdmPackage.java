@@ -2,35 +2,50 @@ package org.nhindirect.xd.common;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nhindirect.xd.common.content.ContentDigest;
+import org.nhindirect.xd.common.content.HeapContent;
+import org.nhindirect.xd.common.content.ZipEntryContent;
 import org.nhindirect.xd.transform.util.type.MimeType;
 
-public class XdmPackage {
+public class XdmPackage implements Closeable {
 
     private String messageId;
     private DirectDocuments documents;
+    private ZipFile zipFile;
     @Deprecated
     private static final String SUFFIX = ".xml";
     private static final int BUFFER = 2048;
-    private static final String XDM_SUB_FOLDER = "IHE_XDM/SUBSET01";
+    private static final String XDM_SUBSET_DIRSPEC = "IHE_XDM/SUBSET01";
+    private static final String XDM_SUB_FOLDER = XDM_SUBSET_DIRSPEC + "/";
     private static final String XDM_METADATA_FILE = "METADATA.xml";
     private static final Log LOGGER = LogFactory.getFactory().getInstance(XdmPackage.class);
 
@@ -57,51 +72,146 @@ public class XdmPackage {
         try {
             xdmFile = new File(messageId + "-xdm.zip");
 
-            FileOutputStream dest = new FileOutputStream(xdmFile);
+            OutputStream dest = new BufferedOutputStream(new FileOutputStream(xdmFile));
 
-            ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(dest));
-            zipOutputStream.setMethod(ZipOutputStream.DEFLATED);
-
-            for (DirectDocument2 document : documents.getDocuments()) {
-                if (document.getData() != null) {
-                    String fileName = document.getMetadata().getId() ;
-                    fileName = fileName.replace("urn:uuid:", "");
-                    fileName = fileName + getSuffix(document.getMetadata().getMimeType());
-                  
-                    document.getMetadata().setURI(fileName);
-                    addEntry(zipOutputStream, document.getData(), XDM_SUB_FOLDER + fileName );
-                }
+            try {
+                writeTo(dest);
+            } finally {
+                dest.close();
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return xdmFile;
+    }
+
+    /**
+     * Write the XDM package as a ZIP stream to the provided OutputStream.
+     * Document contents are copied from their data sources straight into the
+     * ZIP entries, computing the SHA-1 hash and size of each document on the
+     * way, and METADATA.xml is written afterwards with those values. Nothing
+     * is staged on disk and no document is held in memory. The provided stream
+     * is flushed but not closed.
+     * 
+     * @param outputStream
+     *            The OutputStream to which the package is written.
+     * @throws IOException
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+        zipOutputStream.setMethod(ZipOutputStream.DEFLATED);
 
-            addEntry(zipOutputStream, documents.getSubmitObjectsRequestAsString().getBytes(), XDM_SUB_FOLDER + XDM_METADATA_FILE);
+        for (DirectDocument2 document : documents.getDocuments()) {
+            DataSource dataSource = document.getDataSource();
 
-            addEntry(zipOutputStream, getIndex().getBytes(), "INDEX.htm");
+            if (dataSource != null) {
+                String fileName = getDocumentFileName(document.getMetadata());
 
-            addEntry(zipOutputStream, getReadme().getBytes(), "README.txt");
+                document.getMetadata().setURI(fileName);
 
-            if (SUFFIX.equals(".xml")) {
-                addEntry(zipOutputStream, getXsl().getBytes(), XDM_SUB_FOLDER + "CCD.xsl");
+                zipOutputStream.putNextEntry(new ZipEntry(XDM_SUB_FOLDER + fileName));
+                writeDocument(document, dataSource, zipOutputStream);
+                zipOutputStream.closeEntry();
             }
+        }
 
-            zipOutputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        zipOutputStream.putNextEntry(new ZipEntry(XDM_SUB_FOLDER + XDM_METADATA_FILE));
+        documents.writeSubmitObjectsRequest(zipOutputStream);
+        zipOutputStream.closeEntry();
+
+        zipOutputStream.putNextEntry(new ZipEntry("INDEX.htm"));
+        writeIndex(zipOutputStream);
+        zipOutputStream.closeEntry();
+
+        addResourceEntry(zipOutputStream, "README.txt", "README.txt");
+
+        if (SUFFIX.equals(".xml")) {
+            addResourceEntry(zipOutputStream, "CCD.xsl", XDM_SUB_FOLDER + "CCD.xsl");
         }
 
-        return xdmFile;
+        zipOutputStream.finish();
+        zipOutputStream.flush();
+    }
+
+    /**
+     * Write the XDM package as a ZIP stream to the provided channel. The
+     * channel is not closed.
+     * 
+     * @param channel
+     *            The WritableByteChannel to which the package is written.
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        OutputStream outputStream = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER);
+
+        writeTo(outputStream);
+        outputStream.flush();
     }
 
-    private void addEntry(ZipOutputStream zipOutputStream, byte[] data, String fileName) throws IOException {
-        InputStream inputStream = new ByteArrayInputStream(data);
-        BufferedInputStream outputStream = new BufferedInputStream(inputStream);
+    /*
+     * Copy the content of a document to the stream, updating its hash and
+     * size from the bytes actually written.
+     */
+    private static void writeDocument(DirectDocument2 document, DataSource dataSource, OutputStream outputStream)
+            throws IOException {
+        ContentDigest digest = new ContentDigest();
+        InputStream inputStream = dataSource.getInputStream();
+
+        try {
+            digest.copy(inputStream, outputStream);
+        } finally {
+            inputStream.close();
+        }
 
-        ZipEntry zipEntry = new ZipEntry(fileName);
-        zipOutputStream.putNextEntry(zipEntry);
+        document.getMetadata().setHash(digest.getSha1());
+        document.getMetadata().setSize(Long.valueOf(digest.getSize()));
+    }
 
-        int count = 0;
-        byte dataOut[] = new byte[BUFFER];
-        while ((count = outputStream.read(dataOut, 0, BUFFER)) != -1) {
-            zipOutputStream.write(dataOut, 0, count);
+    private void addResourceEntry(ZipOutputStream zipOutputStream, String resource, String fileName) throws IOException {
+        InputStream inputStream = getResourceAsStream(resource);
+
+        try {
+            zipOutputStream.putNextEntry(new ZipEntry(fileName));
+            copy(inputStream, zipOutputStream);
+            zipOutputStream.closeEntry();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /*
+     * Write the index file, one document line at a time.
+     */
+    private void writeIndex(OutputStream outputStream) throws IOException {
+        InputStream head = getResourceAsStream("INDEX_head.txt");
+        try {
+            copy(head, outputStream);
+        } finally {
+            head.close();
+        }
+
+        // Not closed, the underlying stream belongs to the caller
+        Writer writer = new OutputStreamWriter(outputStream, "UTF-8");
+        for (DirectDocument2 document : documents.getDocuments()) {
+            if (document.getDataSource() != null) {
+                String file = XDM_SUB_FOLDER + getDocumentFileName(document.getMetadata());
+                writer.write("<li><a href=\"");
+                writer.write(file);
+                writer.write("\">");
+                writer.write(file);
+                writer.write("</a> - ");
+                writer.write(String.valueOf(document.getMetadata().getDescription()));
+                writer.write("</li>");
+            }
+        }
+        writer.flush();
+
+        InputStream tail = getResourceAsStream("INDEX_tail.txt");
+        try {
+            copy(tail, outputStream);
+        } finally {
+            tail.close();
         }
     }
 
@@ -118,8 +228,8 @@ public class XdmPackage {
             data = new String(bytes);
 
             for (DirectDocument2 document : documents.getDocuments()) {
-                if (document.getData() != null) {
-                    String file = XDM_SUB_FOLDER + document.getMetadata().getId() + getSuffix(document.getMetadata().getMimeType());
+                if (document.getDataSource() != null) {
+                    String file = XDM_SUB_FOLDER + getDocumentFileName(document.getMetadata());
                     data += "<li><a href=\"" + file + "\">" + file + "</a> - " + document.getMetadata().getDescription() + "</li>";
                 }
             }
@@ -168,34 +278,209 @@ public class XdmPackage {
 
     }
 
+    /**
+     * Read an XDM package from a DataHandler in a single pass over its stream.
+     * 
+     * @param dataHandler
+     *            The DataHandler containing the XDM ZIP.
+     * @return an XdmPackage object.
+     * @throws Exception
+     */
     public static XdmPackage fromXdmZipDataHandler(DataHandler dataHandler) throws Exception {
-        File file = null;
+        InputStream inputStream = dataHandler.getInputStream();
 
         try {
-            // Create a temporary work file
-            file = fileFromDataHandler(dataHandler);
-        } catch (Exception e) {
-            if (LOGGER.isErrorEnabled()) {
-                LOGGER.error("Error creating temporary work file, unable to complete transformation.", e);
+            return fromXdmZipInputStream(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Read an XDM package from a ZIP stream in a single pass. Documents are
+     * matched by hash against the metadata. Entries that follow METADATA.xml
+     * are attached as they are read; only entries that precede it are held
+     * until the metadata arrives. The provided stream is not closed.
+     * 
+     * @param inputStream
+     *            The stream containing the XDM ZIP.
+     * @return an XdmPackage object.
+     * @throws Exception
+     */
+    public static XdmPackage fromXdmZipInputStream(InputStream inputStream) throws Exception {
+        DirectDocuments documents = new DirectDocuments();
+        List<byte[]> documentData = new ArrayList<byte[]>();
+        List<String> documentHashes = new ArrayList<String>();
+        boolean metadataRead = false;
+
+        ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(inputStream, BUFFER));
+        ZipEntry zipEntry = null;
+
+        while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+            String zname = normalizeEntryName(zipEntry.getName());
+            LOGGER.trace("Processing a ZipEntry named " + zname);
+
+            if (!zipEntry.isDirectory()) {
+                String subsetDirspec = getSubmissionSetDirspec(zname);
+
+                if (matchName(zname, subsetDirspec, XDM_METADATA_FILE)) {
+                    documents.setValues(readData(zipInputStream).toByteArray());
+                    metadataRead = true;
+
+                    for (int i = 0; i < documentData.size(); i++) {
+                        addDocumentData(documents, documentData.get(i), documentHashes.get(i));
+                    }
+
+                    documentData.clear();
+                    documentHashes.clear();
+                } else if (isDocumentEntry(zname, subsetDirspec)) {
+                    ContentDigest digest = new ContentDigest();
+                    byte[] data = readData(digest.digest(zipInputStream)).toByteArray();
+
+                    if (metadataRead) {
+                        addDocumentData(documents, data, digest.getSha1());
+                    } else {
+                        documentData.add(data);
+                        documentHashes.add(digest.getSha1());
+                    }
+                }
             }
-            throw new Exception("Error creating temporary work file, unable to complete transformation.", e);
+
+            zipInputStream.closeEntry();
         }
 
-        XdmPackage xdmPackage = fromXdmZipFile(file);
+        for (int i = 0; i < documentData.size(); i++) {
+            addDocumentData(documents, documentData.get(i), documentHashes.get(i));
+        }
+
+        XdmPackage xdmPackage = new XdmPackage();
+        xdmPackage.setDocuments(documents);
 
-        boolean delete = file.delete();
+        return xdmPackage;
+    }
 
-        if (delete) {
-            if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("Deleted temporary work file " + file.getAbsolutePath());
+    /**
+     * Read an XDM package from a ZIP file, either eagerly or lazily. A lazy
+     * package only reads the metadata; each document is backed by its ZIP
+     * entry and only inflated when its content is read. Documents are matched
+     * to their entries by the URI in the metadata, or else by the file name
+     * the package writer derives from the document ID. A lazy package keeps
+     * the file open until it is closed.
+     * 
+     * @param file
+     *            The XDM ZIP file.
+     * @param lazy
+     *            Whether to defer reading the documents.
+     * @return an XdmPackage object.
+     * @throws Exception
+     * @see #close()
+     */
+    public static XdmPackage fromXdmZipFile(File file, boolean lazy) throws Exception {
+        if (!lazy) {
+            return fromXdmZipFile(file);
+        }
+
+        ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ);
+
+        try {
+            DirectDocuments documents = new DirectDocuments();
+            Map<String, ZipEntry> documentEntries = new LinkedHashMap<String, ZipEntry>();
+
+            // The entries come from the central directory, no data is inflated
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                String zname = normalizeEntryName(zipEntry.getName());
+                LOGGER.trace("Processing a ZipEntry named " + zname);
+
+                if (!zipEntry.isDirectory()) {
+                    String subsetDirspec = getSubmissionSetDirspec(zname);
+
+                    if (matchName(zname, subsetDirspec, XDM_METADATA_FILE)) {
+                        documents.setValues(readData(zipFile, zipEntry).toByteArray());
+                    } else if (isDocumentEntry(zname, subsetDirspec)) {
+                        documentEntries.put(getFileName(zname), zipEntry);
+                    }
+                }
             }
-        } else {
-            if (LOGGER.isWarnEnabled()) {
-                LOGGER.warn("Unable to delete temporary work file " + file.getAbsolutePath());
+
+            for (DirectDocument2 document : documents.getDocuments()) {
+                ZipEntry zipEntry = documentEntries.remove(getFileName(document.getMetadata()));
+
+                if (zipEntry != null) {
+                    document.setContent(new ZipEntryContent(zipFile, zipEntry), document.getMetadata().getHash());
+                }
+            }
+
+            for (ZipEntry zipEntry : documentEntries.values()) {
+                LOGGER.warn("Unable to find metadata for document " + zipEntry.getName()
+                        + ". Creating document with no supporting metadata.");
+
+                DirectDocument2 document = new DirectDocument2();
+                document.setContent(new ZipEntryContent(zipFile, zipEntry), null);
+                documents.getDocuments().add(document);
             }
+
+            XdmPackage xdmPackage = new XdmPackage();
+            xdmPackage.setDocuments(documents);
+            xdmPackage.zipFile = zipFile;
+
+            return xdmPackage;
+        } catch (Exception e) {
+            zipFile.close();
+            throw e;
         }
+    }
 
-        return xdmPackage;
+    /**
+     * Release the ZIP file backing a package read with
+     * {@link #fromXdmZipFile(File, boolean)} in lazy mode. The content of its
+     * documents can no longer be read afterwards. Closing any other package,
+     * or closing a package twice, has no effect.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        ZipFile closing;
+
+        synchronized (this) {
+            closing = zipFile;
+            zipFile = null;
+        }
+
+        if (closing != null) {
+            closing.close();
+        }
+    }
+
+    /*
+     * Return the file name of a ZIP entry without its folders.
+     */
+    private static String getFileName(String zname) {
+        zname = zname.replaceAll("\\\\", "/");
+
+        return zname.substring(zname.lastIndexOf('/') + 1);
+    }
+
+    /*
+     * Return the file name of a document, as written by writeTo.
+     */
+    private static String getFileName(DirectDocument2.Metadata metadata) {
+        if (StringUtils.isNotBlank(metadata.getURI())) {
+            return getFileName(metadata.getURI());
+        }
+
+        return getDocumentFileName(metadata);
+    }
+
+    /*
+     * Return the file name writeTo gives a document entry, which is also the
+     * URI it records in the metadata and the target of the index link.
+     */
+    private static String getDocumentFileName(DirectDocument2.Metadata metadata) {
+        String id = StringUtils.replace(metadata.getId(), "urn:uuid:", "");
+
+        return id + getSuffix(metadata.getMimeType());
     }
 
     public static XdmPackage fromXdmZipFile(File file) throws Exception {
@@ -211,16 +496,16 @@ public class XdmPackage {
 
 
             zipEntry = zipEntries.nextElement();
-            String zname = zipEntry.getName();
+            String zname = normalizeEntryName(zipEntry.getName());
             LOGGER.info("Processing a ZipEntry named " + zname);
             if (!zipEntry.isDirectory()) {
-                String subsetDirspec = getSubmissionSetDirspec(zipEntry.getName());
+                String subsetDirspec = getSubmissionSetDirspec(zname);
 
                 // Read metadata
                 if (matchName(zname, subsetDirspec, XDM_METADATA_FILE)) {
                     ByteArrayOutputStream byteArrayOutputStream = readData(zipFile, zipEntry);
 
-                    documents.setValues(byteArrayOutputStream.toString());
+                    documents.setValues(byteArrayOutputStream.toByteArray());
                 }
             }
         }
@@ -232,29 +517,23 @@ public class XdmPackage {
             LOGGER.trace("Processing a ZipEntry");
 
             zipEntry = zipEntries.nextElement();
-            String zname = zipEntry.getName();
+            String zname = normalizeEntryName(zipEntry.getName());
 
             if (!zipEntry.isDirectory()) {
-                String subsetDirspec = getSubmissionSetDirspec(zipEntry.getName());
+                String subsetDirspec = getSubmissionSetDirspec(zname);
 
                 // Read data
-              //  if (StringUtils.contains(subsetDirspec, StringUtils.remove(XDM_SUB_FOLDER, "/"))
-                if (StringUtils.contains(subsetDirspec,XDM_SUB_FOLDER)
-                        && !StringUtils.contains(zname, ".xsl") && !StringUtils.contains(zname, XDM_METADATA_FILE)) {
-                    ByteArrayOutputStream byteArrayOutputStream = readData(zipFile, zipEntry);
-
-                    String digest = DirectDocument2.getSha1Hash(byteArrayOutputStream.toString());
-                    System.out.println(digest);
-                    DirectDocument2 document = documents.getDocumentByHash(digest);
-
-                    if (document == null) {
-                        LOGGER.warn("Unable to find metadata for document by hash. Creating document with no supporting metadata.");
-
-                        document = new DirectDocument2();
-                        documents.getDocuments().add(document);
+                if (isDocumentEntry(zname, subsetDirspec)) {
+                    ContentDigest digest = new ContentDigest();
+                    InputStream inputStream = digest.digest(zipFile.getInputStream(zipEntry));
+                    ByteArrayOutputStream byteArrayOutputStream;
+                    try {
+                        byteArrayOutputStream = readData(inputStream);
+                    } finally {
+                        inputStream.close();
                     }
 
-                    document.setData(byteArrayOutputStream.toByteArray());
+                    addDocumentData(documents, byteArrayOutputStream.toByteArray(), digest.getSha1());
                 }
             }
         }
@@ -267,6 +546,46 @@ public class XdmPackage {
         return xdmPackage;
     }
 
+    /*
+     * Packages written by earlier versions left out the separator after the
+     * subset folder (e.g. IHE_XDM/SUBSET01METADATA.xml). Put it back so those
+     * entries are read from the subset folder like any other.
+     */
+    private static String normalizeEntryName(String zname) {
+        if (StringUtils.startsWith(zname, XDM_SUBSET_DIRSPEC) && !StringUtils.startsWith(zname, XDM_SUB_FOLDER)
+                && zname.indexOf('/', XDM_SUBSET_DIRSPEC.length()) < 0
+                && zname.length() > XDM_SUBSET_DIRSPEC.length()) {
+            return XDM_SUB_FOLDER + zname.substring(XDM_SUBSET_DIRSPEC.length());
+        }
+
+        return zname;
+    }
+
+    /*
+     * Determine whether a ZIP entry holds document content.
+     */
+    private static boolean isDocumentEntry(String zname, String subsetDirspec) {
+        return StringUtils.contains(subsetDirspec, XDM_SUBSET_DIRSPEC) && !StringUtils.contains(zname, ".xsl")
+                && !StringUtils.contains(zname, XDM_METADATA_FILE);
+    }
+
+    /*
+     * Attach document content to its metadata, matched by the hash calculated
+     * while the content was read.
+     */
+    private static void addDocumentData(DirectDocuments documents, byte[] data, String hash) {
+        DirectDocument2 document = documents.getDocumentByHash(hash);
+
+        if (document == null) {
+            LOGGER.warn("Unable to find metadata for document by hash. Creating document with no supporting metadata.");
+
+            document = new DirectDocument2();
+            documents.getDocuments().add(document);
+        }
+
+        document.setContent(new HeapContent(data), hash);
+    }
+
         protected static String getSubmissionSetDirspec(String zipEntryName) {
         if (zipEntryName == null) {
             return null;
@@ -348,16 +667,26 @@ public class XdmPackage {
      */
     private static ByteArrayOutputStream readData(ZipFile zipFile, ZipEntry zipEntry) throws IOException {
         InputStream in = zipFile.getInputStream(zipEntry);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        int bytesRead = 0;
-        byte[] buffer = new byte[2048];
 
-        while ((bytesRead = in.read(buffer)) != -1) {
-            baos.write(buffer, 0, bytesRead);
+        try {
+            return readData(in);
+        } finally {
+            in.close();
         }
+    }
+
+    /**
+     * Read the remaining data of a stream. The stream is not closed.
+     * 
+     * @param in
+     *            The InputStream to read.
+     * @return a ByteArrayOutputStream representing the data.
+     * @throws IOException
+     */
+    private static ByteArrayOutputStream readData(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-        in.close();
+        copy(in, baos);
 
         return baos;
     }
@@ -366,60 +695,38 @@ public class XdmPackage {
      * Read a file and return the bytes.
      */
     private byte[] readFile(String filename) throws IOException {
-        byte[] bytes;
-
-        InputStream is = this.getClass().getClassLoader().getResourceAsStream(filename);
-        bytes = new byte[is.available()];
-        is.read(bytes);
+        InputStream is = getResourceAsStream(filename);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-        is.close();
+        try {
+            copy(is, baos);
+        } finally {
+            is.close();
+        }
 
-        return bytes;
+        return baos.toByteArray();
     }
 
-    private static File fileFromDataHandler(DataHandler dh) throws Exception {
-        File f = null;
-        OutputStream out = null;
-        InputStream inputStream = null;
-
-        final String fileName = UUID.randomUUID().toString() + ".zip";
+    private InputStream getResourceAsStream(String filename) throws IOException {
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream(filename);
 
-        try {
-            f = new File(fileName);
-            inputStream = dh.getInputStream();
-            out = new FileOutputStream(f);
-            byte buf[] = new byte[1024];
-            int len;
-            while ((len = inputStream.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-        } catch (FileNotFoundException e) {
-            if (LOGGER.isErrorEnabled()) {
-                LOGGER.error("File not found - " + fileName, e);
-            }
-            throw e;
-        } catch (IOException e) {
-            if (LOGGER.isErrorEnabled()) {
-                LOGGER.error("Exception thrown while trying to read file from DataHandler object", e);
-            }
-            throw e;
-        } finally {
-            if (inputStream != null) {
-                inputStream.close();
-            }
-            if (out != null) {
-                out.close();
-            }
+        if (is == null) {
+            throw new FileNotFoundException("Unable to locate resource " + filename);
         }
 
-        if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("Created temporary work file " + f.getAbsolutePath());
-        }
+        return is;
+    }
 
-        return f;
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        int count = 0;
+        byte[] buffer = new byte[BUFFER];
+
+        while ((count = in.read(buffer, 0, BUFFER)) != -1) {
+            out.write(buffer, 0, count);
+        }
     }
 
-    private String getSuffix(String mimeType) {
+    private static String getSuffix(String mimeType) {
         return "." + MimeType.lookup(mimeType).getSuffix();
     }
 }
@@ -0,0 +1,190 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Content held in a ByteBuffer, typically a direct buffer outside the Java
+ * heap. Each reader works on its own view of the buffer, so the position and
+ * limit of the buffer itself are never changed.
+ */
+public class BufferContent extends DocumentContent
+{
+    private static final int BUFFER = 8192;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Create content over the remaining bytes of a buffer. The buffer is not
+     * copied.
+     * 
+     * @param buffer
+     *            The buffer.
+     */
+    public BufferContent(ByteBuffer buffer)
+    {
+        if (buffer == null)
+            throw new IllegalArgumentException("Buffer must not be null.");
+
+        this.buffer = buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy a stream into a direct buffer. The stream is not closed.
+     * 
+     * @param inputStream
+     *            The stream to copy.
+     * @param size
+     *            The expected size of the content, used as the initial
+     *            capacity of the buffer.
+     * @return the content of the stream.
+     * @throws IOException
+     */
+    public static BufferContent allocateDirect(InputStream inputStream, int size) throws IOException
+    {
+        ReadableByteChannel channel = Channels.newChannel(inputStream);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(size, BUFFER));
+
+        while (channel.read(buffer) != -1)
+        {
+            if (!buffer.hasRemaining())
+            {
+                ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        buffer.flip();
+
+        return new BufferContent(buffer);
+    }
+
+    /**
+     * Return a read-only view of the content.
+     * 
+     * @return the content.
+     */
+    public ByteBuffer getBuffer()
+    {
+        return buffer.duplicate();
+    }
+
+    @Override
+    public long getSize()
+    {
+        return buffer.remaining();
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return new BufferInputStream(buffer.duplicate());
+    }
+
+    @Override
+    public long writeTo(OutputStream outputStream) throws IOException
+    {
+        ByteBuffer view = buffer.duplicate();
+        byte[] chunk = new byte[Math.min(view.remaining(), BUFFER)];
+
+        while (view.hasRemaining())
+        {
+            int length = Math.min(view.remaining(), chunk.length);
+            view.get(chunk, 0, length);
+            outputStream.write(chunk, 0, length);
+        }
+
+        return buffer.remaining();
+    }
+
+    @Override
+    public byte[] toByteArray()
+    {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+
+        return data;
+    }
+
+    /**
+     * A stream over a view of the buffer.
+     */
+    private static class BufferInputStream extends InputStream
+    {
+        private final ByteBuffer view;
+
+        private BufferInputStream(ByteBuffer view)
+        {
+            this.view = view;
+        }
+
+        @Override
+        public int read()
+        {
+            return view.hasRemaining() ? view.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+                return 0;
+            if (!view.hasRemaining())
+                return -1;
+
+            len = Math.min(len, view.remaining());
+            view.get(b, off, len);
+
+            return len;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            int skipped = (int) Math.max(0, Math.min(n, view.remaining()));
+            view.position(view.position() + skipped);
+
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return view.remaining();
+        }
+    }
+}
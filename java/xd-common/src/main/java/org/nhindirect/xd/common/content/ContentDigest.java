@@ -0,0 +1,325 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Calculates the SHA-1 hash, and optionally the SHA-256 hash, and the size of
+ * content while it is being copied, so that content is hashed in the same
+ * pass that reads or writes it. Streams returned by
+ * {@link #digest(InputStream)} and {@link #digest(OutputStream)} update the
+ * digest with every byte that passes through them. Hashes are returned as
+ * lowercase hexadecimal strings.
+ * <p>
+ * A digest is complete once a hash has been requested, after which it can
+ * no longer be updated. Instances are not thread safe.
+ */
+public class ContentDigest
+{
+    private static final int BUFFER = 8192;
+
+    private final MessageDigest sha1;
+    private final MessageDigest sha256;
+
+    private long size;
+
+    private String sha1Hash;
+    private String sha256Hash;
+
+    /**
+     * Create a digest calculating the SHA-1 hash.
+     */
+    public ContentDigest()
+    {
+        this(false);
+    }
+
+    /**
+     * Create a digest calculating the SHA-1 hash and, if requested, the
+     * SHA-256 hash.
+     * 
+     * @param sha256
+     *            Whether to calculate the SHA-256 hash as well.
+     */
+    public ContentDigest(boolean sha256)
+    {
+        this.sha1 = getInstance("SHA-1");
+        this.sha256 = sha256 ? getInstance("SHA-256") : null;
+    }
+
+    /**
+     * Calculate the SHA-1 hash of an array.
+     * 
+     * @param data
+     *            The data to hash.
+     * @return the SHA-1 hash.
+     */
+    public static String sha1(byte[] data)
+    {
+        ContentDigest digest = new ContentDigest();
+        digest.update(data, 0, data.length);
+
+        return digest.getSha1();
+    }
+
+    /**
+     * Calculate the SHA-1 hash of a file, reading it without holding it in
+     * memory.
+     * 
+     * @param file
+     *            The file to hash.
+     * @return the SHA-1 hash.
+     * @throws IOException
+     */
+    public static String sha1(File file) throws IOException
+    {
+        ContentDigest digest = new ContentDigest();
+        InputStream inputStream = new FileInputStream(file);
+
+        try
+        {
+            digest.copy(inputStream, null);
+        }
+        finally
+        {
+            inputStream.close();
+        }
+
+        return digest.getSha1();
+    }
+
+    /**
+     * Update the digest with part of an array.
+     * 
+     * @param b
+     *            The data.
+     * @param off
+     *            The offset of the first byte.
+     * @param len
+     *            The number of bytes.
+     */
+    public void update(byte[] b, int off, int len)
+    {
+        if (sha1Hash != null)
+            throw new IllegalStateException("Digest is already complete.");
+
+        sha1.update(b, off, len);
+        if (sha256 != null)
+            sha256.update(b, off, len);
+
+        size += len;
+    }
+
+    private void update(byte b)
+    {
+        if (sha1Hash != null)
+            throw new IllegalStateException("Digest is already complete.");
+
+        sha1.update(b);
+        if (sha256 != null)
+            sha256.update(b);
+
+        size++;
+    }
+
+    /**
+     * Copy a stream to another, updating the digest with every byte. Neither
+     * stream is closed.
+     * 
+     * @param inputStream
+     *            The stream to read.
+     * @param outputStream
+     *            The stream to write, or null to only calculate the digest.
+     * @return the number of bytes copied.
+     * @throws IOException
+     */
+    public long copy(InputStream inputStream, OutputStream outputStream) throws IOException
+    {
+        long total = 0;
+        int count;
+        byte[] buffer = new byte[BUFFER];
+
+        while ((count = inputStream.read(buffer)) != -1)
+        {
+            update(buffer, 0, count);
+            if (outputStream != null)
+                outputStream.write(buffer, 0, count);
+
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Return a stream which updates the digest with the bytes read from the
+     * provided stream. Closing it closes the provided stream.
+     * 
+     * @param inputStream
+     *            The stream to read.
+     * @return the digesting stream.
+     */
+    public InputStream digest(InputStream inputStream)
+    {
+        return new FilterInputStream(inputStream)
+        {
+            @Override
+            public int read() throws IOException
+            {
+                int b = super.read();
+                if (b != -1)
+                    update((byte) b);
+
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                int count = super.read(b, off, len);
+                if (count > 0)
+                    update(b, off, count);
+
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException
+            {
+                // Skipped bytes must still be hashed
+                byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), BUFFER)];
+                int count = read(buffer, 0, buffer.length);
+
+                return Math.max(count, 0);
+            }
+
+            @Override
+            public boolean markSupported()
+            {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return a stream which updates the digest with the bytes written to the
+     * provided stream. Closing it closes the provided stream.
+     * 
+     * @param outputStream
+     *            The stream to write.
+     * @return the digesting stream.
+     */
+    public OutputStream digest(OutputStream outputStream)
+    {
+        return new FilterOutputStream(outputStream)
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                out.write(b);
+                update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+                update(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Return the number of bytes digested.
+     * 
+     * @return the size of the content.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Complete the digest and return the SHA-1 hash.
+     * 
+     * @return the SHA-1 hash.
+     */
+    public String getSha1()
+    {
+        complete();
+
+        return sha1Hash;
+    }
+
+    /**
+     * Complete the digest and return the SHA-256 hash.
+     * 
+     * @return the SHA-256 hash, or null if it was not requested.
+     */
+    public String getSha256()
+    {
+        complete();
+
+        return sha256Hash;
+    }
+
+    private void complete()
+    {
+        if (sha1Hash == null)
+        {
+            sha1Hash = new String(Hex.encodeHex(sha1.digest()));
+            if (sha256 != null)
+                sha256Hash = new String(Hex.encodeHex(sha256.digest()));
+        }
+    }
+
+    private static MessageDigest getInstance(String algorithm)
+    {
+        try
+        {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-1 and SHA-256
+            throw new IllegalStateException("Unable to calculate " + algorithm + " hash", e);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.content;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.activation.DataSource;
+
+/**
+ * The content of a document, held in whichever storage suits its size: heap
+ * arrays ({@link HeapContent}), files ({@link FileContent}), memory-mapped
+ * files ({@link MappedContent}) or direct buffers ({@link BufferContent}).
+ * Content is read-only and may be read any number of times, as a stream or
+ * as a channel.
+ */
+public abstract class DocumentContent
+{
+    private static final int BUFFER = 8192;
+
+    /**
+     * Return the size of the content in bytes, or -1 if it is not known.
+     * 
+     * @return the size of the content.
+     */
+    public abstract long getSize();
+
+    /**
+     * Return a new stream over the content.
+     * 
+     * @return a stream over the content.
+     * @throws IOException
+     */
+    public abstract InputStream getInputStream() throws IOException;
+
+    /**
+     * Return a new channel over the content.
+     * 
+     * @return a channel over the content.
+     * @throws IOException
+     */
+    public ReadableByteChannel getChannel() throws IOException
+    {
+        return Channels.newChannel(getInputStream());
+    }
+
+    /**
+     * Return a name for the content, such as a file name.
+     * 
+     * @return the name of the content.
+     */
+    public String getName()
+    {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Copy the content to a stream. The stream is not closed.
+     * 
+     * @param outputStream
+     *            The stream to write to.
+     * @return the number of bytes written.
+     * @throws IOException
+     */
+    public long writeTo(OutputStream outputStream) throws IOException
+    {
+        InputStream inputStream = getInputStream();
+
+        try
+        {
+            long total = 0;
+            int count;
+            byte[] buffer = new byte[BUFFER];
+
+            while ((count = inputStream.read(buffer)) != -1)
+            {
+                outputStream.write(buffer, 0, count);
+                total += count;
+            }
+
+            return total;
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Read the content into a new array.
+     * 
+     * @return the content.
+     * @throws IOException
+     */
+    public byte[] toByteArray() throws IOException
+    {
+        long size = getSize();
+
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Content of " + size + " bytes does not fit in an array");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(size < 0 ? BUFFER : (int) size);
+        writeTo(outputStream);
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Release the storage held by the content, such as a temporary file. The
+     * content must not be read afterwards.
+     */
+    public void release()
+    {
+    }
+
+    /**
+     * Return a DataSource over the content, for use in a DataHandler.
+     * 
+     * @param contentType
+     *            The content type reported by the DataSource.
+     * @return a DataSource over the content.
+     */
+    public DataSource toDataSource(String contentType)
+    {
+        return new ContentDataSource(this, contentType);
+    }
+
+    /**
+     * Return content read from a DataSource, such as an MTOM attachment. The
+     * DataSource is read each time the content is.
+     * 
+     * @param dataSource
+     *            The DataSource.
+     * @param size
+     *            The size of the content in bytes, or -1 if it is not known.
+     * @return the content of the DataSource.
+     */
+    public static DocumentContent fromDataSource(DataSource dataSource, long size)
+    {
+        if (dataSource instanceof ContentDataSource)
+            return ((ContentDataSource) dataSource).getContent();
+
+        return new DataSourceContent(dataSource, size);
+    }
+
+    /**
+     * A read-only DataSource over document content.
+     */
+    public static class ContentDataSource implements DataSource
+    {
+        private final DocumentContent content;
+        private final String contentType;
+
+        private ContentDataSource(DocumentContent content, String contentType)
+        {
+            this.content = content;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Return the content this DataSource reads.
+         * 
+         * @return the content.
+         */
+        public DocumentContent getContent()
+        {
+            return content;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return content.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            throw new IOException("Document content is read-only");
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return contentType != null ? contentType : "application/octet-stream";
+        }
+
+        @Override
+        public String getName()
+        {
+            return content.getName();
+        }
+    }
+
+    /**
+     * Content held by a DataSource.
+     */
+    private static class DataSourceContent extends DocumentContent
+    {
+        private final DataSource dataSource;
+        private final long size;
+
+        private DataSourceContent(DataSource dataSource, long size)
+        {
+            this.dataSource = dataSource;
+            this.size = size;
+        }
+
+        @Override
+        public long getSize()
+        {
+            return size;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return dataSource.getInputStream();
+        }
+
+        @Override
+        public String getName()
+        {
+            return dataSource.getName();
+        }
+
+        @Override
+        public DataSource toDataSource(String contentType)
+        {
+            return dataSource;
+        }
+    }
+}
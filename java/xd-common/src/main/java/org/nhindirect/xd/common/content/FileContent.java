@@ -0,0 +1,165 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.content;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Content held in a file. Temporary files, such as those created by
+ * {@link #spool(InputStream, File)}, are deleted when the content is released.
+ */
+public class FileContent extends DocumentContent
+{
+    private final File file;
+    private final boolean temporary;
+
+    private static final Log LOGGER = LogFactory.getFactory().getInstance(FileContent.class);
+
+    /**
+     * Create content over a file which is kept when the content is released.
+     * 
+     * @param file
+     *            The file.
+     */
+    public FileContent(File file)
+    {
+        this(file, false);
+    }
+
+    /**
+     * Create content over a file.
+     * 
+     * @param file
+     *            The file.
+     * @param temporary
+     *            Whether to delete the file when the content is released.
+     */
+    public FileContent(File file, boolean temporary)
+    {
+        if (file == null)
+            throw new IllegalArgumentException("File must not be null.");
+
+        this.file = file;
+        this.temporary = temporary;
+    }
+
+    /**
+     * Copy a stream to a temporary file. The stream is not closed.
+     * 
+     * @param inputStream
+     *            The stream to copy.
+     * @param directory
+     *            The directory in which to create the file, or null for the
+     *            default temporary directory.
+     * @return the content of the stream.
+     * @throws IOException
+     */
+    public static FileContent spool(InputStream inputStream, File directory) throws IOException
+    {
+        File file = File.createTempFile("xd-", ".part", directory);
+        OutputStream outputStream = null;
+
+        try
+        {
+            outputStream = new BufferedOutputStream(FileUtils.openOutputStream(file));
+            IOUtils.copy(inputStream, outputStream);
+            outputStream.close();
+        }
+        catch (IOException e)
+        {
+            IOUtils.closeQuietly(outputStream);
+            file.delete();
+            throw e;
+        }
+
+        return new FileContent(file, true);
+    }
+
+    /**
+     * Return the file holding the content.
+     * 
+     * @return the file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Return whether the file is deleted when the content is released.
+     * 
+     * @return true if the file is temporary, false otherwise.
+     */
+    public boolean isTemporary()
+    {
+        return temporary;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return file.length();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public ReadableByteChannel getChannel() throws IOException
+    {
+        return new FileInputStream(file).getChannel();
+    }
+
+    @Override
+    public String getName()
+    {
+        return file.getName();
+    }
+
+    @Override
+    public void release()
+    {
+        if (temporary && file.exists() && !file.delete())
+            LOGGER.warn("Unable to delete " + file);
+    }
+}
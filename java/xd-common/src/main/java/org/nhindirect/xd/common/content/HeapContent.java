@@ -0,0 +1,92 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Content held in an array on the heap. The array is not copied.
+ */
+public class HeapContent extends DocumentContent
+{
+    private final byte[] data;
+
+    /**
+     * Create content over an array.
+     * 
+     * @param data
+     *            The content.
+     */
+    public HeapContent(byte[] data)
+    {
+        if (data == null)
+            throw new IllegalArgumentException("Data must not be null.");
+
+        this.data = data;
+    }
+
+    /**
+     * Return the array holding the content.
+     * 
+     * @return the content.
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return data.length;
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public long writeTo(OutputStream outputStream) throws IOException
+    {
+        outputStream.write(data);
+
+        return data.length;
+    }
+
+    @Override
+    public byte[] toByteArray()
+    {
+        return data.clone();
+    }
+}
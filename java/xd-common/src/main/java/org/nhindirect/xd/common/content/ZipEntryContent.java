@@ -0,0 +1,98 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Content held in an entry of a ZIP archive. Nothing is read until the
+ * content is, and every read inflates the entry again, so the content stays
+ * small however large the entry is. The content can no longer be read once
+ * the archive is closed.
+ */
+public class ZipEntryContent extends DocumentContent
+{
+    private final ZipFile zipFile;
+    private final ZipEntry zipEntry;
+
+    /**
+     * Create content over an entry of an open archive.
+     * 
+     * @param zipFile
+     *            The archive.
+     * @param zipEntry
+     *            The entry.
+     */
+    public ZipEntryContent(ZipFile zipFile, ZipEntry zipEntry)
+    {
+        if (zipFile == null || zipEntry == null)
+            throw new IllegalArgumentException("ZIP file and entry must not be null.");
+
+        this.zipFile = zipFile;
+        this.zipEntry = zipEntry;
+    }
+
+    /**
+     * Return the entry holding the content.
+     * 
+     * @return the entry.
+     */
+    public ZipEntry getZipEntry()
+    {
+        return zipEntry;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return zipEntry.getSize();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        try
+        {
+            return zipFile.getInputStream(zipEntry);
+        }
+        catch (IllegalStateException e)
+        {
+            throw new IOException("Unable to read " + zipEntry.getName() + " from closed archive " + zipFile.getName(), e);
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return zipEntry.getName();
+    }
+}
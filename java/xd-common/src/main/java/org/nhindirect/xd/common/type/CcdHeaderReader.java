@@ -0,0 +1,433 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.type;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nhindirect.xd.common.DirectDocument2;
+import org.nhindirect.xd.common.DirectDocuments;
+import org.nhindirect.xd.transform.pojo.SimplePerson;
+
+/**
+ * Single pass StAX reader for the header of a CDA document such as a CCD.
+ * Patient, author, creation time, confidentiality, type code and service times
+ * are read straight into DirectDocument2.Metadata and SubmissionSet objects.
+ * Reading stops at the document body, so only the header is parsed.
+ */
+class CcdHeaderReader
+{
+    static final String HL7_NAMESPACE = "urn:hl7-org:v3";
+
+    private static final String LOINC_OID = "2.16.840.1.113883.6.1";
+
+    private static final String ROOT = "ClinicalDocument";
+
+    private static final String PATIENT_ROLE = ROOT + "/recordTarget/patientRole";
+    private static final String PATIENT = PATIENT_ROLE + "/patient";
+    private static final String ASSIGNED_AUTHOR = ROOT + "/author/assignedAuthor";
+    private static final String SERVICE_TIME = ROOT + "/documentationOf/serviceEvent/effectiveTime";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final Log LOGGER = LogFactory.getFactory().getInstance(CcdHeaderReader.class);
+
+    static
+    {
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private final DirectDocument2.Metadata metadata;
+    private final DirectDocuments.SubmissionSet submissionSet;
+
+    private final LinkedList<String> path = new LinkedList<String>();
+
+    private final SimplePerson patient = new SimplePerson();
+    private String patientId;
+    private boolean patientRead;
+
+    private final SimplePerson author = new SimplePerson();
+    private String authorInstitution;
+    private boolean authorRead;
+
+    private boolean cda;
+
+    /**
+     * Create a reader which populates either or both of the metadata and
+     * submission set.
+     */
+    CcdHeaderReader(DirectDocument2.Metadata metadata, DirectDocuments.SubmissionSet submissionSet)
+    {
+        this.metadata = metadata;
+        this.submissionSet = submissionSet;
+    }
+
+    /**
+     * Read the header from the stream. The stream is not closed. A document
+     * which is not well formed is logged rather than failing the caller.
+     * 
+     * @return true if the header was read, false otherwise.
+     */
+    boolean read(InputStream inputStream)
+    {
+        try
+        {
+            return read(INPUT_FACTORY.createXMLStreamReader(inputStream));
+        }
+        catch (XMLStreamException e)
+        {
+            LOGGER.warn("Unable to read CDA header", e);
+            return false;
+        }
+    }
+
+    /**
+     * Read the header from the reader. The reader is not closed. A document
+     * which is not well formed is logged rather than failing the caller.
+     * 
+     * @return true if the header was read, false otherwise.
+     */
+    boolean read(Reader characterStream)
+    {
+        try
+        {
+            return read(INPUT_FACTORY.createXMLStreamReader(characterStream));
+        }
+        catch (XMLStreamException e)
+        {
+            LOGGER.warn("Unable to read CDA header", e);
+            return false;
+        }
+    }
+
+    private boolean read(XMLStreamReader reader) throws XMLStreamException
+    {
+        try
+        {
+            readHeader(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        if (cda)
+            apply();
+
+        return cda;
+    }
+
+    private void readHeader(XMLStreamReader reader) throws XMLStreamException
+    {
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                String current = path.removeLast();
+
+                if (PATIENT_ROLE.equals(current))
+                    patientRead = true;
+                else if (ASSIGNED_AUTHOR.equals(current))
+                    authorRead = true;
+
+                continue;
+            }
+
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = reader.getLocalName();
+
+            if (path.isEmpty())
+            {
+                if (!ROOT.equals(name) || !HL7_NAMESPACE.equals(reader.getNamespaceURI()))
+                    return;
+
+                cda = true;
+                path.add(ROOT);
+                continue;
+            }
+
+            String parent = path.getLast();
+
+            // The body follows the header
+            if (ROOT.equals(parent) && "component".equals(name))
+                break;
+
+            if (!HL7_NAMESPACE.equals(reader.getNamespaceURI()))
+            {
+                path.add(parent + "/" + name);
+                continue;
+            }
+
+            if (readElement(reader, parent, name))
+                continue;
+
+            path.add(parent + "/" + name);
+        }
+    }
+
+    /**
+     * Read the value of a header element.
+     * 
+     * @return true if the element was read to its end, false otherwise.
+     */
+    private boolean readElement(XMLStreamReader reader, String parent, String name) throws XMLStreamException
+    {
+        if (ROOT.equals(parent))
+        {
+            if ("code".equals(name))
+            {
+                if (metadata != null && LOINC_OID.equals(reader.getAttributeValue(null, "codeSystem")))
+                {
+                    metadata.setLoinc(reader.getAttributeValue(null, "code"), true);
+                    if (StringUtils.isNotEmpty(reader.getAttributeValue(null, "displayName")))
+                        metadata.setLoinc_localized(reader.getAttributeValue(null, "displayName"));
+                }
+            }
+            else if ("effectiveTime".equals(name))
+            {
+                if (metadata != null)
+                    metadata.setCreationTime(parseTime(reader.getAttributeValue(null, "value")));
+            }
+            else if ("confidentialityCode".equals(name))
+            {
+                if (metadata != null && reader.getAttributeValue(null, "code") != null)
+                {
+                    metadata.setConfidentialityCode(reader.getAttributeValue(null, "code"), true);
+                    if (StringUtils.isNotEmpty(reader.getAttributeValue(null, "displayName")))
+                        metadata.setConfidentialityCode_localized(reader.getAttributeValue(null, "displayName"));
+                }
+            }
+            else if ("languageCode".equals(name))
+            {
+                if (metadata != null && reader.getAttributeValue(null, "code") != null)
+                    metadata.setLanguageCode(reader.getAttributeValue(null, "code"));
+            }
+
+            return false;
+        }
+
+        if (!patientRead && PATIENT_ROLE.equals(parent))
+        {
+            if ("id".equals(name) && patientId == null && reader.getAttributeValue(null, "extension") != null)
+            {
+                patient.setLocalId(reader.getAttributeValue(null, "extension"));
+                patient.setLocalOrg(reader.getAttributeValue(null, "root"));
+                patientId = patient.getLocalId() + "^^^&" + StringUtils.defaultString(patient.getLocalOrg()) + "&ISO";
+            }
+
+            return false;
+        }
+
+        if (!patientRead && (PATIENT_ROLE + "/addr").equals(parent))
+            return readAddress(reader, name, patient);
+
+        if (!patientRead && PATIENT.equals(parent))
+        {
+            if ("administrativeGenderCode".equals(name))
+                patient.setGenderCode(reader.getAttributeValue(null, "code"));
+            else if ("birthTime".equals(name))
+                patient.setBirthDateTime(reader.getAttributeValue(null, "value"));
+
+            return false;
+        }
+
+        if (!patientRead && (PATIENT + "/name").equals(parent))
+            return readName(reader, name, patient);
+
+        if (!authorRead && (ASSIGNED_AUTHOR + "/assignedPerson/name").equals(parent))
+            return readName(reader, name, author);
+
+        if (!authorRead && (ASSIGNED_AUTHOR + "/representedOrganization").equals(parent) && "name".equals(name))
+        {
+            authorInstitution = reader.getElementText().trim();
+            return true;
+        }
+
+        if (SERVICE_TIME.equals(parent) && metadata != null)
+        {
+            if ("low".equals(name))
+                metadata.setServiceStartTime(parseTime(reader.getAttributeValue(null, "value")));
+            else if ("high".equals(name))
+                metadata.setServiceStopTime(parseTime(reader.getAttributeValue(null, "value")));
+        }
+
+        return false;
+    }
+
+    private static boolean readAddress(XMLStreamReader reader, String name, SimplePerson person)
+            throws XMLStreamException
+    {
+        // Other children, such as useablePeriod, have element content
+        if (!"streetAddressLine".equals(name) && !"city".equals(name) && !"state".equals(name)
+                && !"postalCode".equals(name) && !"country".equals(name))
+            return false;
+
+        String text = reader.getElementText().trim();
+
+        if ("streetAddressLine".equals(name))
+        {
+            if (person.getStreetAddress1() == null)
+                person.setStreetAddress1(text);
+            else if (person.getStreetAddress2() == null)
+                person.setStreetAddress2(text);
+        }
+        else if ("city".equals(name))
+            person.setCity(text);
+        else if ("state".equals(name))
+            person.setState(text);
+        else if ("postalCode".equals(name))
+            person.setZipCode(text);
+        else
+            person.setCountry(text);
+
+        return true;
+    }
+
+    private static boolean readName(XMLStreamReader reader, String name, SimplePerson person) throws XMLStreamException
+    {
+        if (!"given".equals(name) && !"family".equals(name) && !"prefix".equals(name) && !"suffix".equals(name))
+            return false;
+
+        String text = reader.getElementText().trim();
+
+        if ("given".equals(name))
+        {
+            if (person.getFirstName() == null)
+                person.setFirstName(text);
+            else if (person.getMiddleName() == null)
+                person.setMiddleName(text);
+        }
+        else if ("family".equals(name))
+            person.setLastName(text);
+        else if ("prefix".equals(name))
+            person.setTitle(text);
+        else
+            person.setSuffix(text);
+
+        return true;
+    }
+
+    private void apply()
+    {
+        String authorPerson = null;
+        if (author.getLastName() != null || author.getFirstName() != null)
+        {
+            // XCN: id^family^given^middle^suffix^prefix
+            authorPerson = "^" + StringUtils.defaultString(author.getLastName()) + "^"
+                    + StringUtils.defaultString(author.getFirstName()) + "^"
+                    + StringUtils.defaultString(author.getMiddleName()) + "^"
+                    + StringUtils.defaultString(author.getSuffix()) + "^"
+                    + StringUtils.defaultString(author.getTitle());
+        }
+
+        if (metadata != null)
+        {
+            if (patientId != null)
+            {
+                metadata.setPatientId(patientId);
+                metadata.setSourcePatient(patient);
+            }
+            if (authorPerson != null)
+                metadata.setAuthorPerson(authorPerson);
+            if (authorInstitution != null && !metadata.getAuthorInstitution().contains(authorInstitution))
+                metadata.getAuthorInstitution().add(authorInstitution);
+        }
+
+        if (submissionSet != null)
+        {
+            if (patientId != null)
+                submissionSet.setPatientId(patientId);
+            if (authorPerson != null)
+                submissionSet.setAuthorPerson(authorPerson);
+            if (authorInstitution != null && !submissionSet.getAuthorInstitution().contains(authorInstitution))
+                submissionSet.getAuthorInstitution().add(authorInstitution);
+        }
+    }
+
+    /**
+     * Parse an HL7 timestamp of any precision, with an optional fraction and
+     * time zone offset.
+     */
+    static Date parseTime(String value)
+    {
+        if (StringUtils.isBlank(value))
+            return null;
+
+        String digits = value.trim();
+        String zone = "";
+
+        int offset = Math.max(digits.indexOf('+'), digits.indexOf('-'));
+        if (offset != -1)
+        {
+            zone = digits.substring(offset);
+            digits = digits.substring(0, offset);
+        }
+
+        if (digits.indexOf('.') != -1)
+            digits = digits.substring(0, digits.indexOf('.'));
+
+        String pattern = StringUtils.left("yyyyMMddHHmmss", digits.length());
+        if (digits.length() < 4 || digits.length() > 14 || digits.length() % 2 != 0)
+        {
+            LOGGER.warn("Unable to parse time " + value);
+            return null;
+        }
+
+        try
+        {
+            SimpleDateFormat format = new SimpleDateFormat(zone.length() > 0 ? pattern + "Z" : pattern);
+            format.setLenient(false);
+
+            return format.parse(digits + zone);
+        }
+        catch (ParseException e)
+        {
+            LOGGER.warn("Unable to parse time " + value, e);
+            return null;
+        }
+    }
+}
@@ -31,9 +31,12 @@ package org.nhindirect.xd.common.type;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
+import javax.mail.Part;
 import javax.mail.internet.MimeMessage;
 
 import org.apache.commons.lang.StringUtils;
@@ -60,7 +63,7 @@ public enum DirectDocumentType
         public boolean matches(String data, String contentType, String fileName)
         {
             // FIXME: This is quick proof-of-concept.
-            return StringUtils.contains(data, "POCD_HD000040");
+            return StringUtils.contains(data, "POCD_HD000040") || "ClinicalDocument".equals(getRootElement(data));
         }
         
         /* 
@@ -71,16 +74,9 @@ public enum DirectDocumentType
         @Override
         public void parse(String data, /* INOUT */DirectDocuments.SubmissionSet submissionSet) throws Exception
         {
-            // Parse CCD for patient info
-            
-            // (R) XDS
-            // --
-            
-            // (R2) XDS
-            // --
-            
-            // (O) XDS
-            // --
+            // (R) XDS: patientId
+            // (R2) XDS: author
+            new CcdHeaderReader(null, submissionSet).read(new StringReader(data));
         }
         
         /* 
@@ -91,21 +87,22 @@ public enum DirectDocumentType
         @Override
         public void parse(String data, /* INOUT */DirectDocument2.Metadata metadata) throws Exception
         {
-            // Parse CCD for patient info
-
-            // (R) XDS Source
-            // TODO: Can we get any of the below values from the CCD? And does the presence of a CCD mean XDS source?
-            // TODO: classCode
-            // TODO: confidentialityCode
-            // TODO: creationTime
-            // TODO: formatCode
-            // TODO: healthcareFacilityTypeCode
-            // TODO: languageCode
-            // TODO: practiceSettingCode
-            // TODO: typeCode
-            
-            // (R2) XDS Source
-            // TODO: author (We should be able to get this out of the CCD)
+            new CcdHeaderReader(metadata, null).read(new StringReader(data));
+        }
+
+        /* 
+         * (non-Javadoc)
+         * 
+         * @see org.nhindirect.xd.common.type.DirectDocumentType#parse(java.io.InputStream, org.nhindirect.xd.common.DirectDocument2.Metadata, org.nhindirect.xd.common.DirectDocuments.SubmissionSet)
+         */
+        @Override
+        public void parse(InputStream data, /* INOUT */DirectDocument2.Metadata metadata,
+                /* INOUT */DirectDocuments.SubmissionSet submissionSet) throws Exception
+        {
+            // (R) XDS Source: patientId, sourcePatientInfo, creationTime, confidentialityCode, typeCode
+            // (R2) XDS Source: author, serviceStartTime, serviceStopTime
+            // classCode, formatCode, healthcareFacilityTypeCode and practiceSettingCode are not in the CDA header
+            new CcdHeaderReader(metadata, submissionSet).read(data);
         }
     },
     XDM(null, null)
@@ -119,10 +116,26 @@ public enum DirectDocumentType
         public boolean matches(String data, String contentType, String fileName)
         {
             // FIXME: Bad assumption
-            return StringUtils.contains(fileName, ".zip");
+            if (StringUtils.contains(fileName, ".zip"))
+                return true;
+
+            // ZIP local file header followed by an XDM entry name
+            return StringUtils.startsWith(data, "PK\u0003\u0004") && StringUtils.contains(data, "IHE_XDM");
         }  
     },
-    PDF(null, MimeType.APPLICATION_PDF),
+    PDF(null, MimeType.APPLICATION_PDF)
+    {
+        /*
+         * (non-Javadoc)
+         * 
+         * @see org.nhindirect.xd.common.type.DirectDocumentType#matches(java.lang.String, java.lang.String, java.lang.String)
+         */
+        @Override
+        public boolean matches(String data, String contentType, String fileName)
+        {
+            return super.matches(data, contentType, fileName) || StringUtils.startsWith(data, "%PDF-");
+        }
+    },
     XML(null, MimeType.TEXT_XML),
     HTML(null, MimeType.TEXT_HTML),
     TEXT(null, MimeType.TEXT_PLAIN),
@@ -140,6 +153,13 @@ public enum DirectDocumentType
         }
     };
 
+    /**
+     * Number of leading bytes of a body part examined when detecting its type.
+     */
+    public static final int SNIFF_LENGTH = 8192;
+
+    private static final Charset SNIFF_CHARSET = Charset.forName("ISO-8859-1");
+
     private FormatCodeEnum formatCode;
     private MimeType mimeType;
     
@@ -151,6 +171,8 @@ public enum DirectDocumentType
 
     /**
      * Check to see if the MimeMessage matches the current DirectDocumentType.
+     * Only the first {@link #SNIFF_LENGTH} bytes of the message body are
+     * examined.
      * 
      * @param mimeMessage
      *            The MimeMessage object to compare against the current
@@ -161,11 +183,12 @@ public enum DirectDocumentType
      */
     public boolean matches(MimeMessage mimeMessage) throws MessagingException, IOException
     {
-        return matches((String) mimeMessage.getContent(), mimeMessage.getContentType(), mimeMessage.getFileName());
+        return matches(sniff(mimeMessage), mimeMessage.getContentType(), mimeMessage.getFileName());
     }
 
     /**
-     * Check to see if the BodyPart matches the current DirectDocumentType.
+     * Check to see if the BodyPart matches the current DirectDocumentType. Only
+     * the first {@link #SNIFF_LENGTH} bytes of the part are examined.
      * 
      * @param bodyPart
      *            The BodyPart object to compare against the current
@@ -176,7 +199,7 @@ public enum DirectDocumentType
      */
     public boolean matches(BodyPart bodyPart) throws MessagingException, IOException
     {
-        String s = read(bodyPart);
+        String s = sniff(bodyPart);
 
         return matches(s, bodyPart.getContentType(), bodyPart.getFileName());
     }
@@ -187,7 +210,8 @@ public enum DirectDocumentType
      * enumerations should override this method with custom matching logic.
      * 
      * @param data
-     *            The document contents.
+     *            The document contents, or a leading part of them when
+     *            matching a BodyPart.
      * @param contentType
      *            The document content type.
      * @param fileName
@@ -232,9 +256,29 @@ public enum DirectDocumentType
         return;
     }
 
+    /**
+     * Parse the document for additional metadata and submissionSet values in a
+     * single read. This method should be overridden by parsable document
+     * types. The stream is not closed.
+     * 
+     * @param data
+     *            The document data.
+     * @param metadata
+     *            The metadata object to populate, or null.
+     * @param submissionSet
+     *            The submissionSet object to populate, or null.
+     * @throws Exception
+     */
+    public void parse(InputStream data, /* INOUT */DirectDocument2.Metadata metadata,
+            /* INOUT */DirectDocuments.SubmissionSet submissionSet) throws Exception
+    {
+        return;
+    }
+
     /**
      * Lookup and return the DirectDocumentType which most closely matches the
-     * provided MimeMessage.
+     * provided MimeMessage. Only the first {@link #SNIFF_LENGTH} bytes of the
+     * message body are read, once, and every type is matched against them.
      * 
      * @param mimeMessage
      *            The MimeMessage to match up with a DirectDocumentType.
@@ -244,18 +288,13 @@ public enum DirectDocumentType
      */
     public static DirectDocumentType lookup(MimeMessage mimeMessage) throws MessagingException, IOException
     {
-        for (DirectDocumentType d : values())
-        {
-            if (d.matches(mimeMessage))
-                return d;
-        }
-
-        return UNKNOWN;
+        return lookup(sniff(mimeMessage), mimeMessage.getContentType(), mimeMessage.getFileName());
     }
 
     /**
      * Lookup and return the DirectDocumentType which most closely matches the
-     * provided BodyPart.
+     * provided BodyPart. Only the first {@link #SNIFF_LENGTH} bytes of the part
+     * are read, once, and every type is matched against them.
      * 
      * @param bodyPart
      *            The BodyPart to match up with a directDocumentType.
@@ -264,10 +303,56 @@ public enum DirectDocumentType
      * @throws IOException
      */
     public static DirectDocumentType lookup(BodyPart bodyPart) throws MessagingException, IOException
+    {
+        return lookup(sniff(bodyPart), bodyPart.getContentType(), bodyPart.getFileName());
+    }
+
+    /**
+     * Read the BodyPart once, returning its contents along with the
+     * DirectDocumentType which most closely matches it. The type is detected
+     * from the first {@link #SNIFF_LENGTH} bytes of the contents.
+     * 
+     * @param bodyPart
+     *            The BodyPart to match up with a directDocumentType.
+     * @return the most closely matching DirectDocumentType and the contents of
+     *         the BodyPart.
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public static Detection detect(BodyPart bodyPart) throws MessagingException, IOException
+    {
+        byte[] data = read(bodyPart);
+
+        return new Detection(lookup(data, data.length, bodyPart.getContentType(), bodyPart.getFileName()), data);
+    }
+
+    /**
+     * Lookup and return the DirectDocumentType which most closely matches the
+     * provided content, of which only the first {@link #SNIFF_LENGTH} bytes are
+     * examined.
+     * 
+     * @param data
+     *            The content, or a leading part of it.
+     * @param length
+     *            The number of valid bytes in data.
+     * @param contentType
+     *            The content type.
+     * @param fileName
+     *            The file name.
+     * @return the most closely matching DirectDocumentType.
+     */
+    public static DirectDocumentType lookup(byte[] data, int length, String contentType, String fileName)
+    {
+        String prefix = new String(data, 0, Math.min(length, SNIFF_LENGTH), SNIFF_CHARSET);
+
+        return lookup(prefix, contentType, fileName);
+    }
+
+    private static DirectDocumentType lookup(String data, String contentType, String fileName)
     {
         for (DirectDocumentType d : values())
         {
-            if (d.matches(bodyPart))
+            if (d.matches(data, contentType, fileName))
                 return d;
         }
 
@@ -294,20 +379,120 @@ public enum DirectDocumentType
         return mimeType;
     }
     
-    private static String read(BodyPart bodyPart) throws MessagingException, IOException
+    private static String sniff(Part part) throws MessagingException, IOException
+    {
+        InputStream inputStream = part.getInputStream();
+        byte[] buffer = new byte[SNIFF_LENGTH];
+        int length = 0;
+
+        try
+        {
+            int data = 0;
+            while (length < buffer.length && (data = inputStream.read(buffer, length, buffer.length - length)) != -1)
+            {
+                length += data;
+            }
+        }
+        finally
+        {
+            inputStream.close();
+        }
+
+        return new String(buffer, 0, length, SNIFF_CHARSET);
+    }
+
+    private static byte[] read(BodyPart bodyPart) throws MessagingException, IOException
     {
         InputStream inputStream = bodyPart.getInputStream();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(bodyPart.getSize(), 32));
+
+        try
+        {
+            int data = 0;
+            byte[] buffer = new byte[SNIFF_LENGTH];
+            while ((data = inputStream.read(buffer)) != -1)
+            {
+                outputStream.write(buffer, 0, data);
+            }
+        }
+        finally
+        {
+            inputStream.close();
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Return the local name of the root element of an XML document, skipping
+     * any declaration, processing instructions, comments and doctype.
+     */
+    private static String getRootElement(String data)
+    {
+        if (data == null)
+            return null;
 
-        int data = 0;
-        byte[] buffer = new byte[1024];
-        while ((data = inputStream.read(buffer)) != -1)
+        int index = data.indexOf('<');
+        while (index != -1 && index + 1 < data.length())
         {
-            outputStream.write(buffer, 0, data);
+            char next = data.charAt(index + 1);
+
+            if (next == '?')
+                index = data.indexOf("?>", index);
+            else if (data.startsWith("<!--", index))
+                index = data.indexOf("-->", index);
+            else if (next == '!')
+                index = data.indexOf('>', index);
+            else
+            {
+                int end = index + 1;
+                while (end < data.length() && " \t\r\n/>".indexOf(data.charAt(end)) == -1)
+                    end++;
+
+                String name = data.substring(index + 1, end);
+                return name.substring(name.indexOf(':') + 1);
+            }
+
+            if (index != -1)
+                index = data.indexOf('<', index);
         }
 
-        inputStream.close();
+        return null;
+    }
 
-        return new String(outputStream.toByteArray());
+    /**
+     * The result of detecting the type of a BodyPart, holding the contents
+     * read during detection so that they can be reused.
+     */
+    public static class Detection
+    {
+        private final DirectDocumentType type;
+        private final byte[] data;
+
+        private Detection(DirectDocumentType type, byte[] data)
+        {
+            this.type = type;
+            this.data = data;
+        }
+
+        /**
+         * Return the detected document type.
+         * 
+         * @return the detected document type.
+         */
+        public DirectDocumentType getType()
+        {
+            return type;
+        }
+
+        /**
+         * Return the contents of the BodyPart.
+         * 
+         * @return the contents of the BodyPart.
+         */
+        public byte[] getData()
+        {
+            return data;
+        }
     }
 }
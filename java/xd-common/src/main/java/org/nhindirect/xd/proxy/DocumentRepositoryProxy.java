@@ -29,19 +29,12 @@
 package org.nhindirect.xd.proxy;
 
 import ihe.iti.xds_b._2007.DocumentRepositoryPortType;
-import ihe.iti.xds_b._2007.DocumentRepositoryService;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 import ihe.iti.xds_b._2007.RetrieveDocumentSetRequestType;
 import ihe.iti.xds_b._2007.RetrieveDocumentSetResponseType;
 
-import java.net.URL;
-
 import javax.naming.OperationNotSupportedException;
-import javax.xml.namespace.QName;
-import javax.xml.ws.BindingProvider;
 import javax.xml.ws.handler.HandlerResolver;
-import javax.xml.ws.soap.MTOMFeature;
-import javax.xml.ws.soap.SOAPBinding;
 
 import oasis.names.tc.ebxml_regrep.xsd.rs._3.RegistryResponseType;
 
@@ -52,15 +45,17 @@ import org.apache.commons.logging.LogFactory;
  * Wrapper class for handling calls to the Document Repository WS (XD*). The
  * initialization uses a WSDL located within the JAR for convenience. The
  * constructor requires and endpoint and an optional HandlerResolver.
+ * <p>
+ * Ports are borrowed from a {@link DocumentRepositoryProxyFactory} for each
+ * call, so a proxy is cheap to create and may be used by several threads.
  * 
  * @author beau
  */
 public class DocumentRepositoryProxy
 {
-    private String endpoint = null;
-    private HandlerResolver handlerResolver = null;
-
-    private DocumentRepositoryPortType proxy;
+    private final DocumentRepositoryProxyFactory factory;
+    private final String endpoint;
+    private final HandlerResolver handlerResolver;
 
     private static final Log LOGGER = LogFactory.getFactory().getInstance(DocumentRepositoryProxy.class);
 
@@ -72,8 +67,7 @@ public class DocumentRepositoryProxy
      */
     public DocumentRepositoryProxy(String endpoint)
     {
-        this.endpoint = endpoint;
-        initProxy();
+        this(endpoint, null);
     }
 
     /**
@@ -86,36 +80,25 @@ public class DocumentRepositoryProxy
      */
     public DocumentRepositoryProxy(String endpoint, HandlerResolver handlerResolver)
     {
-        this(endpoint);
-        this.handlerResolver = handlerResolver;
-        initProxy();
+        this(DocumentRepositoryProxyFactory.getDefaultInstance(), endpoint, handlerResolver);
     }
 
-    private void initProxy()
+    /**
+     * Construct a new proxy whose ports come from the given factory.
+     * 
+     * @param factory
+     *            The factory providing ports.
+     * @param endpoint
+     *            The endpoint of the service.
+     * @param handlerResolver
+     *            The HandlerResolver to attach, or null.
+     */
+    protected DocumentRepositoryProxy(DocumentRepositoryProxyFactory factory, String endpoint,
+            HandlerResolver handlerResolver)
     {
-        try
-        {
-            URL url = DocumentRepositoryProxy.class.getClassLoader().getResource(
-                    "XDS.b_DocumentRepositoryWSDLSynchMTOM.wsdl");
-
-            QName qname = new QName("urn:ihe:iti:xds-b:2007", "DocumentRepository_Service");
-            DocumentRepositoryService service = new DocumentRepositoryService(url, qname);
-
-            if (handlerResolver != null)
-                service.setHandlerResolver(handlerResolver);
-
-            proxy = service.getDocumentRepositoryPortSoap12(new MTOMFeature(true, 1));
-
-            BindingProvider bp = (BindingProvider) proxy;
-            SOAPBinding binding = (SOAPBinding) bp.getBinding();
-            binding.setMTOMEnabled(true);
-
-            bp.getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpoint);
-        }
-        catch (Exception e)
-        {
-            LOGGER.error("Error initializing proxy.", e);
-        }
+        this.factory = factory;
+        this.endpoint = endpoint;
+        this.handlerResolver = handlerResolver;
     }
 
     /**
@@ -129,11 +112,17 @@ public class DocumentRepositoryProxy
      */
     public RegistryResponseType provideAndRegisterDocumentSetB(ProvideAndRegisterDocumentSetRequestType body)
     {
-        if (proxy == null)
-            initProxy();
+        DocumentRepositoryPortType port = factory.borrowPort(endpoint, handlerResolver);
 
-        LOGGER.debug("Sending to endpoint: " + endpoint);       
-        return proxy.documentRepositoryProvideAndRegisterDocumentSetB(body);
+        try
+        {
+            LOGGER.debug("Sending to endpoint: " + endpoint);
+            return port.documentRepositoryProvideAndRegisterDocumentSetB(body);
+        }
+        finally
+        {
+            factory.returnPort(endpoint, handlerResolver, port);
+        }
     }
 
     /**
@@ -147,9 +136,6 @@ public class DocumentRepositoryProxy
      */
     public RetrieveDocumentSetResponseType retrieveDocumentSet(RetrieveDocumentSetRequestType body) throws Exception
     {
-        if (proxy == null)
-            initProxy();
-
         throw new OperationNotSupportedException("Not implemented.");
     }
-}
\ No newline at end of file
+}
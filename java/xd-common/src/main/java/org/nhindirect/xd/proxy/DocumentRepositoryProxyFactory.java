@@ -0,0 +1,580 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.proxy;
+
+import ihe.iti.xds_b._2007.DocumentRepositoryPortType;
+import ihe.iti.xds_b._2007.DocumentRepositoryService;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.Handler;
+import javax.xml.ws.handler.HandlerResolver;
+import javax.xml.ws.handler.PortInfo;
+import javax.xml.ws.soap.MTOMFeature;
+import javax.xml.ws.soap.SOAPBinding;
+
+/**
+ * Creates {@link DocumentRepositoryProxy} objects which share pooled ports.
+ * The WSDL is parsed once per factory, and ports are pooled per endpoint and
+ * HandlerResolver. A port is used by one call at a time: it is borrowed from
+ * its pool for the duration of a call and then returned.
+ * <p>
+ * Each port is configured with connection and read timeouts and HTTP
+ * chunking. Connection reuse is left to the JDK HTTP client, which keeps
+ * connections alive unless the http.keepAlive system property is false, and
+ * keeps at most http.maxConnections idle connections per host (5 by default).
+ * <p>
+ * Every port gets its own handler chain from the HandlerResolver. Pools are
+ * keyed by HandlerResolver and kept for the life of the factory, so resolvers
+ * should be long-lived: a resolver created per call, which is not equal to the
+ * previous ones, adds a pool on every call. Resolvers which are equal, such as
+ * DirectSOAPHandlerResolver objects with the same message capture, share pools.
+ */
+public class DocumentRepositoryProxyFactory
+{
+    /**
+     * Location of the WSDL on the classpath.
+     */
+    public static final String WSDL_LOCATION = "XDS.b_DocumentRepositoryWSDLSynchMTOM.wsdl";
+
+    public static final QName SERVICE_NAME = new QName("urn:ihe:iti:xds-b:2007", "DocumentRepository_Service");
+    public static final QName PORT_NAME = new QName("urn:ihe:iti:xds-b:2007", "DocumentRepository_Port_Soap12");
+
+    /**
+     * Request context properties of the JAX-WS reference implementation, for
+     * both the standalone and the JDK internal packaging.
+     */
+    private static final String[] CONNECT_TIMEOUT_PROPERTIES = { "com.sun.xml.ws.connect.timeout",
+            "com.sun.xml.internal.ws.connect.timeout" };
+    private static final String[] REQUEST_TIMEOUT_PROPERTIES = { "com.sun.xml.ws.request.timeout",
+            "com.sun.xml.internal.ws.request.timeout" };
+    private static final String[] CHUNK_SIZE_PROPERTIES = {
+            "com.sun.xml.ws.transport.http.client.streaming.chunk.size",
+            "com.sun.xml.internal.ws.transport.http.client.streaming.chunk.size" };
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    public static final int DEFAULT_READ_TIMEOUT = 300000;
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+    public static final int DEFAULT_MAX_IDLE_PORTS = 8;
+
+    private static final DocumentRepositoryProxyFactory DEFAULT_INSTANCE = new DocumentRepositoryProxyFactory();
+
+    private volatile DocumentRepositoryService service;
+
+    /**
+     * Pools of ports without handlers, keyed by endpoint.
+     */
+    private final Map<String, PortPool> pools = new ConcurrentHashMap<String, PortPool>();
+
+    /**
+     * Pools of ports with handlers, keyed by HandlerResolver and endpoint.
+     */
+    private final Map<HandlerResolver, Map<String, PortPool>> resolverPools = new ConcurrentHashMap<HandlerResolver, Map<String, PortPool>>();
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int maxIdlePorts = DEFAULT_MAX_IDLE_PORTS;
+
+    private final AtomicInteger servicesCreated = new AtomicInteger();
+
+    /**
+     * Return the factory used by the DocumentRepositoryProxy constructors.
+     * 
+     * @return the default factory.
+     */
+    public static DocumentRepositoryProxyFactory getDefaultInstance()
+    {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * Create a proxy for the given endpoint.
+     * 
+     * @param endpoint
+     *            The endpoint of the service.
+     * @return a new proxy.
+     */
+    public DocumentRepositoryProxy createProxy(String endpoint)
+    {
+        return createProxy(endpoint, null);
+    }
+
+    /**
+     * Create a proxy for the given endpoint whose ports use the handler chain
+     * of the given resolver.
+     * 
+     * @param endpoint
+     *            The endpoint of the service.
+     * @param handlerResolver
+     *            The HandlerResolver to attach, or null.
+     * @return a new proxy.
+     */
+    public DocumentRepositoryProxy createProxy(String endpoint, HandlerResolver handlerResolver)
+    {
+        return new DocumentRepositoryProxy(this, endpoint, handlerResolver);
+    }
+
+    /**
+     * Set the connection timeout applied to new ports.
+     * 
+     * @param connectTimeout
+     *            The timeout in milliseconds, or 0 for none.
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the read timeout applied to new ports.
+     * 
+     * @param readTimeout
+     *            The timeout in milliseconds, or 0 for none.
+     */
+    public void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /**
+     * Set the HTTP chunk size applied to new ports.
+     * 
+     * @param chunkSize
+     *            The chunk size in bytes, or 0 to send requests unchunked.
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Set the number of idle ports kept per endpoint and HandlerResolver.
+     * 
+     * @param maxIdlePorts
+     *            The maximum number of idle ports.
+     */
+    public void setMaxIdlePorts(int maxIdlePorts)
+    {
+        this.maxIdlePorts = maxIdlePorts;
+    }
+
+    public int getMaxIdlePorts()
+    {
+        return maxIdlePorts;
+    }
+
+    /**
+     * @return the number of times the WSDL was parsed.
+     */
+    public int getServicesCreated()
+    {
+        return servicesCreated.get();
+    }
+
+    /**
+     * Return the metrics of all pools.
+     * 
+     * @return the sum of the metrics of every pool.
+     */
+    public PoolMetrics getMetrics()
+    {
+        List<PortPool> all = new ArrayList<PortPool>(pools.values());
+        synchronized (resolverPools)
+        {
+            for (Map<String, PortPool> map : resolverPools.values())
+            {
+                all.addAll(map.values());
+            }
+        }
+
+        PoolMetrics metrics = new PoolMetrics(0, 0, 0, 0, 0);
+        for (PortPool pool : all)
+        {
+            metrics = metrics.add(pool.getMetrics());
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Return the metrics of one pool.
+     * 
+     * @param endpoint
+     *            The endpoint of the service.
+     * @param handlerResolver
+     *            The HandlerResolver, or null.
+     * @return the metrics of the pool, or null if there is no such pool.
+     */
+    public PoolMetrics getMetrics(String endpoint, HandlerResolver handlerResolver)
+    {
+        PortPool pool = getPool(endpoint, handlerResolver, false);
+        return pool != null ? pool.getMetrics() : null;
+    }
+
+    /**
+     * Borrow a port for one call.
+     * 
+     * @param endpoint
+     *            The endpoint of the service.
+     * @param handlerResolver
+     *            The HandlerResolver, or null.
+     * @return a port which the caller must return with
+     *         {@link #returnPort(String, HandlerResolver, DocumentRepositoryPortType)}.
+     */
+    protected DocumentRepositoryPortType borrowPort(String endpoint, HandlerResolver handlerResolver)
+    {
+        return getPool(endpoint, handlerResolver, true).borrow();
+    }
+
+    /**
+     * Return a port borrowed with
+     * {@link #borrowPort(String, HandlerResolver)}.
+     * 
+     * @param endpoint
+     *            The endpoint of the service.
+     * @param handlerResolver
+     *            The HandlerResolver, or null.
+     * @param port
+     *            The port.
+     */
+    protected void returnPort(String endpoint, HandlerResolver handlerResolver, DocumentRepositoryPortType port)
+    {
+        getPool(endpoint, handlerResolver, true).release(port);
+    }
+
+    private PortPool getPool(String endpoint, HandlerResolver handlerResolver, boolean create)
+    {
+        Map<String, PortPool> map;
+
+        if (handlerResolver == null)
+        {
+            map = pools;
+        }
+        else
+        {
+            synchronized (resolverPools)
+            {
+                map = resolverPools.get(handlerResolver);
+                if (map == null)
+                {
+                    if (!create)
+                    {
+                        return null;
+                    }
+
+                    map = new ConcurrentHashMap<String, PortPool>();
+                    resolverPools.put(handlerResolver, map);
+                }
+            }
+        }
+
+        PortPool pool = map.get(endpoint);
+        if (pool == null && create)
+        {
+            synchronized (map)
+            {
+                pool = map.get(endpoint);
+                if (pool == null)
+                {
+                    pool = new PortPool(endpoint, handlerResolver);
+                    map.put(endpoint, pool);
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private List<Handler> getHandlerChain(HandlerResolver handlerResolver)
+    {
+        PortInfo portInfo = new PortInfo()
+        {
+            public QName getServiceName()
+            {
+                return SERVICE_NAME;
+            }
+
+            public QName getPortName()
+            {
+                return PORT_NAME;
+            }
+
+            public String getBindingID()
+            {
+                return SOAPBinding.SOAP12HTTP_MTOM_BINDING;
+            }
+        };
+
+        return handlerResolver.getHandlerChain(portInfo);
+    }
+
+    private DocumentRepositoryService getService()
+    {
+        DocumentRepositoryService result = service;
+
+        if (result == null)
+        {
+            synchronized (this)
+            {
+                result = service;
+                if (result == null)
+                {
+                    URL url = DocumentRepositoryProxyFactory.class.getClassLoader().getResource(WSDL_LOCATION);
+                    result = new DocumentRepositoryService(url, SERVICE_NAME);
+                    servicesCreated.incrementAndGet();
+                    service = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Create and configure a port, with a handler chain of its own.
+     */
+    @SuppressWarnings("rawtypes")
+    private DocumentRepositoryPortType createPort(String endpoint, HandlerResolver handlerResolver)
+    {
+        DocumentRepositoryService service = getService();
+        DocumentRepositoryPortType port;
+
+        synchronized (service)
+        {
+            port = service.getDocumentRepositoryPortSoap12(new MTOMFeature(true, 1));
+        }
+
+        BindingProvider bp = (BindingProvider) port;
+        SOAPBinding binding = (SOAPBinding) bp.getBinding();
+        binding.setMTOMEnabled(true);
+
+        if (handlerResolver != null)
+        {
+            binding.setHandlerChain(new ArrayList<Handler>(getHandlerChain(handlerResolver)));
+        }
+
+        Map<String, Object> requestContext = bp.getRequestContext();
+        requestContext.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpoint);
+
+        for (String property : CONNECT_TIMEOUT_PROPERTIES)
+        {
+            requestContext.put(property, Integer.valueOf(connectTimeout));
+        }
+        for (String property : REQUEST_TIMEOUT_PROPERTIES)
+        {
+            requestContext.put(property, Integer.valueOf(readTimeout));
+        }
+        if (chunkSize > 0)
+        {
+            for (String property : CHUNK_SIZE_PROPERTIES)
+            {
+                requestContext.put(property, Integer.valueOf(chunkSize));
+            }
+        }
+
+        return port;
+    }
+
+    /**
+     * Idle ports of one endpoint and HandlerResolver.
+     */
+    private class PortPool
+    {
+        private final String endpoint;
+        private final HandlerResolver handlerResolver;
+        private final ConcurrentLinkedQueue<DocumentRepositoryPortType> idle = new ConcurrentLinkedQueue<DocumentRepositoryPortType>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong borrowed = new AtomicLong();
+        private final AtomicLong discarded = new AtomicLong();
+
+        public PortPool(String endpoint, HandlerResolver handlerResolver)
+        {
+            this.endpoint = endpoint;
+            this.handlerResolver = handlerResolver;
+        }
+
+        public DocumentRepositoryPortType borrow()
+        {
+            DocumentRepositoryPortType port = idle.poll();
+
+            if (port != null)
+            {
+                idleCount.decrementAndGet();
+            }
+            else
+            {
+                port = createPort(endpoint, handlerResolver);
+                created.incrementAndGet();
+            }
+
+            borrowed.incrementAndGet();
+            active.incrementAndGet();
+
+            return port;
+        }
+
+        public void release(DocumentRepositoryPortType port)
+        {
+            active.decrementAndGet();
+
+            if (idleCount.incrementAndGet() <= maxIdlePorts)
+            {
+                idle.offer(port);
+            }
+            else
+            {
+                idleCount.decrementAndGet();
+                discarded.incrementAndGet();
+            }
+        }
+
+        public PoolMetrics getMetrics()
+        {
+            return new PoolMetrics(created.get(), borrowed.get(), discarded.get(), idleCount.get(), active.get());
+        }
+    }
+
+    /**
+     * Snapshot of the activity of one or more port pools.
+     */
+    public static class PoolMetrics
+    {
+        private final long created;
+        private final long borrowed;
+        private final long discarded;
+        private final int idle;
+        private final int active;
+
+        public PoolMetrics(long created, long borrowed, long discarded, int idle, int active)
+        {
+            this.created = created;
+            this.borrowed = borrowed;
+            this.discarded = discarded;
+            this.idle = idle;
+            this.active = active;
+        }
+
+        /**
+         * @return the number of ports created.
+         */
+        public long getCreated()
+        {
+            return created;
+        }
+
+        /**
+         * @return the number of times a port was borrowed.
+         */
+        public long getBorrowed()
+        {
+            return borrowed;
+        }
+
+        /**
+         * @return the number of times a borrowed port was reused from the
+         *         pool rather than created.
+         */
+        public long getReused()
+        {
+            return borrowed - created;
+        }
+
+        /**
+         * @return the number of returned ports dropped because the pool was
+         *         full.
+         */
+        public long getDiscarded()
+        {
+            return discarded;
+        }
+
+        /**
+         * @return the number of ports waiting in the pool.
+         */
+        public int getIdle()
+        {
+            return idle;
+        }
+
+        /**
+         * @return the number of ports currently borrowed.
+         */
+        public int getActive()
+        {
+            return active;
+        }
+
+        private PoolMetrics add(PoolMetrics other)
+        {
+            return new PoolMetrics(created + other.created, borrowed + other.borrowed, discarded + other.discarded,
+                    idle + other.idle, active + other.active);
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString()
+        {
+            return "PoolMetrics [created=" + created + ", borrowed=" + borrowed + ", discarded=" + discarded
+                    + ", idle=" + idle + ", active=" + active + "]";
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable copy of a SOAP envelope taken by {@link SOAPMessageCapture}.
+ * Attachments are not copied, only described.
+ */
+public final class CapturedSOAPMessage
+{
+    private final long timestamp;
+    private final String endpoint;
+    private final boolean outbound;
+    private final String encoding;
+    private final byte[] envelope;
+    private final boolean truncated;
+    private final List<String> attachments;
+
+    /**
+     * Constructor.
+     * 
+     * @param timestamp
+     *            The time the message was captured.
+     * @param endpoint
+     *            The endpoint the message was sent to or received by, or null.
+     * @param outbound
+     *            Whether the message is outbound.
+     * @param encoding
+     *            The encoding of the envelope.
+     * @param envelope
+     *            The serialized envelope, possibly truncated.
+     * @param truncated
+     *            Whether the envelope was truncated.
+     * @param attachments
+     *            A description of each attachment.
+     */
+    public CapturedSOAPMessage(long timestamp, String endpoint, boolean outbound, String encoding, byte[] envelope,
+            boolean truncated, List<String> attachments)
+    {
+        this.timestamp = timestamp;
+        this.endpoint = endpoint;
+        this.outbound = outbound;
+        this.encoding = encoding;
+        this.envelope = envelope;
+        this.truncated = truncated;
+        this.attachments = Collections.unmodifiableList(attachments);
+    }
+
+    /**
+     * @return the time the message was captured, in milliseconds.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return the endpoint the message was sent to or received by, or null.
+     */
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
+    /**
+     * @return true if the message is outbound.
+     */
+    public boolean isOutbound()
+    {
+        return outbound;
+    }
+
+    /**
+     * @return the encoding of the envelope.
+     */
+    public String getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * @return the number of bytes of the envelope which were captured.
+     */
+    public int getSize()
+    {
+        return envelope.length;
+    }
+
+    /**
+     * @return true if the envelope exceeded the capture limit.
+     */
+    public boolean isTruncated()
+    {
+        return truncated;
+    }
+
+    /**
+     * @return a description (content ID and type) of each attachment.
+     */
+    public List<String> getAttachments()
+    {
+        return attachments;
+    }
+
+    /**
+     * Return the captured envelope as a String.
+     * 
+     * @return the captured envelope.
+     */
+    public String getEnvelope()
+    {
+        try
+        {
+            return new String(envelope, encoding);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            return new String(envelope);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(outbound ? "Outbound" : "Inbound").append(" SOAP message");
+        if (endpoint != null)
+        {
+            sb.append(" (").append(endpoint).append(")");
+        }
+        sb.append(", ").append(envelope.length).append(" bytes");
+        if (truncated)
+        {
+            sb.append(" (truncated)");
+        }
+        for (String attachment : attachments)
+        {
+            sb.append("\n > attachment ").append(attachment);
+        }
+        sb.append("\n").append(getEnvelope());
+
+        return sb.toString();
+    }
+}
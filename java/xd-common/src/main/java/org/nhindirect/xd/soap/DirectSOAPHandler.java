@@ -28,11 +28,10 @@
 
 package org.nhindirect.xd.soap;
 
-import java.io.ByteArrayOutputStream;
 import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
@@ -55,33 +54,71 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nhindirect.xd.soap.type.MetadataLevelEnum;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * This class handles the SOAP-Requests before they reach the Web Service
  * Operation. It is possible to read and manipulate the SOAP-Message.
+ * <p>
+ * The handler keeps no per-message state: header values are passed through
+ * the {@link SOAPHeaderContext}, so a single instance may serve any number of
+ * threads.
  * 
  * @author Siegfried Bolz
  */
 public class DirectSOAPHandler implements SOAPHandler<SOAPMessageContext>
 {
-    protected String endpoint;
-    protected String messageId;
-    protected String relatesTo;
-    protected String action;
-    protected String to;
-    protected String remoteHost;
-    protected String thisHost;
-    protected String pid;
-    protected String from;
-
-    protected String directFrom;
-    protected String directTo;
-    protected String directMetadataLevel;
+    private volatile SOAPMessageCapture messageCapture;
+
+    private final SOAPHeaderReader headerReader = new SOAPHeaderReader();
 
     private static final Log LOGGER = LogFactory.getFactory().getInstance(DirectSOAPHandler.class);
 
+    private static final Set<QName> HEADERS;
+
+    static
+    {
+        Set<QName> set = new HashSet<QName>();
+
+        set.add(new QName("http://www.w3.org/2005/08/addressing", "Action"));
+        set.add(new QName("http://www.w3.org/2005/08/addressing", "MessageID"));
+        set.add(new QName("http://www.w3.org/2005/08/addressing", "To"));
+        set.add(new QName("http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd", "Security"));
+
+        HEADERS = Collections.unmodifiableSet(set);
+    }
+
+    private static final String PID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+    /**
+     * Create a handler which does not capture messages.
+     */
+    public DirectSOAPHandler()
+    {
+        this(null);
+    }
+
+    /**
+     * Create a handler which offers each message to the given capture.
+     * 
+     * @param messageCapture
+     *            The message capture, or null to capture nothing.
+     */
+    public DirectSOAPHandler(SOAPMessageCapture messageCapture)
+    {
+        this.messageCapture = messageCapture;
+    }
+
+    /**
+     * Set the capture to which each message is offered.
+     * 
+     * @param messageCapture
+     *            The message capture, or null to capture nothing.
+     */
+    public void setMessageCapture(SOAPMessageCapture messageCapture)
+    {
+        this.messageCapture = messageCapture;
+    }
+
     /**
      * Is called after constructing the handler and before executing any othe
      * method.
@@ -99,6 +136,12 @@ public class DirectSOAPHandler implements SOAPHandler<SOAPMessageContext>
     @Override
     public void close(MessageContext messageContext)
     {
+        // A server side exchange is complete once closed, so release the
+        // header data of its thread before the thread serves another request.
+        if (messageContext != null && messageContext.get(MessageContext.SERVLET_REQUEST) != null)
+        {
+            SOAPHeaderContext.clear();
+        }
     }
 
     /**
@@ -132,198 +175,110 @@ public class DirectSOAPHandler implements SOAPHandler<SOAPMessageContext>
             {
                 LOGGER.info("Handling an outbound message");
                 
-                getHeaderData();
+                SOAPHeaderData headerData = getHeaderData(context);
 
                 SOAPMessage msg = ((SOAPMessageContext) context).getMessage();
-                dumpSOAPMessage(msg);
                 SOAPPart sp = msg.getSOAPPart();
 
                 // edit Envelope
                 SOAPEnvelope env = sp.getEnvelope();
-                SOAPHeader sh = env.addHeader();
+                SOAPHeader sh = env.getHeader();
+                if (sh == null)
+                {
+                    sh = env.addHeader();
+                }
 
                 @SuppressWarnings("unused")
                 SOAPBody sb = env.getBody();
 
-                if (action != null)
+                if (headerData.getAction() != null)
                 {
                     QName qname = new QName("http://www.w3.org/2005/08/addressing", "Action");
                     SOAPHeaderElement saction = sh.addHeaderElement(qname);
                     boolean must = true;
 
                     saction.setMustUnderstand(must);
-                    saction.setValue(action);
+                    saction.setValue(headerData.getAction());
                 }
-                if (relatesTo != null)
+                if (headerData.getRelatesTo() != null)
                 {
                     QName qname = new QName("http://www.w3.org/2005/08/addressing", "RelatesTo");
                     SOAPHeaderElement relates = sh.addHeaderElement(qname);
-                    relates.setValue(relatesTo);
+                    relates.setValue(headerData.getRelatesTo());
                 }
-                if (from != null)
+                if (headerData.getFrom() != null)
                 {
                     QName qname = new QName("http://www.w3.org/2005/08/addressing", "From");
                     QName child = new QName("http://www.w3.org/2005/08/addressing", "Address");
                     SOAPHeaderElement efrom = sh.addHeaderElement(qname);
                     SOAPElement address = efrom.addChildElement(child);
-                    address.setValue(from);
+                    address.setValue(headerData.getFrom());
                 }
-                if (messageId != null)
+                if (headerData.getMessageId() != null)
                 {
                     QName qname = new QName("http://www.w3.org/2005/08/addressing", "MessageID");
                     SOAPHeaderElement message = sh.addHeaderElement(qname);
-                    message.setValue(messageId);
+                    message.setValue(headerData.getMessageId());
                 }
-                if (to != null)
+                if (headerData.getTo() != null)
                 {
                     QName qname = new QName("http://www.w3.org/2005/08/addressing", "To");
                     SOAPHeaderElement sto = sh.addHeaderElement(qname);
-                    sto.setValue(to);
+                    sto.setValue(headerData.getTo());
                 }
 
-                SOAPHeaderElement directHeader = sh.addHeaderElement(new QName("urn:direct:addressing", "addressBlock"));
-                directHeader.setPrefix("direct");
+                SOAPHeaderElement directHeader = sh.addHeaderElement(new QName(SOAPHeaderReader.DIRECT_NAMESPACE,
+                        "addressBlock", "direct"));
                 directHeader.setRole("urn:direct:addressing:destination");
                 directHeader.setRelay(true);
 
-                if (StringUtils.isNotBlank(directFrom))
+                if (StringUtils.isNotBlank(headerData.getDirectFrom()))
                 {
-                    SOAPElement directFromElement = directHeader.addChildElement(new QName("from"));
-                    directFromElement.setPrefix("direct");
-                    URI uri = new URI(directFrom);
+                    SOAPElement directFromElement = directHeader.addChildElement(SOAPHeaderReader.DIRECT_FROM);
+                    URI uri = new URI(headerData.getDirectFrom());
                     directFromElement.setValue((new URI("mailto", uri.getSchemeSpecificPart(), null)).toString());
                 }
 
-                if (StringUtils.isNotBlank(directTo))
+                if (StringUtils.isNotBlank(headerData.getDirectTo()))
                 {
-                    SOAPElement directToElement = directHeader.addChildElement(new QName("to"));
-                    directToElement.setPrefix("direct");
-                    URI uri = new URI(directTo);
+                    SOAPElement directToElement = directHeader.addChildElement(SOAPHeaderReader.DIRECT_TO);
+                    URI uri = new URI(headerData.getDirectTo());
                     directToElement.setValue((new URI("mailto", uri.getSchemeSpecificPart(), null)).toString());
                 }
 
-                SOAPElement directMetadataLevelElement = directHeader.addChildElement(new QName("metadata-level"));
-                directMetadataLevelElement.setPrefix("direct");
+                SOAPElement directMetadataLevelElement = directHeader.addChildElement(SOAPHeaderReader.DIRECT_METADATA_LEVEL);
                 directMetadataLevelElement.setValue(MetadataLevelEnum.MINIMAL.getLevel());
+
+                capture(context);
             }
             else
             {
                 LOGGER.info("Handling an inbound message");
-                
-                messageId = null;
-                action = null;
-                endpoint = null;
-                from = null;
-                to = null;
-                remoteHost = null;
-                thisHost = null;
-                pid = null;
-                relatesTo = null;
-
-                directFrom = null;
-                directTo = null;
-                directMetadataLevel = null;
 
                 SOAPMessage msg = ((SOAPMessageContext) context).getMessage();
-                dumpSOAPMessage(msg);
+                capture(context);
+
+                SOAPHeaderData.Builder builder = new SOAPHeaderData.Builder();
 
                 ServletRequest sr = (ServletRequest) context.get(MessageContext.SERVLET_REQUEST);
                 if (sr != null)
                 {
-                    remoteHost = sr.getRemoteHost();
-                    thisHost = sr.getServerName();
-                    pid = getPID();
+                    builder.setRemoteHost(sr.getRemoteHost());
+                    builder.setThisHost(sr.getServerName());
+                    builder.setPid(getPID());
                 }
 
-                SOAPPart sp = msg.getSOAPPart();
-
-                // edit Envelope
-                SOAPEnvelope env = sp.getEnvelope();
-                SOAPHeader sh = env.getHeader();
-
-                @SuppressWarnings("unchecked")
-                Iterator<Node> it = sh.extractAllHeaderElements();
-                while (it.hasNext())
+                SOAPHeader sh = msg.getSOAPHeader();
+                if (sh != null)
                 {
-                    Node header = it.next();
-                    LOGGER.info(header.getNodeName());
-
-                    if (StringUtils.contains(header.toString(), "MessageID"))
-                    {
-                        messageId = header.getTextContent();
-                        LOGGER.info(messageId);
-                    }
-                    else if (StringUtils.contains(header.toString(), "Action"))
-                    {
-                        action = header.getTextContent();
-                        LOGGER.info(action);
-                    }
-                    else if (StringUtils.contains(header.toString(), "RelatesTo"))
-                    {
-                        relatesTo = header.getTextContent();
-                        LOGGER.info(relatesTo);
-                    }
-                    else if (StringUtils.contains(header.toString(), "ReplyTo"))
-                    {
-                        NodeList reps = header.getChildNodes();
-                        for (int i = 0; i < reps.getLength(); i++)
-                        {
-                            Node address = reps.item(i);
-                            LOGGER.info(address.getNodeName());
-                            if (StringUtils.contains(address.getNodeName(), "Address"))
-                            {
-                                endpoint = address.getTextContent();
-                                LOGGER.info(endpoint);
-                            }
-                        }
-                    }
-                    else if (StringUtils.contains(header.toString(), "From"))
-                    {
-                        NodeList reps = header.getChildNodes();
-                        for (int i = 0; i < reps.getLength(); i++)
-                        {
-                            Node address = reps.item(i);
-                            LOGGER.info(address.getNodeName());
-                            if (StringUtils.contains(address.getNodeName(), "Address"))
-                            {
-                                from = address.getTextContent();
-                                LOGGER.info(from);
-                            }
-                        }
-                    }
-                    else if (StringUtils.contains(header.toString(), "To")) // must be after ReplyTo
-                    {
-                        to = header.getTextContent();
-                        LOGGER.info(to);
-                    }
-                    else if (StringUtils.contains(header.toString(), "addressBlock"))
-                    {
-                        NodeList childNodes = header.getChildNodes();
-
-                        for (int i = 0; i < childNodes.getLength(); i++)
-                        {
-                            Node node = childNodes.item(i);
-
-                            if (StringUtils.contains(node.getNodeName(), "from"))
-                            {
-                                directFrom = node.getTextContent();
-                                LOGGER.info(directFrom);
-                            }
-                            else if (StringUtils.contains(node.getNodeName(), "to"))
-                            {
-                                directTo = node.getTextContent();
-                                LOGGER.info(directTo);
-                            }
-                            else if (StringUtils.contains(node.getNodeName(), "metadata-level"))
-                            {
-                                directMetadataLevel = node.getTextContent();
-                                LOGGER.info(directMetadataLevel);
-                            }
-                        }
-                    }
+                    headerReader.read(sh.extractAllHeaderElements(), builder);
                 }
 
-                setHeaderData();
+                SOAPHeaderData headerData = builder.build();
+                if (LOGGER.isDebugEnabled())
+                    LOGGER.debug("Inbound " + headerData);
+
+                setHeaderData(context, headerData);
             }
         }
         catch (Exception e)
@@ -343,14 +298,7 @@ public class DirectSOAPHandler implements SOAPHandler<SOAPMessageContext>
     @Override
     public Set<QName> getHeaders()
     {
-        Set<QName> set = new HashSet<QName>();
-
-        set.add(new QName("http://www.w3.org/2005/08/addressing", "Action"));
-        set.add(new QName("http://www.w3.org/2005/08/addressing", "MessageID"));
-        set.add(new QName("http://www.w3.org/2005/08/addressing", "To"));
-        set.add(new QName("http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd", "Security"));
-
-        return set;
+        return HEADERS;
     }
 
     /**
@@ -363,46 +311,22 @@ public class DirectSOAPHandler implements SOAPHandler<SOAPMessageContext>
      */
     protected String getMessageEncoding(SOAPMessage msg) throws SOAPException
     {
-        String encoding = "utf-8";
-        if (msg.getProperty(SOAPMessage.CHARACTER_SET_ENCODING) != null)
-        {
-            encoding = msg.getProperty(SOAPMessage.CHARACTER_SET_ENCODING).toString();
-        }
-        return encoding;
+        return SOAPMessageCapture.getMessageEncoding(msg);
     }
 
     /**
-     * Dump SOAP Message to console.
+     * Offer the message to the message capture, if there is one. Otherwise
+     * the message body and attachments are not touched.
      * 
-     * @param msg
-     *            The SOAPMessage object.
+     * @param context
+     *            The SOAPMessageContext of the message.
      */
-    protected void dumpSOAPMessage(SOAPMessage msg)
+    protected void capture(SOAPMessageContext context)
     {
-        if (msg == null)
+        SOAPMessageCapture capture = messageCapture;
+        if (capture != null)
         {
-            LOGGER.info("SOAP Message is null");
-            return;
-        }
-
-        LOGGER.info("");
-        LOGGER.info("--------------------");
-        LOGGER.info(" DUMP OF SOAP MESSAGE");
-        LOGGER.info("--------------------");
-
-        try
-        {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            msg.writeTo(baos);
-            LOGGER.info(baos.toString(getMessageEncoding(msg)));
-
-            // show included values
-            String values = msg.getSOAPBody().getTextContent();
-            LOGGER.trace("Included values:" + values);
-        }
-        catch (Exception e)
-        {
-            LOGGER.warn("Unable to dump soap message.", e);
+            capture.capture(context);
         }
     }
 
@@ -427,10 +351,6 @@ public class DirectSOAPHandler implements SOAPHandler<SOAPMessageContext>
 
         try
         {
-            @SuppressWarnings("unused")
-            SOAPMessage msg = ((SOAPMessageContext) context).getMessage();
-            // dumpSOAPMessage(msg);
-
             if (context.getMessage().getSOAPBody().getFault() != null)
             {
                 String detailName = null;
@@ -455,52 +375,35 @@ public class DirectSOAPHandler implements SOAPHandler<SOAPMessageContext>
     }
 
     /**
-     * Extract header values from a ThreadData object.
+     * Return the header values of the message being processed, from the
+     * SOAPHeaderContext of the current thread, or from the given context if
+     * the thread has none.
+     * 
+     * @param context
+     *            The MessageContext of the message being processed, or null.
+     * @return the header values, never null.
      */
-    protected void getHeaderData()
+    protected SOAPHeaderData getHeaderData(MessageContext context)
     {
-        Long threadId = new Long(Thread.currentThread().getId());
-        if (LOGGER.isTraceEnabled())
-            LOGGER.trace("GTHREAD ID " + threadId);
-
-        ThreadData threadData = new ThreadData(threadId);
-        messageId = threadData.getMessageId();
-        to = threadData.getTo();
-        relatesTo = threadData.getRelatesTo();
-        action = threadData.getAction();
-        thisHost = threadData.getThisHost();
-        remoteHost = threadData.getRemoteHost();
-        pid = threadData.getPid();
-        from = threadData.getFrom();
-
-        directFrom = threadData.getDirectFrom();
-        directTo = threadData.getDirectTo();
-        directMetadataLevel = threadData.getDirectMetadataLevel();
+        SOAPHeaderData headerData = SOAPHeaderContext.get(context);
+        return headerData != null ? headerData : SOAPHeaderData.EMPTY;
     }
 
     /**
-     * Build a ThreadData object with header information.
+     * Store the header values of the message being processed in the
+     * SOAPHeaderContext of the current thread and in the given context.
+     * 
+     * @param context
+     *            The MessageContext of the message being processed, or null.
+     * @param headerData
+     *            The header values.
      */
-    protected void setHeaderData()
+    protected void setHeaderData(MessageContext context, SOAPHeaderData headerData)
     {
-        Long threadId = new Long(Thread.currentThread().getId());
         if (LOGGER.isTraceEnabled())
-            LOGGER.trace("GTHREAD ID " + threadId);
-
-        ThreadData threadData = new ThreadData(threadId);
-        threadData.setReplyAddress(endpoint);
-        threadData.setMessageId(messageId);
-        threadData.setRelatesTo(relatesTo);
-        threadData.setAction(action);
-        threadData.setThisHost(thisHost);
-        threadData.setRemoteHost(remoteHost);
-        threadData.setTo(to);
-        threadData.setPid(pid);
-        threadData.setFrom(from);
-
-        threadData.setDirectFrom(directFrom);
-        threadData.setDirectTo(directTo);
-        threadData.setDirectMetadataLevel(directMetadataLevel);
+            LOGGER.trace("Header data for thread " + Thread.currentThread().getId() + ": " + headerData);
+
+        SOAPHeaderContext.set(context, headerData);
     }
 
     /**
@@ -510,7 +413,6 @@ public class DirectSOAPHandler implements SOAPHandler<SOAPMessageContext>
      */
     public String getPID()
     {
-        String processName = ManagementFactory.getRuntimeMXBean().getName();
-        return processName.split("@")[0];
+        return PID;
     }
 }
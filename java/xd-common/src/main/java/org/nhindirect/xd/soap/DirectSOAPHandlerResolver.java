@@ -29,6 +29,7 @@
 package org.nhindirect.xd.soap;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.xml.ws.handler.Handler;
@@ -36,12 +37,41 @@ import javax.xml.ws.handler.HandlerResolver;
 import javax.xml.ws.handler.PortInfo;
 
 /**
- * Message handler resolver.
+ * Message handler resolver. Every port shares the same read-only chain, as
+ * DirectSOAPHandler keeps no per-message state. Resolvers with the same
+ * message capture are equal, as their chains behave the same.
  * 
  * @author Vincent Lewis
  */
+@SuppressWarnings("rawtypes")
 public class DirectSOAPHandlerResolver implements HandlerResolver
 {
+    private final SOAPMessageCapture messageCapture;
+    private final List<Handler> handlerChain;
+
+    /**
+     * Create a resolver whose handlers do not capture messages.
+     */
+    public DirectSOAPHandlerResolver()
+    {
+        this(null);
+    }
+
+    /**
+     * Create a resolver whose handlers offer each message to the given
+     * capture.
+     * 
+     * @param messageCapture
+     *            The message capture, or null to capture nothing.
+     */
+    public DirectSOAPHandlerResolver(SOAPMessageCapture messageCapture)
+    {
+        this.messageCapture = messageCapture;
+
+        List<Handler> handlerList = new ArrayList<Handler>();
+        handlerList.add(new DirectSOAPHandler(messageCapture));
+        this.handlerChain = Collections.unmodifiableList(handlerList);
+    }
 
     /*
      * (non-Javadoc)
@@ -50,9 +80,34 @@ public class DirectSOAPHandlerResolver implements HandlerResolver
      */
     public List<Handler> getHandlerChain(PortInfo portInfo)
     {
-        List<Handler> handlerList = new ArrayList<Handler>();
-        handlerList.add(new DirectSOAPHandler());
-        return handlerList;
+        return handlerChain;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null || obj.getClass() != getClass())
+            return false;
+
+        return messageCapture == ((DirectSOAPHandlerResolver) obj).messageCapture;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode()
+    {
+        return messageCapture == null ? 0 : System.identityHashCode(messageCapture);
     }
 
 }
@@ -0,0 +1,132 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import javax.xml.ws.handler.MessageContext;
+
+/**
+ * Holds the {@link SOAPHeaderData} of the message being processed. The data is
+ * bound to the current thread, so that service code and outbound handlers on
+ * that thread can read it without contention, and is also stored as an
+ * application scoped property of the JAX-WS MessageContext, so that it is
+ * still available when processing continues on another thread.
+ * 
+ * Only one value is held per thread. DirectSOAPHandler clears it when a
+ * server side exchange is closed.
+ */
+public final class SOAPHeaderContext
+{
+    /**
+     * Name of the MessageContext property which holds the SOAPHeaderData.
+     */
+    public static final String HEADER_DATA_PROPERTY = "org.nhindirect.xd.soap.headerData";
+
+    private static final ThreadLocal<SOAPHeaderData> CURRENT = new ThreadLocal<SOAPHeaderData>();
+
+    private SOAPHeaderContext()
+    {
+    }
+
+    /**
+     * Return the header data bound to the current thread.
+     * 
+     * @return the header data, or null if there is none.
+     */
+    public static SOAPHeaderData get()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Return the header data bound to the current thread, falling back to the
+     * data stored in the given context.
+     * 
+     * @param context
+     *            The MessageContext of the message being processed.
+     * @return the header data, or null if there is none.
+     */
+    public static SOAPHeaderData get(MessageContext context)
+    {
+        SOAPHeaderData data = CURRENT.get();
+
+        if (data == null && context != null)
+        {
+            data = (SOAPHeaderData) context.get(HEADER_DATA_PROPERTY);
+        }
+
+        return data;
+    }
+
+    /**
+     * Bind header data to the current thread.
+     * 
+     * @param data
+     *            The header data, or null to clear it.
+     */
+    public static void set(SOAPHeaderData data)
+    {
+        if (data == null)
+        {
+            CURRENT.remove();
+        }
+        else
+        {
+            CURRENT.set(data);
+        }
+    }
+
+    /**
+     * Bind header data to the current thread and store it in the given
+     * context.
+     * 
+     * @param context
+     *            The MessageContext of the message being processed.
+     * @param data
+     *            The header data.
+     */
+    public static void set(MessageContext context, SOAPHeaderData data)
+    {
+        set(data);
+
+        if (context != null)
+        {
+            context.put(HEADER_DATA_PROPERTY, data);
+            context.setScope(HEADER_DATA_PROPERTY, MessageContext.Scope.APPLICATION);
+        }
+    }
+
+    /**
+     * Remove the header data bound to the current thread.
+     */
+    public static void clear()
+    {
+        CURRENT.remove();
+    }
+}
@@ -0,0 +1,441 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable set of addressing values read from, or written to, the headers of
+ * a single SOAP message. Instances are created with a {@link Builder}; a
+ * changed copy is made with {@link #toBuilder()}.
+ * 
+ * Values are keyed by the names defined in this class when accessed
+ * generically.
+ */
+public final class SOAPHeaderData
+{
+    public static final String MESSAGE = "message";
+    public static final String ACTION = "action";
+    public static final String REPLY = "reply";
+    public static final String FAULT = "fault";
+    public static final String TO = "to";
+    public static final String RELATESTO = "relatesto";
+    public static final String THISHOST = "thishost";
+    public static final String REMOTEHOST = "remotehost";
+    public static final String PID = "pid";
+    public static final String FROM = "from";
+    public static final String DIRECT_TO = "directTo";
+    public static final String DIRECT_FROM = "directFrom";
+    public static final String DIRECT_METADATA_LEVEL = "directMetadataLevel";
+
+    /**
+     * Header data without any values.
+     */
+    public static final SOAPHeaderData EMPTY = new Builder().build();
+
+    private final String messageId;
+    private final String action;
+    private final String replyAddress;
+    private final String faultAddress;
+    private final String to;
+    private final String relatesTo;
+    private final String thisHost;
+    private final String remoteHost;
+    private final String pid;
+    private final String from;
+    private final String directTo;
+    private final String directFrom;
+    private final String directMetadataLevel;
+
+    private SOAPHeaderData(Builder builder)
+    {
+        this.messageId = builder.messageId;
+        this.action = builder.action;
+        this.replyAddress = builder.replyAddress;
+        this.faultAddress = builder.faultAddress;
+        this.to = builder.to;
+        this.relatesTo = builder.relatesTo;
+        this.thisHost = builder.thisHost;
+        this.remoteHost = builder.remoteHost;
+        this.pid = builder.pid;
+        this.from = builder.from;
+        this.directTo = builder.directTo;
+        this.directFrom = builder.directFrom;
+        this.directMetadataLevel = builder.directMetadataLevel;
+    }
+
+    /**
+     * @return the WS-Addressing MessageID.
+     */
+    public String getMessageId()
+    {
+        return messageId;
+    }
+
+    /**
+     * @return the WS-Addressing Action.
+     */
+    public String getAction()
+    {
+        return action;
+    }
+
+    /**
+     * @return the WS-Addressing ReplyTo address.
+     */
+    public String getReplyAddress()
+    {
+        return replyAddress;
+    }
+
+    /**
+     * @return the WS-Addressing FaultTo address.
+     */
+    public String getFaultAddress()
+    {
+        return faultAddress;
+    }
+
+    /**
+     * @return the WS-Addressing To.
+     */
+    public String getTo()
+    {
+        return to;
+    }
+
+    /**
+     * @return the WS-Addressing RelatesTo.
+     */
+    public String getRelatesTo()
+    {
+        return relatesTo;
+    }
+
+    /**
+     * @return the name of the server which received the message.
+     */
+    public String getThisHost()
+    {
+        return thisHost;
+    }
+
+    /**
+     * @return the name of the host which sent the message.
+     */
+    public String getRemoteHost()
+    {
+        return remoteHost;
+    }
+
+    /**
+     * @return the ID of the process which received the message.
+     */
+    public String getPid()
+    {
+        return pid;
+    }
+
+    /**
+     * @return the WS-Addressing From address.
+     */
+    public String getFrom()
+    {
+        return from;
+    }
+
+    /**
+     * @return the Direct to address.
+     */
+    public String getDirectTo()
+    {
+        return directTo;
+    }
+
+    /**
+     * @return the Direct from address.
+     */
+    public String getDirectFrom()
+    {
+        return directFrom;
+    }
+
+    /**
+     * @return the Direct metadata level.
+     */
+    public String getDirectMetadataLevel()
+    {
+        return directMetadataLevel;
+    }
+
+    /**
+     * Return the value for the given key.
+     * 
+     * @param key
+     *            One of the keys defined in this class.
+     * @return the value, or null if the key is unknown or has no value.
+     */
+    public String get(String key)
+    {
+        return toMap().get(key);
+    }
+
+    /**
+     * Return the values which are set, keyed by the names defined in this
+     * class.
+     * 
+     * @return a new map of the values which are not null.
+     */
+    public Map<String, String> toMap()
+    {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+
+        put(map, MESSAGE, messageId);
+        put(map, ACTION, action);
+        put(map, REPLY, replyAddress);
+        put(map, FAULT, faultAddress);
+        put(map, TO, to);
+        put(map, RELATESTO, relatesTo);
+        put(map, THISHOST, thisHost);
+        put(map, REMOTEHOST, remoteHost);
+        put(map, PID, pid);
+        put(map, FROM, from);
+        put(map, DIRECT_TO, directTo);
+        put(map, DIRECT_FROM, directFrom);
+        put(map, DIRECT_METADATA_LEVEL, directMetadataLevel);
+
+        return map;
+    }
+
+    private static void put(Map<String, String> map, String key, String value)
+    {
+        if (value != null)
+        {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * Create a builder initialized with the values of this object.
+     * 
+     * @return a new builder.
+     */
+    public Builder toBuilder()
+    {
+        return new Builder(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "SOAPHeaderData " + toMap();
+    }
+
+    /**
+     * Builder for {@link SOAPHeaderData}.
+     */
+    public static final class Builder
+    {
+        private String messageId;
+        private String action;
+        private String replyAddress;
+        private String faultAddress;
+        private String to;
+        private String relatesTo;
+        private String thisHost;
+        private String remoteHost;
+        private String pid;
+        private String from;
+        private String directTo;
+        private String directFrom;
+        private String directMetadataLevel;
+
+        /**
+         * Create a builder without any values.
+         */
+        public Builder()
+        {
+        }
+
+        private Builder(SOAPHeaderData data)
+        {
+            this.messageId = data.messageId;
+            this.action = data.action;
+            this.replyAddress = data.replyAddress;
+            this.faultAddress = data.faultAddress;
+            this.to = data.to;
+            this.relatesTo = data.relatesTo;
+            this.thisHost = data.thisHost;
+            this.remoteHost = data.remoteHost;
+            this.pid = data.pid;
+            this.from = data.from;
+            this.directTo = data.directTo;
+            this.directFrom = data.directFrom;
+            this.directMetadataLevel = data.directMetadataLevel;
+        }
+
+        public Builder setMessageId(String messageId)
+        {
+            this.messageId = messageId;
+            return this;
+        }
+
+        public Builder setAction(String action)
+        {
+            this.action = action;
+            return this;
+        }
+
+        public Builder setReplyAddress(String replyAddress)
+        {
+            this.replyAddress = replyAddress;
+            return this;
+        }
+
+        public Builder setFaultAddress(String faultAddress)
+        {
+            this.faultAddress = faultAddress;
+            return this;
+        }
+
+        public Builder setTo(String to)
+        {
+            this.to = to;
+            return this;
+        }
+
+        public Builder setRelatesTo(String relatesTo)
+        {
+            this.relatesTo = relatesTo;
+            return this;
+        }
+
+        public Builder setThisHost(String thisHost)
+        {
+            this.thisHost = thisHost;
+            return this;
+        }
+
+        public Builder setRemoteHost(String remoteHost)
+        {
+            this.remoteHost = remoteHost;
+            return this;
+        }
+
+        public Builder setPid(String pid)
+        {
+            this.pid = pid;
+            return this;
+        }
+
+        public Builder setFrom(String from)
+        {
+            this.from = from;
+            return this;
+        }
+
+        public Builder setDirectTo(String directTo)
+        {
+            this.directTo = directTo;
+            return this;
+        }
+
+        public Builder setDirectFrom(String directFrom)
+        {
+            this.directFrom = directFrom;
+            return this;
+        }
+
+        public Builder setDirectMetadataLevel(String directMetadataLevel)
+        {
+            this.directMetadataLevel = directMetadataLevel;
+            return this;
+        }
+
+        /**
+         * Set the value for the given key.
+         * 
+         * @param key
+         *            One of the keys defined in this class.
+         * @param value
+         *            The value to set.
+         * @return this builder.
+         * @throws IllegalArgumentException
+         *             if the key is unknown.
+         */
+        public Builder set(String key, String value)
+        {
+            if (MESSAGE.equals(key))
+                messageId = value;
+            else if (ACTION.equals(key))
+                action = value;
+            else if (REPLY.equals(key))
+                replyAddress = value;
+            else if (FAULT.equals(key))
+                faultAddress = value;
+            else if (TO.equals(key))
+                to = value;
+            else if (RELATESTO.equals(key))
+                relatesTo = value;
+            else if (THISHOST.equals(key))
+                thisHost = value;
+            else if (REMOTEHOST.equals(key))
+                remoteHost = value;
+            else if (PID.equals(key))
+                pid = value;
+            else if (FROM.equals(key))
+                from = value;
+            else if (DIRECT_TO.equals(key))
+                directTo = value;
+            else if (DIRECT_FROM.equals(key))
+                directFrom = value;
+            else if (DIRECT_METADATA_LEVEL.equals(key))
+                directMetadataLevel = value;
+            else
+                throw new IllegalArgumentException("Unknown header key: " + key);
+
+            return this;
+        }
+
+        /**
+         * @return a new SOAPHeaderData with the values of this builder.
+         */
+        public SOAPHeaderData build()
+        {
+            return new SOAPHeaderData(this);
+        }
+    }
+}
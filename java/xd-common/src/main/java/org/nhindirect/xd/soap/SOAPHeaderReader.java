@@ -0,0 +1,288 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Reads SOAP headers into {@link SOAPHeaderData} by looking up an extractor
+ * for the qualified name of each header. Headers without an extractor are
+ * ignored.
+ * <p>
+ * The default table covers the WS-Addressing 1.0 message addressing headers
+ * (To, From, ReplyTo, FaultTo, Action, MessageID and RelatesTo) and the Direct
+ * addressBlock.
+ */
+public class SOAPHeaderReader
+{
+    /**
+     * WS-Addressing 1.0 namespace.
+     */
+    public static final String WSA_NAMESPACE = "http://www.w3.org/2005/08/addressing";
+
+    /**
+     * Direct addressing namespace.
+     */
+    public static final String DIRECT_NAMESPACE = "urn:direct:addressing";
+
+    public static final QName WSA_TO = new QName(WSA_NAMESPACE, "To");
+    public static final QName WSA_FROM = new QName(WSA_NAMESPACE, "From");
+    public static final QName WSA_REPLY_TO = new QName(WSA_NAMESPACE, "ReplyTo");
+    public static final QName WSA_FAULT_TO = new QName(WSA_NAMESPACE, "FaultTo");
+    public static final QName WSA_ACTION = new QName(WSA_NAMESPACE, "Action");
+    public static final QName WSA_MESSAGE_ID = new QName(WSA_NAMESPACE, "MessageID");
+    public static final QName WSA_RELATES_TO = new QName(WSA_NAMESPACE, "RelatesTo");
+    public static final QName WSA_ADDRESS = new QName(WSA_NAMESPACE, "Address");
+
+    public static final QName DIRECT_ADDRESS_BLOCK = new QName(DIRECT_NAMESPACE, "addressBlock");
+    public static final QName DIRECT_FROM = new QName(DIRECT_NAMESPACE, "from");
+    public static final QName DIRECT_TO = new QName(DIRECT_NAMESPACE, "to");
+    public static final QName DIRECT_METADATA_LEVEL = new QName(DIRECT_NAMESPACE, "metadata-level");
+
+    private static final Log LOGGER = LogFactory.getFactory().getInstance(SOAPHeaderReader.class);
+
+    private static final Map<QName, SOAPHeaderExtractor> DEFAULT_EXTRACTORS;
+
+    static
+    {
+        Map<QName, SOAPHeaderExtractor> extractors = new HashMap<QName, SOAPHeaderExtractor>();
+
+        extractors.put(WSA_TO, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                builder.setTo(getText(header));
+            }
+        });
+        extractors.put(WSA_FROM, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                builder.setFrom(getAddress(header));
+            }
+        });
+        extractors.put(WSA_REPLY_TO, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                builder.setReplyAddress(getAddress(header));
+            }
+        });
+        extractors.put(WSA_FAULT_TO, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                builder.setFaultAddress(getAddress(header));
+            }
+        });
+        extractors.put(WSA_ACTION, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                builder.setAction(getText(header));
+            }
+        });
+        extractors.put(WSA_MESSAGE_ID, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                builder.setMessageId(getText(header));
+            }
+        });
+        extractors.put(WSA_RELATES_TO, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                builder.setRelatesTo(getText(header));
+            }
+        });
+        extractors.put(DIRECT_ADDRESS_BLOCK, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                for (Node node = header.getFirstChild(); node != null; node = node.getNextSibling())
+                {
+                    if (node.getNodeType() != Node.ELEMENT_NODE || !isDirect(node))
+                    {
+                        continue;
+                    }
+
+                    String name = node.getLocalName();
+                    if (DIRECT_FROM.getLocalPart().equals(name))
+                    {
+                        builder.setDirectFrom(getText(node));
+                    }
+                    else if (DIRECT_TO.getLocalPart().equals(name))
+                    {
+                        builder.setDirectTo(getText(node));
+                    }
+                    else if (DIRECT_METADATA_LEVEL.getLocalPart().equals(name))
+                    {
+                        builder.setDirectMetadataLevel(getText(node));
+                    }
+                }
+            }
+        });
+
+        DEFAULT_EXTRACTORS = Collections.unmodifiableMap(extractors);
+    }
+
+    private final Map<QName, SOAPHeaderExtractor> extractors;
+
+    /**
+     * Create a reader using the default extractors.
+     */
+    public SOAPHeaderReader()
+    {
+        this(DEFAULT_EXTRACTORS);
+    }
+
+    /**
+     * Create a reader using the given extractors.
+     * 
+     * @param extractors
+     *            The extractors, keyed by the qualified name of the header
+     *            they read.
+     */
+    public SOAPHeaderReader(Map<QName, SOAPHeaderExtractor> extractors)
+    {
+        this.extractors = Collections.unmodifiableMap(new HashMap<QName, SOAPHeaderExtractor>(extractors));
+    }
+
+    /**
+     * Return the default extractors, for use as the basis of a custom table.
+     * 
+     * @return a read-only map of the default extractors.
+     */
+    public static Map<QName, SOAPHeaderExtractor> getDefaultExtractors()
+    {
+        return DEFAULT_EXTRACTORS;
+    }
+
+    /**
+     * Read a sequence of header elements.
+     * 
+     * @param headers
+     *            An iterator over the header elements, as returned by
+     *            SOAPHeader.examineAllHeaderElements().
+     * @param builder
+     *            The builder receiving the values read.
+     */
+    public void read(Iterator<?> headers, SOAPHeaderData.Builder builder)
+    {
+        while (headers.hasNext())
+        {
+            Object header = headers.next();
+
+            if (header instanceof Element)
+            {
+                read((Element) header, builder);
+            }
+        }
+    }
+
+    /**
+     * Read a header element.
+     * 
+     * @param header
+     *            The header element.
+     * @param builder
+     *            The builder receiving the values read.
+     * @return true if the header has an extractor.
+     */
+    public boolean read(Element header, SOAPHeaderData.Builder builder)
+    {
+        SOAPHeaderExtractor extractor = extractors.get(new QName(header.getNamespaceURI(), header.getLocalName()));
+
+        if (extractor == null)
+        {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Ignoring SOAP header " + header.getNodeName());
+
+            return false;
+        }
+
+        extractor.extract(header, builder);
+        return true;
+    }
+
+    /**
+     * Return the trimmed text of a node, or null if it is empty.
+     */
+    private static String getText(Node node)
+    {
+        String text = node.getTextContent();
+
+        if (text == null)
+        {
+            return null;
+        }
+
+        text = text.trim();
+        return text.length() > 0 ? text : null;
+    }
+
+    /**
+     * Return the Address of an endpoint reference.
+     */
+    private static String getAddress(Element endpointReference)
+    {
+        for (Node node = endpointReference.getFirstChild(); node != null; node = node.getNextSibling())
+        {
+            if (node.getNodeType() == Node.ELEMENT_NODE && WSA_ADDRESS.getLocalPart().equals(node.getLocalName())
+                    && WSA_NAMESPACE.equals(node.getNamespaceURI()))
+            {
+                return getText(node);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Direct addressBlock children are accepted in the Direct namespace or in
+     * no namespace, which older senders produced.
+     */
+    private static boolean isDirect(Node node)
+    {
+        String namespace = node.getNamespaceURI();
+        return namespace == null || namespace.length() == 0 || DIRECT_NAMESPACE.equals(namespace);
+    }
+}
@@ -0,0 +1,470 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+import javax.xml.soap.AttachmentPart;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Captures copies of SOAP messages for diagnostics. Capturing is off until an
+ * endpoint is enabled with {@link #addEndpoint(String)} or a sampling interval
+ * is set with {@link #setSampleInterval(int)}.
+ * <p>
+ * Only the envelope is copied, up to a fixed number of bytes; attachments are
+ * described by content ID and type but never read. The copy is handed to a
+ * {@link SOAPMessageCaptureSink} on a background thread, and copies are
+ * dropped when the sink falls behind.
+ * <p>
+ * The endpoint of a message is the endpoint address of a client request, or
+ * the WSDL port name of a service.
+ */
+public class SOAPMessageCapture
+{
+    /**
+     * Default maximum number of envelope bytes captured per message.
+     */
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    /**
+     * Default number of captured messages waiting for the sink.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+
+    private static final Log LOGGER = LogFactory.getFactory().getInstance(SOAPMessageCapture.class);
+
+    /**
+     * Reports errors only by throwing them, as the transform is expected to
+     * fail once the capture limit is reached.
+     */
+    private static final ErrorListener QUIET = new ErrorListener()
+    {
+        public void warning(TransformerException e)
+        {
+        }
+
+        public void error(TransformerException e) throws TransformerException
+        {
+            throw e;
+        }
+
+        public void fatalError(TransformerException e) throws TransformerException
+        {
+            throw e;
+        }
+    };
+
+    private final SOAPMessageCaptureSink sink;
+    private final int maxBytes;
+    private final ThreadPoolExecutor executor;
+
+    private final Set<String> endpoints = new CopyOnWriteArraySet<String>();
+    private volatile int sampleInterval = 0;
+
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Create a capture which logs messages to the
+     * "org.nhindirect.xd.soap.capture" log.
+     */
+    public SOAPMessageCapture()
+    {
+        this(new LogSink(), DEFAULT_MAX_BYTES, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param sink
+     *            The destination of captured messages.
+     * @param maxBytes
+     *            The maximum number of envelope bytes captured per message.
+     * @param queueSize
+     *            The number of captured messages which may wait for the sink
+     *            before further messages are dropped.
+     */
+    public SOAPMessageCapture(SOAPMessageCaptureSink sink, int maxBytes, int queueSize)
+    {
+        if (sink == null)
+        {
+            throw new IllegalArgumentException("Sink must not be null");
+        }
+        if (maxBytes < 0 || queueSize < 1)
+        {
+            throw new IllegalArgumentException("Invalid capture limits");
+        }
+
+        this.sink = sink;
+        this.maxBytes = maxBytes;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "SOAPMessageCapture");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler()
+                {
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+                    {
+                        dropped.incrementAndGet();
+                    }
+                });
+    }
+
+    /**
+     * Capture every message of the given endpoint.
+     * 
+     * @param endpoint
+     *            An endpoint address or WSDL port name.
+     */
+    public void addEndpoint(String endpoint)
+    {
+        endpoints.add(endpoint);
+    }
+
+    /**
+     * Stop capturing every message of the given endpoint.
+     * 
+     * @param endpoint
+     *            An endpoint address or WSDL port name.
+     */
+    public void removeEndpoint(String endpoint)
+    {
+        endpoints.remove(endpoint);
+    }
+
+    /**
+     * Capture one in every <code>interval</code> messages of any endpoint.
+     * 
+     * @param interval
+     *            The sampling interval, or 0 to sample none.
+     */
+    public void setSampleInterval(int interval)
+    {
+        if (interval < 0)
+        {
+            throw new IllegalArgumentException("Interval must not be negative");
+        }
+
+        this.sampleInterval = interval;
+    }
+
+    /**
+     * @return the sampling interval, or 0 if messages are not sampled.
+     */
+    public int getSampleInterval()
+    {
+        return sampleInterval;
+    }
+
+    /**
+     * @return the number of messages handed to the sink.
+     */
+    public long getCapturedCount()
+    {
+        return captured.get();
+    }
+
+    /**
+     * @return the number of messages dropped because the sink fell behind.
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Capture the message of the given context if its endpoint is enabled or
+     * it is sampled. Nothing is read from the message otherwise.
+     * 
+     * @param context
+     *            The SOAPMessageContext of the message.
+     */
+    public void capture(SOAPMessageContext context)
+    {
+        String endpoint = getEndpoint(context);
+
+        if (!isCaptured(endpoint))
+        {
+            return;
+        }
+
+        Boolean outbound = (Boolean) context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY);
+        SOAPMessage msg = context.getMessage();
+        if (msg == null)
+        {
+            return;
+        }
+
+        try
+        {
+            final CapturedSOAPMessage message = copy(msg, endpoint, Boolean.TRUE.equals(outbound));
+
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        sink.write(message);
+                        captured.incrementAndGet();
+                    }
+                    catch (Exception e)
+                    {
+                        LOGGER.warn("Unable to write captured SOAP message.", e);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            dropped.incrementAndGet();
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Unable to capture SOAP message.", e);
+        }
+    }
+
+    /**
+     * Stop the background thread. Messages waiting for the sink are discarded.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Wait until captured messages have been written.
+     * 
+     * @param timeout
+     *            The maximum time to wait, in milliseconds.
+     * @return true if all messages were written.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public boolean flush(long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (executor.getQueue().size() > 0 || executor.getActiveCount() > 0)
+        {
+            if (System.currentTimeMillis() >= deadline)
+            {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+
+        return true;
+    }
+
+    private boolean isCaptured(String endpoint)
+    {
+        if (endpoint != null && !endpoints.isEmpty() && endpoints.contains(endpoint))
+        {
+            return true;
+        }
+
+        int interval = sampleInterval;
+        return interval > 0 && sampleCounter.getAndIncrement() % interval == 0;
+    }
+
+    /**
+     * Copy the envelope of a message, stopping once the limit is reached.
+     */
+    private CapturedSOAPMessage copy(SOAPMessage msg, String endpoint, boolean outbound) throws SOAPException,
+            TransformerException
+    {
+        String encoding = getMessageEncoding(msg);
+        LimitedOutputStream out = new LimitedOutputStream(maxBytes);
+
+        try
+        {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, encoding);
+            transformer.setErrorListener(QUIET);
+            transformer.transform(new DOMSource(msg.getSOAPPart()), new StreamResult(out));
+        }
+        catch (TransformerException e)
+        {
+            if (!out.isTruncated())
+            {
+                throw e;
+            }
+        }
+
+        List<String> attachments = new ArrayList<String>();
+        @SuppressWarnings("unchecked")
+        Iterator<AttachmentPart> it = msg.getAttachments();
+        while (it.hasNext())
+        {
+            AttachmentPart attachment = it.next();
+            attachments.add(attachment.getContentId() + " " + attachment.getContentType());
+        }
+
+        return new CapturedSOAPMessage(System.currentTimeMillis(), endpoint, outbound, encoding, out.toByteArray(),
+                out.isTruncated(), attachments);
+    }
+
+    /**
+     * Return the endpoint of a message: the endpoint address of a client
+     * request, or the WSDL port name of a service.
+     * 
+     * @param context
+     *            The MessageContext of the message.
+     * @return the endpoint, or null if it is not known.
+     */
+    protected static String getEndpoint(MessageContext context)
+    {
+        Object address = context.get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
+        if (address != null)
+        {
+            return address.toString();
+        }
+
+        QName port = (QName) context.get(MessageContext.WSDL_PORT);
+        return port != null ? port.toString() : null;
+    }
+
+    /**
+     * Returns the message encoding (e.g. utf-8).
+     * 
+     * @param msg
+     *            The SOAPMessage object.
+     * @return the message encoding.
+     * @throws javax.xml.soap.SOAPException
+     */
+    protected static String getMessageEncoding(SOAPMessage msg) throws SOAPException
+    {
+        String encoding = "utf-8";
+        if (msg.getProperty(SOAPMessage.CHARACTER_SET_ENCODING) != null)
+        {
+            encoding = msg.getProperty(SOAPMessage.CHARACTER_SET_ENCODING).toString();
+        }
+        return encoding;
+    }
+
+    /**
+     * Output stream which keeps at most a fixed number of bytes, and fails the
+     * write which exceeds it so that serialization stops early.
+     */
+    private static class LimitedOutputStream extends OutputStream
+    {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final int limit;
+        private boolean truncated = false;
+
+        public LimitedOutputStream(int limit)
+        {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            int remaining = limit - out.size();
+
+            if (len > remaining)
+            {
+                out.write(b, off, remaining);
+                truncated = true;
+                throw new IOException("Capture limit of " + limit + " bytes exceeded");
+            }
+
+            out.write(b, off, len);
+        }
+
+        public boolean isTruncated()
+        {
+            return truncated;
+        }
+
+        public byte[] toByteArray()
+        {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Sink which writes captured messages to the
+     * "org.nhindirect.xd.soap.capture" log at INFO.
+     */
+    public static class LogSink implements SOAPMessageCaptureSink
+    {
+        private static final Log CAPTURE_LOGGER = LogFactory.getLog("org.nhindirect.xd.soap.capture");
+
+        public void write(CapturedSOAPMessage message)
+        {
+            CAPTURE_LOGGER.info(message);
+        }
+    }
+}
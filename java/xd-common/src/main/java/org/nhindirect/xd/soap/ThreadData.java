@@ -28,37 +28,37 @@
 
 package org.nhindirect.xd.soap;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
  * ThreadData bean. Contains information about the running threads.
+ * <p>
+ * This class is kept for compatibility. The values are held by
+ * {@link SOAPHeaderContext} for the calling thread, whatever thread ID is
+ * given, and each change replaces the thread's {@link SOAPHeaderData}.
  * 
  * @author Vince
+ * @deprecated use {@link SOAPHeaderContext} and {@link SOAPHeaderData}.
  */
+@Deprecated
 public class ThreadData {
 
-    public static final String MESSAGE = "message";
-    public static final String ACTION = "action";
-    public static final String REPLY = "reply";
-    public static final String TO = "to";
-    public static final String RELATESTO = "relatesto";
-    public static final String THISHOST = "thishost";
-    public static final String REMOTEHOST = "remotehost";
-    public static final String PID = "pid";
-    public static final String FROM = "from";
-    public static final String DIRECT_TO = "directTo";
-    public static final String DIRECT_FROM = "directFrom";
-    public static final String DIRECT_METADATA_LEVEL = "directMetadataLevel";
+    public static final String MESSAGE = SOAPHeaderData.MESSAGE;
+    public static final String ACTION = SOAPHeaderData.ACTION;
+    public static final String REPLY = SOAPHeaderData.REPLY;
+    public static final String FAULT = SOAPHeaderData.FAULT;
+    public static final String TO = SOAPHeaderData.TO;
+    public static final String RELATESTO = SOAPHeaderData.RELATESTO;
+    public static final String THISHOST = SOAPHeaderData.THISHOST;
+    public static final String REMOTEHOST = SOAPHeaderData.REMOTEHOST;
+    public static final String PID = SOAPHeaderData.PID;
+    public static final String FROM = SOAPHeaderData.FROM;
+    public static final String DIRECT_TO = SOAPHeaderData.DIRECT_TO;
+    public static final String DIRECT_FROM = SOAPHeaderData.DIRECT_FROM;
+    public static final String DIRECT_METADATA_LEVEL = SOAPHeaderData.DIRECT_METADATA_LEVEL;
     
     private Long threadId = null;
 
-    /**
-     * Object to contain and relate all ThreadData objects.
-     */
-    private static Map<Long, Map<String, String>> threadMap = new HashMap<Long, Map<String, String>>();
-    
     /**
      * Constructor.
      * 
@@ -70,13 +70,16 @@ public class ThreadData {
     }
 
     /**
-     * Remove an element from the threadMap object specified by the given id.
+     * Remove the values of the calling thread.
      * 
      * @param id
-     *            The id of the element to remove from the threadMap object.
+     *            The id of the calling thread. Other ids are ignored, as the
+     *            values of other threads are not visible.
      */
     public static void clean(Long id) {
-        threadMap.remove(id);
+        if (id != null && id.longValue() == Thread.currentThread().getId()) {
+            SOAPHeaderContext.clear();
+        }
     }
 
     /**
@@ -149,6 +152,16 @@ public class ThreadData {
         setValue(value, REPLY);
     }
 
+    /**
+     * Set the value for the key FAULT.
+     * 
+     * @param value
+     *            the value for the key FAULT.
+     */
+    public void setFaultAddress(String value) {
+        setValue(value, FAULT);
+    }
+
     /**
      * Set the value for the key TO.
      * 
@@ -253,6 +266,15 @@ public class ThreadData {
         return getValue(REPLY);
     }
 
+    /**
+     * Return the value for the key FAULT.
+     * 
+     * @return the value for the key FAULT.
+     */
+    public String getFaultAddress() {
+        return getValue(FAULT);
+    }
+
     /**
      * Return the value for the key TO.
      * 
@@ -308,7 +330,7 @@ public class ThreadData {
     }
     
     /**
-     * Set a key,value pair for the current threadId.
+     * Set a key,value pair for the calling thread.
      * 
      * @param value
      *            The value to set.
@@ -316,42 +338,25 @@ public class ThreadData {
      *            The key to set.
      */
     private void setValue(String value, String key) {
-        Map<String, String> data = null;
-        if (threadMap.containsKey(threadId)) {
-            data = threadMap.get(threadId);
-        } else {
-            data = new HashMap<String, String>();
-            threadMap.put(threadId, data);
-        }
-        data.put(key, value);
+        SOAPHeaderData data = SOAPHeaderContext.get();
+        SOAPHeaderData.Builder builder = data != null ? data.toBuilder() : new SOAPHeaderData.Builder();
+
+        SOAPHeaderContext.set(builder.set(key, value).build());
     }
 
     /**
-     * Get the value relating to the specified key and current threadId.
+     * Get the value relating to the specified key for the calling thread.
      * 
      * @param key
      *            The key for which to retrieve the value.
-     * @return the value associated with the given key and current threadId.
+     * @return the value associated with the given key for the calling thread.
      */
     private String getValue(String key) {
-        String ret = null;
+        SOAPHeaderData data = SOAPHeaderContext.get();
 
-        Map<String, String> data = threadMap.get(threadId);
-        if (data != null) {
-            ret = data.get(key);
-        }
-        return ret;
+        return data != null ? data.get(key) : null;
     }
 
-    /**
-     * Return a read-only copy of the threadMap object.
-     * 
-     * @return a read-only copy of the threadmap object
-     */
-    protected static Map<Long, Map<String, String>> getThreadMapView() {
-        return Collections.unmodifiableMap(threadMap);
-    }
-    
     /*
      * (non-Javadoc)
      * 
@@ -359,12 +364,12 @@ public class ThreadData {
      */
     @Override
     public String toString() {
-        Map<String, String> m = threadMap.get(this.threadId);
+        SOAPHeaderData data = SOAPHeaderContext.get();
 
-        if (m != null) {
+        if (data != null) {
             StringBuffer sb = new StringBuffer("ThreadData (threadId: " + this.threadId + ")" + "\n");
 
-            for (Map.Entry<String, String> e : m.entrySet()) {
+            for (Map.Entry<String, String> e : data.toMap().entrySet()) {
                 sb.append(" > " + e.getKey() + ": " + e.getValue() + "\n");
             }
 
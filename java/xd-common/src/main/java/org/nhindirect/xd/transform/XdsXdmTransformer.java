@@ -31,6 +31,7 @@ package org.nhindirect.xd.transform;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 
 import java.io.File;
+import java.io.OutputStream;
 
 import org.nhindirect.xd.transform.exception.TransformationException;
 
@@ -54,4 +55,18 @@ public interface XdsXdmTransformer
      */
     public File transform(ProvideAndRegisterDocumentSetRequestType provideAndRegisterDocumentSetRequestType)
             throws TransformationException;
+
+    /**
+     * Transform a ProvideAndRegisterDocumentSetRequestType object to an XDM
+     * ZIP written to the provided stream. The stream is not closed.
+     * 
+     * @param provideAndRegisterDocumentSetRequestType
+     *            The ProvideAndRegisterDocumentSetRequestType object to
+     *            transform.
+     * @param outputStream
+     *            The stream to which the XDM ZIP is written.
+     * @throws TransformationException
+     */
+    public void transform(ProvideAndRegisterDocumentSetRequestType provideAndRegisterDocumentSetRequestType,
+            OutputStream outputStream) throws TransformationException;
 }
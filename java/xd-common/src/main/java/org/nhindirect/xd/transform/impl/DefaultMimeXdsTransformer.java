@@ -22,23 +22,45 @@ package org.nhindirect.xd.transform.impl;
 
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.mail.Address;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedFileInputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nhindirect.xd.common.DirectDocument2;
 import org.nhindirect.xd.common.DirectDocuments;
 import org.nhindirect.xd.common.XdmPackage;
+import org.nhindirect.xd.common.content.ContentDigest;
+import org.nhindirect.xd.common.content.DocumentContent;
+import org.nhindirect.xd.common.content.DocumentContent.ContentDataSource;
+import org.nhindirect.xd.common.content.FileContent;
+import org.nhindirect.xd.common.content.HeapContent;
 import org.nhindirect.xd.common.type.DirectDocumentType;
 import org.nhindirect.xd.common.type.FormatCodeEnum;
 import org.nhindirect.xd.transform.MimeXdsTransformer;
@@ -46,23 +68,66 @@ import org.nhindirect.xd.transform.exception.TransformationException;
 import org.nhindirect.xd.transform.util.type.MimeType;
 
 /**
- * Transform a MimeMessage into a XDS request.
+ * Transform a MimeMessage into a XDS request. Instances hold no per-message
+ * state and can be shared between threads.
  * 
  * @author vlewis
  */
 public class DefaultMimeXdsTransformer implements MimeXdsTransformer {
 
-    private byte[] xdsDocument = null;
-    private String xdsMimeType = null;
-    private FormatCodeEnum xdsFormatCode = null;
-    private DirectDocumentType documentType = null;
     private static final Log LOGGER = LogFactory.getFactory().getInstance(DefaultMimeXdsTransformer.class);
 
+    /**
+     * Default size above which {@link #transform(InputStream)} spools a part to
+     * disk.
+     */
+    public static final long DEFAULT_SPOOL_THRESHOLD = 1024 * 1024;
+
+    private static final int BUFFER = 8192;
+
+    private final ExecutorService executor;
+    private final ByteBudget bytesInFlight;
+
+    private volatile long spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+    private volatile File spoolDirectory = null;
+
     /**
      * Construct a new DefaultMimeXdsTransformer object.
      */
     public DefaultMimeXdsTransformer() {
         super();
+
+        this.executor = null;
+        this.bytesInFlight = null;
+    }
+
+    /**
+     * Construct a new DefaultMimeXdsTransformer object which reads, parses and
+     * hashes the attachments of multipart messages in parallel on the given
+     * executor. Documents keep the order of the attachments. The executor
+     * should be bounded, and must not be the one running the calls to
+     * transform, since those wait for the attachment tasks.
+     * 
+     * @param executor
+     *            The executor which processes attachments.
+     * @param maxBytesInFlight
+     *            The maximum combined size of the attachments being processed
+     *            at once, across all messages. An attachment larger than this
+     *            is processed on its own. An attachment of unknown size counts
+     *            as the spool threshold.
+     */
+    public DefaultMimeXdsTransformer(ExecutorService executor, long maxBytesInFlight) {
+        super();
+
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        if (maxBytesInFlight <= 0) {
+            throw new IllegalArgumentException("Maximum bytes in flight must be positive");
+        }
+
+        this.executor = executor;
+        this.bytesInFlight = new ByteBudget(maxBytesInFlight);
     }
 
     /*
@@ -72,6 +137,134 @@ public class DefaultMimeXdsTransformer implements MimeXdsTransformer {
      */
     @Override
     public ProvideAndRegisterDocumentSetRequestType transform(MimeMessage mimeMessage) throws TransformationException {
+        return transform(mimeMessage, Long.MAX_VALUE);
+    }
+
+    /**
+     * Transform a raw RFC 822 message read from the input stream. The message
+     * is parsed from a temporary file rather than from memory, and parts
+     * larger than the spool threshold are copied to files in the spool
+     * directory and carried in the request as file-backed DataHandlers, so the
+     * heap used does not grow with the size of the message. Callers should
+     * pass the request to {@link #deleteSpooledContent(ProvideAndRegisterDocumentSetRequestType)}
+     * once it has been sent. The stream is not closed.
+     * 
+     * @param inputStream
+     *            The raw message.
+     * @return a ProvideAndRegisterDocumentSetRequestType object.
+     * @throws TransformationException
+     */
+    public ProvideAndRegisterDocumentSetRequestType transform(InputStream inputStream) throws TransformationException {
+        File file = null;
+        SharedFileInputStream sharedInputStream = null;
+
+        try {
+            MimeMessage mimeMessage;
+
+            if (inputStream instanceof SharedInputStream) {
+                mimeMessage = new MimeMessage((Session) null, inputStream);
+            } else {
+                file = File.createTempFile("xd-", ".eml", spoolDirectory);
+
+                OutputStream outputStream = new FileOutputStream(file);
+                try {
+                    IOUtils.copy(inputStream, outputStream);
+                } finally {
+                    outputStream.close();
+                }
+
+                // Parts of a message parsed from a shared stream are read from the file on demand
+                sharedInputStream = new SharedFileInputStream(file, BUFFER);
+                mimeMessage = new MimeMessage((Session) null, sharedInputStream);
+            }
+
+            return transform(mimeMessage, spoolThreshold);
+        } catch (MessagingException e) {
+            if (LOGGER.isErrorEnabled()) {
+                LOGGER.error("Unexpected MessagingException occured while reading MimeMessage", e);
+            }
+            throw new TransformationException("Unable to complete transformation.", e);
+        } catch (IOException e) {
+            if (LOGGER.isErrorEnabled()) {
+                LOGGER.error("Unexpected IOException occured while reading MimeMessage", e);
+            }
+            throw new TransformationException("Unable to complete transformation.", e);
+        } finally {
+            if (sharedInputStream != null) {
+                try {
+                    sharedInputStream.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to close " + file, e);
+                }
+            }
+            if (file != null && !file.delete()) {
+                LOGGER.warn("Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Delete the files holding spooled parts of a request returned by
+     * {@link #transform(InputStream)}.
+     * 
+     * @param request
+     *            The request.
+     */
+    public static void deleteSpooledContent(ProvideAndRegisterDocumentSetRequestType request) {
+        for (ProvideAndRegisterDocumentSetRequestType.Document document : request.getDocument()) {
+            if (document.getValue() != null && document.getValue().getDataSource() instanceof ContentDataSource) {
+                ((ContentDataSource) document.getValue().getDataSource()).getContent().release();
+            }
+        }
+    }
+
+    /**
+     * Return the size above which {@link #transform(InputStream)} spools a
+     * part to disk.
+     * 
+     * @return the spool threshold in bytes.
+     */
+    public long getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    /**
+     * Set the size above which {@link #transform(InputStream)} spools a part
+     * to disk.
+     * 
+     * @param spoolThreshold
+     *            The spool threshold in bytes.
+     */
+    public void setSpoolThreshold(long spoolThreshold) {
+        if (spoolThreshold < 0) {
+            throw new IllegalArgumentException("Spool threshold must not be negative");
+        }
+
+        this.spoolThreshold = spoolThreshold;
+    }
+
+    /**
+     * Return the directory for spooled messages and parts.
+     * 
+     * @return the spool directory, or null for the default temporary directory.
+     */
+    public File getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Set the directory for spooled messages and parts.
+     * 
+     * @param spoolDirectory
+     *            The spool directory, or null for the default temporary
+     *            directory.
+     */
+    public void setSpoolDirectory(File spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    private ProvideAndRegisterDocumentSetRequestType transform(MimeMessage mimeMessage, long spoolThreshold)
+            throws TransformationException {
         ProvideAndRegisterDocumentSetRequestType request;
         DirectDocuments documents = new DirectDocuments();
 
@@ -85,94 +278,73 @@ public class DefaultMimeXdsTransformer implements MimeXdsTransformer {
             if (MimeType.TEXT_PLAIN.matches(mimeMessage.getContentType())) {
                 LOGGER.info("Handling plain mail (no attachments) - " + mimeMessage.getContentType());
 
-                // Get the document type
-                documentType = DirectDocumentType.lookup(mimeMessage);
-
-                // Get the format code and MIME type
-                xdsFormatCode = documentType.getFormatCode();
-                xdsMimeType = documentType.getMimeType().getType();
+                // Copy the body without decoding it to a String, so it keeps its declared charset
+                DocumentPart part = readPart(mimeMessage, spoolThreshold);
 
-                // Get the contents
-                xdsDocument = ((String) mimeMessage.getContent()).getBytes();
-
-                // Add document to the collection of documents
-                documents.getDocuments().add(getDocument(sentDate, from));
-                documents.setSubmissionSet(getSubmissionSet(subject, sentDate, from, recipients));
+                if (DirectDocumentType.XDM.equals(part.documentType)) {
+                    documents = readXdm(part.content);
+                } else {
+                    // Add document to the collection of documents
+                    documents.getDocuments().add(part.document);
+                    documents.setSubmissionSet(getSubmissionSet(part, subject, sentDate, from, recipients));
+                }
             } // Multipart/mixed (attachments)
             else if (MimeType.MULTIPART.matches(mimeMessage.getContentType())) {
                 LOGGER.info("Handling multipart/mixed - " + mimeMessage.getContentType());
 
                 MimeMultipart mimeMultipart = (MimeMultipart) mimeMessage.getContent();
-               BodyPart xdmBodyPart = null;
-                
-                for (int i = 0; i < mimeMultipart.getCount(); i++) {
-                    //check for XDM
-                     BodyPart bodyPart = mimeMultipart.getBodyPart(i);
-                     documentType = DirectDocumentType.lookup(bodyPart);
-                    if (DirectDocumentType.XDM.equals(documentType)) {
-                        xdmBodyPart =  bodyPart;
-                    }
-                }
-                
-                
+                List<BodyPart> bodyParts = new ArrayList<BodyPart>();
+
                 // For each BodyPart
                 for (int i = 0; i < mimeMultipart.getCount(); i++) {
-                    
-  /*
-                     * Special handling for XDM attachments.
-                     * 
-                     * Spec says if XDM package is present, this will be the
-                     * only attachment.
-                     * 
-                     * Overwrite all documents with XDM content and then break
-                     */
-                    if (xdmBodyPart != null) {
-                        XdmPackage xdmPackage = XdmPackage.fromXdmZipDataHandler(xdmBodyPart.getDataHandler());
-
-                        // Spec says if XDM package is present, this will be the only attachment
-                        // Overwrite all documents with XDM content and then break
-                        System.out.println("XDM FILE FOUND");
-                        documents = xdmPackage.getDocuments();
-
-                        break;
-                    }
                     BodyPart bodyPart = mimeMultipart.getBodyPart(i);
-                    // Skip empty BodyParts
-                    if (bodyPart.getSize() <= 0) {
+                    // Skip empty BodyParts, a size of -1 is unknown rather than empty
+                    if (bodyPart.getSize() == 0) {
                         LOGGER.warn("Empty body, skipping");
                         continue;
                     }
 
-                    // Get the document type
-                    documentType = DirectDocumentType.lookup(bodyPart);
+                    bodyParts.add(bodyPart);
+                }
 
-                    if (LOGGER.isInfoEnabled()) {
-                        LOGGER.info("File name: " + bodyPart.getFileName());
-                    }
-                    if (LOGGER.isInfoEnabled()) {
-                        LOGGER.info("Content type: " + bodyPart.getContentType());
-                    }
-                    if (LOGGER.isInfoEnabled()) {
-                        LOGGER.info("DocumentType: " + documentType.toString());
-                    }
+                // Each part is read once, and its type detected while it is read
+                List<DocumentPart> parts = executor == null ? readParts(bodyParts, spoolThreshold) : readPartsInParallel(
+                        bodyParts, spoolThreshold);
 
-                  
+                DocumentPart xdmPart = null;
+                for (DocumentPart part : parts) {
+                    if (DirectDocumentType.XDM.equals(part.documentType)) {
+                        xdmPart = part;
+                    }
+                }
 
-                    // Get the format code and MIME type
-                    xdsFormatCode = documentType.getFormatCode();
-                    xdsMimeType = documentType.getMimeType().getType();
+                /*
+                 * Special handling for XDM attachments.
+                 * 
+                 * Spec says if XDM package is present, this will be the
+                 * only attachment.
+                 * 
+                 * Overwrite all documents with XDM content
+                 */
+                if (xdmPart != null) {
+                    for (DocumentPart part : parts) {
+                        if (part != xdmPart) {
+                            part.content.release();
+                        }
+                    }
 
-                    // Best guess for UNKNOWN MIME type
-                    if (DirectDocumentType.UNKNOWN.equals(documentType)) {
-                        xdsMimeType = bodyPart.getContentType();
+                    LOGGER.info("XDM package found");
+                    documents = readXdm(xdmPart.content);
+                } else {
+                    // Add the documents to the collection of documents, in part order
+                    for (DocumentPart part : parts) {
+                        documents.getDocuments().add(part.document);
                     }
-                    
-                    // Get the contents
-                    xdsDocument = read(bodyPart);
 
-                    // Add the document to the collection of documents
-                    documents.getDocuments().add(getDocument(sentDate, from));
-                    documents.setSubmissionSet(getSubmissionSet(subject, sentDate, from, recipients));
+                    if (!parts.isEmpty()) {
+                        documents.setSubmissionSet(getSubmissionSet(parts.get(parts.size() - 1), subject, sentDate, from,
+                                recipients));
+                    }
                 }
             } else {
                 if (LOGGER.isWarnEnabled()) {
@@ -183,16 +355,19 @@ public class DefaultMimeXdsTransformer implements MimeXdsTransformer {
             if (LOGGER.isErrorEnabled()) {
                 LOGGER.error("Unexpected MessagingException occured while handling MimeMessage", e);
             }
+            releaseContent(documents);
             throw new TransformationException("Unable to complete transformation.", e);
         } catch (IOException e) {
             if (LOGGER.isErrorEnabled()) {
                 LOGGER.error("Unexpected IOException occured while handling MimeMessage", e);
             }
+            releaseContent(documents);
             throw new TransformationException("Unable to complete transformation.", e);
         } catch (Exception e) {
             if (LOGGER.isErrorEnabled()) {
                 LOGGER.error("Unexpected Exception occured while handling MimeMessage", e);
             }
+            releaseContent(documents);
             throw new TransformationException("Unable to complete transformation", e);
         }
 
@@ -202,12 +377,272 @@ public class DefaultMimeXdsTransformer implements MimeXdsTransformer {
             if (LOGGER.isErrorEnabled()) {
                 LOGGER.error("Unexpected IOException occured while transforming to ProvideAndRegisterDocumentSetRequestType", e);
             }
+            releaseContent(documents);
             throw new TransformationException("Unable to complete transformation", e);
+        } catch (RuntimeException e) {
+            releaseContent(documents);
+            throw e;
         }
 
         return request;
     }
 
+    private List<DocumentPart> readParts(List<BodyPart> bodyParts, long spoolThreshold) throws Exception {
+        List<DocumentPart> parts = new ArrayList<DocumentPart>(bodyParts.size());
+
+        try {
+            for (BodyPart bodyPart : bodyParts) {
+                parts.add(readPart(bodyPart, spoolThreshold));
+            }
+        } catch (Exception e) {
+            for (DocumentPart part : parts) {
+                part.content.release();
+            }
+            throw e;
+        }
+
+        return parts;
+    }
+
+    private List<DocumentPart> readPartsInParallel(List<BodyPart> bodyParts, final long spoolThreshold) throws Exception {
+        List<Future<DocumentPart>> futures = new ArrayList<Future<DocumentPart>>(bodyParts.size());
+        boolean read = false;
+
+        try {
+            for (final BodyPart bodyPart : bodyParts) {
+                final long size = getReservation(bodyPart, spoolThreshold);
+
+                bytesInFlight.acquire(size);
+
+                Future<DocumentPart> future;
+                try {
+                    future = executor.submit(new Callable<DocumentPart>() {
+                        public DocumentPart call() throws Exception {
+                            // Held until the part has been read, so the budget bounds the parts being read
+                            try {
+                                return readPart(bodyPart, spoolThreshold);
+                            } finally {
+                                bytesInFlight.release(size);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    bytesInFlight.release(size);
+                    throw e;
+                }
+
+                futures.add(future);
+            }
+
+            List<DocumentPart> parts = new ArrayList<DocumentPart>(futures.size());
+            for (Future<DocumentPart> future : futures) {
+                parts.add(future.get());
+            }
+
+            read = true;
+            return parts;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        } finally {
+            if (!read) {
+                releaseParts(futures);
+            }
+        }
+    }
+
+    /**
+     * Return the share of the budget reserved while a part is read. A part of
+     * unknown size is charged as much as it may hold in memory before it is
+     * spooled, which is the whole budget when nothing is spooled.
+     */
+    private long getReservation(BodyPart bodyPart, long spoolThreshold) throws MessagingException {
+        long size = bodyPart.getSize();
+
+        return Math.min(size >= 0 ? size : spoolThreshold, bytesInFlight.limit);
+    }
+
+    /**
+     * Wait for the tasks already submitted and release the content of the
+     * parts they read. The tasks are not cancelled, since a task cancelled
+     * while reading would keep writing its spool file.
+     */
+    private static void releaseParts(List<Future<DocumentPart>> futures) {
+        boolean interrupted = false;
+
+        for (Future<DocumentPart> future : futures) {
+            while (true) {
+                try {
+                    future.get().content.release();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // A failed read releases its own content
+                    break;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private DocumentPart readPart(Part mimePart, long spoolThreshold) throws Exception {
+        // Get the document type and contents with a single read
+        Content content = readContent(mimePart, spoolThreshold);
+        DocumentPart part = new DocumentPart(DirectDocumentType.lookup(content.prefix, content.prefixLength,
+                mimePart.getContentType(), mimePart.getFileName()));
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("File name: " + mimePart.getFileName());
+        }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Content type: " + mimePart.getContentType());
+        }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("DocumentType: " + part.documentType.toString());
+        }
+
+        part.content = content;
+
+        // An XDM package has no document of its own, its documents are read once every part has been read
+        if (DirectDocumentType.XDM.equals(part.documentType)) {
+            return part;
+        }
+
+        // Get the format code and MIME type
+        part.formatCode = part.documentType.getFormatCode();
+        part.mimeType = part.documentType.getMimeType().getType();
+
+        // Best guess for UNKNOWN MIME type
+        if (DirectDocumentType.UNKNOWN.equals(part.documentType)) {
+            part.mimeType = mimePart.getContentType();
+        }
+
+        // Get the contents
+        part.data = content.data;
+
+        try {
+            part.document = getDocument(part);
+        } catch (Exception e) {
+            content.release();
+            throw e;
+        }
+
+        return part;
+    }
+
+    /**
+     * Copy the decoded content of a part, keeping it in memory up to the spool
+     * threshold and in a file beyond it, while calculating its hash and size.
+     */
+    private Content readContent(Part mimePart, long spoolThreshold) throws Exception {
+        Content content = new Content();
+        ContentDigest digest = new ContentDigest();
+        ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.max(
+                (int) Math.min(mimePart.getSize(), spoolThreshold), 32));
+        OutputStream outputStream = memory;
+
+        InputStream inputStream = mimePart.getInputStream();
+        try {
+            byte[] buffer = new byte[BUFFER];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                if (content.prefixLength < content.prefix.length) {
+                    int length = Math.min(read, content.prefix.length - content.prefixLength);
+                    System.arraycopy(buffer, 0, content.prefix, content.prefixLength, length);
+                    content.prefixLength += length;
+                }
+
+                digest.update(buffer, 0, read);
+                content.size += read;
+
+                if (content.file == null && content.size > spoolThreshold) {
+                    content.file = File.createTempFile("xd-", ".part", spoolDirectory);
+                    outputStream = new BufferedOutputStream(new FileOutputStream(content.file), BUFFER);
+                    memory.writeTo(outputStream);
+                    memory = null;
+                }
+
+                outputStream.write(buffer, 0, read);
+            }
+
+            outputStream.close();
+        } catch (Exception e) {
+            IOUtils.closeQuietly(outputStream);
+            if (content.file != null) {
+                content.file.delete();
+            }
+            throw e;
+        } finally {
+            inputStream.close();
+        }
+
+        if (content.file == null) {
+            content.data = memory.toByteArray();
+        }
+        content.hash = digest.getSha1();
+
+        return content;
+    }
+
+    /**
+     * Read the documents of an XDM package from its content. A package spooled
+     * to disk is read lazily, so its documents are only inflated when the
+     * request is sent, and the spool file is deleted once the content of any
+     * of its documents is released.
+     */
+    private static DirectDocuments readXdm(Content content) throws Exception {
+        if (content.file == null) {
+            return XdmPackage.fromXdmZipInputStream(new ByteArrayInputStream(content.data)).getDocuments();
+        }
+
+        XdmPackage xdmPackage;
+        try {
+            xdmPackage = XdmPackage.fromXdmZipFile(content.file, true);
+        } catch (Exception e) {
+            content.release();
+            throw e;
+        }
+
+        XdmSpool spool = new XdmSpool(xdmPackage, content);
+        DirectDocuments documents = xdmPackage.getDocuments();
+        boolean spooled = false;
+
+        for (DirectDocument2 document : documents.getDocuments()) {
+            if (document.getContent() != null) {
+                document.setContent(new XdmEntryContent(document.getContent(), spool), document.getMetadata().getHash());
+                spooled = true;
+            }
+        }
+
+        // No document reads from the package
+        if (!spooled) {
+            spool.release();
+        }
+
+        return documents;
+    }
+
+    /**
+     * Release the content of the documents read before a transformation
+     * failed, deleting their spool files.
+     */
+    private static void releaseContent(DirectDocuments documents) {
+        for (DirectDocument2 document : documents.getDocuments()) {
+            if (document != null && document.getContent() != null) {
+                document.getContent().release();
+            }
+        }
+    }
+
     /*
      * Metadata Attribute           XDS     Minimal Metadata
      * -----------------------------------------------------
@@ -221,9 +656,10 @@ public class DefaultMimeXdsTransformer implements MimeXdsTransformer {
      * title                        O       O
      * uniqueId                     R       R
      */
-    private DirectDocuments.SubmissionSet getSubmissionSet(String subject, Date sentDate, String auth,
+    private DirectDocuments.SubmissionSet getSubmissionSet(DocumentPart part, String subject, Date sentDate, String auth,
             Address[] recipients) throws Exception {
-        DirectDocuments.SubmissionSet submissionSet = new DirectDocuments.SubmissionSet();
+        // Already holds the values parsed from the document by getDocument
+        DirectDocuments.SubmissionSet submissionSet = part.submissionSet;
 
         // (R) Minimal Metadata Source
         submissionSet.setAuthorTelecommunication(auth); // TODO: format this correctly
@@ -240,9 +676,6 @@ public class DefaultMimeXdsTransformer implements MimeXdsTransformer {
         // (O) Minimal Metadata Source
         // TODO: title (subject)
 
-        // Additional metadata from document parsing
-        documentType.parse(new String(xdsDocument), submissionSet);
-
         return submissionSet;
     }
 
@@ -264,37 +697,159 @@ public class DefaultMimeXdsTransformer implements MimeXdsTransformer {
      * typeCode                     R       R2
      * uniqueId                     R       R
      */
-    private DirectDocument2 getDocument(Date sentDate, String auth) throws Exception {
+    private DirectDocument2 getDocument(DocumentPart part) throws Exception {
         DirectDocument2 document = new DirectDocument2();
         DirectDocument2.Metadata metadata = document.getMetadata();
 
         // (R) Minimal Metadata Source
-        metadata.setMimeType(xdsMimeType);
+        metadata.setMimeType(part.mimeType);
         metadata.setUniqueId(UUID.randomUUID().toString());
 
         // (R2) Minimal Metadata Source
-        if (xdsFormatCode != null) {
-            metadata.setFormatCode(xdsFormatCode);
+        if (part.formatCode != null) {
+            metadata.setFormatCode(part.formatCode);
         }
 
-        // Additional metadata from document parsing
-        documentType.parse(new String(xdsDocument), metadata);
+        if (part.data != null) {
+            // Hashed while the part was read
+            document.setContent(new HeapContent(part.data), part.content.hash);
+        } else {
+            document.setContent(new FileContent(part.content.file, true), part.content.hash);
+        }
 
-        document.setData(xdsDocument);
+        // Additional metadata from document parsing, in one read for the document and submission set
+        InputStream inputStream = document.getDataSource().getInputStream();
+        try {
+            part.documentType.parse(inputStream, metadata, part.submissionSet);
+        } finally {
+            inputStream.close();
+        }
 
         return document;
     }
 
-    private static byte[] read(BodyPart bodyPart) throws MessagingException, IOException {
-        InputStream inputStream = bodyPart.getInputStream();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    /**
+     * The state gathered for one document of the message being transformed.
+     */
+    private static class DocumentPart {
+        private final DirectDocumentType documentType;
+        private byte[] data;
+        private String mimeType;
+        private FormatCodeEnum formatCode;
+        private Content content;
+        private DirectDocument2 document;
+        private final DirectDocuments.SubmissionSet submissionSet = new DirectDocuments.SubmissionSet();
+
+        private DocumentPart(DirectDocumentType documentType) {
+            this.documentType = documentType;
+        }
+    }
+
+    /**
+     * The decoded content of a part, held in memory or in a spool file.
+     */
+    private static class Content {
+        private final byte[] prefix = new byte[DirectDocumentType.SNIFF_LENGTH];
+        private int prefixLength = 0;
+        private byte[] data;
+        private File file;
+        private String hash;
+        private long size = 0;
+
+        /**
+         * Delete the spool file, if any.
+         */
+        private void release() {
+            if (file != null && file.exists() && !file.delete()) {
+                LOGGER.warn("Unable to delete " + file);
+            }
+        }
+    }
 
-        int data = 0;
-        byte[] buffer = new byte[1024];
-        while ((data = inputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, data);
+    /**
+     * An XDM package read lazily from a spool file, which is closed and
+     * deleted once the content of any of its documents is released.
+     */
+    private static class XdmSpool {
+        private final XdmPackage xdmPackage;
+        private final Content content;
+        private boolean released = false;
+
+        private XdmSpool(XdmPackage xdmPackage, Content content) {
+            this.xdmPackage = xdmPackage;
+            this.content = content;
         }
 
-        return outputStream.toByteArray();
+        private synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+
+            try {
+                xdmPackage.close();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to close " + content.file, e);
+            }
+            content.release();
+        }
+    }
+
+    /**
+     * The content of a document in a spooled XDM package.
+     */
+    private static class XdmEntryContent extends DocumentContent {
+        private final DocumentContent entry;
+        private final XdmSpool spool;
+
+        private XdmEntryContent(DocumentContent entry, XdmSpool spool) {
+            this.entry = entry;
+            this.spool = spool;
+        }
+
+        @Override
+        public long getSize() {
+            return entry.getSize();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return entry.getInputStream();
+        }
+
+        @Override
+        public String getName() {
+            return entry.getName();
+        }
+
+        @Override
+        public void release() {
+            spool.release();
+        }
+    }
+
+    /**
+     * Bounds the combined size of the attachments being processed at once.
+     */
+    private static class ByteBudget {
+        private final long limit;
+        private long inFlight = 0;
+
+        private ByteBudget(long limit) {
+            this.limit = limit;
+        }
+
+        private synchronized void acquire(long bytes) throws InterruptedException {
+            while (inFlight > 0 && inFlight + bytes > limit) {
+                wait();
+            }
+
+            inFlight += bytes;
+        }
+
+        private synchronized void release(long bytes) {
+            inFlight -= bytes;
+            notifyAll();
+        }
     }
 }
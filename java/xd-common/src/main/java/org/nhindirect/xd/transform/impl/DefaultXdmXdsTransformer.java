@@ -23,33 +23,39 @@ package org.nhindirect.xd.transform.impl;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType.Document;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.mail.util.ByteArrayDataSource;
 import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
 
 import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.ExternalIdentifierType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.ExtrinsicObjectType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.IdentifiableType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryObjectListType;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.SlotType1;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nhindirect.xd.common.type.SlotType1Enum;
 import org.nhindirect.xd.transform.XdmXdsTransformer;
 import org.nhindirect.xd.transform.exception.TransformationException;
 import org.nhindirect.xd.transform.util.XmlUtils;
@@ -62,7 +68,7 @@ import org.nhindirect.xd.transform.util.type.MimeType;
  */
 public class DefaultXdmXdsTransformer implements XdmXdsTransformer {
 
-    private static String XDM_FILENAME_DATA = "DOCUMENT.xml";
+    private static final String XDM_DEFAULT_FILENAME_DATA = "DOCUMENT.xml";
     private static final String XDM_FILENAME_METADATA = "METADATA.xml";
     private static final Log LOGGER = LogFactory.getFactory().getInstance(DefaultXdmXdsTransformer.class);
 
@@ -75,65 +81,53 @@ public class DefaultXdmXdsTransformer implements XdmXdsTransformer {
     public ProvideAndRegisterDocumentSetRequestType transform(File file) throws TransformationException {
         LOGGER.trace("Begin transformation of XDM to XDS (file)");
 
-        String docId = null;
-        ZipFile zipFile = null;
-        String docName = getDocName(file);
-        if (docName != null) {
-            XDM_FILENAME_DATA = docName;
-        }
-
         ProvideAndRegisterDocumentSetRequestType prsr = new ProvideAndRegisterDocumentSetRequestType();
 
         try {
-            zipFile = new ZipFile(file, ZipFile.OPEN_READ);
-
-            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-            ZipEntry zipEntry = null;
-
-            // load the ZIP archive into memory
-            while (zipEntries.hasMoreElements()) {
-
-
-                zipEntry = zipEntries.nextElement();
-                String zname = zipEntry.getName();
-                LOGGER.trace("Processing a ZipEntry " + zname);
-                if (!zipEntry.isDirectory()) {
-                    String subsetDirspec = getSubmissionSetDirspec(zipEntry.getName());
-
-                    // Read metadata
-                    if (matchName(zname, subsetDirspec, XDM_FILENAME_METADATA)) {
-                        ByteArrayOutputStream byteArrayOutputStream = readData(zipFile, zipEntry);
-
-                        SubmitObjectsRequest submitObjectRequest = (SubmitObjectsRequest) XmlUtils.unmarshal(
-                                byteArrayOutputStream.toString(),
-                                oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class);
-
-                        prsr.setSubmitObjectsRequest(submitObjectRequest);
+            ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ);
+
+            try {
+                ZipEntry metadataEntry = null;
+                Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>();
+
+                // Index the archive from its central directory; no data is read
+                Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    String zname = zipEntry.getName();
+                    LOGGER.trace("Processing a ZipEntry " + zname);
+
+                    if (!zipEntry.isDirectory()) {
+                        if (matchName(zname, getSubmissionSetDirspec(zname), XDM_FILENAME_METADATA)) {
+                            metadataEntry = zipEntry;
+                        } else {
+                            entries.put(normalize(zname), zipEntry);
+                        }
+                    }
+                }
 
-                        docId = getDocId(submitObjectRequest);
-                    } // Read data
-                    else if (matchName(zname, subsetDirspec, XDM_FILENAME_DATA)) {
-                        ByteArrayOutputStream byteArrayOutputStream = readData(zipFile, zipEntry);
+                if (metadataEntry == null) {
+                    LOGGER.warn("No " + XDM_FILENAME_METADATA + " found in " + file.getName());
+                    return prsr;
+                }
 
-                        DataSource source = new ByteArrayDataSource(byteArrayOutputStream.toByteArray(),
-                                MimeType.APPLICATION_XML + "; charset=UTF-8");
-                        DataHandler dhnew = new DataHandler(source);
+                SubmitObjectsRequest submitObjectRequest = unmarshal(readData(zipFile, metadataEntry).toByteArray());
+                prsr.setSubmitObjectsRequest(submitObjectRequest);
 
-                        Document pdoc = new Document();
-                        pdoc.setValue(dhnew);
-                        pdoc.setId(docId);
+                String subsetDirspec = getSubmissionSetDirspec(metadataEntry.getName());
 
-                        List<Document> docs = prsr.getDocument();
-                        docs.add(pdoc);
+                // Read data
+                for (Map.Entry<String, ExtrinsicObjectType> document : getDocNames(submitObjectRequest).entrySet()) {
+                    ZipEntry zipEntry = entries.get(subsetDirspec + "/" + document.getKey());
+                    if (zipEntry != null) {
+                        addDocument(prsr, readData(zipFile, zipEntry).toByteArray(), document.getValue());
+                    } else {
+                        LOGGER.warn("Document " + document.getKey() + " not found in " + file.getName());
                     }
                 }
-
-                if (!prsr.getDocument().isEmpty()) {
-                    ((Document) prsr.getDocument().get(0)).setId(zname);
-                }
+            } finally {
+                zipFile.close();
             }
-
-            zipFile.close();
         } catch (Exception e) {
             if (LOGGER.isErrorEnabled()) {
                 LOGGER.error("Unable to complete transformation.", e);
@@ -144,47 +138,34 @@ public class DefaultXdmXdsTransformer implements XdmXdsTransformer {
         return prsr;
     }
 
+    /**
+     * Get the file name of the last document described by the metadata of an
+     * XDM file.
+     * 
+     * @param file
+     *            The XDM file.
+     * @return the document file name, or null if the archive holds no
+     *         metadata.
+     * @throws TransformationException
+     */
     public String getDocName(File file) throws TransformationException {
-        LOGGER.trace("Begin transformation of XDM to XDS (file)");
-
-
-        ZipFile zipFile = null;
-        String objectId = null;
-
-        ProvideAndRegisterDocumentSetRequestType prsr = new ProvideAndRegisterDocumentSetRequestType();
-
         try {
-            zipFile = new ZipFile(file, ZipFile.OPEN_READ);
-
-            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-            ZipEntry zipEntry = null;
-
-            // load the ZIP archive into memory
-            while (zipEntries.hasMoreElements()) {
-
-
-                zipEntry = zipEntries.nextElement();
-                String zname = zipEntry.getName();
-                LOGGER.trace("Processing a ZipEntry " + zname);
-                if (!zipEntry.isDirectory()) {
-                    String subsetDirspec = getSubmissionSetDirspec(zipEntry.getName());
-
-                    // Read metadata
-                    if (matchName(zname, subsetDirspec, XDM_FILENAME_METADATA)) {
-                        ByteArrayOutputStream byteArrayOutputStream = readData(zipFile, zipEntry);
-
-                        SubmitObjectsRequest submitObjectRequest = (SubmitObjectsRequest) XmlUtils.unmarshal(
-                                byteArrayOutputStream.toString(),
-                                oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class);
+            ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ);
 
-                        prsr.setSubmitObjectsRequest(submitObjectRequest);
-                        objectId = getDocName(submitObjectRequest);
-                    } // Read data
+            try {
+                Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    String zname = zipEntry.getName();
 
+                    if (!zipEntry.isDirectory()
+                            && matchName(zname, getSubmissionSetDirspec(zname), XDM_FILENAME_METADATA)) {
+                        return getDocName(unmarshal(readData(zipFile, zipEntry).toByteArray()));
+                    }
                 }
-
+            } finally {
+                zipFile.close();
             }
-            zipFile.close();
         } catch (Exception e) {
             if (LOGGER.isErrorEnabled()) {
                 LOGGER.error("Unable to complete getObjectId.", e);
@@ -192,7 +173,7 @@ public class DefaultXdmXdsTransformer implements XdmXdsTransformer {
             throw new TransformationException("Unable to complete getObjectId.", e);
         }
 
-        return objectId;
+        return null;
     }
 
     /*
@@ -206,34 +187,135 @@ public class DefaultXdmXdsTransformer implements XdmXdsTransformer {
     public ProvideAndRegisterDocumentSetRequestType transform(DataHandler dataHandler) throws TransformationException {
         LOGGER.trace("Begin transformation of XDM to XDS (datahandler)");
 
-        File file = null;
+        InputStream inputStream = null;
 
         try {
-            // Create a temporary work file
-            file = fileFromDataHandler(dataHandler);
-        } catch (Exception e) {
+            inputStream = dataHandler.getInputStream();
+
+            return transform(inputStream);
+        } catch (IOException e) {
             if (LOGGER.isErrorEnabled()) {
-                LOGGER.error("Error creating temporary work file, unable to complete transformation.", e);
+                LOGGER.error("Unable to complete transformation.", e);
+            }
+            throw new TransformationException("Unable to complete transformation.", e);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to close XDM stream", e);
+                }
             }
-            throw new TransformationException("Error creating temporary work file, unable to complete transformation.",
-                    e);
         }
+    }
 
-        ProvideAndRegisterDocumentSetRequestType request = transform(file);
+    /**
+     * Transform an XDM ZIP stream to a ProvideAndRegisterDocumentSetRequestType
+     * object in a single pass. Entries seen before METADATA.xml are held until
+     * the metadata has named the documents to include. Documents are added in
+     * the order in which the metadata lists them. The provided stream is not
+     * closed.
+     * 
+     * @param inputStream
+     *            The stream containing the XDM ZIP.
+     * @return a ProvideAndRegisterDocumentSetRequestType object.
+     * @throws TransformationException
+     */
+    protected ProvideAndRegisterDocumentSetRequestType transform(InputStream inputStream) throws TransformationException {
+        String subsetDirspec = null;
+        Map<String, ExtrinsicObjectType> docNames = null;
+        Set<String> docPaths = null;
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
 
-        boolean delete = file.delete();
+        ProvideAndRegisterDocumentSetRequestType prsr = new ProvideAndRegisterDocumentSetRequestType();
 
-        if (delete) {
-            if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("Deleted temporary work file " + file.getAbsolutePath());
+        try {
+            ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(inputStream));
+            ZipEntry zipEntry = null;
+
+            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                String zname = zipEntry.getName();
+                LOGGER.trace("Processing a ZipEntry " + zname);
+
+                if (!zipEntry.isDirectory()) {
+                    // Read metadata
+                    if (docNames == null && matchName(zname, getSubmissionSetDirspec(zname), XDM_FILENAME_METADATA)) {
+                        SubmitObjectsRequest submitObjectRequest = unmarshal(readData(zipInputStream).toByteArray());
+                        prsr.setSubmitObjectsRequest(submitObjectRequest);
+
+                        subsetDirspec = getSubmissionSetDirspec(zname);
+                        docNames = getDocNames(submitObjectRequest);
+                        docPaths = getDocPaths(subsetDirspec, docNames);
+
+                        // Drop any entries which arrived ahead of the metadata but are not documents
+                        entries.keySet().retainAll(docPaths);
+                    } // Read data
+                    else if (docPaths == null || docPaths.contains(normalize(zname))) {
+                        entries.put(normalize(zname), readData(zipInputStream).toByteArray());
+                    }
+                }
+
+                zipInputStream.closeEntry();
+            }
+
+            if (docNames != null) {
+                for (Map.Entry<String, ExtrinsicObjectType> document : docNames.entrySet()) {
+                    byte[] data = entries.get(subsetDirspec + "/" + document.getKey());
+                    if (data != null) {
+                        addDocument(prsr, data, document.getValue());
+                    } else {
+                        LOGGER.warn("Document " + document.getKey() + " not found in XDM stream");
+                    }
+                }
             }
-        } else {
-            if (LOGGER.isWarnEnabled()) {
-                LOGGER.warn("Unable to delete temporary work file " + file.getAbsolutePath());
+        } catch (Exception e) {
+            if (LOGGER.isErrorEnabled()) {
+                LOGGER.error("Unable to complete transformation.", e);
             }
+            throw new TransformationException("Unable to complete transformation.", e);
         }
 
-        return request;
+        return prsr;
+    }
+
+    private SubmitObjectsRequest unmarshal(byte[] metadata) throws JAXBException {
+        return (SubmitObjectsRequest) XmlUtils.unmarshal(metadata,
+                oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class);
+    }
+
+    private static String normalize(String zname) {
+        return zname.replaceAll("\\\\", "/");
+    }
+
+    private static Set<String> getDocPaths(String subsetDirspec, Map<String, ExtrinsicObjectType> docNames) {
+        Set<String> paths = new HashSet<String>();
+        for (String docName : docNames.keySet()) {
+            paths.add(subsetDirspec + "/" + docName);
+        }
+
+        return paths;
+    }
+
+    private void addDocument(ProvideAndRegisterDocumentSetRequestType prsr, byte[] data,
+            ExtrinsicObjectType extrinsicObjectType) {
+        String mimeType = null;
+        String docId = null;
+        if (extrinsicObjectType != null) {
+            mimeType = extrinsicObjectType.getMimeType();
+            docId = extrinsicObjectType.getId();
+        }
+        if (StringUtils.isBlank(mimeType)) {
+            mimeType = MimeType.APPLICATION_XML + "; charset=UTF-8";
+        }
+
+        DataSource source = new ByteArrayDataSource(data, mimeType);
+        DataHandler dhnew = new DataHandler(source);
+
+        Document pdoc = new Document();
+        pdoc.setValue(dhnew);
+        pdoc.setId(docId);
+
+        prsr.getDocument().add(pdoc);
     }
 
     /**
@@ -270,40 +352,97 @@ public class DefaultXdmXdsTransformer implements XdmXdsTransformer {
         return ret;
     }
 
+    /**
+     * Get the file name of the last document described by a
+     * SubmitObjectsRequest object.
+     * 
+     * @param submitObjectRequest
+     *            The SubmitObjectsRequest object.
+     * @return a document file name, or null if there are no documents.
+     */
     protected String getDocName(SubmitObjectsRequest submitObjectRequest) {
+        String ret = null;
+
+        for (String docName : getDocNames(submitObjectRequest).keySet()) {
+            ret = docName;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Get the file names of all documents described by a SubmitObjectsRequest
+     * object, in the order in which they are listed. If the metadata describes
+     * no documents the default DOCUMENT.xml name is returned without an
+     * ExtrinsicObject.
+     * 
+     * @param submitObjectRequest
+     *            The SubmitObjectsRequest object.
+     * @return the ExtrinsicObject of each document, keyed by file name.
+     */
+    protected Map<String, ExtrinsicObjectType> getDocNames(SubmitObjectsRequest submitObjectRequest) {
         if (submitObjectRequest == null) {
             throw new IllegalArgumentException("SubmitObjectRequest must not be null.");
         }
 
-        String ret = null;
+        Map<String, ExtrinsicObjectType> ret = new LinkedHashMap<String, ExtrinsicObjectType>();
 
         RegistryObjectListType rol = submitObjectRequest.getRegistryObjectList();
         List<JAXBElement<? extends IdentifiableType>> extensible = rol.getIdentifiable();
 
         for (JAXBElement<? extends IdentifiableType> elem : extensible) {
-            String type = elem.getDeclaredType().getName();
             Object value = elem.getValue();
 
-            if (StringUtils.equals(type, "oasis.names.tc.ebxml_regrep.xsd.rim._3.ExtrinsicObjectType")) {
-                String obId = ((ExtrinsicObjectType) value).getId();
-                String mimeType = ((ExtrinsicObjectType) value).getMimeType();
-                String suffix = "xml";
-                if (mimeType.indexOf("xml") >= 0) {
-                    suffix = "xml";
-                } else if (mimeType.indexOf("pdf") >= 0) {
-                    suffix = "pdf";
-                }
-                ret = obId + "." + suffix;
+            if (value instanceof ExtrinsicObjectType) {
+                ExtrinsicObjectType extrinsicObjectType = (ExtrinsicObjectType) value;
+                ret.put(getDocName(extrinsicObjectType), extrinsicObjectType);
 
                 if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace(type + " " + value.toString());
+                    LOGGER.trace(elem.getDeclaredType().getName() + " " + value.toString());
                 }
             }
         }
 
+        if (ret.isEmpty()) {
+            ret.put(XDM_DEFAULT_FILENAME_DATA, null);
+        }
+
         return ret;
     }
 
+    /**
+     * Get the file name of a document from its ExtrinsicObjectType. The URI
+     * slot is used when present, otherwise the name is built from the object
+     * ID and MIME type.
+     * 
+     * @param extrinsicObjectType
+     *            The ExtrinsicObjectType object.
+     * @return a document file name.
+     */
+    protected String getDocName(ExtrinsicObjectType extrinsicObjectType) {
+        for (SlotType1 slot : extrinsicObjectType.getSlot()) {
+            if (SlotType1Enum.URI.matches(slot.getName()) && slot.getValueList() != null) {
+                StringBuilder uri = new StringBuilder();
+                for (String value : slot.getValueList().getValue()) {
+                    // Long URIs are split over several "n|part" values
+                    uri.append(value.matches("\\d+\\|.*") ? value.substring(value.indexOf('|') + 1) : value);
+                }
+
+                if (uri.length() > 0) {
+                    return uri.toString();
+                }
+            }
+        }
+
+        String mimeType = extrinsicObjectType.getMimeType();
+        String suffix = "xml";
+        if (mimeType != null && mimeType.indexOf("pdf") >= 0) {
+            suffix = "pdf";
+        }
+
+        return extrinsicObjectType.getId() + "." + suffix;
+    }
+
     /**
      * Get the document ID from an EntrinsicObjectType object.
      * 
@@ -387,71 +526,36 @@ public class DefaultXdmXdsTransformer implements XdmXdsTransformer {
      */
     protected ByteArrayOutputStream readData(ZipFile zipFile, ZipEntry zipEntry) throws IOException {
         InputStream in = zipFile.getInputStream(zipEntry);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-        int bytesRead = 0;
-        byte[] buffer = new byte[2048];
-
-        while ((bytesRead = in.read(buffer)) != -1) {
-            baos.write(buffer, 0, bytesRead);
-        }
-
-        in.close();
-
-        if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("Data read: " + baos.toString());
+        try {
+            return readData(in);
+        } finally {
+            in.close();
         }
-
-        return baos;
     }
 
     /**
-     * Create a File object from the given DataHandler object.
+     * Read the remaining data of a stream. The stream is not closed.
      * 
-     * @param dh
-     *            The DataHandler object.
-     * @return a File object created from the DataHandler object.
-     * @throws Exception
+     * @param in
+     *            The InputStream to read.
+     * @return a ByteArrayOutputStream representing the data.
+     * @throws IOException
      */
-    protected File fileFromDataHandler(DataHandler dh) throws Exception {
-        File f = null;
-        OutputStream out = null;
-        InputStream inputStream = null;
+    protected ByteArrayOutputStream readData(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-        final String fileName = "xdmail-" + UUID.randomUUID().toString() + ".zip";
+        int bytesRead = 0;
+        byte[] buffer = new byte[2048];
 
-        try {
-            f = new File(fileName);
-            inputStream = dh.getInputStream();
-            out = new FileOutputStream(f);
-            byte buf[] = new byte[1024];
-            int len;
-            while ((len = inputStream.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-        } catch (FileNotFoundException e) {
-            if (LOGGER.isErrorEnabled()) {
-                LOGGER.error("File not found - " + fileName, e);
-            }
-            throw e;
-        } catch (IOException e) {
-            if (LOGGER.isErrorEnabled()) {
-                LOGGER.error("Exception thrown while trying to read file from DataHandler object", e);
-            }
-            throw e;
-        } finally {
-            if (inputStream != null) {
-                inputStream.close();
-            }
-            if (out != null) {
-                out.close();
-            }
+        while ((bytesRead = in.read(buffer)) != -1) {
+            baos.write(buffer, 0, bytesRead);
         }
 
         if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("Created temporary work file " + f.getAbsolutePath());
+            LOGGER.trace("Data read: " + baos.toString());
         }
 
-        return f;
+        return baos;
     }
 }
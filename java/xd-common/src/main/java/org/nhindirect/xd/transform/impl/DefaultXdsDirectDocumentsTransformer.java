@@ -9,12 +9,37 @@ import javax.activation.DataHandler;
 
 import org.nhindirect.xd.common.DirectDocument2;
 import org.nhindirect.xd.common.DirectDocuments;
+import org.nhindirect.xd.common.content.ContentDigest;
+import org.nhindirect.xd.common.content.HeapContent;
 import org.nhindirect.xd.common.exception.MetadataException;
 import org.nhindirect.xd.transform.XdsDirectDocumentsTransformer;
 import org.nhindirect.xd.transform.exception.TransformationException;
 
 public class DefaultXdsDirectDocumentsTransformer implements XdsDirectDocumentsTransformer
 {
+    private final boolean streaming;
+
+    /**
+     * Create a transformer which reads each attachment into memory.
+     */
+    public DefaultXdsDirectDocumentsTransformer()
+    {
+        this(false);
+    }
+
+    /**
+     * Create a transformer which, when streaming, attaches the DataSource of
+     * each attachment to its document instead of reading it. The content is
+     * then read once by whoever consumes the documents, and the hash and size
+     * of the request metadata are kept until then.
+     *
+     * @param streaming
+     *            Whether to defer reading the attachments.
+     */
+    public DefaultXdsDirectDocumentsTransformer(boolean streaming)
+    {
+        this.streaming = streaming;
+    }
 
     @Override
     public DirectDocuments transform(ProvideAndRegisterDocumentSetRequestType provideAndRegisterDocumentSetRequestType)
@@ -33,13 +58,27 @@ public class DefaultXdsDirectDocumentsTransformer implements XdsDirectDocumentsT
 
         for (ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType.Document document : provideAndRegisterDocumentSetRequestType.getDocument())
         {
+            DirectDocument2 doc = documents.getDocumentByUniqueId(document.getId());
+
+            if (doc == null)
+            {
+                doc = documents.getDocumentById(document.getId());
+            }
+
+            if (streaming)
+            {
+                doc.setDataSource(document.getValue().getDataSource());
+                continue;
+            }
+
             byte[] data = null;
+            ContentDigest digest = new ContentDigest();
 
             try
             {
                 DataHandler dataHandler = document.getValue();
                 ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                dataHandler.writeTo(outputStream);
+                dataHandler.writeTo(digest.digest(outputStream));
                 data = outputStream.toByteArray();
             }
             catch (IOException e)
@@ -47,18 +86,9 @@ public class DefaultXdsDirectDocumentsTransformer implements XdsDirectDocumentsT
                 throw new TransformationException("Unable to complete transformation due to document IO error", e);
             }
 
-            DirectDocument2 doc = documents.getDocumentByUniqueId(document.getId());
-
-            if (doc != null)
-            {
-                doc.setData(data);
-            }
-            else
-            {
-                documents.getDocumentById(document.getId()).setData(data);
-            }
+            doc.setContent(new HeapContent(data), digest.getSha1());
         }
-        
+
         return documents;
     }
 
@@ -31,6 +31,8 @@ package org.nhindirect.xd.transform.impl;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 
 import org.nhindirect.xd.common.DirectDocuments;
 import org.nhindirect.xd.common.XdmPackage;
@@ -46,7 +48,7 @@ import org.nhindirect.xd.transform.exception.TransformationException;
  */
 public class DefaultXdsXdmTransformer implements XdsXdmTransformer
 {
-    private XdsDirectDocumentsTransformer xdsDirectDocumentsTransformer = new DefaultXdsDirectDocumentsTransformer();
+    private XdsDirectDocumentsTransformer xdsDirectDocumentsTransformer = new DefaultXdsDirectDocumentsTransformer(true);
 
     /*
      * (non-Javadoc)
@@ -65,4 +67,28 @@ public class DefaultXdsXdmTransformer implements XdsXdmTransformer
         return xdmPackage.toFile();
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.nhindirect.transform.XdsXdmTransformer#transform(ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType, java.io.OutputStream)
+     */
+    @Override
+    public void transform(ProvideAndRegisterDocumentSetRequestType provideAndRegisterDocumentSetRequestType,
+            OutputStream outputStream) throws TransformationException
+    {
+        DirectDocuments documents = xdsDirectDocumentsTransformer.transform(provideAndRegisterDocumentSetRequestType);
+
+        XdmPackage xdmPackage = new XdmPackage();
+        xdmPackage.setDocuments(documents);
+
+        try
+        {
+            xdmPackage.writeTo(outputStream);
+        }
+        catch (IOException e)
+        {
+            throw new TransformationException("Unable to write XDM package", e);
+        }
+    }
+
 }
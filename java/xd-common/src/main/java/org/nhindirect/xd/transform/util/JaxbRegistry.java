@@ -0,0 +1,324 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.transform.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Process-wide registry of JAXBContext objects keyed by ObjectFactory class.
+ * Creating a JAXBContext is expensive, while the resulting context is thread
+ * safe and can be shared. Marshaller and Unmarshaller instances are not
+ * thread safe, so they are handed out from small per-context pools and must
+ * be returned with {@link #release(Class, Marshaller)} or
+ * {@link #release(Class, Unmarshaller)} once the caller is done with them.
+ */
+public class JaxbRegistry
+{
+    /**
+     * Default number of idle marshallers (and unmarshallers) kept per context.
+     */
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private static final Log LOGGER = LogFactory.getFactory().getInstance(JaxbRegistry.class);
+
+    private static final JaxbRegistry INSTANCE = new JaxbRegistry(DEFAULT_POOL_SIZE);
+
+    private final ConcurrentMap<Class<?>, Entry> entries = new ConcurrentHashMap<Class<?>, Entry>();
+
+    private final int poolSize;
+
+    private final AtomicLong contextHits = new AtomicLong();
+    private final AtomicLong contextMisses = new AtomicLong();
+    private final AtomicLong poolHits = new AtomicLong();
+    private final AtomicLong poolMisses = new AtomicLong();
+
+    /**
+     * Create a registry.
+     * 
+     * @param poolSize
+     *            The maximum number of idle marshallers and unmarshallers kept
+     *            per context.
+     */
+    public JaxbRegistry(int poolSize)
+    {
+        if (poolSize < 0)
+            throw new IllegalArgumentException("Pool size must not be negative.");
+
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Return the shared registry.
+     * 
+     * @return the shared registry.
+     */
+    public static JaxbRegistry getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Return the context for the given factory class, creating it on first
+     * use.
+     * 
+     * @param factory
+     *            The factory class.
+     * @return the context for the factory class.
+     * @throws JAXBException
+     */
+    public JAXBContext getContext(Class<?> factory) throws JAXBException
+    {
+        return getEntry(factory).context;
+    }
+
+    /**
+     * Create the contexts for the given factory classes ahead of first use,
+     * along with one pooled marshaller and unmarshaller each.
+     * 
+     * @param factories
+     *            The factory classes.
+     * @throws JAXBException
+     */
+    public void warmUp(Class<?>... factories) throws JAXBException
+    {
+        for (Class<?> factory : factories)
+        {
+            Entry entry = getEntry(factory);
+
+            if (entry.marshallers.isEmpty())
+                release(factory, entry.context.createMarshaller());
+            if (entry.unmarshallers.isEmpty())
+                release(factory, entry.context.createUnmarshaller());
+        }
+    }
+
+    /**
+     * Borrow a marshaller for the given factory class.
+     * 
+     * @param factory
+     *            The factory class.
+     * @return a marshaller for the factory class.
+     * @throws JAXBException
+     */
+    public Marshaller acquireMarshaller(Class<?> factory) throws JAXBException
+    {
+        Entry entry = getEntry(factory);
+
+        Marshaller marshaller = entry.marshallers.poll();
+        if (marshaller != null)
+        {
+            entry.idleMarshallers.decrementAndGet();
+            poolHits.incrementAndGet();
+
+            return marshaller;
+        }
+
+        poolMisses.incrementAndGet();
+
+        return entry.context.createMarshaller();
+    }
+
+    /**
+     * Return a marshaller to the pool. Any properties set by the caller are
+     * kept, so callers should only set properties they always set.
+     * 
+     * @param factory
+     *            The factory class the marshaller was acquired for.
+     * @param marshaller
+     *            The marshaller.
+     */
+    public void release(Class<?> factory, Marshaller marshaller)
+    {
+        Entry entry = entries.get(factory);
+
+        if (entry == null || marshaller == null)
+            return;
+
+        if (entry.idleMarshallers.incrementAndGet() <= poolSize)
+            entry.marshallers.offer(marshaller);
+        else
+            entry.idleMarshallers.decrementAndGet();
+    }
+
+    /**
+     * Borrow an unmarshaller for the given factory class.
+     * 
+     * @param factory
+     *            The factory class.
+     * @return an unmarshaller for the factory class.
+     * @throws JAXBException
+     */
+    public Unmarshaller acquireUnmarshaller(Class<?> factory) throws JAXBException
+    {
+        Entry entry = getEntry(factory);
+
+        Unmarshaller unmarshaller = entry.unmarshallers.poll();
+        if (unmarshaller != null)
+        {
+            entry.idleUnmarshallers.decrementAndGet();
+            poolHits.incrementAndGet();
+
+            return unmarshaller;
+        }
+
+        poolMisses.incrementAndGet();
+
+        return entry.context.createUnmarshaller();
+    }
+
+    /**
+     * Return an unmarshaller to the pool.
+     * 
+     * @param factory
+     *            The factory class the unmarshaller was acquired for.
+     * @param unmarshaller
+     *            The unmarshaller.
+     */
+    public void release(Class<?> factory, Unmarshaller unmarshaller)
+    {
+        Entry entry = entries.get(factory);
+
+        if (entry == null || unmarshaller == null)
+            return;
+
+        if (entry.idleUnmarshallers.incrementAndGet() <= poolSize)
+            entry.unmarshallers.offer(unmarshaller);
+        else
+            entry.idleUnmarshallers.decrementAndGet();
+    }
+
+    /**
+     * @return the number of context lookups served from the registry.
+     */
+    public long getContextHits()
+    {
+        return contextHits.get();
+    }
+
+    /**
+     * @return the number of context lookups that created a new context.
+     */
+    public long getContextMisses()
+    {
+        return contextMisses.get();
+    }
+
+    /**
+     * @return the number of marshallers and unmarshallers served from a pool.
+     */
+    public long getPoolHits()
+    {
+        return poolHits.get();
+    }
+
+    /**
+     * @return the number of marshallers and unmarshallers created because a
+     *         pool was empty.
+     */
+    public long getPoolMisses()
+    {
+        return poolMisses.get();
+    }
+
+    /**
+     * Drop all cached contexts and pooled instances and reset the counters.
+     */
+    public void clear()
+    {
+        entries.clear();
+
+        contextHits.set(0);
+        contextMisses.set(0);
+        poolHits.set(0);
+        poolMisses.set(0);
+    }
+
+    private Entry getEntry(Class<?> factory) throws JAXBException
+    {
+        Entry entry = entries.get(factory);
+
+        if (entry != null)
+        {
+            contextHits.incrementAndGet();
+
+            return entry;
+        }
+
+        contextMisses.incrementAndGet();
+
+        try
+        {
+            entry = new Entry(JAXBContext.newInstance(factory));
+        }
+        catch (JAXBException e)
+        {
+            if (LOGGER.isErrorEnabled())
+                LOGGER.error("Failed to create JAXBContext object.", e);
+            throw e;
+        }
+
+        // Another thread may have won the race, use its context
+        Entry existing = entries.putIfAbsent(factory, entry);
+
+        return existing != null ? existing : entry;
+    }
+
+    /**
+     * Context with its idle marshallers and unmarshallers.
+     */
+    private static class Entry
+    {
+        private final JAXBContext context;
+
+        private final Queue<Marshaller> marshallers = new ConcurrentLinkedQueue<Marshaller>();
+        private final Queue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<Unmarshaller>();
+
+        private final AtomicInteger idleMarshallers = new AtomicInteger();
+        private final AtomicInteger idleUnmarshallers = new AtomicInteger();
+
+        private Entry(JAXBContext context)
+        {
+            this.context = context;
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.transform.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Least recently used cache of rendered stylesheet output, bounded by the
+ * total number of bytes held. Entries are keyed by stylesheet, stylesheet
+ * generation and the SHA-1 hash of the input, so output rendered by a
+ * stylesheet that has since been recompiled is never returned.
+ * <p>
+ * All methods are thread safe.
+ */
+public class RenderCache
+{
+    private final long maxBytes;
+
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+    private long sizeInBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a cache.
+     * 
+     * @param maxBytes
+     *            The maximum number of bytes of rendered output held.
+     */
+    public RenderCache(long maxBytes)
+    {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Maximum size must not be negative.");
+
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the cached output for the stylesheet and input hash.
+     * 
+     * @param mapFile
+     *            The map file.
+     * @param generation
+     *            The generation of the compiled stylesheet.
+     * @param hash
+     *            The SHA-1 hash of the input.
+     * @return the cached output, or null if there is none.
+     */
+    public synchronized byte[] get(String mapFile, long generation, String hash)
+    {
+        byte[] output = entries.get(new Key(mapFile, generation, hash));
+
+        if (output == null)
+            misses++;
+        else
+            hits++;
+
+        return output;
+    }
+
+    /**
+     * Cache the output for the stylesheet and input hash, evicting the least
+     * recently used entries to stay within the maximum size. Output larger
+     * than the maximum size is not cached.
+     * 
+     * @param mapFile
+     *            The map file.
+     * @param generation
+     *            The generation of the compiled stylesheet.
+     * @param hash
+     *            The SHA-1 hash of the input.
+     * @param output
+     *            The rendered output. The array must not be modified
+     *            afterwards.
+     */
+    public synchronized void put(String mapFile, long generation, String hash, byte[] output)
+    {
+        if (output.length > maxBytes)
+            return;
+
+        byte[] previous = entries.put(new Key(mapFile, generation, hash), output);
+        if (previous != null)
+            sizeInBytes -= previous.length;
+        sizeInBytes += output.length;
+
+        Iterator<byte[]> iterator = entries.values().iterator();
+        while (sizeInBytes > maxBytes && iterator.hasNext())
+        {
+            sizeInBytes -= iterator.next().length;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove all entries for the stylesheet.
+     * 
+     * @param mapFile
+     *            The map file.
+     */
+    public synchronized void invalidate(String mapFile)
+    {
+        Iterator<Map.Entry<Key, byte[]>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<Key, byte[]> entry = iterator.next();
+
+            if (entry.getKey().mapFile.equals(mapFile))
+            {
+                sizeInBytes -= entry.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all entries and reset the counters.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        sizeInBytes = 0;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * @return the maximum number of bytes of rendered output held.
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of bytes of rendered output currently held.
+     */
+    public synchronized long getSizeInBytes()
+    {
+        return sizeInBytes;
+    }
+
+    /**
+     * @return the number of cached entries.
+     */
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of lookups that found cached output.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that found no cached output.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the maximum size.
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return the fraction of lookups that found cached output, or 0 if there
+     *         have been none.
+     */
+    public synchronized double getHitRate()
+    {
+        long lookups = hits + misses;
+
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private static final class Key
+    {
+        private final String mapFile;
+        private final long generation;
+        private final String hash;
+
+        private Key(String mapFile, long generation, String hash)
+        {
+            this.mapFile = mapFile;
+            this.generation = generation;
+            this.hash = hash.toLowerCase(Locale.ENGLISH);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+
+            return generation == other.generation && mapFile.equals(other.mapFile) && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * mapFile.hashCode() + (int) (generation ^ (generation >>> 32))) + hash.hashCode();
+        }
+    }
+
+}
@@ -29,12 +29,23 @@
 package org.nhindirect.xd.transform.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.Charset;
 
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -46,6 +57,11 @@ import org.apache.commons.logging.LogFactory;
  */
 public class XmlUtils
 {
+    /**
+     * Charset used when writing XML as bytes and no charset is given.
+     */
+    public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
     private static final Log LOGGER = LogFactory.getFactory().getInstance(XmlUtils.class);
 
     /**
@@ -59,20 +75,15 @@ public class XmlUtils
      *            The factory class.
      * @return a marshaled string from the object.
      */
-    @SuppressWarnings("unchecked")
     public static String marshal(QName altName, Object jaxb, Class<?> factory)
     {
         String ret = null;
 
         try
         {
-            javax.xml.bind.JAXBContext jc = javax.xml.bind.JAXBContext.newInstance(factory);
-            Marshaller u = jc.createMarshaller();
-
             StringWriter sw = new StringWriter();
-            u.marshal(new JAXBElement(altName, jaxb.getClass(), jaxb), sw);
-            StringBuffer sb = sw.getBuffer();
-            ret = new String(sb);
+            marshal(altName, jaxb, factory, new StreamResult(sw), DEFAULT_CHARSET);
+            ret = sw.toString();
         }
         catch (Exception ex)
         {
@@ -83,6 +94,110 @@ public class XmlUtils
         return ret;
     }
 
+    /**
+     * Marshal an object into UTF-8 encoded XML.
+     * 
+     * @param altName
+     *            The altName.
+     * @param jaxb
+     *            The object to marshal.
+     * @param factory
+     *            The factory class.
+     * @return the marshaled bytes.
+     * @throws IOException
+     */
+    public static byte[] marshalToBytes(QName altName, Object jaxb, Class<?> factory) throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        marshal(altName, jaxb, factory, outputStream);
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Marshal an object as UTF-8 encoded XML directly to the provided stream.
+     * The stream is not closed.
+     * 
+     * @param altName
+     *            The altName.
+     * @param jaxb
+     *            The object to marshal.
+     * @param factory
+     *            The factory class.
+     * @param outputStream
+     *            The stream to write to.
+     * @throws IOException
+     */
+    public static void marshal(QName altName, Object jaxb, Class<?> factory, OutputStream outputStream) throws IOException
+    {
+        marshal(altName, jaxb, factory, outputStream, DEFAULT_CHARSET);
+    }
+
+    /**
+     * Marshal an object as XML in the given charset directly to the provided
+     * stream. The stream is not closed.
+     * 
+     * @param altName
+     *            The altName.
+     * @param jaxb
+     *            The object to marshal.
+     * @param factory
+     *            The factory class.
+     * @param outputStream
+     *            The stream to write to.
+     * @param charset
+     *            The charset to encode the XML in.
+     * @throws IOException
+     */
+    public static void marshal(QName altName, Object jaxb, Class<?> factory, OutputStream outputStream, Charset charset)
+            throws IOException
+    {
+        try
+        {
+            marshal(altName, jaxb, factory, new StreamResult(outputStream), charset);
+        }
+        catch (JAXBException ex)
+        {
+            if (LOGGER.isWarnEnabled())
+                LOGGER.warn("Failed to marshal message.", ex);
+
+            throw new IOException("Failed to marshal message.", ex);
+        }
+    }
+
+    /**
+     * Marshal an object as XML to the provided result.
+     * 
+     * @param altName
+     *            The altName.
+     * @param jaxb
+     *            The object to marshal.
+     * @param factory
+     *            The factory class.
+     * @param result
+     *            The result to write to.
+     * @param charset
+     *            The charset declared in the XML and used for byte output.
+     * @throws JAXBException
+     */
+    @SuppressWarnings("unchecked")
+    public static void marshal(QName altName, Object jaxb, Class<?> factory, Result result, Charset charset)
+            throws JAXBException
+    {
+        Marshaller u = JaxbRegistry.getInstance().acquireMarshaller(factory);
+
+        try
+        {
+            // Always set, pooled marshallers keep properties
+            u.setProperty(Marshaller.JAXB_ENCODING, charset.name());
+            u.marshal(new JAXBElement(altName, jaxb.getClass(), jaxb), result);
+        }
+        finally
+        {
+            JaxbRegistry.getInstance().release(factory, u);
+        }
+    }
+
     /**
      * Unmarshal an string into an object.
      * 
@@ -94,42 +209,79 @@ public class XmlUtils
      */
     public static Object unmarshal(String xml, Class<?> factory) throws JAXBException
     {
-        javax.xml.bind.JAXBContext jaxbCtx = null;
+        return unmarshal(new StreamSource(new StringReader(xml)), factory);
+    }
+
+    /**
+     * Unmarshal XML bytes into an object. The charset is taken from the XML
+     * declaration, defaulting to UTF-8.
+     * 
+     * @param xml
+     *            The XML bytes.
+     * @param factory
+     *            The factory class.
+     * @return an object representation of the bytes.
+     */
+    public static Object unmarshal(byte[] xml, Class<?> factory) throws JAXBException
+    {
+        return unmarshal(new ByteArrayInputStream(xml), factory);
+    }
+
+    /**
+     * Unmarshal an XML stream into an object. The charset is taken from the
+     * XML declaration, defaulting to UTF-8. The stream may be closed by the
+     * parser.
+     * 
+     * @param xml
+     *            The XML stream.
+     * @param factory
+     *            The factory class.
+     * @return an object representation of the stream.
+     */
+    public static Object unmarshal(InputStream xml, Class<?> factory) throws JAXBException
+    {
+        return unmarshal(new StreamSource(xml), factory);
+    }
+
+    /**
+     * Unmarshal an XML source into an object.
+     * 
+     * @param xml
+     *            The XML source.
+     * @param factory
+     *            The factory class.
+     * @return an object representation of the source.
+     */
+    public static Object unmarshal(Source xml, Class<?> factory) throws JAXBException
+    {
+        Unmarshaller unmarshaller = JaxbRegistry.getInstance().acquireUnmarshaller(factory);
 
         try
         {
-            jaxbCtx = javax.xml.bind.JAXBContext.newInstance(factory);
+            return unmarshal(xml, unmarshaller);
         }
-        catch (JAXBException e)
+        finally
         {
-            if (LOGGER.isErrorEnabled())
-                LOGGER.error("Failed to create JAXBContext object.", e);
-            throw e;
+            JaxbRegistry.getInstance().release(factory, unmarshaller);
         }
-
-        return unmarshal(xml, jaxbCtx);
     }
 
     /**
-     * Unmarshal an string into an object.
+     * Unmarshal an XML source into an object.
      * 
      * @param xml
-     *            The XML string.
-     * @param jaxbCtx
-     *            The JAXBContext object.
-     * @return an object representation of the string.
+     *            The XML source.
+     * @param unmarshaller
+     *            The Unmarshaller object.
+     * @return an object representation of the source.
      */
-    private static Object unmarshal(String xml, javax.xml.bind.JAXBContext jaxbCtx)
+    private static Object unmarshal(Source xml, Unmarshaller unmarshaller)
     {
         Object ret = null;
 
         try
         {
-            byte currentXMLBytes[] = xml.getBytes();
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(currentXMLBytes);
-
-            javax.xml.bind.Unmarshaller unmarshaller = jaxbCtx.createUnmarshaller();
-            ret = unmarshaller.unmarshal(byteArrayInputStream);
+            ret = unmarshaller.unmarshal(xml);
         }
         catch (Exception ex)
         {
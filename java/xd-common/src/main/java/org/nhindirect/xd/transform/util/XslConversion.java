@@ -28,12 +28,28 @@
 
 package org.nhindirect.xd.transform.util;
 
-import java.io.CharArrayReader;
-import java.io.CharArrayWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.sql.Timestamp;
-import java.util.Hashtable;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -44,23 +60,143 @@ import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nhindirect.xd.common.content.ContentDigest;
 
 /**
- * XSL conversion utilities.
+ * XSL conversion utilities. Compiled stylesheets are shared by all instances
+ * and threads; each stylesheet is compiled once, on first use or by
+ * {@link #precompile(String...)}. Transformers are reset and returned to a
+ * bounded per-stylesheet pool after each conversion, so that hot stylesheets
+ * do not pay for a new transformer runtime per document. Rendered output can
+ * optionally be cached with {@link #setRenderCache(RenderCache)}.
  */
 public class XslConversion
 {
+    /**
+     * Stylesheets which are compiled when this class is loaded.
+     */
+    public static final String[] DEFAULT_STYLESHEETS = { "CCD.xsl", "ccdtoccddb.xsl" };
+
+    /**
+     * Default number of idle transformers kept per stylesheet.
+     */
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    private static final ConcurrentMap<String, Future<Stylesheet>> conversions = new ConcurrentHashMap<String, Future<Stylesheet>>();
+
+    private static final AtomicLong generations = new AtomicLong();
 
-    private static Hashtable<String, Templates> conversions = new Hashtable<String, Templates>(10);
+    private static volatile int poolSize = DEFAULT_POOL_SIZE;
+
+    private static volatile RenderCache renderCache;
 
     private static final Log LOGGER = LogFactory.getFactory().getInstance(XslConversion.class);
 
+    static
+    {
+        for (String mapFile : DEFAULT_STYLESHEETS)
+        {
+            try
+            {
+                getStylesheet(mapFile);
+            }
+            catch (TransformerConfigurationException e)
+            {
+                LOGGER.warn("Unable to precompile " + mapFile, e);
+            }
+        }
+    }
+
     /**
      * Default constructor.
      */
     public XslConversion()
     {}
 
+    /**
+     * Compile the given stylesheets ahead of first use.
+     * 
+     * @param mapFiles
+     *            The map files.
+     * @throws TransformerConfigurationException
+     */
+    public static void precompile(String... mapFiles) throws TransformerConfigurationException
+    {
+        for (String mapFile : mapFiles)
+            getStylesheet(mapFile);
+    }
+
+    /**
+     * Compile the given stylesheets again, discarding the previously compiled
+     * versions, their pooled transformers and any cached output they rendered.
+     * 
+     * @param mapFiles
+     *            The map files.
+     * @throws TransformerConfigurationException
+     */
+    public static void recompile(String... mapFiles) throws TransformerConfigurationException
+    {
+        for (String mapFile : mapFiles)
+        {
+            conversions.remove(mapFile);
+
+            RenderCache cache = renderCache;
+            if (cache != null)
+                cache.invalidate(mapFile);
+
+            getStylesheet(mapFile);
+        }
+    }
+
+    /**
+     * Return the cache used by the render methods.
+     * 
+     * @return the render cache, or null if output is not cached.
+     */
+    public static RenderCache getRenderCache()
+    {
+        return renderCache;
+    }
+
+    /**
+     * Set the cache used by the render methods. Output is not cached by
+     * default.
+     * 
+     * @param renderCache
+     *            The render cache, or null to stop caching output.
+     */
+    public static void setRenderCache(RenderCache renderCache)
+    {
+        XslConversion.renderCache = renderCache;
+    }
+
+    /**
+     * Return the number of idle transformers kept per stylesheet.
+     * 
+     * @return the number of idle transformers kept per stylesheet.
+     */
+    public static int getPoolSize()
+    {
+        return poolSize;
+    }
+
+    /**
+     * Set the number of idle transformers kept per stylesheet. A size of zero
+     * disables reuse, so that every conversion creates a new transformer.
+     * Transformers already pooled beyond the new size are discarded as they
+     * are acquired.
+     * 
+     * @param poolSize
+     *            The number of idle transformers kept per stylesheet.
+     */
+    public static void setPoolSize(int poolSize)
+    {
+        if (poolSize < 0)
+            throw new IllegalArgumentException("Pool size must not be negative");
+
+        XslConversion.poolSize = poolSize;
+    }
+
     /**
      * Perform the XSL conversion using the provided map file and message.
      * 
@@ -73,77 +209,308 @@ public class XslConversion
      */
     public String run(String mapFile, String message) throws Exception
     {
-        long start = System.currentTimeMillis();
+        StringWriter to = new StringWriter();
+        run(mapFile, new StreamSource(new StringReader(message)), new StreamResult(to));
+
+        return to.toString();
+    }
 
-        String retXml = "";
-        Transformer transformer = null;
+    /**
+     * Perform the XSL conversion using the provided map file, reading the
+     * message from the input stream and writing the result to the output
+     * stream. Neither stream is closed.
+     * 
+     * @param mapFile
+     *            The map file.
+     * @param inputStream
+     *            The message.
+     * @param outputStream
+     *            The stream to write the result to.
+     * @throws TransformerException
+     */
+    public void run(String mapFile, InputStream inputStream, OutputStream outputStream) throws TransformerException
+    {
+        run(mapFile, new StreamSource(inputStream), new StreamResult(outputStream));
+    }
+
+    /**
+     * Perform the XSL conversion using the provided map file, source and
+     * result.
+     * 
+     * @param mapFile
+     *            The map file.
+     * @param source
+     *            The message.
+     * @param result
+     *            The result to write to.
+     * @throws TransformerException
+     */
+    public void run(String mapFile, Source source, Result result) throws TransformerException
+    {
+        run(mapFile, source, result, null);
+    }
+
+    /**
+     * Perform the XSL conversion using the provided map file, source, result
+     * and stylesheet parameters. Parameters are cleared before the transformer
+     * is reused.
+     * 
+     * @param mapFile
+     *            The map file.
+     * @param source
+     *            The message.
+     * @param result
+     *            The result to write to.
+     * @param parameters
+     *            The stylesheet parameters, or null for none.
+     * @throws TransformerException
+     */
+    public void run(String mapFile, Source source, Result result, Map<String, ?> parameters) throws TransformerException
+    {
+        transform(mapFile, getStylesheetLogged(mapFile), source, result, parameters);
+    }
+
+    /**
+     * Render the message using the provided map file, returning cached output
+     * if the render cache holds output for the same stylesheet and message.
+     * 
+     * @param mapFile
+     *            The map file.
+     * @param message
+     *            The message.
+     * @return the rendered output.
+     * @throws TransformerException
+     */
+    public byte[] render(String mapFile, byte[] message) throws TransformerException
+    {
+        return render(mapFile, message, null);
+    }
+
+    /**
+     * Render the message using the provided map file, returning cached output
+     * if the render cache holds output for the same stylesheet and message.
+     * Callers which already know the SHA-1 hash of the message, such as the
+     * hash carried by document metadata, can pass it to avoid hashing the
+     * message again.
+     * 
+     * @param mapFile
+     *            The map file.
+     * @param message
+     *            The message.
+     * @param hash
+     *            The hex encoded SHA-1 hash of the message, or null to have it
+     *            calculated.
+     * @return the rendered output.
+     * @throws TransformerException
+     */
+    public byte[] render(String mapFile, byte[] message, String hash) throws TransformerException
+    {
+        Stylesheet stylesheet = getStylesheetLogged(mapFile);
+        RenderCache cache = renderCache;
+
+        if (cache == null)
+            return transform(mapFile, stylesheet, message);
+
+        if (hash == null)
+            hash = ContentDigest.sha1(message);
+
+        byte[] output = cache.get(mapFile, stylesheet.generation, hash);
+        if (output == null)
+        {
+            output = transform(mapFile, stylesheet, message);
+            cache.put(mapFile, stylesheet.generation, hash, output);
+        }
+
+        return output.clone();
+    }
+
+    private byte[] transform(String mapFile, Stylesheet stylesheet, byte[] message) throws TransformerException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        transform(mapFile, stylesheet, new StreamSource(new ByteArrayInputStream(message)), new StreamResult(outputStream), null);
+
+        return outputStream.toByteArray();
+    }
+
+    private void transform(String mapFile, Stylesheet stylesheet, Source source, Result result, Map<String, ?> parameters)
+            throws TransformerException
+    {
+        long start = System.currentTimeMillis();
 
         try
         {
-            if (conversions.containsKey(mapFile))
-            {
-                Templates temp = conversions.get(mapFile);
-                transformer = temp.newTransformer();
-                LOGGER.info("From xsl cache");
-            }
-            else
+            Transformer transformer = stylesheet.acquire();
+
+            if (parameters != null)
             {
-                synchronized (conversions)
-                {
-                    if (!conversions.containsKey(mapFile))
-                    {
-                        /*
-                         * Use the static TransformerFactory.newInstance()
-                         * method to instantiate a TransformerFactory. The
-                         * javax.xml.transform.TransformerFactory system
-                         * property setting determines the actual class to
-                         * instantiate --
-                         * org.apache.xalan.transformer.TransformerImpl.
-                         */
-                        TransformerFactory tFactory = TransformerFactory.newInstance();
-
-                        /*
-                         * Use the TransformerFactory to instantiate a Template
-                         * that is thread safe for use in generating Transfomers
-                         */
-                        InputStream is = this.getClass().getClassLoader().getResourceAsStream(mapFile);
-
-                        if (is == null)
-                        {
-                            LOGGER.info("Mapfile did not read " + mapFile);
-                        }
-
-                        Templates temp = tFactory.newTemplates(new StreamSource(is));
-                        transformer = temp.newTransformer();
-                        conversions.put(mapFile, temp);
-                    }
-                }
+                for (Map.Entry<String, ?> parameter : parameters.entrySet())
+                    transformer.setParameter(parameter.getKey(), parameter.getValue());
             }
 
-            CharArrayWriter to = new CharArrayWriter();
-            transformer.transform(new StreamSource(new CharArrayReader(message.toCharArray())), new StreamResult(to));
-            retXml = to.toString();
+            // A transformer which failed is not returned to the pool
+            transformer.transform(source, result);
+            stylesheet.release(transformer);
         }
-        catch (TransformerConfigurationException e)
+        catch (TransformerException e)
         {
             LOGGER.error("Exception occured during XSL conversion", e);
             throw e;
         }
-        catch (TransformerException e)
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Elapsed conversion time for " + mapFile + " was " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static Stylesheet getStylesheetLogged(String mapFile) throws TransformerConfigurationException
+    {
+        try
+        {
+            return getStylesheet(mapFile);
+        }
+        catch (TransformerConfigurationException e)
         {
             LOGGER.error("Exception occured during XSL conversion", e);
             throw e;
         }
+    }
 
-        if (LOGGER.isInfoEnabled())
+    /**
+     * Return the number of idle transformers pooled for the map file.
+     */
+    static int getIdleCount(String mapFile)
+    {
+        Future<Stylesheet> future = conversions.get(mapFile);
+
+        try
+        {
+            return future == null ? 0 : future.get().idleCount.get();
+        }
+        catch (Exception e)
         {
-            long elapse = System.currentTimeMillis() - start;
+            return 0;
+        }
+    }
 
-            LOGGER.info("Started at " + new Timestamp(start).toString());
-            LOGGER.info("Elapsed conversion time was " + elapse + "ms");
+    /**
+     * Return the compiled stylesheet for the map file, compiling it if no other
+     * thread has done so. A failed compilation is not cached.
+     */
+    private static Stylesheet getStylesheet(final String mapFile) throws TransformerConfigurationException
+    {
+        Future<Stylesheet> future = conversions.get(mapFile);
+
+        if (future == null)
+        {
+            FutureTask<Stylesheet> task = new FutureTask<Stylesheet>(new Callable<Stylesheet>()
+            {
+                public Stylesheet call() throws Exception
+                {
+                    return new Stylesheet(compile(mapFile));
+                }
+            });
+
+            future = conversions.putIfAbsent(mapFile, task);
+            if (future == null)
+            {
+                future = task;
+                task.run();
+            }
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new TransformerConfigurationException("Interrupted while compiling " + mapFile, e);
+        }
+        catch (ExecutionException e)
+        {
+            conversions.remove(mapFile, future);
+
+            if (e.getCause() instanceof TransformerConfigurationException)
+                throw (TransformerConfigurationException) e.getCause();
+
+            throw new TransformerConfigurationException("Unable to compile " + mapFile, e.getCause());
+        }
+    }
+
+    private static Templates compile(String mapFile) throws TransformerConfigurationException, IOException
+    {
+        URL url = XslConversion.class.getClassLoader().getResource(mapFile);
+
+        if (url == null)
+        {
+            LOGGER.info("Mapfile did not read " + mapFile);
+            throw new TransformerConfigurationException("Mapfile did not read " + mapFile);
+        }
+
+        /*
+         * Use the static TransformerFactory.newInstance() method to instantiate
+         * a TransformerFactory. The javax.xml.transform.TransformerFactory
+         * system property setting determines the actual class to instantiate.
+         * Factories are not thread safe, so one is created per compilation.
+         */
+        TransformerFactory tFactory = TransformerFactory.newInstance();
+
+        InputStream is = url.openStream();
+        try
+        {
+            // Templates are thread safe for use in generating Transformers
+            return tFactory.newTemplates(new StreamSource(is, url.toExternalForm()));
+        }
+        finally
+        {
+            is.close();
         }
+    }
 
-        return retXml;
+    /**
+     * A compiled stylesheet and its idle transformers.
+     */
+    private static final class Stylesheet
+    {
+        private final Templates templates;
+
+        private final long generation = generations.incrementAndGet();
+
+        private final Queue<Transformer> idle = new ConcurrentLinkedQueue<Transformer>();
+
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        private Stylesheet(Templates templates)
+        {
+            this.templates = templates;
+        }
+
+        private Transformer acquire() throws TransformerConfigurationException
+        {
+            Transformer transformer;
+            while ((transformer = idle.poll()) != null)
+            {
+                // Drop transformers left over from a larger pool size
+                if (idleCount.decrementAndGet() < poolSize)
+                    return transformer;
+            }
+
+            return templates.newTransformer();
+        }
+
+        private void release(Transformer transformer)
+        {
+            if (idleCount.get() >= poolSize)
+                return;
+
+            transformer.clearParameters();
+            transformer.reset();
+
+            if (idleCount.incrementAndGet() <= poolSize)
+                idle.offer(transformer);
+            else
+                idleCount.decrementAndGet();
+        }
     }
 
 }
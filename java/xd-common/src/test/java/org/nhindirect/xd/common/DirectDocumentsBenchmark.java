@@ -0,0 +1,105 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common;
+
+/**
+ * Benchmark of the indexed DirectDocuments lookups. It is not a unit test and
+ * is not run by surefire. Run it from the test classpath, for example with
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.nhindirect.xd.common.DirectDocumentsBenchmark
+ * </pre>
+ * 
+ * For each submission set size, every document is looked up by id, uniqueId
+ * and hash. With indexed lookups the total time grows linearly with the number
+ * of documents and the cost per lookup stays flat. A scan of the list would
+ * grow with the square of the number of documents.
+ */
+public class DirectDocumentsBenchmark
+{
+    private static final int[] SIZES = { 1000, 2000, 4000, 8000, 16000 };
+
+    /**
+     * Run the benchmark.
+     * 
+     * @param args
+     *            The number of timed rounds per size, 5 by default. The best
+     *            round is reported.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        // Warm up
+        for (int i = 0; i < rounds; i++)
+            timeLookups(SIZES[SIZES.length - 1]);
+
+        System.out.println("documents   total ms   ns/lookup");
+        for (int size : SIZES)
+        {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < rounds; i++)
+                best = Math.min(best, timeLookups(size));
+
+            System.out.println(String.format("%9d %10.2f %11.1f", size, best / 1e6, (double) best / (size * 3)));
+        }
+    }
+
+    /**
+     * Return the time taken to look up every document of a new submission set
+     * of the given size, in nanoseconds.
+     */
+    private static long timeLookups(int count) throws Exception
+    {
+        DirectDocuments documents = new DirectDocuments();
+
+        for (int i = 0; i < count; i++)
+        {
+            DirectDocument2 document = new DirectDocument2();
+            document.getMetadata().setId("id." + i);
+            document.getMetadata().setUniqueId("unique." + i);
+            document.setData(("data." + i).getBytes("UTF-8"));
+            documents.getDocuments().add(document);
+        }
+
+        long start = System.nanoTime();
+        for (DirectDocument2 document : documents.getDocuments())
+        {
+            DirectDocument2.Metadata metadata = document.getMetadata();
+
+            if (documents.getDocumentById(metadata.getId()) != document
+                    || documents.getDocumentByUniqueId(metadata.getUniqueId()) != document
+                    || documents.getDocumentByHash(metadata.getHash()) != document)
+                throw new IllegalStateException("Lookup returned the wrong document for " + metadata.getId());
+        }
+
+        return System.nanoTime() - start;
+    }
+}
@@ -28,11 +28,25 @@
 
 package org.nhindirect.xd.common;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nhindirect.xd.common.type.ClassCodeEnum;
@@ -42,6 +56,9 @@ import org.nhindirect.xd.common.type.LoincEnum;
 import org.nhindirect.xd.common.type.PracticeSettingCodeEnum;
 import org.nhindirect.xd.transform.pojo.SimplePerson;
 import org.nhindirect.xd.transform.util.type.MimeType;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 /**
  * Test class for the DirectDocuments class.
@@ -50,7 +67,6 @@ import org.nhindirect.xd.transform.util.type.MimeType;
  */
 public class DirectDocumentsTest extends TestCase
 {
-    @SuppressWarnings("unused")
     private static final Log LOGGER = LogFactory.getFactory().getInstance(DirectDocumentsTest.class);
 
     /**
@@ -176,4 +192,458 @@ public class DirectDocumentsTest extends TestCase
         System.out.println(documents.getSubmitObjectsRequestAsString());
     }
 
+    /**
+     * Test that lookups follow changes to the document list and to document
+     * keys.
+     */
+    public void testDocumentLookup()
+    {
+        DirectDocuments documents = new DirectDocuments();
+
+        DirectDocument2 doc1 = new DirectDocument2();
+        doc1.getMetadata().setId("ID-1");
+        doc1.getMetadata().setUniqueId("UNIQUE-1");
+
+        DirectDocument2 doc2 = new DirectDocument2();
+        doc2.getMetadata().setId("ID-2");
+
+        documents.getDocuments().add(doc1);
+        documents.getDocuments().add(doc2);
+
+        assertSame("Lookup by id failed", doc1, documents.getDocumentById("id-1"));
+        assertSame("Lookup by uniqueId failed", doc1, documents.getDocumentByUniqueId("unique-1"));
+        assertSame("Lookup by identifier failed", doc2, documents.getDocument("ID-2"));
+
+        doc2.setData("data2".getBytes());
+        assertSame("Lookup by hash failed", doc2, documents.getDocumentByHash(doc2.getMetadata().getHash().toUpperCase()));
+
+        doc1.getMetadata().setId("ID-1.1");
+        assertNull("Stale id still indexed", documents.getDocumentById("ID-1"));
+        assertSame("Lookup by new id failed", doc1, documents.getDocumentById("ID-1.1"));
+
+        DirectDocument2.Metadata metadata = new DirectDocument2.Metadata();
+        metadata.setId("ID-2.1");
+        doc2.setMetadata(metadata);
+        assertNull("Replaced metadata still indexed", documents.getDocumentById("ID-2"));
+        assertSame("Lookup by replaced metadata failed", doc2, documents.getDocumentById("ID-2.1"));
+
+        documents.getDocuments().remove(doc1);
+        assertNull("Removed document still indexed", documents.getDocumentById("ID-1.1"));
+    }
+
+    /**
+     * Test that indexed lookups agree with a scan of the document list after a
+     * random sequence of list changes and key changes, including changes to
+     * documents which were removed from the list.
+     * 
+     * @throws Exception
+     */
+    public void testLookupConsistency() throws Exception
+    {
+        Random random = new Random(42);
+        DirectDocuments documents = new DirectDocuments();
+        List<DirectDocument2> removed = new ArrayList<DirectDocument2>();
+
+        for (int i = 0; i < 2000; i++)
+        {
+            List<DirectDocument2> list = documents.getDocuments();
+            int operation = list.isEmpty() ? 0 : random.nextInt(8);
+
+            if (operation == 0)
+            {
+                list.add(random.nextInt(list.size() + 1), newDocument(random));
+            }
+            else if (operation == 1)
+            {
+                removed.add(list.remove(random.nextInt(list.size())));
+            }
+            else if (operation == 2)
+            {
+                removed.add(list.set(random.nextInt(list.size()), newDocument(random)));
+            }
+            else if (operation == 3)
+            {
+                list.get(random.nextInt(list.size())).getMetadata().setId(randomKey(random, "ID-"));
+            }
+            else if (operation == 4)
+            {
+                list.get(random.nextInt(list.size())).getMetadata().setUniqueId(randomKey(random, "UNIQUE-"));
+            }
+            else if (operation == 5)
+            {
+                list.get(random.nextInt(list.size())).setData(randomKey(random, "data-").getBytes("UTF-8"));
+            }
+            else if (operation == 6)
+            {
+                list.get(random.nextInt(list.size())).setMetadata(newDocument(random).getMetadata());
+            }
+            else if (!removed.isEmpty())
+            {
+                removed.get(random.nextInt(removed.size())).getMetadata().setId(randomKey(random, "ID-"));
+            }
+
+            for (int key = 0; key < 8; key++)
+            {
+                String id = "id-" + key;
+                String uniqueId = "UNIQUE-" + key;
+                String hash = DirectDocument2.getSha1Hash(("data-" + key).getBytes("UTF-8")).toUpperCase();
+
+                assertSame("Lookup by id differs after step " + i, scan(list, DirectDocument2.Key.ID, id),
+                        documents.getDocumentById(id));
+                assertSame("Lookup by uniqueId differs after step " + i, scan(list, DirectDocument2.Key.UNIQUE_ID, uniqueId),
+                        documents.getDocumentByUniqueId(uniqueId));
+                assertSame("Lookup by hash differs after step " + i, scan(list, DirectDocument2.Key.HASH, hash),
+                        documents.getDocumentByHash(hash));
+            }
+        }
+    }
+
+    /**
+     * Test that changes to a list passed to setDocuments do not reach the
+     * documents or their indexes.
+     * 
+     * @throws Exception
+     */
+    public void testSetDocumentsCopy() throws Exception
+    {
+        DirectDocument2 first = new DirectDocument2();
+        first.getMetadata().setId("first");
+        DirectDocument2 second = new DirectDocument2();
+        second.getMetadata().setId("second");
+
+        List<DirectDocument2> list = new ArrayList<DirectDocument2>();
+        list.add(first);
+
+        DirectDocuments documents = new DirectDocuments();
+        documents.setDocuments(list);
+
+        list.add(second);
+        list.remove(first);
+
+        assertEquals(1, documents.getDocuments().size());
+        assertSame(first, documents.getDocumentById("first"));
+        assertNull(documents.getDocumentById("second"));
+    }
+
+    private static DirectDocument2 newDocument(Random random) throws Exception
+    {
+        DirectDocument2 document = new DirectDocument2();
+        document.getMetadata().setId(randomKey(random, "ID-"));
+        document.getMetadata().setUniqueId(randomKey(random, "UNIQUE-"));
+        document.setData(randomKey(random, "data-").getBytes("UTF-8"));
+
+        return document;
+    }
+
+    /**
+     * Return one of a few key values, so that documents share keys.
+     */
+    private static String randomKey(Random random, String prefix)
+    {
+        return prefix + random.nextInt(8);
+    }
+
+    /**
+     * Return the first document in the list with the given key value, ignoring
+     * case, as the indexed lookups should.
+     */
+    private static DirectDocument2 scan(List<DirectDocument2> documents, DirectDocument2.Key key, String value)
+    {
+        for (DirectDocument2 document : documents)
+        {
+            if (value.equalsIgnoreCase(key.get(document.getMetadata())))
+                return document;
+        }
+
+        return null;
+    }
+
+    /**
+     * Test that the StAX parser reads the same values as the JAXB parser from
+     * the sample SubmitObjectsRequest.
+     * 
+     * @throws Exception
+     */
+    public void testSetValuesStax() throws Exception
+    {
+        byte[] xml = getSampleSubmitObjectsRequest().getBytes("UTF-8");
+
+        DirectDocuments jaxb = new DirectDocuments();
+        jaxb.setValues(xml, DirectDocuments.Parser.JAXB);
+
+        DirectDocuments stax = new DirectDocuments();
+        stax.setValues(xml, DirectDocuments.Parser.STAX);
+
+        assertEquals("Unexpected document count", 1, stax.getDocuments().size());
+        assertEquals("Unexpected patientId", "AAA^^^&BBB", stax.getDocuments().get(0).getMetadata().getPatientId());
+        assertEquals("Unexpected status", "SubmissionSetStatus", stax.getDocuments().get(0).getMetadata().getSubmissionSetStatus());
+        assertEquivalent(jaxb, stax);
+    }
+
+    /**
+     * Test that the StAX parser reads a SubmitObjectsRequest nested in a SOAP
+     * message.
+     * 
+     * @throws Exception
+     */
+    public void testSetValuesStaxSoap() throws Exception
+    {
+        String sor = getSampleSubmitObjectsRequest();
+
+        DirectDocuments jaxb = new DirectDocuments();
+        jaxb.setValues(sor.getBytes("UTF-8"), DirectDocuments.Parser.JAXB);
+
+        String soap = "<soapenv:Envelope xmlns:soapenv=\"http://www.w3.org/2003/05/soap-envelope\"><soapenv:Body>"
+                + "<xdsb:ProvideAndRegisterDocumentSetRequest xmlns:xdsb=\"urn:ihe:iti:xds-b:2007\">"
+                + sor.substring(sor.indexOf("?>") + 2) + "</xdsb:ProvideAndRegisterDocumentSetRequest></soapenv:Body></soapenv:Envelope>";
+
+        DirectDocuments stax = new DirectDocuments();
+        stax.setValues(soap.getBytes("UTF-8"), DirectDocuments.Parser.STAX);
+
+        assertEquivalent(jaxb, stax);
+    }
+
+    /**
+     * Test that both parsers read back the same values from generated
+     * metadata.
+     * 
+     * @throws Exception
+     */
+    public void testSetValuesRoundTrip() throws Exception
+    {
+        DirectDocuments documents = new DirectDocuments();
+
+        documents.getSubmissionSet().setId("1");
+        documents.getSubmissionSet().setName("2");
+        documents.getSubmissionSet().setDescription("3");
+        documents.getSubmissionSet().setSubmissionTime(new Date());
+        documents.getSubmissionSet().setIntendedRecipient(Arrays.asList("5.1", "5.2"));
+        documents.getSubmissionSet().setAuthorPerson("6");
+        documents.getSubmissionSet().setAuthorInstitution(Arrays.asList("7.1", "7.2"));
+        documents.getSubmissionSet().setContentTypeCode("11");
+        documents.getSubmissionSet().setContentTypeCode_localized("12");
+        documents.getSubmissionSet().setUniqueId("13");
+        documents.getSubmissionSet().setSourceId("14");
+        documents.getSubmissionSet().setPatientId("xxx");
+
+        for (int i = 1; i <= 2; i++)
+        {
+            DirectDocument2 document = new DirectDocument2();
+            document.setData(("data for document " + i).getBytes());
+
+            DirectDocument2.Metadata metadata = document.getMetadata();
+            metadata.setMimeType(MimeType.TEXT_XML.getType());
+            metadata.setId(i + ".2");
+            metadata.setDescription(i + ".3");
+            metadata.setCreationTime(new Date());
+            metadata.setSourcePatient(new SimplePerson(i + ".Bob", i + ".Smith"));
+            metadata.setAuthorPerson(i + ".10");
+            metadata.setAuthorInstitution(Arrays.asList(i + ".11.1", i + ".11.2"));
+            metadata.setClassCode(ClassCodeEnum.HISTORY_AND_PHYSICAL.getValue());
+            metadata.setClassCode_localized(ClassCodeEnum.HISTORY_AND_PHYSICAL.getValue());
+            metadata.setFormatCode(FormatCodeEnum.HL7_CCD_DOCUMENT);
+            metadata.setLoinc(LoincEnum.LOINC_34133_9.getValue());
+            metadata.setPatientId("xxx");
+            metadata.setUniqueId(i + ".27");
+
+            documents.getDocuments().add(document);
+        }
+
+        byte[] xml = documents.getSubmitObjectsRequestAsString().getBytes("UTF-8");
+
+        DirectDocuments jaxb = new DirectDocuments();
+        jaxb.setValues(xml, DirectDocuments.Parser.JAXB);
+
+        DirectDocuments stax = new DirectDocuments();
+        stax.setValues(xml, DirectDocuments.Parser.STAX);
+
+        assertEquals("Unexpected document count", 2, stax.getDocuments().size());
+        assertEquivalent(jaxb, stax);
+    }
+
+    /**
+     * Test that the streaming writer output matches the golden file, which
+     * holds the JAXB output for the same documents.
+     * 
+     * @throws Exception
+     */
+    public void testWriteSubmitObjectsRequest() throws Exception
+    {
+        DirectDocuments documents = getGoldenDocuments();
+
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("submitobjectsrequest_golden.xml");
+        byte[] golden = IOUtils.toByteArray(is);
+        is.close();
+
+        byte[] jaxb = documents.getSubmitObjectsRequestAsString().getBytes("UTF-8");
+        assertEquals("JAXB output does not match the golden file", canonicalize(golden), canonicalize(jaxb));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        documents.writeSubmitObjectsRequest(outputStream);
+        assertEquals("Output does not match the golden file", canonicalize(golden), canonicalize(outputStream.toByteArray()));
+    }
+
+    /**
+     * Test that the streaming writer output matches the JAXB output for an
+     * empty set of documents.
+     * 
+     * @throws Exception
+     */
+    public void testWriteSubmitObjectsRequestEmpty() throws Exception
+    {
+        DirectDocuments documents = new DirectDocuments();
+        documents.getSubmissionSet().setId(null);
+        documents.getDocuments().add(new DirectDocument2());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        documents.writeSubmitObjectsRequest(outputStream);
+
+        assertEquals("Output does not match JAXB", canonicalize(documents.getSubmitObjectsRequestAsString().getBytes("UTF-8")),
+                canonicalize(outputStream.toByteArray()));
+    }
+
+    /**
+     * Return a namespace-aware canonical form of an XML document. Elements and
+     * attributes are written by namespace URI and local name, attributes are
+     * sorted and namespace declarations are left out, so documents which only
+     * differ in their namespace prefixes have the same canonical form.
+     */
+    private static String canonicalize(byte[] xml) throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+
+        StringBuilder builder = new StringBuilder();
+        canonicalize(document.getDocumentElement(), builder);
+
+        return builder.toString();
+    }
+
+    private static void canonicalize(Node node, StringBuilder builder)
+    {
+        if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE)
+        {
+            builder.append(node.getNodeValue());
+            return;
+        }
+
+        if (node.getNodeType() != Node.ELEMENT_NODE)
+            return;
+
+        String name = "{" + StringUtils.defaultString(node.getNamespaceURI()) + "}" + node.getLocalName();
+
+        Map<String, String> attributes = new TreeMap<String, String>();
+        NamedNodeMap nodeMap = node.getAttributes();
+        for (int i = 0; i < nodeMap.getLength(); i++)
+        {
+            Node attribute = nodeMap.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI()))
+                continue;
+
+            attributes.put("{" + StringUtils.defaultString(attribute.getNamespaceURI()) + "}" + attribute.getLocalName(), attribute.getNodeValue());
+        }
+
+        builder.append('<').append(name);
+        for (Map.Entry<String, String> attribute : attributes.entrySet())
+            builder.append(' ').append(attribute.getKey()).append("=\"").append(attribute.getValue()).append('"');
+        builder.append('>');
+
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+            canonicalize(child, builder);
+
+        builder.append("</").append(name).append('>');
+    }
+
+    /**
+     * Documents for the golden file. Values include characters which need
+     * escaping and characters outside ASCII.
+     */
+    private static DirectDocuments getGoldenDocuments() throws Exception
+    {
+        String[] patterns = new String[] { "yyyyMMddHHmmss" };
+        DirectDocuments documents = new DirectDocuments();
+
+        documents.getSubmissionSet().setId("ss-1");
+        documents.getSubmissionSet().setName("Submission & <set>");
+        documents.getSubmissionSet().setDescription("\"Quoted\" 'text' \u00e9\u65e5");
+        documents.getSubmissionSet().setSubmissionTime(DateUtils.parseDate("20110102030405", patterns));
+        documents.getSubmissionSet().setIntendedRecipient(Arrays.asList("a@example.com", "b@example.com"));
+        documents.getSubmissionSet().setAuthorPerson("Author <a@example.com>");
+        documents.getSubmissionSet().setAuthorInstitution(Arrays.asList("Inst 1", "Inst 2"));
+        documents.getSubmissionSet().setAuthorTelecommunication("tel:555");
+        documents.getSubmissionSet().setContentTypeCode("Content");
+        documents.getSubmissionSet().setUniqueId("1.2.3");
+        documents.getSubmissionSet().setSourceId("1.2.4");
+        documents.getSubmissionSet().setPatientId("pid^^^&1.2.5&ISO");
+
+        DirectDocument2 doc1 = new DirectDocument2();
+        doc1.setData("document 1".getBytes("UTF-8"));
+
+        DirectDocument2.Metadata metadata1 = doc1.getMetadata();
+        metadata1.setMimeType(MimeType.TEXT_XML.getType());
+        metadata1.setId("doc-1");
+        metadata1.setDescription("A > B & C");
+        metadata1.setCreationTime(DateUtils.parseDate("20100101123000", patterns));
+        metadata1.setLanguageCode("en-US");
+        metadata1.setServiceStartTime(DateUtils.parseDate("20100101000000", patterns));
+        metadata1.setServiceStopTime(DateUtils.parseDate("20100102000000", patterns));
+        metadata1.setSourcePatient(new SimplePerson("Bob", "Sm\u00eeth"));
+        metadata1.setAuthorPerson("Dr. \"Who\"");
+        metadata1.setAuthorInstitution(Arrays.asList("Inst 1"));
+        metadata1.setAuthorRole("Role");
+        metadata1.setClassCode(ClassCodeEnum.HISTORY_AND_PHYSICAL.getValue(), true);
+        metadata1.setConfidentialityCode("N");
+        metadata1.setFormatCode(FormatCodeEnum.HL7_CCD_DOCUMENT);
+        metadata1.setHealthcareFacilityTypeCode(HealthcareFacilityTypeCodeEnum.OF.getValue());
+        metadata1.setPracticeSettingCode(PracticeSettingCodeEnum.MULTIDISCIPLINARY.getValue());
+        metadata1.setLoinc(LoincEnum.LOINC_34133_9.getValue());
+        metadata1.setPatientId("pid^^^&1.2.5&ISO");
+        metadata1.setUniqueId("1.2.6");
+        metadata1.setURI("doc-1.xml");
+        metadata1.setSubmissionSetStatus("Original");
+
+        // Mostly empty document
+        DirectDocument2 doc2 = new DirectDocument2();
+        doc2.getMetadata().setId("doc-2");
+
+        documents.getDocuments().add(doc1);
+        documents.getDocuments().add(doc2);
+
+        return documents;
+    }
+
+    private static void assertEquivalent(DirectDocuments expected, DirectDocuments actual)
+    {
+        assertEquals("Submission sets differ", expected.getSubmissionSet().toString(), actual.getSubmissionSet().toString());
+        assertEquals("Document counts differ", expected.getDocuments().size(), actual.getDocuments().size());
+
+        for (int i = 0; i < expected.getDocuments().size(); i++)
+        {
+            DirectDocument2.Metadata expectedMetadata = expected.getDocuments().get(i).getMetadata();
+            DirectDocument2.Metadata actualMetadata = actual.getDocuments().get(i).getMetadata();
+
+            assertEquals("Metadata differs", expectedMetadata.toString(), actualMetadata.toString());
+            assertEquals("Status differs", expectedMetadata.getSubmissionSetStatus(), actualMetadata.getSubmissionSetStatus());
+        }
+    }
+
+    /**
+     * Get the sample SubmitObjectsRequest. The fixture is stored quoted and
+     * with JAXB type names as element names, so it is normalized to ebRIM
+     * element names first.
+     */
+    private String getSampleSubmitObjectsRequest() throws Exception
+    {
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("submitobjectrequest.xml");
+        String xml = IOUtils.toString(is, "UTF-8");
+        is.close();
+
+        xml = StringUtils.removeEnd(StringUtils.removeStart(xml.trim(), "\""), "\"");
+
+        return xml.replaceAll("(</?)(ExtrinsicObject|RegistryPackage|Classification)Type\\b", "$1$2")
+                .replaceAll("(</?)AssociationType1\\b", "$1Association");
+    }
+
 }
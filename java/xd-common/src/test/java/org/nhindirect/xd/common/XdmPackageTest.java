@@ -28,14 +28,28 @@
 
 package org.nhindirect.xd.common;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.activation.DataHandler;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.nhindirect.xd.common.content.ZipEntryContent;
 import org.nhindirect.xd.common.type.ClassCodeEnum;
 import org.nhindirect.xd.common.type.FormatCodeEnum;
 import org.nhindirect.xd.common.type.HealthcareFacilityTypeCodeEnum;
@@ -162,4 +176,230 @@ public class XdmPackageTest extends TestCase
         File f2 = xdmPackage.toFile();
         System.out.println(f2.getAbsolutePath());
     }
+    
+    /**
+     * Test the writeTo method.
+     * 
+     * @throws Exception
+     */
+    public void testWriteTo() throws Exception
+    {
+        URL url = XdmPackageTest.class.getClassLoader().getResource("samplexdm.zip");
+        File file = new File(url.getPath());
+        
+        XdmPackage xdmPackage = XdmPackage.fromXdmZipFile(file);
+        
+        // The entry names and index links drop the urn:uuid: prefix
+        for (DirectDocument2 document : xdmPackage.getDocuments().getDocuments())
+            document.getMetadata().setId("urn:uuid:" + UUID.randomUUID());
+        
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        xdmPackage.writeTo(outputStream);
+        
+        List<String> names = new ArrayList<String>();
+        String index = null;
+        ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+        ZipEntry zipEntry = null;
+        while ((zipEntry = zipInputStream.getNextEntry()) != null)
+        {
+            names.add(zipEntry.getName());
+            if ("INDEX.htm".equals(zipEntry.getName()))
+                index = IOUtils.toString(zipInputStream, "UTF-8");
+        }
+        zipInputStream.close();
+        
+        assertTrue("Missing INDEX.htm", names.contains("INDEX.htm"));
+        assertTrue("Missing README.txt", names.contains("README.txt"));
+        assertTrue("Missing metadata", names.contains("IHE_XDM/SUBSET01/METADATA.xml"));
+        
+        int withData = 0;
+        for (DirectDocument2 document : xdmPackage.getDocuments().getDocuments())
+        {
+            if (document.getData() != null)
+                withData++;
+        }
+        assertEquals("Unexpected number of entries", withData + 4, names.size());
+        
+        for (String links : new String[] { index, xdmPackage.getIndex() })
+        {
+            List<String> hrefs = getLinks(links);
+            assertEquals("Unexpected number of index links", withData, hrefs.size());
+            for (String href : hrefs)
+                assertTrue("Index links to a missing entry " + href, names.contains(href));
+        }
+    }
+    
+    private static List<String> getLinks(String index)
+    {
+        List<String> hrefs = new ArrayList<String>();
+        Matcher matcher = Pattern.compile("href=\"(IHE_XDM/SUBSET01/[^\"]*)\"").matcher(index);
+        while (matcher.find())
+            hrefs.add(matcher.group(1));
+        
+        return hrefs;
+    }
+    
+    /**
+     * Test that packages written without the separator after the subset
+     * folder (IHE_XDM/SUBSET01METADATA.xml) can still be read.
+     * 
+     * @throws Exception
+     */
+    public void testFromLegacyLayout() throws Exception
+    {
+        URL url = XdmPackageTest.class.getClassLoader().getResource("samplexdm.zip");
+        XdmPackage expected = XdmPackage.fromXdmZipFile(new File(url.getPath()));
+        
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        expected.writeTo(outputStream);
+        
+        ByteArrayOutputStream legacyStream = new ByteArrayOutputStream();
+        ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+        ZipOutputStream zipOutputStream = new ZipOutputStream(legacyStream);
+        ZipEntry zipEntry = null;
+        while ((zipEntry = zipInputStream.getNextEntry()) != null)
+        {
+            zipOutputStream.putNextEntry(new ZipEntry(zipEntry.getName().replace("IHE_XDM/SUBSET01/", "IHE_XDM/SUBSET01")));
+            IOUtils.copy(zipInputStream, zipOutputStream);
+            zipOutputStream.closeEntry();
+        }
+        zipInputStream.close();
+        zipOutputStream.close();
+        
+        File legacyFile = File.createTempFile("legacyxdm", ".zip");
+        legacyFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(legacyFile, legacyStream.toByteArray());
+        
+        XdmPackage[] actuals = { XdmPackage.fromXdmZipInputStream(new ByteArrayInputStream(legacyStream.toByteArray())),
+                XdmPackage.fromXdmZipFile(legacyFile), XdmPackage.fromXdmZipFile(legacyFile, true) };
+        for (XdmPackage actual : actuals)
+        {
+            assertEquals("Submission set does not match", expected.getDocuments().getSubmissionSet(), actual.getDocuments().getSubmissionSet());
+            assertEquals("Document count does not match", expected.getDocuments().getDocuments().size(), actual.getDocuments().getDocuments().size());
+            for (DirectDocument2 document : expected.getDocuments().getDocuments())
+            {
+                if (document.getData() == null)
+                    continue;
+                
+                DirectDocument2 match = actual.getDocuments().getDocumentByHash(document.getMetadata().getHash());
+                assertNotNull("Missing document", match);
+                assertTrue("Document data does not match", Arrays.equals(document.getData(), match.getData()));
+            }
+        }
+    }
+    
+    /**
+     * Test that the streaming reader matches documents to the metadata whether
+     * they come before or after METADATA.xml.
+     * 
+     * @throws Exception
+     */
+    public void testFromXdmZipInputStreamMetadataFirst() throws Exception
+    {
+        URL url = XdmPackageTest.class.getClassLoader().getResource("samplexdm.zip");
+        XdmPackage expected = XdmPackage.fromXdmZipFile(new File(url.getPath()));
+        
+        ByteArrayOutputStream reorderedStream = new ByteArrayOutputStream();
+        ZipOutputStream zipOutputStream = new ZipOutputStream(reorderedStream);
+        for (boolean metadata : new boolean[] { true, false })
+        {
+            ZipInputStream zipInputStream = new ZipInputStream(url.openStream());
+            ZipEntry zipEntry = null;
+            while ((zipEntry = zipInputStream.getNextEntry()) != null)
+            {
+                if (zipEntry.isDirectory() || zipEntry.getName().endsWith("METADATA.xml") != metadata)
+                    continue;
+                
+                zipOutputStream.putNextEntry(new ZipEntry(zipEntry.getName()));
+                IOUtils.copy(zipInputStream, zipOutputStream);
+                zipOutputStream.closeEntry();
+            }
+            zipInputStream.close();
+        }
+        zipOutputStream.close();
+        
+        XdmPackage actual = XdmPackage.fromXdmZipInputStream(new ByteArrayInputStream(reorderedStream.toByteArray()));
+        
+        assertEquals("Submission set does not match", expected.getDocuments().getSubmissionSet(), actual.getDocuments().getSubmissionSet());
+        assertEquals("Document count does not match", expected.getDocuments().getDocuments().size(), actual.getDocuments().getDocuments().size());
+        for (DirectDocument2 document : expected.getDocuments().getDocuments())
+        {
+            DirectDocument2 match = actual.getDocuments().getDocumentByHash(document.getMetadata().getHash());
+            assertNotNull("Missing document", match);
+            assertEquals("Document MIME type does not match", document.getMetadata().getMimeType(), match.getMetadata().getMimeType());
+            assertTrue("Document data does not match", Arrays.equals(document.getData(), match.getData()));
+        }
+    }
+    
+    /**
+     * Test that the streaming reader matches the ZipFile reader.
+     * 
+     * @throws Exception
+     */
+    public void testFromXdmZipDataHandler() throws Exception
+    {
+        URL url = XdmPackageTest.class.getClassLoader().getResource("samplexdm.zip");
+        
+        XdmPackage fromFile = XdmPackage.fromXdmZipFile(new File(url.getPath()));
+        XdmPackage fromStream = XdmPackage.fromXdmZipDataHandler(new DataHandler(url));
+        
+        List<DirectDocument2> expected = fromFile.getDocuments().getDocuments();
+        List<DirectDocument2> actual = fromStream.getDocuments().getDocuments();
+        
+        assertEquals("Document count does not match", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals("Document MIME type does not match", expected.get(i).getMetadata().getMimeType(), actual.get(i).getMetadata().getMimeType());
+            assertEquals("Document hash does not match", expected.get(i).getMetadata().getHash(), actual.get(i).getMetadata().getHash());
+        }
+        assertEquals("Submission set does not match", fromFile.getDocuments().getSubmissionSet(), fromStream.getDocuments().getSubmissionSet());
+    }
+
+    /**
+     * Test that a lazily read package only inflates documents on demand and
+     * matches the eagerly read package.
+     * 
+     * @throws Exception
+     */
+    public void testFromXdmZipFileLazy() throws Exception
+    {
+        URL url = XdmPackageTest.class.getClassLoader().getResource("samplexdm.zip");
+        File file = new File(url.getPath());
+
+        XdmPackage eager = XdmPackage.fromXdmZipFile(file);
+        XdmPackage lazy = XdmPackage.fromXdmZipFile(file, true);
+
+        try
+        {
+            List<DirectDocument2> expected = eager.getDocuments().getDocuments();
+            List<DirectDocument2> actual = lazy.getDocuments().getDocuments();
+
+            assertEquals("Document count does not match", expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++)
+            {
+                DirectDocument2 document = actual.get(i);
+
+                assertTrue("Document not backed by the archive", document.getContent() instanceof ZipEntryContent);
+                assertEquals("Document ID does not match", expected.get(i).getMetadata().getId(), document.getMetadata().getId());
+                assertEquals("Document size does not match", expected.get(i).getMetadata().getSize(), document.getMetadata().getSize());
+                assertTrue("Document content does not match", Arrays.equals(expected.get(i).getData(), document.getData()));
+            }
+        }
+        finally
+        {
+            lazy.close();
+        }
+
+        // Released with the archive
+        try
+        {
+            lazy.getDocuments().getDocuments().get(0).getData();
+            fail("Read a document from a closed package");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+
+        lazy.close();
+    }
 }
@@ -0,0 +1,147 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.nhindirect.xd.common.DirectDocument2;
+
+/**
+ * Test the ContentDigest class.
+ */
+public class ContentDigestTest extends TestCase
+{
+    private byte[] data;
+    private String sha1;
+    private String sha256;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see junit.framework.TestCase#setUp()
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        // Binary content, which does not survive a round trip through a String
+        data = new byte[50000];
+        new Random(2).nextBytes(data);
+
+        sha1 = new String(Hex.encodeHex(MessageDigest.getInstance("SHA-1").digest(data)));
+        sha256 = new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(data)));
+    }
+
+    /**
+     * Test digests of streams being copied.
+     * 
+     * @throws Exception
+     */
+    public void testDigest() throws Exception
+    {
+        ContentDigest digest = new ContentDigest(true);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertEquals("Unexpected count", data.length, digest.copy(new ByteArrayInputStream(data), outputStream));
+        assertDigest(digest);
+
+        digest = new ContentDigest(true);
+        InputStream inputStream = digest.digest(new ByteArrayInputStream(data));
+        assertEquals("Unexpected first byte", data[0] & 0xff, inputStream.read());
+        IOUtils.toByteArray(inputStream);
+        assertDigest(digest);
+
+        digest = new ContentDigest(true);
+        OutputStream digestingStream = digest.digest(new ByteArrayOutputStream());
+        digestingStream.write(data[0]);
+        digestingStream.write(data, 1, data.length - 1);
+        assertDigest(digest);
+
+        try
+        {
+            digest.update(data, 0, 1);
+            fail("Updated a complete digest");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+
+        assertNull("SHA-256 not requested", new ContentDigest().getSha256());
+    }
+
+    /**
+     * Test that documents are hashed over their bytes.
+     * 
+     * @throws Exception
+     */
+    public void testDocumentHash() throws Exception
+    {
+        assertEquals("Unexpected array hash", sha1, ContentDigest.sha1(data));
+        assertEquals("Unexpected document hash", sha1, DirectDocument2.getSha1Hash(data));
+
+        DirectDocument2 document = new DirectDocument2();
+        document.setData(data);
+        assertEquals("Unexpected data hash", sha1, document.getMetadata().getHash());
+
+        File file = File.createTempFile("xd-", ".pdf");
+        try
+        {
+            FileUtils.writeByteArrayToFile(file, data);
+
+            assertEquals("Unexpected file hash", sha1, ContentDigest.sha1(file));
+            assertEquals("Unexpected metadata hash", sha1, new DirectDocument2.Metadata(file).getHash());
+
+            document = new DirectDocument2(file);
+            assertEquals("Unexpected file document hash", sha1, document.getMetadata().getHash());
+            assertEquals("Unexpected file document size", Long.valueOf(data.length), document.getMetadata().getSize());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private void assertDigest(ContentDigest digest)
+    {
+        assertEquals("Unexpected size", data.length, digest.getSize());
+        assertEquals("Unexpected SHA-1", sha1, digest.getSha1());
+        assertEquals("Unexpected SHA-256", sha256, digest.getSha256());
+    }
+}
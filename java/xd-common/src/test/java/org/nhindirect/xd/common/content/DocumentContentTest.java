@@ -0,0 +1,213 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nhindirect.xd.common.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.activation.DataSource;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.nhindirect.xd.common.DirectDocument2;
+
+/**
+ * Test the DocumentContent implementations.
+ */
+public class DocumentContentTest extends TestCase
+{
+    private byte[] data;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see junit.framework.TestCase#setUp()
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        data = new byte[100000];
+        new Random(1).nextBytes(data);
+    }
+
+    /**
+     * Test content held on the heap.
+     * 
+     * @throws Exception
+     */
+    public void testHeapContent() throws Exception
+    {
+        HeapContent content = new HeapContent(data);
+
+        assertSame("Array copied", data, content.getData());
+        assertContent(content);
+    }
+
+    /**
+     * Test content spooled to a temporary file.
+     * 
+     * @throws Exception
+     */
+    public void testFileContent() throws Exception
+    {
+        FileContent content = FileContent.spool(new ByteArrayInputStream(data), null);
+
+        try
+        {
+            assertTrue("File not temporary", content.isTemporary());
+            assertContent(content);
+        }
+        finally
+        {
+            content.release();
+        }
+
+        assertFalse("File not deleted", content.getFile().exists());
+    }
+
+    /**
+     * Test content in a memory-mapped file.
+     * 
+     * @throws Exception
+     */
+    public void testMappedContent() throws Exception
+    {
+        File file = File.createTempFile("xd-", ".part");
+
+        try
+        {
+            FileUtils.writeByteArrayToFile(file, data);
+
+            MappedContent content = MappedContent.map(file);
+            assertContent(content);
+
+            content.release();
+            assertTrue("Mapped file deleted", file.exists());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test content in a direct buffer.
+     * 
+     * @throws Exception
+     */
+    public void testBufferContent() throws Exception
+    {
+        // Start small so that the buffer has to grow
+        BufferContent content = BufferContent.allocateDirect(new ByteArrayInputStream(data), 16);
+
+        assertTrue("Buffer not direct", content.getBuffer().isDirect());
+        assertContent(content);
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, 10, 20);
+        content = new BufferContent(buffer);
+        assertEquals("Unexpected size", 20, content.getSize());
+        assertTrue("Unexpected content", Arrays.equals(Arrays.copyOfRange(data, 10, 30), content.toByteArray()));
+        assertEquals("Buffer position changed", 10, buffer.position());
+    }
+
+    /**
+     * Test documents holding content.
+     * 
+     * @throws Exception
+     */
+    public void testDocument() throws Exception
+    {
+        DirectDocument2 document = new DirectDocument2();
+        document.getMetadata().setMimeType("application/pdf");
+
+        document.setData(data);
+        assertSame("Array copied", data, document.getData());
+
+        BufferContent content = BufferContent.allocateDirect(new ByteArrayInputStream(data), data.length);
+        document.setContent(content, "hash");
+        assertSame("Unexpected content", content, document.getContent());
+        assertEquals("Unexpected size", Long.valueOf(data.length), document.getMetadata().getSize());
+        assertEquals("Unexpected hash", "hash", document.getMetadata().getHash());
+        assertTrue("Unexpected data", Arrays.equals(data, document.getData()));
+
+        DataSource dataSource = document.getDataSource();
+        assertEquals("Unexpected content type", "application/pdf", dataSource.getContentType());
+        assertTrue("Unexpected stream", Arrays.equals(data, IOUtils.toByteArray(dataSource.getInputStream())));
+        assertSame("Content not unwrapped", content, DocumentContent.fromDataSource(dataSource, -1));
+    }
+
+    /**
+     * Check that every accessor of the content returns the test data, twice.
+     */
+    private void assertContent(DocumentContent content) throws Exception
+    {
+        for (int i = 0; i < 2; i++)
+        {
+            assertEquals("Unexpected size", data.length, content.getSize());
+            assertTrue("Unexpected array", Arrays.equals(data, content.toByteArray()));
+
+            InputStream inputStream = content.getInputStream();
+            try
+            {
+                assertTrue("Unexpected stream", Arrays.equals(data, IOUtils.toByteArray(inputStream)));
+            }
+            finally
+            {
+                inputStream.close();
+            }
+
+            ReadableByteChannel channel = content.getChannel();
+            try
+            {
+                ByteBuffer buffer = ByteBuffer.allocate(data.length + 1);
+                while (channel.read(buffer) != -1)
+                    ;
+                assertTrue("Unexpected channel", Arrays.equals(data, Arrays.copyOf(buffer.array(), buffer.position())));
+            }
+            finally
+            {
+                channel.close();
+            }
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            assertEquals("Unexpected count", data.length, content.writeTo(outputStream));
+            assertTrue("Unexpected copy", Arrays.equals(data, outputStream.toByteArray()));
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.nhindirect.xd.common.type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.ByteArrayDataSource;
+
+import junit.framework.TestCase;
+
+import org.nhindirect.xd.common.DirectDocument2;
+import org.nhindirect.xd.common.DirectDocuments;
+
+/**
+ * Test class for methods in the DirectDocumentType class.
+ */
+public class DirectDocumentTypeTest extends TestCase
+{
+
+    /**
+     * Test constructor.
+     * 
+     * @param testName
+     *            The test name
+     */
+    public DirectDocumentTypeTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * Test detection by content type, file name and content sniffing.
+     * 
+     * @throws Exception
+     */
+    public void testLookup() throws Exception
+    {
+        assertEquals(DirectDocumentType.CCD, DirectDocumentType.lookup(getBodyPart(getSampleCCD(), "text/xml", null)));
+        assertEquals(DirectDocumentType.CCD, DirectDocumentType.lookup(getBodyPart(
+                "<?xml version=\"1.0\"?><!-- <note/> --><hl7:ClinicalDocument xmlns:hl7=\"urn:hl7-org:v3\"/>".getBytes("UTF-8"),
+                "application/octet-stream", null)));
+        assertEquals(DirectDocumentType.XML, DirectDocumentType.lookup(getBodyPart("<note/>".getBytes("UTF-8"), "text/xml", null)));
+        assertEquals(DirectDocumentType.PDF, DirectDocumentType.lookup(getBodyPart("%PDF-1.4\n".getBytes("UTF-8"),
+                "application/octet-stream", null)));
+        assertEquals(DirectDocumentType.XDM, DirectDocumentType.lookup(getBodyPart(getXdmZip(), "application/octet-stream",
+                "package.bin")));
+        assertEquals(DirectDocumentType.XDM, DirectDocumentType.lookup(getBodyPart(new byte[1], "application/zip", "package.zip")));
+        assertEquals(DirectDocumentType.TEXT, DirectDocumentType.lookup(getBodyPart("Hello".getBytes("UTF-8"), "text/plain", null)));
+        assertEquals(DirectDocumentType.UNKNOWN, DirectDocumentType.lookup(getBodyPart(new byte[] { 1, 2, 3 },
+                "application/octet-stream", null)));
+    }
+
+    /**
+     * Test detection of a message body, which need not be text.
+     * 
+     * @throws Exception
+     */
+    public void testLookupMessage() throws Exception
+    {
+        assertEquals(DirectDocumentType.CCD, DirectDocumentType.lookup(getMessage(getSampleCCD(), "text/xml")));
+        assertEquals(DirectDocumentType.TEXT, DirectDocumentType.lookup(getMessage("Hello".getBytes("UTF-8"), "text/plain")));
+        assertEquals(DirectDocumentType.PDF, DirectDocumentType.lookup(getMessage("%PDF-1.4\n".getBytes("UTF-8"),
+                "application/octet-stream")));
+        assertTrue(DirectDocumentType.PDF.matches(getMessage("%PDF-1.4\n".getBytes("UTF-8"), "application/octet-stream")));
+    }
+
+    /**
+     * Test that lookup reads only a bounded prefix of the part and detect reads
+     * the whole part once.
+     * 
+     * @throws Exception
+     */
+    public void testSingleRead() throws Exception
+    {
+        byte[] data = new byte[DirectDocumentType.SNIFF_LENGTH * 4];
+        Arrays.fill(data, (byte) 'a');
+        System.arraycopy("%PDF-".getBytes("UTF-8"), 0, data, 0, 5);
+
+        CountingBodyPart bodyPart = getBodyPart(data, "application/octet-stream", null);
+
+        assertEquals(DirectDocumentType.PDF, DirectDocumentType.lookup(bodyPart));
+        assertEquals("Unexpected stream count", 1, bodyPart.streams);
+        assertTrue("Read past prefix", bodyPart.bytesRead <= DirectDocumentType.SNIFF_LENGTH);
+
+        bodyPart.streams = 0;
+        bodyPart.bytesRead = 0;
+
+        DirectDocumentType.Detection detection = DirectDocumentType.detect(bodyPart);
+        assertEquals(DirectDocumentType.PDF, detection.getType());
+        assertTrue("Contents differ", Arrays.equals(data, detection.getData()));
+        assertEquals("Unexpected stream count", 1, bodyPart.streams);
+        assertEquals("Unexpected bytes read", data.length, bodyPart.bytesRead);
+    }
+
+    /**
+     * Test that the CCD header is read into the metadata and submission set
+     * without reading the body.
+     * 
+     * @throws Exception
+     */
+    public void testParseCcd() throws Exception
+    {
+        byte[] ccd = getSampleCCD();
+        final int[] bytesRead = new int[1];
+
+        InputStream inputStream = new FilterInputStream(new ByteArrayInputStream(ccd))
+        {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    bytesRead[0] += n;
+                return n;
+            }
+        };
+
+        DirectDocument2.Metadata metadata = new DirectDocument2.Metadata();
+        DirectDocuments.SubmissionSet submissionSet = new DirectDocuments.SubmissionSet();
+        DirectDocumentType.CCD.parse(inputStream, metadata, submissionSet);
+
+        assertTrue("Body was read: " + bytesRead[0], bytesRead[0] < ccd.length / 4);
+
+        assertEquals("1111111111^^^&GSIHealth&ISO", metadata.getPatientId());
+        assertEquals("John", metadata.getSourcePatient().getFirstName());
+        assertEquals("Doe", metadata.getSourcePatient().getLastName());
+        assertEquals("M", metadata.getSourcePatient().getGenderCode());
+        assertEquals("19560527", metadata.getSourcePatient().getBirthDateTime());
+        assertEquals("^Dolin^Robert^^^Dr.", metadata.getAuthorPerson());
+        assertEquals(Arrays.asList("Good Health Clinic"), metadata.getAuthorInstitution());
+        assertEquals("N", metadata.getConfidentialityCode());
+        assertEquals("34133-9", metadata.getLoinc());
+        assertEquals("Summarization of episode note", metadata.getLoinc_localized());
+        assertEquals("en-US", metadata.getLanguageCode());
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmssZ");
+        assertEquals(format.parse("20000407130000+0500"), metadata.getCreationTime());
+        assertEquals(new SimpleDateFormat("yyyyMMdd").parse("19320924"), metadata.getServiceStartTime());
+        assertEquals(new SimpleDateFormat("yyyyMMdd").parse("20000407"), metadata.getServiceStopTime());
+
+        assertEquals("1111111111^^^&GSIHealth&ISO", submissionSet.getPatientId());
+        assertEquals("^Dolin^Robert^^^Dr.", submissionSet.getAuthorPerson());
+
+        // The String overloads read the same header
+        DirectDocument2.Metadata fromString = new DirectDocument2.Metadata();
+        DirectDocumentType.CCD.parse(new String(ccd, "UTF-8"), fromString);
+        assertEquals(metadata.getPatientId(), fromString.getPatientId());
+        assertEquals(metadata.getCreationTime(), fromString.getCreationTime());
+
+        // Content which only mentions the CCD type is not a CDA document
+        DirectDocument2.Metadata notCda = new DirectDocument2.Metadata();
+        DirectDocumentType.CCD.parse("See POCD_HD000040 <unclosed", notCda);
+        assertNull(notCda.getPatientId());
+    }
+
+    /**
+     * Test that an address with element content, such as useablePeriod, does
+     * not stop the rest of the header from being read.
+     * 
+     * @throws Exception
+     */
+    public void testParseCcdAddress() throws Exception
+    {
+        String ccd = new String(getSampleCCD(), "UTF-8").replace("<id extension=\"1111111111\" root=\"GSIHealth\"/>",
+                "<id extension=\"1111111111\" root=\"GSIHealth\"/><addr use=\"HP\">"
+                        + "<streetAddressLine>1 Main St</streetAddressLine><streetAddressLine>Apt 2</streetAddressLine>"
+                        + "<city>Springfield</city><state>MA</state><postalCode>01101</postalCode><country>US</country>"
+                        + "<useablePeriod><low value=\"20000101\"/></useablePeriod></addr>");
+
+        DirectDocument2.Metadata metadata = new DirectDocument2.Metadata();
+        DirectDocuments.SubmissionSet submissionSet = new DirectDocuments.SubmissionSet();
+        DirectDocumentType.CCD.parse(new ByteArrayInputStream(ccd.getBytes("UTF-8")), metadata, submissionSet);
+
+        assertEquals("1 Main St", metadata.getSourcePatient().getStreetAddress1());
+        assertEquals("Apt 2", metadata.getSourcePatient().getStreetAddress2());
+        assertEquals("Springfield", metadata.getSourcePatient().getCity());
+        assertEquals("MA", metadata.getSourcePatient().getState());
+        assertEquals("01101", metadata.getSourcePatient().getZipCode());
+        assertEquals("US", metadata.getSourcePatient().getCountry());
+
+        assertEquals("1111111111^^^&GSIHealth&ISO", metadata.getPatientId());
+        assertEquals("John", metadata.getSourcePatient().getFirstName());
+        assertEquals("Doe", metadata.getSourcePatient().getLastName());
+        assertEquals("M", metadata.getSourcePatient().getGenderCode());
+        assertEquals("^Dolin^Robert^^^Dr.", metadata.getAuthorPerson());
+        assertEquals("1111111111^^^&GSIHealth&ISO", submissionSet.getPatientId());
+    }
+
+    private static CountingBodyPart getBodyPart(byte[] data, String contentType, String fileName) throws MessagingException
+    {
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", contentType);
+
+        CountingBodyPart bodyPart = new CountingBodyPart(headers, data);
+        if (fileName != null)
+            bodyPart.setFileName(fileName);
+
+        return bodyPart;
+    }
+
+    private static MimeMessage getMessage(byte[] data, String contentType) throws MessagingException
+    {
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setDataHandler(new DataHandler(new ByteArrayDataSource(data, contentType)));
+        message.saveChanges();
+
+        return message;
+    }
+
+    private static byte[] getXdmZip() throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+        zipOutputStream.putNextEntry(new ZipEntry("IHE_XDM/SUBSET01/METADATA.xml"));
+        zipOutputStream.write("<SubmitObjectsRequest/>".getBytes("UTF-8"));
+        zipOutputStream.closeEntry();
+        zipOutputStream.close();
+
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] getSampleCCD() throws IOException
+    {
+        InputStream is = DirectDocumentTypeTest.class.getClassLoader().getResourceAsStream("sampleccd.xml");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1)
+            outputStream.write(buffer, 0, read);
+        is.close();
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Body part which counts the streams opened and bytes read from it.
+     */
+    private static class CountingBodyPart extends MimeBodyPart
+    {
+        private int streams;
+        private int bytesRead;
+
+        public CountingBodyPart(InternetHeaders headers, byte[] content) throws MessagingException
+        {
+            super(headers, content);
+        }
+
+        @Override
+        public InputStream getInputStream() throws MessagingException, IOException
+        {
+            streams++;
+
+            return new FilterInputStream(new ByteArrayInputStream(content))
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    int b = super.read();
+                    if (b != -1)
+                        bytesRead++;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    int n = super.read(b, off, len);
+                    if (n > 0)
+                        bytesRead += n;
+                    return n;
+                }
+            };
+        }
+    }
+}
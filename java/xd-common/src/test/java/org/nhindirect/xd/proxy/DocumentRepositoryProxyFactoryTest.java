@@ -0,0 +1,191 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.proxy;
+
+import ihe.iti.xds_b._2007.DocumentRepositoryPortType;
+import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.handler.Handler;
+import javax.xml.ws.handler.HandlerResolver;
+import javax.xml.ws.handler.PortInfo;
+
+import junit.framework.TestCase;
+
+import org.nhindirect.xd.proxy.DocumentRepositoryProxyFactory.PoolMetrics;
+import org.nhindirect.xd.soap.DirectSOAPHandler;
+import org.nhindirect.xd.soap.DirectSOAPHandlerResolver;
+import org.nhindirect.xd.soap.SOAPMessageCapture;
+
+/**
+ * Test class for DocumentRepositoryProxyFactory.
+ */
+public class DocumentRepositoryProxyFactoryTest extends TestCase
+{
+    private static final String ENDPOINT = "http://localhost:8080/xd/services/DocumentRepository_Service";
+
+    /**
+     * Test that ports are reused per endpoint and handler chain, and that the
+     * WSDL is parsed once.
+     */
+    public void testPooling()
+    {
+        DocumentRepositoryProxyFactory factory = new DocumentRepositoryProxyFactory();
+        factory.setMaxIdlePorts(1);
+        DirectSOAPHandlerResolver resolver = new DirectSOAPHandlerResolver();
+
+        DocumentRepositoryPortType port1 = factory.borrowPort(ENDPOINT, null);
+        DocumentRepositoryPortType port2 = factory.borrowPort(ENDPOINT, null);
+        assertNotSame(port1, port2);
+        assertEquals(2, factory.getMetrics(ENDPOINT, null).getActive());
+
+        factory.returnPort(ENDPOINT, null, port1);
+        factory.returnPort(ENDPOINT, null, port2);
+
+        PoolMetrics metrics = factory.getMetrics(ENDPOINT, null);
+        assertEquals(2, metrics.getCreated());
+        assertEquals(1, metrics.getIdle());
+        assertEquals(1, metrics.getDiscarded());
+        assertEquals(0, metrics.getActive());
+
+        assertSame(port1, factory.borrowPort(ENDPOINT, null));
+        assertEquals(1, factory.getMetrics(ENDPOINT, null).getReused());
+
+        DocumentRepositoryPortType other = factory.borrowPort("http://localhost/other", null);
+        DocumentRepositoryPortType handled = factory.borrowPort(ENDPOINT, resolver);
+        assertNotSame(port1, other);
+        assertNotSame(port1, handled);
+
+        // Equal resolvers share a pool
+        assertEquals(1, factory.getMetrics(ENDPOINT, new DirectSOAPHandlerResolver()).getActive());
+        SOAPMessageCapture capture = new SOAPMessageCapture();
+        assertNull(factory.getMetrics(ENDPOINT, new DirectSOAPHandlerResolver(capture)));
+        capture.shutdown();
+
+        metrics = factory.getMetrics();
+        assertEquals(4, metrics.getCreated());
+        assertEquals(3, metrics.getActive());
+        assertEquals(1, factory.getServicesCreated());
+    }
+
+    /**
+     * Test the configuration of new ports.
+     */
+    @SuppressWarnings("rawtypes")
+    public void testPortConfiguration()
+    {
+        DocumentRepositoryProxyFactory factory = new DocumentRepositoryProxyFactory();
+        factory.setConnectTimeout(1000);
+        factory.setReadTimeout(2000);
+        factory.setChunkSize(4096);
+
+        DirectSOAPHandlerResolver resolver = new DirectSOAPHandlerResolver();
+        BindingProvider bp = (BindingProvider) factory.borrowPort(ENDPOINT, resolver);
+        Map<String, Object> context = bp.getRequestContext();
+
+        assertEquals(ENDPOINT, context.get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY));
+        assertEquals(Integer.valueOf(1000), context.get("com.sun.xml.ws.connect.timeout"));
+        assertEquals(Integer.valueOf(2000), context.get("com.sun.xml.internal.ws.request.timeout"));
+        assertEquals(Integer.valueOf(4096), context.get("com.sun.xml.ws.transport.http.client.streaming.chunk.size"));
+
+        List<Handler> chain = bp.getBinding().getHandlerChain();
+        assertEquals(1, chain.size());
+        assertTrue(chain.get(0) instanceof DirectSOAPHandler);
+        assertSame(resolver.getHandlerChain(null).get(0), chain.get(0));
+    }
+
+    /**
+     * Test that every port gets its own handler chain from the resolver, so
+     * stateful handlers are not shared between ports.
+     */
+    @SuppressWarnings("rawtypes")
+    public void testHandlerChainPerPort()
+    {
+        final AtomicInteger chains = new AtomicInteger();
+        HandlerResolver resolver = new HandlerResolver()
+        {
+            public List<Handler> getHandlerChain(PortInfo portInfo)
+            {
+                chains.incrementAndGet();
+
+                List<Handler> chain = new ArrayList<Handler>();
+                chain.add(new DirectSOAPHandler());
+                return chain;
+            }
+        };
+
+        DocumentRepositoryProxyFactory factory = new DocumentRepositoryProxyFactory();
+        BindingProvider bp1 = (BindingProvider) factory.borrowPort(ENDPOINT, resolver);
+        BindingProvider bp2 = (BindingProvider) factory.borrowPort(ENDPOINT, resolver);
+
+        assertEquals(2, chains.get());
+        assertNotSame(bp1.getBinding().getHandlerChain().get(0), bp2.getBinding().getHandlerChain().get(0));
+
+        // A reused port keeps its chain
+        factory.returnPort(ENDPOINT, resolver, (DocumentRepositoryPortType) bp1);
+        assertSame(bp1, factory.borrowPort(ENDPOINT, resolver));
+        assertEquals(2, chains.get());
+    }
+
+    /**
+     * Test that the port of a failed call is returned to the pool.
+     */
+    public void testFailedCall() throws Exception
+    {
+        ServerSocket socket = new ServerSocket(0);
+        String endpoint = "http://localhost:" + socket.getLocalPort() + "/xd/services/DocumentRepository_Service";
+        socket.close();
+
+        DocumentRepositoryProxyFactory factory = new DocumentRepositoryProxyFactory();
+        factory.setConnectTimeout(2000);
+        DocumentRepositoryProxy proxy = factory.createProxy(endpoint);
+
+        try
+        {
+            proxy.provideAndRegisterDocumentSetB(new ProvideAndRegisterDocumentSetRequestType());
+            fail("Exception not thrown");
+        }
+        catch (WebServiceException e)
+        {
+            // expected
+        }
+
+        PoolMetrics metrics = factory.getMetrics(endpoint, null);
+        assertEquals(0, metrics.getActive());
+        assertEquals(1, metrics.getIdle());
+    }
+}
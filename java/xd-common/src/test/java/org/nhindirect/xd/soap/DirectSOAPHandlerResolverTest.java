@@ -92,4 +92,47 @@ public class DirectSOAPHandlerResolverTest extends TestCase
         assertEquals("List contains more than expected elements", 1, output.size());
         assertTrue("List does not contain expected element", output.get(0) instanceof DirectSOAPHandler);
     }
+
+    /**
+     * Test that the same read-only chain is returned for every port.
+     */
+    public void testCachedHandlerChain()
+    {
+        DirectSOAPHandlerResolver resolver = new DirectSOAPHandlerResolver();
+        List<Handler> chain = resolver.getHandlerChain(null);
+
+        assertSame("Chain was not reused", chain, resolver.getHandlerChain(null));
+
+        try
+        {
+            chain.add(new DirectSOAPHandler());
+            fail("Chain is modifiable");
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Test that resolvers with the same message capture are equal.
+     */
+    public void testEquals()
+    {
+        SOAPMessageCapture capture = new SOAPMessageCapture();
+
+        try
+        {
+            assertEquals(new DirectSOAPHandlerResolver(), new DirectSOAPHandlerResolver());
+            assertEquals(new DirectSOAPHandlerResolver().hashCode(), new DirectSOAPHandlerResolver().hashCode());
+            assertEquals(new DirectSOAPHandlerResolver(capture), new DirectSOAPHandlerResolver(capture));
+            assertEquals(new DirectSOAPHandlerResolver(capture).hashCode(),
+                    new DirectSOAPHandlerResolver(capture).hashCode());
+            assertFalse(new DirectSOAPHandlerResolver().equals(new DirectSOAPHandlerResolver(capture)));
+        }
+        finally
+        {
+            capture.shutdown();
+        }
+    }
 }
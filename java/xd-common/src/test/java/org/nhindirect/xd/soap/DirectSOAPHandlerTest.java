@@ -28,6 +28,9 @@
 
 package org.nhindirect.xd.soap;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import javax.xml.namespace.QName;
@@ -138,4 +141,81 @@ public class DirectSOAPHandlerTest extends TestCase
         }
     }
 
+    /**
+     * Test that one handler instance keeps the headers of concurrent messages
+     * apart.
+     */
+    public void testConcurrentHandleMessage() throws Exception
+    {
+        final DirectSOAPHandler handler = new DirectSOAPHandler();
+        final MessageFactory mf = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++)
+        {
+            final int thread = t;
+            threads.add(new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < 50; i++)
+                        {
+                            String messageId = "urn:uuid:" + thread + "-" + i;
+
+                            SOAPMessage inbound = mf.createMessage();
+                            inbound.getSOAPHeader()
+                                    .addHeaderElement(new QName("http://www.w3.org/2005/08/addressing", "MessageID"))
+                                    .setValue(messageId);
+                            handler.handleMessage(new MockSOAPMessageContext(inbound, false));
+
+                            SOAPMessage outbound = mf.createMessage();
+                            handler.handleMessage(new MockSOAPMessageContext(outbound, true));
+
+                            String value = outbound.getSOAPHeader()
+                                    .getElementsByTagNameNS("http://www.w3.org/2005/08/addressing", "MessageID")
+                                    .item(0).getTextContent();
+                            if (!messageId.equals(value))
+                            {
+                                errors.add("Expected " + messageId + " but was " + value);
+                            }
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        errors.add(e.toString());
+                    }
+                    finally
+                    {
+                        SOAPHeaderContext.clear();
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    /**
+     * Test that the process ID is computed once.
+     */
+    public void testGetPID()
+    {
+        String pid = new DirectSOAPHandler().getPID();
+
+        assertNotNull(pid);
+        assertSame(pid, new DirectSOAPHandler().getPID());
+    }
+
 }
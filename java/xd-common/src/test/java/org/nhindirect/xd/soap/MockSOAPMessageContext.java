@@ -0,0 +1,89 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import java.util.HashMap;
+import java.util.Set;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.namespace.QName;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+
+/**
+ * Minimal SOAPMessageContext backed by a map, for handler tests.
+ */
+class MockSOAPMessageContext extends HashMap<String, Object> implements SOAPMessageContext
+{
+    private static final long serialVersionUID = 1L;
+
+    private final HashMap<String, Scope> scopes = new HashMap<String, Scope>();
+    private SOAPMessage message;
+
+    public MockSOAPMessageContext()
+    {
+    }
+
+    public MockSOAPMessageContext(SOAPMessage message, boolean outbound)
+    {
+        this.message = message;
+        put(MESSAGE_OUTBOUND_PROPERTY, Boolean.valueOf(outbound));
+    }
+
+    public void setScope(String name, Scope scope)
+    {
+        scopes.put(name, scope);
+    }
+
+    public Scope getScope(String name)
+    {
+        return scopes.get(name);
+    }
+
+    public SOAPMessage getMessage()
+    {
+        return message;
+    }
+
+    public void setMessage(SOAPMessage message)
+    {
+        this.message = message;
+    }
+
+    public Object[] getHeaders(QName header, JAXBContext context, boolean allRoles)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Set<String> getRoles()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,298 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.ws.handler.MessageContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for SOAPHeaderContext and SOAPHeaderData.
+ */
+public class SOAPHeaderContextTest extends TestCase
+{
+    /**
+     * Handler shared by every simulated request.
+     */
+    /**
+     * System property which enables {@link #testSoak()}, for example with
+     * mvn test -Dxd.test.soak=true.
+     */
+    public static final String SOAK_PROPERTY = "xd.test.soak";
+
+    private static final DirectSOAPHandler HANDLER = new DirectSOAPHandler();
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see junit.framework.TestCase#tearDown()
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        SOAPHeaderContext.clear();
+        super.tearDown();
+    }
+
+    /**
+     * Test that a copy made from a builder does not change the original.
+     */
+    public void testHeaderData()
+    {
+        SOAPHeaderData data = new SOAPHeaderData.Builder().setAction("action").setTo("to").build();
+        SOAPHeaderData copy = data.toBuilder().set(SOAPHeaderData.TO, "other").setPid("pid").build();
+
+        assertEquals("to", data.getTo());
+        assertNull(data.getPid());
+        assertEquals("action", copy.getAction());
+        assertEquals("other", copy.get(SOAPHeaderData.TO));
+        assertEquals("pid", copy.getPid());
+        assertEquals(2, data.toMap().size());
+        assertTrue(SOAPHeaderData.EMPTY.toMap().isEmpty());
+
+        try
+        {
+            new SOAPHeaderData.Builder().set("unknown", "value");
+            fail("Exception not thrown");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Test that the data stored in the message context is found when the
+     * current thread has none.
+     */
+    public void testMessageContext()
+    {
+        MockSOAPMessageContext context = new MockSOAPMessageContext();
+        SOAPHeaderData data = new SOAPHeaderData.Builder().setMessageId("id").build();
+
+        SOAPHeaderContext.set(context, data);
+        assertSame(data, SOAPHeaderContext.get());
+        assertSame(data, context.get(SOAPHeaderContext.HEADER_DATA_PROPERTY));
+        assertEquals(MessageContext.Scope.APPLICATION, context.getScope(SOAPHeaderContext.HEADER_DATA_PROPERTY));
+
+        SOAPHeaderContext.clear();
+        assertNull(SOAPHeaderContext.get());
+        assertSame(data, SOAPHeaderContext.get(context));
+        assertNull(SOAPHeaderContext.get(null));
+    }
+
+    /**
+     * Test that the handler releases the thread's data when a server side
+     * exchange is closed.
+     */
+    public void testHandlerClose()
+    {
+        DirectSOAPHandler handler = new DirectSOAPHandler();
+        MockSOAPMessageContext context = new MockSOAPMessageContext();
+
+        handler.setHeaderData(context, new SOAPHeaderData.Builder().setMessageId("id").build());
+        handler.close(context);
+        assertNotNull("Client side data was removed", SOAPHeaderContext.get());
+
+        SOAPHeaderContext.clear();
+        assertEquals("id", handler.getHeaderData(context).getMessageId());
+
+        context.put(MessageContext.SERVLET_REQUEST, new Object());
+        handler.close(context);
+        assertNull("Server side data was not removed", SOAPHeaderContext.get());
+    }
+
+    /**
+     * Soak test: simulate millions of server side exchanges on a pool of
+     * threads, and one exchange on each of many short-lived threads, and check
+     * that no header data is retained afterwards and that the heap does not
+     * grow. It takes minutes and its checks depend on garbage collection, so
+     * it only runs when {@link #SOAK_PROPERTY} is true.
+     */
+    public void testSoak() throws Exception
+    {
+        if (!Boolean.getBoolean(SOAK_PROPERTY))
+            return;
+
+        final int threads = 8;
+        final int requestsPerThread = 250000;
+        final int shortLivedThreads = 2000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try
+        {
+            // warm up before taking the baseline
+            runRequests(executor, threads, 10000);
+            long baseline = usedMemory();
+
+            List<WeakReference<SOAPHeaderData>> pooled = runRequests(executor, threads, requestsPerThread);
+
+            final List<WeakReference<SOAPHeaderData>> unpooled = new ArrayList<WeakReference<SOAPHeaderData>>();
+            for (int i = 0; i < shortLivedThreads; i++)
+            {
+                Thread thread = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        WeakReference<SOAPHeaderData> ref = request(HANDLER, 0);
+                        synchronized (unpooled)
+                        {
+                            unpooled.add(ref);
+                        }
+                    }
+                });
+                thread.start();
+                thread.join();
+            }
+
+            assertEquals(shortLivedThreads, unpooled.size());
+            assertCollected(pooled);
+            assertCollected(unpooled);
+
+            long growth = usedMemory() - baseline;
+            assertTrue("Heap grew by " + growth + " bytes", growth < 16 * 1024 * 1024);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<WeakReference<SOAPHeaderData>> runRequests(ExecutorService executor, int threads, final int requests)
+            throws Exception
+    {
+        List<Future<WeakReference<SOAPHeaderData>>> futures = new ArrayList<Future<WeakReference<SOAPHeaderData>>>();
+
+        for (int t = 0; t < threads; t++)
+        {
+            futures.add(executor.submit(new Callable<WeakReference<SOAPHeaderData>>()
+            {
+                public WeakReference<SOAPHeaderData> call() throws Exception
+                {
+                    WeakReference<SOAPHeaderData> first = null;
+
+                    for (int i = 0; i < requests; i++)
+                    {
+                        WeakReference<SOAPHeaderData> ref = request(HANDLER, i);
+                        if (first == null)
+                        {
+                            first = ref;
+                        }
+                    }
+
+                    return first;
+                }
+            }));
+        }
+
+        List<WeakReference<SOAPHeaderData>> refs = new ArrayList<WeakReference<SOAPHeaderData>>();
+        for (Future<WeakReference<SOAPHeaderData>> future : futures)
+        {
+            refs.add(future.get());
+        }
+
+        return refs;
+    }
+
+    /**
+     * Simulate one server side exchange: the inbound handler stores the
+     * headers, the service reads them, and the exchange is closed.
+     */
+    private static WeakReference<SOAPHeaderData> request(DirectSOAPHandler handler, int i)
+    {
+        MockSOAPMessageContext context = new MockSOAPMessageContext();
+        context.put(MessageContext.SERVLET_REQUEST, Boolean.TRUE);
+
+        String messageId = "urn:uuid:" + Thread.currentThread().getId() + "-" + i;
+        handler.setHeaderData(context, new SOAPHeaderData.Builder().setMessageId(messageId)
+                .setAction("urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b").setDirectTo("mailto:to@example.com")
+                .build());
+
+        SOAPHeaderData data = SOAPHeaderContext.get();
+        if (!messageId.equals(new ThreadData(new Long(Thread.currentThread().getId())).getMessageId()))
+        {
+            throw new IllegalStateException("Unexpected message id " + data.getMessageId());
+        }
+
+        handler.close(context);
+        if (SOAPHeaderContext.get() != null)
+        {
+            throw new IllegalStateException("Header data was not removed");
+        }
+
+        return new WeakReference<SOAPHeaderData>(data);
+    }
+
+    private static void assertCollected(List<WeakReference<SOAPHeaderData>> refs) throws InterruptedException
+    {
+        for (int attempt = 0; attempt < 10 && !collected(refs); attempt++)
+        {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        assertTrue("Header data was retained", collected(refs));
+    }
+
+    private static boolean collected(List<WeakReference<SOAPHeaderData>> refs)
+    {
+        for (WeakReference<SOAPHeaderData> ref : refs)
+        {
+            if (ref.get() != null)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long usedMemory() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++)
+        {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,188 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.SOAPConstants;
+import javax.xml.soap.SOAPHeader;
+import javax.xml.soap.SOAPHeaderElement;
+import javax.xml.soap.SOAPMessage;
+
+import org.w3c.dom.Element;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for SOAPHeaderReader.
+ */
+public class SOAPHeaderReaderTest extends TestCase
+{
+    private static final String WSA = SOAPHeaderReader.WSA_NAMESPACE;
+
+    /**
+     * Test reading every WS-Addressing header and the Direct addressBlock.
+     */
+    public void testRead() throws Exception
+    {
+        SOAPMessage message = createMessage();
+        SOAPHeader header = message.getSOAPHeader();
+
+        header.addHeaderElement(new QName(WSA, "MessageID")).setValue("urn:uuid:To-ReplyTo-From");
+        header.addHeaderElement(new QName(WSA, "Action")).setValue(" urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b ");
+        header.addHeaderElement(new QName(WSA, "To")).setValue("http://localhost/ReplyTo");
+        header.addHeaderElement(new QName(WSA, "RelatesTo")).setValue("urn:uuid:relates");
+        addEndpointReference(header, "From", "http://localhost/from");
+        addEndpointReference(header, "ReplyTo", "http://localhost/reply");
+        addEndpointReference(header, "FaultTo", "http://localhost/fault");
+
+        SOAPHeaderElement addressBlock = header.addHeaderElement(SOAPHeaderReader.DIRECT_ADDRESS_BLOCK);
+        addressBlock.addChildElement(SOAPHeaderReader.DIRECT_FROM).setValue("mailto:from@example.com");
+        addressBlock.addChildElement(SOAPHeaderReader.DIRECT_TO).setValue("mailto:to@example.com");
+        addressBlock.addChildElement(SOAPHeaderReader.DIRECT_METADATA_LEVEL).setValue("minimal");
+
+        header.addHeaderElement(new QName("urn:unknown", "To")).setValue("ignored");
+
+        SOAPHeaderData.Builder builder = new SOAPHeaderData.Builder();
+        new SOAPHeaderReader().read(header.examineAllHeaderElements(), builder);
+        SOAPHeaderData data = builder.build();
+
+        assertEquals("urn:uuid:To-ReplyTo-From", data.getMessageId());
+        assertEquals("urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b", data.getAction());
+        assertEquals("http://localhost/ReplyTo", data.getTo());
+        assertEquals("urn:uuid:relates", data.getRelatesTo());
+        assertEquals("http://localhost/from", data.getFrom());
+        assertEquals("http://localhost/reply", data.getReplyAddress());
+        assertEquals("http://localhost/fault", data.getFaultAddress());
+        assertEquals("mailto:from@example.com", data.getDirectFrom());
+        assertEquals("mailto:to@example.com", data.getDirectTo());
+        assertEquals("minimal", data.getDirectMetadataLevel());
+    }
+
+    /**
+     * Test that headers are matched by namespace as well as local name.
+     */
+    public void testNamespace() throws Exception
+    {
+        SOAPMessage message = createMessage();
+        SOAPHeader header = message.getSOAPHeader();
+
+        header.addHeaderElement(new QName("http://schemas.xmlsoap.org/ws/2004/08/addressing", "Action")).setValue(
+                "urn:old");
+        SOAPHeaderElement addressBlock = header.addHeaderElement(SOAPHeaderReader.DIRECT_ADDRESS_BLOCK);
+        addressBlock.addChildElement(new QName("to")).setValue("mailto:to@example.com");
+        addressBlock.addChildElement(new QName("urn:other", "from")).setValue("mailto:other@example.com");
+
+        SOAPHeaderReader reader = new SOAPHeaderReader();
+        SOAPHeaderData.Builder builder = new SOAPHeaderData.Builder();
+        reader.read(header.examineAllHeaderElements(), builder);
+        SOAPHeaderData data = builder.build();
+
+        assertNull(data.getAction());
+        assertEquals("mailto:to@example.com", data.getDirectTo());
+        assertNull(data.getDirectFrom());
+    }
+
+    /**
+     * Test a custom extractor table.
+     */
+    public void testCustomExtractors() throws Exception
+    {
+        final QName custom = new QName("urn:custom", "Tracking");
+
+        Map<QName, SOAPHeaderExtractor> extractors = new HashMap<QName, SOAPHeaderExtractor>(
+                SOAPHeaderReader.getDefaultExtractors());
+        extractors.put(custom, new SOAPHeaderExtractor()
+        {
+            public void extract(Element header, SOAPHeaderData.Builder builder)
+            {
+                builder.setMessageId("tracking:" + header.getTextContent());
+            }
+        });
+
+        SOAPMessage message = createMessage();
+        message.getSOAPHeader().addHeaderElement(custom).setValue("42");
+        message.getSOAPHeader().addHeaderElement(new QName(WSA, "To")).setValue("http://localhost/to");
+
+        SOAPHeaderData.Builder builder = new SOAPHeaderData.Builder();
+        new SOAPHeaderReader(extractors).read(message.getSOAPHeader().examineAllHeaderElements(), builder);
+
+        assertEquals("tracking:42", builder.build().getMessageId());
+        assertEquals("http://localhost/to", builder.build().getTo());
+    }
+
+    /**
+     * Test that headers written by the handler for an outbound message are
+     * read back by the handler for an inbound message.
+     */
+    public void testHandlerRoundTrip() throws Exception
+    {
+        try
+        {
+            SOAPHeaderContext.set(new SOAPHeaderData.Builder().setAction("urn:action").setMessageId("urn:uuid:1")
+                    .setRelatesTo("urn:uuid:0").setTo("http://localhost/to").setFrom("http://localhost/from")
+                    .setDirectFrom("mailto:from@example.com").setDirectTo("mailto:to@example.com").build());
+
+            DirectSOAPHandler handler = new DirectSOAPHandler();
+            SOAPMessage message = createMessage();
+            assertTrue(handler.handleMessage(new MockSOAPMessageContext(message, true)));
+
+            SOAPHeaderContext.clear();
+            assertTrue(handler.handleMessage(new MockSOAPMessageContext(message, false)));
+
+            SOAPHeaderData data = SOAPHeaderContext.get();
+            assertEquals("urn:action", data.getAction());
+            assertEquals("urn:uuid:1", data.getMessageId());
+            assertEquals("urn:uuid:0", data.getRelatesTo());
+            assertEquals("http://localhost/to", data.getTo());
+            assertEquals("http://localhost/from", data.getFrom());
+            assertEquals("mailto:from@example.com", data.getDirectFrom());
+            assertEquals("mailto:to@example.com", data.getDirectTo());
+            assertEquals("minimal", data.getDirectMetadataLevel());
+        }
+        finally
+        {
+            SOAPHeaderContext.clear();
+        }
+    }
+
+    private static void addEndpointReference(SOAPHeader header, String name, String address) throws Exception
+    {
+        header.addHeaderElement(new QName(WSA, name)).addChildElement(new QName(WSA, "Address")).setValue(address);
+    }
+
+    private static SOAPMessage createMessage() throws Exception
+    {
+        return MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL).createMessage();
+    }
+}
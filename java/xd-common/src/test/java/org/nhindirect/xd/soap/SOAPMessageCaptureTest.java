@@ -0,0 +1,263 @@
+/* 
+ * Copyright (c) 2010, NHIN Direct Project
+ * All rights reserved.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.  
+ * 3. Neither the name of the the NHIN Direct Project (nhindirect.org)
+ *    nor the names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY 
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY 
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.nhindirect.xd.soap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.xml.namespace.QName;
+import javax.xml.soap.AttachmentPart;
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.SOAPConstants;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.BindingProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for SOAPMessageCapture.
+ */
+public class SOAPMessageCaptureTest extends TestCase
+{
+    private static final String ENDPOINT = "http://localhost:8080/xd/services/DocumentRepository_Service";
+
+    private final List<CapturedSOAPMessage> messages = Collections.synchronizedList(new ArrayList<CapturedSOAPMessage>());
+
+    private final SOAPMessageCaptureSink sink = new SOAPMessageCaptureSink()
+    {
+        public void write(CapturedSOAPMessage message)
+        {
+            messages.add(message);
+        }
+    };
+
+    /**
+     * Test that nothing is read from the message unless capture is enabled.
+     */
+    public void testDisabled() throws Exception
+    {
+        SOAPMessageCapture capture = new SOAPMessageCapture(sink, 1024, 10);
+
+        try
+        {
+            MockSOAPMessageContext context = new MockSOAPMessageContext()
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public SOAPMessage getMessage()
+                {
+                    throw new AssertionError("Message was read");
+                }
+            };
+            context.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
+
+            capture.capture(context);
+            capture.addEndpoint("http://localhost/other");
+            capture.capture(context);
+
+            assertTrue(capture.flush(1000));
+            assertEquals(0, capture.getCapturedCount());
+            assertTrue(messages.isEmpty());
+        }
+        finally
+        {
+            capture.shutdown();
+        }
+    }
+
+    /**
+     * Test capturing every message of an endpoint, with attachments described
+     * but not copied.
+     */
+    public void testEndpoint() throws Exception
+    {
+        SOAPMessageCapture capture = new SOAPMessageCapture(sink, 1024, 10);
+        capture.addEndpoint(ENDPOINT);
+
+        try
+        {
+            SOAPMessage message = createMessage("value");
+            AttachmentPart attachment = message.createAttachmentPart("attachment content", "text/plain");
+            attachment.setContentId("<doc1>");
+            message.addAttachmentPart(attachment);
+
+            MockSOAPMessageContext context = new MockSOAPMessageContext(message, true);
+            context.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
+            capture.capture(context);
+
+            assertTrue(capture.flush(5000));
+            assertEquals(1, messages.size());
+
+            CapturedSOAPMessage captured = messages.get(0);
+            assertEquals(ENDPOINT, captured.getEndpoint());
+            assertTrue(captured.isOutbound());
+            assertFalse(captured.isTruncated());
+            assertTrue(captured.getEnvelope(), captured.getEnvelope().contains("value"));
+            assertFalse(captured.getEnvelope().contains("attachment content"));
+            assertEquals(1, captured.getAttachments().size());
+            assertTrue(captured.getAttachments().get(0).startsWith("<doc1> text/plain"));
+        }
+        finally
+        {
+            capture.shutdown();
+        }
+    }
+
+    /**
+     * Test capturing one in every n messages.
+     */
+    public void testSampling() throws Exception
+    {
+        SOAPMessageCapture capture = new SOAPMessageCapture(sink, 1024, 100);
+        capture.setSampleInterval(3);
+
+        try
+        {
+            for (int i = 0; i < 9; i++)
+            {
+                capture.capture(new MockSOAPMessageContext(createMessage("value" + i), false));
+            }
+
+            assertTrue(capture.flush(5000));
+            assertEquals(3, capture.getCapturedCount());
+            assertEquals(3, messages.size());
+            assertFalse(messages.get(0).isOutbound());
+        }
+        finally
+        {
+            capture.shutdown();
+        }
+    }
+
+    /**
+     * Test that the envelope is truncated at the limit.
+     */
+    public void testTruncated() throws Exception
+    {
+        SOAPMessageCapture capture = new SOAPMessageCapture(sink, 100, 10);
+        capture.setSampleInterval(1);
+
+        try
+        {
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < 10000; i++)
+            {
+                value.append("0123456789");
+            }
+
+            capture.capture(new MockSOAPMessageContext(createMessage(value.toString()), true));
+
+            assertTrue(capture.flush(5000));
+            assertEquals(1, messages.size());
+            assertTrue(messages.get(0).isTruncated());
+            assertEquals(100, messages.get(0).getSize());
+        }
+        finally
+        {
+            capture.shutdown();
+        }
+    }
+
+    /**
+     * Test that messages are dropped instead of blocking when the sink falls
+     * behind.
+     */
+    public void testDropped() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        SOAPMessageCapture capture = new SOAPMessageCapture(new SOAPMessageCaptureSink()
+        {
+            public void write(CapturedSOAPMessage message) throws Exception
+            {
+                release.await();
+            }
+        }, 1024, 1);
+        capture.setSampleInterval(1);
+
+        try
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                capture.capture(new MockSOAPMessageContext(createMessage("value"), true));
+            }
+
+            // one message is being written, one is queued
+            assertEquals(3, capture.getDroppedCount());
+
+            release.countDown();
+            assertTrue(capture.flush(5000));
+            assertEquals(2, capture.getCapturedCount());
+        }
+        finally
+        {
+            capture.shutdown();
+        }
+    }
+
+    /**
+     * Test that the handler offers inbound messages to the capture.
+     */
+    public void testHandler() throws Exception
+    {
+        SOAPMessageCapture capture = new SOAPMessageCapture(sink, 4096, 10);
+        capture.setSampleInterval(1);
+
+        try
+        {
+            SOAPMessage message = createMessage("value");
+            message.getSOAPHeader().addHeaderElement(new QName("http://www.w3.org/2005/08/addressing", "Action"))
+                    .setValue("urn:test:action");
+
+            DirectSOAPHandler handler = new DirectSOAPHandler(capture);
+            assertTrue(handler.handleMessage(new MockSOAPMessageContext(message, false)));
+
+            assertTrue(capture.flush(5000));
+            assertEquals(1, messages.size());
+            assertTrue(messages.get(0).getEnvelope().contains("urn:test:action"));
+            assertEquals("urn:test:action", SOAPHeaderContext.get().getAction());
+        }
+        finally
+        {
+            SOAPHeaderContext.clear();
+            capture.shutdown();
+        }
+    }
+
+    private static SOAPMessage createMessage(String value) throws Exception
+    {
+        SOAPMessage message = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL).createMessage();
+        message.getSOAPBody().addChildElement(new QName("urn:test", "element")).setValue(value);
+
+        return message;
+    }
+}
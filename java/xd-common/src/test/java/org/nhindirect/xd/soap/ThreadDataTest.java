@@ -28,8 +28,6 @@
 
 package org.nhindirect.xd.soap;
 
-import java.util.Map;
-
 import org.apache.commons.lang.StringUtils;
 import org.nhindirect.xd.soap.ThreadData;
 
@@ -75,13 +73,11 @@ public class ThreadDataTest extends TestCase {
     /**
      * Test methods in the ThreadData class.
      */
-    public void testThreadData() {
-        Map<Long, Map<String, String>> map = ThreadData.getThreadMapView();
-        
-        // Compare against current size (which may affected by previous tests)
-        int mapSize = map.size();
+    public void testThreadData() throws Exception {
+        Long threadId = new Long(Thread.currentThread().getId());
+        ThreadData.clean(threadId);
 
-        ThreadData t1 = new ThreadData(new Long(99991));
+        ThreadData t1 = new ThreadData(threadId);
         t1.setAction("action.1");
         t1.setFrom("from.1");
         t1.setMessageId("messageId.1");
@@ -91,19 +87,19 @@ public class ThreadDataTest extends TestCase {
         t1.setReplyAddress("replyAddress.1");
         t1.setThisHost("thisHost.1");
         t1.setTo("to.1");
-       
-        assertEquals("Map size does not match expected value.", mapSize + 1, map.size());
-        assertEquals("Map does not contain specific key.", true, map.containsKey(new Long(99991)));
-        assertEquals("Map value does not match expected.", "action.1", map.get(new Long(99991)).get(ThreadData.ACTION));        
-        assertEquals("Map value does not match expected.", "from.1", map.get(new Long(99991)).get(ThreadData.FROM));    
-        assertEquals("Map value does not match expected.", "messageId.1", map.get(new Long(99991)).get(ThreadData.MESSAGE));    
-        assertEquals("Map value does not match expected.", "pid.1", map.get(new Long(99991)).get(ThreadData.PID));    
-        assertEquals("Map value does not match expected.", "relatesTo.1", map.get(new Long(99991)).get(ThreadData.RELATESTO));    
-        assertEquals("Map value does not match expected.", "remoteHost.1", map.get(new Long(99991)).get(ThreadData.REMOTEHOST));    
-        assertEquals("Map value does not match expected.", "replyAddress.1", map.get(new Long(99991)).get(ThreadData.REPLY));    
-        assertEquals("Map value does not match expected.", "thisHost.1", map.get(new Long(99991)).get(ThreadData.THISHOST));    
-        assertEquals("Map value does not match expected.", "to.1", map.get(new Long(99991)).get(ThreadData.TO));    
-        
+
+        SOAPHeaderData data = SOAPHeaderContext.get();
+        assertNotNull("Context does not contain data.", data);
+        assertEquals("Context value does not match expected.", "action.1", data.getAction());
+        assertEquals("Context value does not match expected.", "from.1", data.getFrom());
+        assertEquals("Context value does not match expected.", "messageId.1", data.getMessageId());
+        assertEquals("Context value does not match expected.", "pid.1", data.getPid());
+        assertEquals("Context value does not match expected.", "relatesTo.1", data.getRelatesTo());
+        assertEquals("Context value does not match expected.", "remoteHost.1", data.getRemoteHost());
+        assertEquals("Context value does not match expected.", "replyAddress.1", data.getReplyAddress());
+        assertEquals("Context value does not match expected.", "thisHost.1", data.getThisHost());
+        assertEquals("Context value does not match expected.", "to.1", data.getTo());
+
         assertEquals("Instance value does not match expected.", "action.1", t1.getAction());        
         assertEquals("Instance value does not match expected.", "from.1", t1.getFrom());    
         assertEquals("Instance value does not match expected.", "messageId.1", t1.getMessageId());    
@@ -113,33 +109,38 @@ public class ThreadDataTest extends TestCase {
         assertEquals("Instance value does not match expected.", "replyAddress.1", t1.getReplyAddress());    
         assertEquals("Instance value does not match expected.", "thisHost.1", t1.getThisHost());    
         assertEquals("Instance value does not match expected.", "to.1", t1.getTo());    
-        
+
         t1.setTo("to.1.1");
 
-        assertEquals("Map value does not match expected.", "to.1.1", map.get(new Long(99991)).get(ThreadData.TO));    
-        
-        ThreadData t2 = new ThreadData(new Long(99992));
-        t2.setAction("action.2");
-        t2.setFrom("from.2");
-        t2.setMessageId("messageId.2");
-        t2.setPid("pid.2");
-        t2.setRelatesTo("relatesTo.2");
-        t2.setRemoteHost("remoteHost.2");
-        t2.setReplyAddress("replyAddress.2");
-        t2.setThisHost("thisHost.2");
-        t2.setTo("to.2");
-        
-        assertEquals("Map size does not match expected value.", mapSize + 2, map.size());
-        assertEquals("Map does not contain specific key.", true, map.containsKey(new Long(99992)));    
-        
-        ThreadData.clean(new Long(99991));
-        assertTrue("Key,value was not removed from map", map.get(new Long(99991)) == null);
-        
+        assertEquals("Context value does not match expected.", "to.1.1", SOAPHeaderContext.get().getTo());
+        assertEquals("Previous data was modified.", "to.1", data.getTo());
+
+        // Values of one thread are not visible to another
+        final String[] seen = new String[1];
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                ThreadData t2 = new ThreadData(new Long(Thread.currentThread().getId()));
+                seen[0] = t2.getAction();
+                t2.setAction("action.2");
+            }
+        });
+        other.start();
+        other.join();
+
+        assertNull("Value leaked between threads.", seen[0]);
+        assertEquals("Value was changed by another thread.", "action.1", t1.getAction());
+
+        ThreadData.clean(new Long(threadId.longValue() + 1));
+        assertNotNull("Values of the calling thread were removed for another id.", SOAPHeaderContext.get());
+
         String out = t1.toString();
+        assertTrue("toString() output does not contain expected value", StringUtils.contains(out, threadId.toString()));
+
+        ThreadData.clean(threadId);
+        assertNull("Values were not removed.", SOAPHeaderContext.get());
+
+        out = t1.toString();
         assertTrue("toString() output does not contain expected value", StringUtils.containsIgnoreCase(out, "No map found"));
-        
-        out = t2.toString();
-        assertTrue("toString() output does not contain expected value", StringUtils.contains(out, "99992"));
     }
 
 }
@@ -21,14 +21,53 @@ THE POSSIBILITY OF SUCH DAMAGE.
 
 package org.nhindirect.xd.transform.impl;
 
+import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Message.RecipientType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nhindirect.xd.common.DirectDocument2;
+import org.nhindirect.xd.common.DirectDocuments;
+import org.nhindirect.xd.common.content.DocumentContent.ContentDataSource;
+import org.nhindirect.xd.common.content.FileContent;
+import org.nhindirect.xd.transform.exception.TransformationException;
 import org.nhindirect.xd.transform.pojo.SimplePerson;
 
 /**
@@ -79,6 +118,56 @@ public class DefaultMimeXdsTransformerTest extends TestCase
         assertTrue(true);
     }
 
+    /**
+     * Transform many messages concurrently with one shared transformer and
+     * compare each result against the single-threaded result.
+     * 
+     * @throws Exception
+     */
+    public void testConcurrentTransform() throws Exception
+    {
+        final DefaultMimeXdsTransformer transformer = new DefaultMimeXdsTransformer();
+        final MimeMessage[] messages = new MimeMessage[2000];
+        final String[] expected = new String[messages.length];
+
+        for (int i = 0; i < messages.length; i++)
+        {
+            messages[i] = getMimeMessage(i);
+            expected[i] = getSignature(transformer.transform(messages[i]));
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        int j;
+                        while ((j = next.getAndIncrement()) < messages.length)
+                            assertEquals("Outputs differ for message " + j, expected[j], getSignature(transformer.transform(messages[j])));
+                    }
+                    catch (Throwable t)
+                    {
+                        failures.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue("Transformation failed: " + failures, failures.isEmpty());
+    }
+
     /*
      * ****************************************
      * Methods removed, but tests may be reused
@@ -317,11 +406,529 @@ public class DefaultMimeXdsTransformerTest extends TestCase
 //        assertEquals("Value does not match expected value", value, result.getValueList().getValue().get(0));
 //    }
 
+    /**
+     * Test that parallel attachment processing keeps the attachment order and
+     * matches sequential processing.
+     * 
+     * @throws Exception
+     */
+    public void testParallelTransform() throws Exception
+    {
+        DefaultMimeXdsTransformer sequential = new DefaultMimeXdsTransformer();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try
+        {
+            // A small budget makes most attachments wait for the previous one
+            DefaultMimeXdsTransformer parallel = new DefaultMimeXdsTransformer(executor, 64);
+
+            for (int i = 0; i < 200; i++)
+            {
+                MimeMessage message = getMimeMessage(i);
+                assertEquals("Outputs differ for message " + i, getSignature(sequential.transform(message)),
+                        getSignature(parallel.transform(message)));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        try
+        {
+            new DefaultMimeXdsTransformer(executor, 0);
+            fail("Exception not thrown");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(true);
+        }
+    }
+
+    /**
+     * Test that attachments of unknown size are read, and are charged to the
+     * budget so that they are not all read at once.
+     * 
+     * @throws Exception
+     */
+    public void testParallelTransformUnknownSize() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try
+        {
+            DefaultMimeXdsTransformer transformer = new DefaultMimeXdsTransformer(executor, 1024 * 1024);
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger maxActive = new AtomicInteger();
+
+            MimeBodyPart[] parts = new MimeBodyPart[4];
+            for (int i = 0; i < parts.length; i++)
+                parts[i] = new UnknownSizeBodyPart(("<note id=\"" + i + "\"/>").getBytes("UTF-8"), active, maxActive);
+
+            assertEquals("Unexpected document count", parts.length, transformer.transform(getMimeMessage(parts)).getDocument()
+                    .size());
+            // Nothing is spooled, so a part of unknown size takes the whole budget
+            assertEquals("Parts of unknown size read at once", 1, maxActive.get());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that large parts of a streamed message are spooled to files and
+     * small parts stay in memory.
+     * 
+     * @throws Exception
+     */
+    public void testTransformStream() throws Exception
+    {
+        byte[] pdf = new byte[3 * 1024 * 1024];
+        new Random(7).nextBytes(pdf);
+        System.arraycopy("%PDF-1.4".getBytes("US-ASCII"), 0, pdf, 0, 8);
+
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(RecipientType.TO, new InternetAddress("recipient@example.com"));
+        message.setSentDate(new Date());
+
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Body");
+        multipart.addBodyPart(text);
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(pdf, "application/pdf")));
+        attachment.setFileName("scan.pdf");
+        multipart.addBodyPart(attachment);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        message.writeTo(raw);
+
+        File spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "xd-spool-" + System.nanoTime());
+        assertTrue(spoolDirectory.mkdirs());
+
+        try
+        {
+            DefaultMimeXdsTransformer transformer = new DefaultMimeXdsTransformer();
+            transformer.setSpoolDirectory(spoolDirectory);
+            transformer.setSpoolThreshold(1024 * 1024);
+
+            ProvideAndRegisterDocumentSetRequestType request = transformer.transform(new ByteArrayInputStream(raw.toByteArray()));
+            ProvideAndRegisterDocumentSetRequestType expected = transformer.transform(new MimeMessage((Session) null,
+                    new ByteArrayInputStream(raw.toByteArray())));
+
+            assertEquals("Outputs differ", getSignature(expected), getSignature(request));
+            assertEquals("Unexpected document count", 2, request.getDocument().size());
+            assertFalse("Small part spooled", isSpooled(request.getDocument().get(0).getValue().getDataSource()));
+            assertTrue("Large part not spooled", isSpooled(request.getDocument().get(1).getValue().getDataSource()));
+            assertEquals("Unexpected spool files", 1, spoolDirectory.list().length);
+
+            DirectDocuments documents = new DirectDocuments();
+            documents.setValues(request.getSubmitObjectsRequest());
+            DirectDocument2.Metadata metadata = documents.getDocuments().get(1).getMetadata();
+            assertEquals("Unexpected hash", new String(Hex.encodeHex(MessageDigest.getInstance("SHA-1").digest(pdf))),
+                    metadata.getHash());
+            assertEquals("Unexpected size", Long.valueOf(pdf.length), metadata.getSize());
+
+            DefaultMimeXdsTransformer.deleteSpooledContent(request);
+            assertEquals("Spool files not deleted", 0, spoolDirectory.list().length);
+        }
+        finally
+        {
+            for (File file : spoolDirectory.listFiles())
+                file.delete();
+            spoolDirectory.delete();
+        }
+    }
+
+    /**
+     * Test that a plain text body keeps the charset it was sent in.
+     * 
+     * @throws Exception
+     */
+    public void testTransformCharset() throws Exception
+    {
+        String text = "Caf\u00e9 cr\u00e8me";
+
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(RecipientType.TO, new InternetAddress("recipient@example.com"));
+        message.setSentDate(new Date());
+        message.setText(text, "ISO-8859-1");
+        message.saveChanges();
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        message.writeTo(raw);
+
+        DefaultMimeXdsTransformer transformer = new DefaultMimeXdsTransformer();
+        ProvideAndRegisterDocumentSetRequestType[] requests = {
+                transformer.transform(new MimeMessage((Session) null, new ByteArrayInputStream(raw.toByteArray()))),
+                transformer.transform(new ByteArrayInputStream(raw.toByteArray())) };
+
+        for (ProvideAndRegisterDocumentSetRequestType request : requests)
+        {
+            assertEquals("Unexpected document count", 1, request.getDocument().size());
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            request.getDocument().get(0).getValue().writeTo(outputStream);
+            assertTrue("Body not in its declared charset", Arrays.equals(text.getBytes("ISO-8859-1"), outputStream.toByteArray()));
+        }
+    }
+
+    /**
+     * Test that an XDM attachment of a streamed message is read from its spool
+     * file, which is deleted with the rest of the spooled content.
+     * 
+     * @throws Exception
+     */
+    public void testTransformXdmStream() throws Exception
+    {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("samplexdm.zip");
+        byte[] xdm = IOUtils.toByteArray(is);
+        is.close();
+
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(RecipientType.TO, new InternetAddress("recipient@example.com"));
+        message.setSentDate(new Date());
+
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Body");
+        multipart.addBodyPart(text);
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(xdm, "application/zip")));
+        attachment.setFileName("package.zip");
+        multipart.addBodyPart(attachment);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        message.writeTo(raw);
+
+        File spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "xd-spool-" + System.nanoTime());
+        assertTrue(spoolDirectory.mkdirs());
+
+        try
+        {
+            DefaultMimeXdsTransformer transformer = new DefaultMimeXdsTransformer();
+            transformer.setSpoolDirectory(spoolDirectory);
+            transformer.setSpoolThreshold(1024);
+
+            ProvideAndRegisterDocumentSetRequestType expected = transformer.transform(new MimeMessage((Session) null,
+                    new ByteArrayInputStream(raw.toByteArray())));
+            assertEquals("Unexpected spool files", 0, spoolDirectory.list().length);
+
+            ProvideAndRegisterDocumentSetRequestType request = transformer.transform(new ByteArrayInputStream(raw.toByteArray()));
+            assertEquals("XDM package not spooled", 1, spoolDirectory.list().length);
+
+            assertEquals("Unexpected document count", 1, request.getDocument().size());
+            assertEquals("Outputs differ", getSignature(expected), getSignature(request));
+
+            DefaultMimeXdsTransformer.deleteSpooledContent(request);
+            assertEquals("Spool files not deleted", 0, spoolDirectory.list().length);
+        }
+        finally
+        {
+            for (File file : spoolDirectory.listFiles())
+                file.delete();
+            spoolDirectory.delete();
+        }
+    }
+
+    /**
+     * Test that each attachment is read once, both when the message holds an
+     * XDM package and when it does not.
+     * 
+     * @throws Exception
+     */
+    public void testSingleRead() throws Exception
+    {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("samplexdm.zip");
+        byte[] xdm = IOUtils.toByteArray(is);
+        is.close();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try
+        {
+            DefaultMimeXdsTransformer[] transformers = { new DefaultMimeXdsTransformer(),
+                    new DefaultMimeXdsTransformer(executor, 1024 * 1024) };
+
+            for (DefaultMimeXdsTransformer transformer : transformers)
+            {
+                CountingBodyPart text = getCountingBodyPart("Body".getBytes("UTF-8"), "text/plain", null);
+                CountingBodyPart xml = getCountingBodyPart("<note/>".getBytes("UTF-8"), "text/xml", "note.xml");
+                assertEquals("Unexpected document count", 2, transformer.transform(getMimeMessage(text, xml)).getDocument().size());
+                assertEquals("Text part read more than once", 1, text.streams);
+                assertEquals("XML part read more than once", 1, xml.streams);
+
+                text = getCountingBodyPart("Body".getBytes("UTF-8"), "text/plain", null);
+                CountingBodyPart zip = getCountingBodyPart(xdm, "application/zip", "package.zip");
+                assertEquals("Unexpected document count", 1, transformer.transform(getMimeMessage(text, zip)).getDocument().size());
+                assertEquals("Text part read more than once", 1, text.streams);
+                assertEquals("XDM part read more than once", 1, zip.streams);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that the parts spooled before a failing part are deleted.
+     * 
+     * @throws Exception
+     */
+    public void testTransformStreamFailure() throws Exception
+    {
+        File spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "xd-spool-" + System.nanoTime());
+        assertTrue(spoolDirectory.mkdirs());
+
+        try
+        {
+            DefaultMimeXdsTransformer transformer = new DefaultMimeXdsTransformer();
+            transformer.setSpoolDirectory(spoolDirectory);
+            transformer.setSpoolThreshold(1024);
+
+            try
+            {
+                transformer.transform(new ByteArrayInputStream(getFailingMessage()));
+                fail("Exception not thrown");
+            }
+            catch (TransformationException e)
+            {
+                assertTrue(true);
+            }
+
+            assertEquals("Spool files not deleted", 0, spoolDirectory.list().length);
+        }
+        finally
+        {
+            for (File file : spoolDirectory.listFiles())
+                file.delete();
+            spoolDirectory.delete();
+        }
+    }
+
+    /**
+     * Test that parallel processing deletes the parts read by the other tasks
+     * when one part fails, and returns their share of the budget.
+     * 
+     * @throws Exception
+     */
+    public void testParallelTransformFailure() throws Exception
+    {
+        File spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "xd-spool-" + System.nanoTime());
+        assertTrue(spoolDirectory.mkdirs());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+
+        try
+        {
+            // Large enough for all parts of one message, but not for those of every message
+            final DefaultMimeXdsTransformer transformer = new DefaultMimeXdsTransformer(executor, 1024 * 1024);
+            transformer.setSpoolDirectory(spoolDirectory);
+            transformer.setSpoolThreshold(1024);
+
+            for (int i = 0; i < 20; i++)
+            {
+                try
+                {
+                    transformer.transform(new ByteArrayInputStream(getFailingMessage()));
+                    fail("Exception not thrown");
+                }
+                catch (TransformationException e)
+                {
+                    assertTrue(true);
+                }
+
+                assertEquals("Spool files not deleted", 0, spoolDirectory.list().length);
+            }
+
+            // A share left over by a failed message would make the next one wait forever
+            Future<ProvideAndRegisterDocumentSetRequestType> future = caller.submit(
+                    new Callable<ProvideAndRegisterDocumentSetRequestType>()
+                    {
+                        public ProvideAndRegisterDocumentSetRequestType call() throws Exception
+                        {
+                            return transformer.transform(getMimeMessage(4));
+                        }
+                    });
+            assertEquals("Unexpected document count", 6, future.get(30, TimeUnit.SECONDS).getDocument().size());
+        }
+        finally
+        {
+            executor.shutdown();
+            caller.shutdownNow();
+            for (File file : spoolDirectory.listFiles())
+                file.delete();
+            spoolDirectory.delete();
+        }
+    }
+
     /*
      * Begin private methods
      * -----------------------------------------------------------------
      */
 
+    /**
+     * Create a message whose attachments depend on the index: plain text, or
+     * text with up to five XML and HTML attachments.
+     */
+    private static MimeMessage getMimeMessage(int index) throws MessagingException, IOException
+    {
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setFrom(new InternetAddress("sender" + index + "@example.com"));
+        message.setRecipient(RecipientType.TO, new InternetAddress("recipient" + index + "@example.com"));
+        message.setSubject("Message " + index);
+        message.setSentDate(new Date());
+
+        if (index % 3 == 0)
+        {
+            message.setText("Body " + index);
+        }
+        else
+        {
+            MimeMultipart multipart = new MimeMultipart();
+
+            MimeBodyPart text = new MimeBodyPart();
+            text.setText("Body " + index);
+            multipart.addBodyPart(text);
+
+            for (int i = 0; i <= index % 5; i++)
+            {
+                MimeBodyPart attachment = new MimeBodyPart();
+                if ((index + i) % 3 == 1)
+                    attachment.setContent("<note id=\"" + index + "-" + i + "\"/>", "text/xml");
+                else
+                    attachment.setContent("<html><body>" + index + "-" + i + "</body></html>", "text/html");
+                attachment.setFileName("attachment" + index + "-" + i);
+                multipart.addBodyPart(attachment);
+            }
+
+            message.setContent(multipart);
+        }
+
+        message.saveChanges();
+
+        // Parse the written message so that body parts have a size, as received mail does
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        message.writeTo(outputStream);
+
+        return new MimeMessage((Session) null, new ByteArrayInputStream(outputStream.toByteArray()));
+    }
+
+    /**
+     * Create a raw message with two attachments larger than 1 KB followed by a
+     * uuencoded one whose end is missing, which fails once it is partly read.
+     */
+    private static byte[] getFailingMessage() throws IOException
+    {
+        byte[] pdf = new byte[64 * 1024];
+        new Random(7).nextBytes(pdf);
+        System.arraycopy("%PDF-1.4".getBytes("US-ASCII"), 0, pdf, 0, 8);
+        String encoded = new String(Base64.encodeBase64Chunked(pdf), "US-ASCII");
+
+        StringBuilder message = new StringBuilder();
+        message.append("From: sender@example.com\r\n");
+        message.append("To: recipient@example.com\r\n");
+        message.append("Date: Mon, 4 Jan 2010 10:00:00 -0500\r\n");
+        message.append("MIME-Version: 1.0\r\n");
+        message.append("Content-Type: multipart/mixed; boundary=\"part\"\r\n\r\n");
+        for (int i = 0; i < 2; i++)
+        {
+            message.append("--part\r\n");
+            message.append("Content-Type: application/pdf\r\n");
+            message.append("Content-Transfer-Encoding: base64\r\n");
+            message.append("Content-Disposition: attachment; filename=scan" + i + ".pdf\r\n\r\n");
+            message.append(encoded);
+        }
+        message.append("--part\r\n");
+        message.append("Content-Type: application/octet-stream\r\n");
+        message.append("Content-Transfer-Encoding: x-uuencode\r\n\r\n");
+        message.append("begin 644 data\r\n");
+        for (int i = 0; i < 400; i++)
+            message.append("M86)C9&5F9VAI:FML;6YO<'%R<W1U=G=X>7IA8F-D969G:&EJ:VQM;F]P<7)S\r\n");
+        message.append("--part--\r\n");
+
+        return message.toString().getBytes("US-ASCII");
+    }
+
+    /**
+     * Create a multipart message holding the given parts.
+     */
+    private static MimeMessage getMimeMessage(MimeBodyPart... parts) throws MessagingException
+    {
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(RecipientType.TO, new InternetAddress("recipient@example.com"));
+        message.setSentDate(new Date());
+
+        MimeMultipart multipart = new MimeMultipart();
+        for (MimeBodyPart part : parts)
+            multipart.addBodyPart(part);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        return message;
+    }
+
+    private static CountingBodyPart getCountingBodyPart(byte[] data, String contentType, String fileName)
+            throws MessagingException
+    {
+        CountingBodyPart bodyPart = new CountingBodyPart(getHeaders(contentType), data);
+        if (fileName != null)
+            bodyPart.setFileName(fileName);
+
+        return bodyPart;
+    }
+
+    /**
+     * Return the headers of a body part whose content is held unencoded.
+     */
+    private static InternetHeaders getHeaders(String contentType)
+    {
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", contentType);
+        headers.setHeader("Content-Transfer-Encoding", "binary");
+
+        return headers;
+    }
+
+    /**
+     * Return the MIME type and contents of each document in the request, which
+     * unlike the generated identifiers are the same on every transformation.
+     */
+    private static String getSignature(ProvideAndRegisterDocumentSetRequestType request) throws IOException
+    {
+        StringBuilder signature = new StringBuilder();
+
+        for (ProvideAndRegisterDocumentSetRequestType.Document document : request.getDocument())
+        {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            document.getValue().writeTo(outputStream);
+
+            signature.append(document.getValue().getContentType()).append(':');
+            signature.append(outputStream.toString("UTF-8")).append('\n');
+        }
+
+        return signature.toString();
+    }
+
+    /**
+     * Return whether a document is held in a spool file.
+     */
+    private static boolean isSpooled(DataSource dataSource)
+    {
+        return dataSource instanceof ContentDataSource
+                && ((ContentDataSource) dataSource).getContent() instanceof FileContent;
+    }
+
     /**
      * Helper method to create a SimplePerson object.
      * 
@@ -385,4 +992,83 @@ public class DefaultMimeXdsTransformerTest extends TestCase
         return new String(theBytes);
     }
 
+    /**
+     * Body part which counts the streams opened on its content.
+     */
+    private static class CountingBodyPart extends MimeBodyPart
+    {
+        private volatile int streams;
+
+        public CountingBodyPart(InternetHeaders headers, byte[] content) throws MessagingException
+        {
+            super(headers, content);
+        }
+
+        @Override
+        public InputStream getInputStream() throws MessagingException, IOException
+        {
+            streams++;
+
+            return super.getInputStream();
+        }
+    }
+
+    /**
+     * Body part of unknown size whose content is read slowly, which records
+     * how many of its kind are read at once.
+     */
+    private static class UnknownSizeBodyPart extends MimeBodyPart
+    {
+        private final AtomicInteger active;
+        private final AtomicInteger maxActive;
+
+        public UnknownSizeBodyPart(byte[] content, AtomicInteger active, AtomicInteger maxActive) throws MessagingException
+        {
+            super(getHeaders("text/xml"), content);
+
+            this.active = active;
+            this.maxActive = maxActive;
+        }
+
+        @Override
+        public int getSize()
+        {
+            return -1;
+        }
+
+        @Override
+        public InputStream getInputStream() throws MessagingException, IOException
+        {
+            int count = active.incrementAndGet();
+            synchronized (maxActive)
+            {
+                maxActive.set(Math.max(maxActive.get(), count));
+            }
+
+            return new FilterInputStream(super.getInputStream())
+            {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    try
+                    {
+                        Thread.sleep(20);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    return super.read(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    active.decrementAndGet();
+                    super.close();
+                }
+            };
+        }
+    }
 }
@@ -30,11 +30,20 @@ package org.nhindirect.xd.transform.impl;
 
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
 import javax.xml.bind.JAXBElement;
 import javax.xml.namespace.QName;
 
@@ -48,6 +57,8 @@ import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryPackageType;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nhindirect.xd.common.DirectDocument2;
+import org.nhindirect.xd.common.DirectDocuments;
 import org.nhindirect.xd.transform.impl.DefaultXdmXdsTransformer;
 
 /**
@@ -303,6 +314,186 @@ public class DefaultXdmXdsTransformerTest extends TestCase
         }
     }
 
+    /**
+     * Test that every document of the sample package is read, by file and by
+     * stream.
+     * 
+     * @throws Exception
+     */
+    public void testGetXDMRequest_Documents() throws Exception
+    {
+        DefaultXdmXdsTransformer transformer = new DefaultXdmXdsTransformer();
+
+        ProvideAndRegisterDocumentSetRequestType fromFile = transformer.transform(getSampleXdmAsFile());
+        ProvideAndRegisterDocumentSetRequestType fromStream = transformer.transform(getSampleXdmAsDataHandler());
+
+        assertEquals("Unexpected document count", 1, fromFile.getDocument().size());
+        assertEquals("Unexpected document ID", "Document01", fromFile.getDocument().get(0).getId());
+        assertEquals("Outputs differ", getSignature(fromFile), getSignature(fromStream));
+    }
+
+    /**
+     * Test concurrent transformations of packages with different document
+     * names.
+     * 
+     * @throws Exception
+     */
+    public void testConcurrentTransform() throws Exception
+    {
+        final DefaultXdmXdsTransformer transformer = new DefaultXdmXdsTransformer();
+        final File[] files = new File[200];
+        final String[] expected = new String[files.length];
+
+        try
+        {
+            for (int i = 0; i < files.length; i++)
+            {
+                files[i] = File.createTempFile("xdm-", ".zip");
+
+                OutputStream outputStream = new FileOutputStream(files[i]);
+                try
+                {
+                    writeXdm(i, outputStream);
+                }
+                finally
+                {
+                    outputStream.close();
+                }
+
+                expected[i] = "doc" + i + "a|text/xml|<doc>" + i + "a</doc>;doc" + i + "b|application/pdf|%PDF-" + i + "b;";
+            }
+
+            final AtomicInteger next = new AtomicInteger();
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++)
+            {
+                threads[i] = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            int j;
+                            while ((j = next.getAndIncrement()) < files.length * 2)
+                            {
+                                int index = j % files.length;
+                                ProvideAndRegisterDocumentSetRequestType output = j < files.length ? transformer
+                                        .transform(files[index]) : transformer.transform(new DataHandler(
+                                        new FileDataSource(files[index])));
+                                assertEquals("Outputs differ for package " + j, expected[index], getSignature(output));
+                            }
+                        }
+                        catch (Throwable t)
+                        {
+                            failures.add(t);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+
+            assertTrue("Transformation failed: " + failures, failures.isEmpty());
+        }
+        finally
+        {
+            for (File file : files)
+            {
+                if (file != null)
+                    file.delete();
+            }
+        }
+    }
+
+    /**
+     * Write an XDM package holding an XML document, named by its URI slot, and
+     * a PDF document, named by its ID. Odd packages put the metadata after the
+     * documents.
+     * 
+     * @param index
+     *            The package index.
+     * @param outputStream
+     *            The stream to write to.
+     * @throws Exception
+     */
+    private static void writeXdm(int index, OutputStream outputStream) throws Exception
+    {
+        DirectDocuments documents = new DirectDocuments();
+        documents.getSubmissionSet().setId("SubmissionSet" + index);
+
+        DirectDocument2 xml = new DirectDocument2();
+        xml.setData(("<doc>" + index + "a</doc>").getBytes("UTF-8"));
+        xml.getMetadata().setId("doc" + index + "a");
+        xml.getMetadata().setMimeType("text/xml");
+        xml.getMetadata().setURI("Document" + index + ".xml");
+        documents.getDocuments().add(xml);
+
+        DirectDocument2 pdf = new DirectDocument2();
+        pdf.setData(("%PDF-" + index + "b").getBytes("UTF-8"));
+        pdf.getMetadata().setId("doc" + index + "b");
+        pdf.getMetadata().setMimeType("application/pdf");
+        documents.getDocuments().add(pdf);
+
+        ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+
+        if (index % 2 == 0)
+            writeMetadata(documents, zipOutputStream);
+
+        zipOutputStream.putNextEntry(new ZipEntry("IHE_XDM/SUBSET01/Document" + index + ".xml"));
+        zipOutputStream.write(xml.getData());
+        zipOutputStream.closeEntry();
+
+        zipOutputStream.putNextEntry(new ZipEntry("IHE_XDM/SUBSET01/doc" + index + "b.pdf"));
+        zipOutputStream.write(pdf.getData());
+        zipOutputStream.closeEntry();
+
+        zipOutputStream.putNextEntry(new ZipEntry("IHE_XDM/SUBSET02/doc" + index + "b.pdf"));
+        zipOutputStream.write("not this one".getBytes("UTF-8"));
+        zipOutputStream.closeEntry();
+
+        if (index % 2 == 1)
+            writeMetadata(documents, zipOutputStream);
+
+        zipOutputStream.finish();
+    }
+
+    private static void writeMetadata(DirectDocuments documents, ZipOutputStream zipOutputStream) throws Exception
+    {
+        zipOutputStream.putNextEntry(new ZipEntry("IHE_XDM/SUBSET01/METADATA.xml"));
+        documents.writeSubmitObjectsRequest(zipOutputStream);
+        zipOutputStream.closeEntry();
+    }
+
+    /**
+     * Summarize the documents of a request as ID, content type and content.
+     * 
+     * @param request
+     *            The request.
+     * @return the summary.
+     * @throws Exception
+     */
+    private static String getSignature(ProvideAndRegisterDocumentSetRequestType request) throws Exception
+    {
+        StringBuilder signature = new StringBuilder();
+
+        for (ProvideAndRegisterDocumentSetRequestType.Document document : request.getDocument())
+        {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            document.getValue().writeTo(outputStream);
+
+            signature.append(document.getId()).append('|');
+            signature.append(document.getValue().getContentType()).append('|');
+            signature.append(outputStream.toString("UTF-8")).append(';');
+        }
+
+        return signature.toString();
+    }
+
     /**
      * Return a sample XDM file as a File.
      * 
@@ -2,14 +2,26 @@ package org.nhindirect.xd.transform.impl;
 
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.xml.namespace.QName;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
 import org.nhindirect.xd.common.DirectDocument2;
 import org.nhindirect.xd.common.DirectDocuments;
 import org.nhindirect.xd.common.type.ClassCodeEnum;
@@ -119,4 +131,116 @@ public class DefaultXdsXdmTransformerTest extends TestCase
         
         System.out.println(f.getAbsolutePath());
     }
+
+    /**
+     * Test that attachments are streamed once into the package and that the
+     * metadata carries their computed hash and size.
+     * 
+     * @throws Exception
+     */
+    public void testTransformStream() throws Exception
+    {
+        DirectDocuments documents = new DirectDocuments();
+        documents.getSubmissionSet().setId("1");
+        documents.getSubmissionSet().setPatientId("xxx");
+
+        DirectDocument2 doc = new DirectDocument2();
+        doc.setData("placeholder".getBytes());
+        doc.getMetadata().setMimeType("application/pdf");
+        doc.getMetadata().setId("1.2");
+        doc.getMetadata().setUniqueId("1.27");
+        documents.getDocuments().add(doc);
+
+        ProvideAndRegisterDocumentSetRequestType request = documents.toProvideAndRegisterDocumentSetRequestType();
+
+        GeneratedDataSource source = new GeneratedDataSource(3 * 1024 * 1024);
+        request.getDocument().get(0).setValue(new DataHandler(source));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new DefaultXdsXdmTransformer().transform(request, outputStream);
+
+        assertEquals("Attachment not read exactly once", 1, source.opens);
+
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+        long size = 0;
+        DirectDocuments metadata = new DirectDocuments();
+
+        ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+        ZipEntry zipEntry = null;
+        while ((zipEntry = zipInputStream.getNextEntry()) != null)
+        {
+            if (zipEntry.getName().endsWith("METADATA.xml"))
+            {
+                metadata.setValues(IOUtils.toByteArray(zipInputStream));
+            }
+            else if (zipEntry.getName().endsWith("1.2.pdf"))
+            {
+                byte[] data = IOUtils.toByteArray(zipInputStream);
+                messageDigest.update(data);
+                size += data.length;
+            }
+        }
+        zipInputStream.close();
+
+        String hash = new String(Hex.encodeHex(messageDigest.digest()));
+        assertEquals("Unexpected document size", source.size, size);
+        assertEquals("Unexpected size in metadata", Long.valueOf(size), metadata.getDocuments().get(0).getMetadata().getSize());
+        assertEquals("Unexpected hash in metadata", hash, metadata.getDocuments().get(0).getMetadata().getHash());
+    }
+
+    /**
+     * A DataSource which generates its content and counts how often it is
+     * read.
+     */
+    private static class GeneratedDataSource implements DataSource
+    {
+        private final int size;
+        private int opens;
+
+        public GeneratedDataSource(int size)
+        {
+            this.size = size;
+        }
+
+        @Override
+        public InputStream getInputStream()
+        {
+            opens++;
+
+            return new InputStream()
+            {
+                private final Random random = new Random(size);
+                private int remaining = size;
+
+                @Override
+                public int read()
+                {
+                    if (remaining == 0)
+                        return -1;
+
+                    remaining--;
+                    return random.nextInt(256);
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return "application/pdf";
+        }
+
+        @Override
+        public String getName()
+        {
+            return "generated";
+        }
+    }
 }
+
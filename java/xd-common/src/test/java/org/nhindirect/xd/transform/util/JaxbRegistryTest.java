@@ -0,0 +1,127 @@
+package org.nhindirect.xd.transform.util;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+
+import junit.framework.TestCase;
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
+
+/**
+ * Test class for methods in the JaxbRegistry class.
+ */
+public class JaxbRegistryTest extends TestCase
+{
+
+    /**
+     * Test constructor.
+     * 
+     * @param testName
+     *            The test name
+     */
+    public JaxbRegistryTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * Test that contexts are created once per factory class.
+     */
+    public void testGetContext() throws Exception
+    {
+        JaxbRegistry registry = new JaxbRegistry(JaxbRegistry.DEFAULT_POOL_SIZE);
+
+        JAXBContext first = registry.getContext(ihe.iti.xds_b._2007.ObjectFactory.class);
+        JAXBContext second = registry.getContext(ihe.iti.xds_b._2007.ObjectFactory.class);
+
+        assertSame("Context was not cached", first, second);
+        assertEquals("Unexpected misses", 1, registry.getContextMisses());
+        assertEquals("Unexpected hits", 1, registry.getContextHits());
+
+        registry.clear();
+        assertNotSame("Context was not cleared", first, registry.getContext(ihe.iti.xds_b._2007.ObjectFactory.class));
+    }
+
+    /**
+     * Test that released marshallers and unmarshallers are reused, and that
+     * warm-up fills the pools.
+     */
+    public void testPooling() throws Exception
+    {
+        Class<?> factory = oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class;
+        JaxbRegistry registry = new JaxbRegistry(1);
+
+        registry.warmUp(factory);
+        assertEquals("Unexpected misses", 1, registry.getContextMisses());
+
+        Marshaller marshaller = registry.acquireMarshaller(factory);
+        Unmarshaller unmarshaller = registry.acquireUnmarshaller(factory);
+        assertEquals("Warm-up did not fill the pools", 2, registry.getPoolHits());
+
+        // Pool is empty, so a new instance is created
+        Marshaller other = registry.acquireMarshaller(factory);
+        assertNotSame("Marshaller handed out twice", marshaller, other);
+        assertEquals("Unexpected pool misses", 1, registry.getPoolMisses());
+
+        registry.release(factory, marshaller);
+        registry.release(factory, other);
+        registry.release(factory, unmarshaller);
+
+        // Only one idle marshaller is kept
+        assertSame("Marshaller was not reused", marshaller, registry.acquireMarshaller(factory));
+        assertNotSame("Pool size was exceeded", other, registry.acquireMarshaller(factory));
+        assertSame("Unmarshaller was not reused", unmarshaller, registry.acquireUnmarshaller(factory));
+    }
+
+    /**
+     * Test marshalling and unmarshalling through the shared registry from
+     * several threads.
+     */
+    public void testConcurrentUse() throws Exception
+    {
+        final QName qname = new QName("urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0", "SubmitObjectsRequest");
+        final Class<?> factory = oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class;
+        final String xml = XmlUtils.marshal(qname, new SubmitObjectsRequest(), factory);
+        final Exception[] failure = new Exception[1];
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < 50; j++)
+                        {
+                            Object sor = XmlUtils.unmarshal(xml, factory);
+                            assertTrue("Unexpected object", sor instanceof SubmitObjectsRequest);
+                            assertEquals("Round trip failed", xml, XmlUtils.marshal(qname, sor, factory));
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        failure[0] = e;
+                    }
+                    catch (Error e)
+                    {
+                        failure[0] = new Exception(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        if (failure[0] != null)
+            throw failure[0];
+
+        assertTrue("Pool was not used", JaxbRegistry.getInstance().getPoolHits() > 0);
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.nhindirect.xd.transform.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for methods in the RenderCache class.
+ */
+public class RenderCacheTest extends TestCase
+{
+
+    /**
+     * Test constructor.
+     * 
+     * @param testName
+     *            The test name
+     */
+    public RenderCacheTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * Test lookups and the hit rate.
+     */
+    public void testGetPut()
+    {
+        RenderCache cache = new RenderCache(100);
+
+        assertNull("Unexpected entry", cache.get("a.xsl", 1, "ABCD"));
+
+        byte[] output = new byte[10];
+        cache.put("a.xsl", 1, "ABCD", output);
+
+        assertSame("Entry not cached", output, cache.get("a.xsl", 1, "abcd"));
+        assertNull("Entry from another generation", cache.get("a.xsl", 2, "abcd"));
+        assertNull("Entry from another stylesheet", cache.get("b.xsl", 1, "abcd"));
+
+        assertEquals("Unexpected hits", 1, cache.getHits());
+        assertEquals("Unexpected misses", 3, cache.getMisses());
+        assertEquals("Unexpected hit rate", 0.25, cache.getHitRate(), 0.0001);
+        assertEquals("Unexpected size", 10, cache.getSizeInBytes());
+
+        cache.put("a.xsl", 1, "abcd", new byte[20]);
+        assertEquals("Replaced entry not accounted for", 20, cache.getSizeInBytes());
+        assertEquals("Unexpected entry count", 1, cache.getEntryCount());
+    }
+
+    /**
+     * Test that the least recently used entries are evicted by size.
+     */
+    public void testEviction()
+    {
+        RenderCache cache = new RenderCache(100);
+
+        cache.put("a.xsl", 1, "1", new byte[40]);
+        cache.put("a.xsl", 1, "2", new byte[40]);
+        cache.get("a.xsl", 1, "1");
+        cache.put("a.xsl", 1, "3", new byte[40]);
+
+        assertNotNull("Recently used entry evicted", cache.get("a.xsl", 1, "1"));
+        assertNull("Least recently used entry not evicted", cache.get("a.xsl", 1, "2"));
+        assertNotNull("Newest entry evicted", cache.get("a.xsl", 1, "3"));
+        assertEquals("Unexpected size", 80, cache.getSizeInBytes());
+        assertEquals("Unexpected evictions", 1, cache.getEvictions());
+
+        cache.put("a.xsl", 1, "4", new byte[101]);
+        assertNull("Oversized entry cached", cache.get("a.xsl", 1, "4"));
+        assertEquals("Unexpected size", 80, cache.getSizeInBytes());
+    }
+
+    /**
+     * Test that invalidation removes only the entries for the stylesheet.
+     */
+    public void testInvalidate()
+    {
+        RenderCache cache = new RenderCache(100);
+
+        cache.put("a.xsl", 1, "1", new byte[10]);
+        cache.put("a.xsl", 2, "1", new byte[10]);
+        cache.put("b.xsl", 1, "1", new byte[10]);
+
+        cache.invalidate("a.xsl");
+
+        assertEquals("Unexpected entry count", 1, cache.getEntryCount());
+        assertEquals("Unexpected size", 10, cache.getSizeInBytes());
+        assertNotNull("Entry for other stylesheet removed", cache.get("b.xsl", 1, "1"));
+
+        cache.clear();
+        assertEquals("Unexpected entry count", 0, cache.getEntryCount());
+        assertEquals("Counters not reset", 0, cache.getHits());
+    }
+}
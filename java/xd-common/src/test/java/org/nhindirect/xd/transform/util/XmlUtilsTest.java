@@ -1,6 +1,12 @@
 package org.nhindirect.xd.transform.util;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import javax.xml.namespace.QName;
+
 import junit.framework.TestCase;
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
 
 public class XmlUtilsTest extends TestCase {
 
@@ -37,4 +43,30 @@ public class XmlUtilsTest extends TestCase {
     public void testDummy() {
         
     }
+
+    /**
+     * Test that non-ASCII content survives a round trip through the byte and
+     * stream methods regardless of the platform charset.
+     */
+    public void testByteRoundTrip() throws Exception {
+        QName qname = new QName("urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0", "SubmitObjectsRequest");
+        Class<?> factory = oasis.names.tc.ebxml_regrep.xsd.lcm._3.ObjectFactory.class;
+        String comment = "Z\u00fcrich \u00e9t\u00e9 \u65e5\u672c";
+
+        SubmitObjectsRequest request = new SubmitObjectsRequest();
+        request.setComment(comment);
+
+        byte[] xml = XmlUtils.marshalToBytes(qname, request, factory);
+        SubmitObjectsRequest result = (SubmitObjectsRequest) XmlUtils.unmarshal(xml, factory);
+        assertEquals("UTF-8 round trip failed", comment, result.getComment());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        XmlUtils.marshal(qname, request, factory, outputStream, Charset.forName("UTF-16"));
+        result = (SubmitObjectsRequest) XmlUtils.unmarshal(outputStream.toByteArray(), factory);
+        assertEquals("UTF-16 round trip failed", comment, result.getComment());
+
+        String string = XmlUtils.marshal(qname, request, factory);
+        result = (SubmitObjectsRequest) XmlUtils.unmarshal(string, factory);
+        assertEquals("String round trip failed", comment, result.getComment());
+    }
 }
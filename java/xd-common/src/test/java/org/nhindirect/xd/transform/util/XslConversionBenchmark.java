@@ -0,0 +1,122 @@
+package org.nhindirect.xd.transform.util;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Benchmark of Transformer reuse in XslConversion. It is not a unit test and
+ * is not run by surefire. Run it from the test classpath, for example with
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.nhindirect.xd.transform.util.XslConversionBenchmark
+ * </pre>
+ * 
+ * The sample CCD is rendered with CCD.xsl, once creating a new Transformer for
+ * every conversion (a pool size of zero) and once with pooled Transformers, on
+ * one thread and on several. Each measurement follows warm-up iterations and
+ * the best of several rounds is reported. The render cache is left disabled.
+ */
+public class XslConversionBenchmark
+{
+    private static final String STYLESHEET = "CCD.xsl";
+
+    /**
+     * Run the benchmark.
+     * 
+     * @param args
+     *            The number of conversions per round (200 by default), the
+     *            number of rounds (5) and the number of threads for the
+     *            concurrent runs (4).
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        InputStream is = XslConversionBenchmark.class.getClassLoader().getResourceAsStream("sampleccd.xml");
+        String input = IOUtils.toString(is, "UTF-8");
+        is.close();
+
+        XslConversion.precompile(STYLESHEET);
+        int poolSize = XslConversion.getPoolSize() > 0 ? XslConversion.getPoolSize() : XslConversion.DEFAULT_POOL_SIZE;
+
+        System.out.println("mode                       threads   conversions/s");
+        try
+        {
+            for (int threadCount : new int[] { 1, threads })
+            {
+                XslConversion.setPoolSize(0);
+                report("new transformer per call", threadCount, measure(input, iterations, rounds, threadCount));
+
+                XslConversion.setPoolSize(poolSize);
+                report("pooled transformers", threadCount, measure(input, iterations, rounds, threadCount));
+            }
+        }
+        finally
+        {
+            XslConversion.setPoolSize(poolSize);
+        }
+    }
+
+    private static void report(String mode, int threads, double rate)
+    {
+        System.out.println(String.format("%-26s %7d %15.1f", mode, threads, rate));
+    }
+
+    /**
+     * Return the best rate, in conversions per second, of the given number of
+     * rounds after a warm-up round.
+     */
+    private static double measure(final String input, final int iterations, int rounds, int threads) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try
+        {
+            double best = 0;
+
+            for (int round = 0; round <= rounds; round++)
+            {
+                List<Future<Object>> futures = new ArrayList<Future<Object>>(threads);
+                long start = System.nanoTime();
+
+                for (int i = 0; i < threads; i++)
+                {
+                    futures.add(executor.submit(new Callable<Object>()
+                    {
+                        public Object call() throws Exception
+                        {
+                            XslConversion converter = new XslConversion();
+                            for (int j = 0; j < iterations; j++)
+                                converter.run(STYLESHEET, input);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Object> future : futures)
+                    future.get();
+
+                double rate = (double) iterations * threads * 1000000000L / (System.nanoTime() - start);
+
+                // Round 0 warms up
+                if (round > 0)
+                    best = Math.max(best, rate);
+            }
+
+            return best;
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,6 +1,14 @@
 package org.nhindirect.xd.transform.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.transform.TransformerConfigurationException;
 
 import junit.framework.TestCase;
 
@@ -103,6 +111,161 @@ public class XslConversionTest extends TestCase
         }
     }
 
+    /**
+     * Test the stream overload against the String overload.
+     * 
+     * @throws Exception
+     */
+    public void testRunStreams() throws Exception
+    {
+        String input = getSampleCCD();
+        XslConversion converter = new XslConversion();
+
+        String expected = converter.run("ccdtoccddb.xsl", input);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        converter.run("ccdtoccddb.xsl", new ByteArrayInputStream(input.getBytes("UTF-8")), outputStream);
+
+        assertEquals("Outputs differ", StringUtils.deleteWhitespace(expected), StringUtils.deleteWhitespace(outputStream.toString("UTF-8")));
+    }
+
+    /**
+     * Test the precompile method.
+     * 
+     * @throws Exception
+     */
+    public void testPrecompile() throws Exception
+    {
+        XslConversion.precompile(XslConversion.DEFAULT_STYLESHEETS);
+
+        try
+        {
+            XslConversion.precompile("ccdtoccddb_missing.xsl");
+            fail("Exception not thrown");
+        }
+        catch (TransformerConfigurationException e)
+        {
+            assertTrue(true);
+        }
+    }
+
+    /**
+     * Test conversions from several threads at once.
+     * 
+     * @throws Exception
+     */
+    public void testConcurrentRun() throws Exception
+    {
+        final String input = getSampleCCD();
+        final String expected = new XslConversion().run("CCD.xsl", input);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        XslConversion converter = new XslConversion();
+                        for (int j = 0; j < 10; j++)
+                            assertEquals("Outputs differ", expected, converter.run("CCD.xsl", input));
+                    }
+                    catch (Throwable t)
+                    {
+                        failures.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue("Conversion failed: " + failures, failures.isEmpty());
+    }
+
+    /**
+     * Test that transformers are returned to a bounded pool and reused.
+     * 
+     * @throws Exception
+     */
+    public void testTransformerReuse() throws Exception
+    {
+        String input = getSampleCCD();
+        XslConversion converter = new XslConversion();
+        int poolSize = XslConversion.getPoolSize();
+
+        try
+        {
+            String expected = converter.run("CCD.xsl", input);
+            assertTrue("Transformer not pooled", XslConversion.getIdleCount("CCD.xsl") >= 1);
+
+            for (int i = 0; i < 5; i++)
+                assertEquals("Outputs differ", expected, converter.run("CCD.xsl", input));
+
+            XslConversion.setPoolSize(0);
+            assertEquals("Outputs differ", expected, converter.run("CCD.xsl", input));
+            assertEquals("Transformer pooled", 0, XslConversion.getIdleCount("CCD.xsl"));
+
+            try
+            {
+                XslConversion.setPoolSize(-1);
+                fail("Exception not thrown");
+            }
+            catch (IllegalArgumentException e)
+            {
+                assertTrue(true);
+            }
+        }
+        finally
+        {
+            XslConversion.setPoolSize(poolSize);
+        }
+    }
+
+    /**
+     * Test that rendered output is cached and invalidated on recompile.
+     * 
+     * @throws Exception
+     */
+    public void testRenderCache() throws Exception
+    {
+        byte[] input = getSampleCCD().getBytes("UTF-8");
+        XslConversion converter = new XslConversion();
+        RenderCache cache = new RenderCache(1024 * 1024);
+
+        byte[] expected = converter.render("CCD.xsl", input);
+
+        XslConversion.setRenderCache(cache);
+        try
+        {
+            assertTrue("Outputs differ", Arrays.equals(expected, converter.render("CCD.xsl", input)));
+            assertTrue("Outputs differ", Arrays.equals(expected, converter.render("CCD.xsl", input)));
+            assertEquals("Unexpected hits", 1, cache.getHits());
+            assertEquals("Unexpected misses", 1, cache.getMisses());
+            assertEquals("Unexpected size", expected.length, cache.getSizeInBytes());
+
+            // A caller supplied hash is used as the key
+            converter.render("CCD.xsl", input, "0000");
+            assertEquals("Unexpected entry count", 2, cache.getEntryCount());
+
+            XslConversion.recompile("CCD.xsl");
+            assertEquals("Entries not invalidated", 0, cache.getEntryCount());
+
+            assertTrue("Outputs differ", Arrays.equals(expected, converter.render("CCD.xsl", input)));
+            assertEquals("Unexpected misses", 3, cache.getMisses());
+        }
+        finally
+        {
+            XslConversion.setRenderCache(null);
+        }
+    }
+
     /**
      * Return a sample CCD as a String.
      * 